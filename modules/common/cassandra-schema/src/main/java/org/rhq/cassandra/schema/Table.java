@@ -8,6 +8,9 @@ public enum Table {
     METRICS_INDEX("rhq.metrics_idx"),
     RAW_METRICS("rhq.raw_metrics"),
     AGGREGATE_METRICS("rhq.aggregate_metrics"),
+    GROUP_ROLLUPS("rhq.group_rollups"),
+    GROUP_AGGREGATE_METRICS("rhq.group_aggregate_metrics"),
+    RAW_METRIC_BLOCKS("rhq.raw_metric_blocks"),
     SCHEMA_VERSION("rhq.schema_version");
 
     private String tableName;
@@ -44,7 +44,7 @@ public class ReplaceIndexTest extends SchemaUpgradeTest {
         SchemaManager schemaManager = new SchemaManager("rhqadmin", "1eeb2f255e832171df8592078de921bc",
             new String[] {"127.0.0.1"}, 9042);
         schemaManager.setUpdateFolderFactory(new TestUpdateFolderFactory(VersionManager.Task.Update.getFolder())
-            .removeFiles("0003.xml", "0004.xml", "0005.xml", "0006.xml", "0007.xml"));
+            .removeFiles("0003.xml", "0004.xml", "0005.xml", "0006.xml", "0007.xml", "0008.xml", "0009.xml"));
         schemaManager.drop();
         schemaManager.shutdown();
         schemaManager.install(new Properties());
@@ -87,7 +87,7 @@ public class ReplaceIndexTest extends SchemaUpgradeTest {
         SchemaManager schemaManager = new SchemaManager("rhqadmin", "1eeb2f255e832171df8592078de921bc",
             new String[] {"127.0.0.1"}, 9042);
         schemaManager.setUpdateFolderFactory(new TestUpdateFolderFactory(VersionManager.Task.Update.getFolder())
-            .removeFiles("0004.xml", "0005.xml", "0006.xml", "0007.xml"));
+            .removeFiles("0004.xml", "0005.xml", "0006.xml", "0007.xml", "0008.xml", "0009.xml"));
         schemaManager.drop();
         schemaManager.shutdown();
         schemaManager.install(new Properties());
@@ -77,6 +77,7 @@ import org.rhq.core.domain.operation.OperationRequestStatus;
         + "    JOIN ac.measurementDefinition md, MeasurementSchedule ms JOIN ms.baseline mb " //
         + "   WHERE " + AlertCondition.RECOVERY_CONDITIONAL_EXPRESSION //
         + "     AND ( res.agent.id = :agentId OR :agentId IS NULL ) " //
+        + "     AND ( res.id = :resourceId OR :resourceId IS NULL ) " //
         + "     AND ad.enabled = TRUE " //
         + "     AND ad.deleted = FALSE " //
         + "     AND ms.definition = md " //
@@ -92,6 +93,7 @@ import org.rhq.core.domain.operation.OperationRequestStatus;
         + "    JOIN ac.measurementDefinition md, MeasurementSchedule ms JOIN ms.baseline mb " //
         + "   WHERE " + AlertCondition.RECOVERY_CONDITIONAL_EXPRESSION //
         + "     AND ( res.agent.id = :agentId OR :agentId IS NULL ) " //
+        + "     AND ( res.id = :resourceId OR :resourceId IS NULL ) " //
         + "     AND ad.enabled = TRUE " //
         + "     AND ad.deleted = FALSE " //
         + "     AND ms.definition = md " //
@@ -111,6 +113,7 @@ import org.rhq.core.domain.operation.OperationRequestStatus;
         + "    JOIN ac.measurementDefinition md, MeasurementSchedule ms " //
         + "   WHERE " + AlertCondition.RECOVERY_CONDITIONAL_EXPRESSION //
         + "     AND ( res.agent.id = :agentId OR :agentId IS NULL ) " //
+        + "     AND ( res.id = :resourceId OR :resourceId IS NULL ) " //
         + "     AND ad.enabled = TRUE " //
         + "     AND ad.deleted = FALSE " //
         + "     AND ms.definition = md " //
@@ -140,6 +143,7 @@ import org.rhq.core.domain.operation.OperationRequestStatus;
         + "    JOIN ac.measurementDefinition md, MeasurementSchedule ms " //
         + "   WHERE " + AlertCondition.RECOVERY_CONDITIONAL_EXPRESSION //
         + "     AND ( res.agent.id = :agentId OR :agentId IS NULL ) " //
+        + "     AND ( res.id = :resourceId OR :resourceId IS NULL ) " //
         + "     AND ad.enabled = TRUE " //
         + "     AND ad.deleted = FALSE " //
         + "     AND ms.definition = md " //
@@ -165,6 +169,7 @@ import org.rhq.core.domain.operation.OperationRequestStatus;
         + "    JOIN ad.resource res " //
         + "   WHERE " + AlertCondition.RECOVERY_CONDITIONAL_EXPRESSION //
         + "     AND ( res.agent.id = :agentId OR :agentId IS NULL ) " //
+        + "     AND ( res.id = :resourceId OR :resourceId IS NULL ) " //
         + "     AND ad.enabled = TRUE " //
         + "     AND ad.deleted = FALSE " //
         + "     AND ac.category = :category " //
@@ -187,6 +192,7 @@ import org.rhq.core.domain.operation.OperationRequestStatus;
         + "    JOIN res.resourceType type " //
         + "   WHERE " + AlertCondition.RECOVERY_CONDITIONAL_EXPRESSION //
         + "     AND ( res.agent.id = :agentId OR :agentId IS NULL ) " //
+        + "     AND ( res.id = :resourceId OR :resourceId IS NULL ) " //
         + "     AND ad.enabled = TRUE " //
         + "     AND ad.deleted = FALSE " //
         + "     AND ac.category = 'CONTROL' " //
@@ -204,6 +210,7 @@ import org.rhq.core.domain.operation.OperationRequestStatus;
         + "    JOIN ac.measurementDefinition md, MeasurementSchedule ms " //
         + "   WHERE " + AlertCondition.RECOVERY_CONDITIONAL_EXPRESSION //
         + "     AND ( res.agent.id = :agentId OR :agentId IS NULL ) " //
+        + "     AND ( res.id = :resourceId OR :resourceId IS NULL ) " //
         + "     AND ad.enabled = TRUE " //
         + "     AND ad.deleted = FALSE " //
         + "     AND ms.definition = md " //
@@ -221,6 +228,7 @@ import org.rhq.core.domain.operation.OperationRequestStatus;
         + "    JOIN ad.resource res " //
         + "   WHERE " + AlertCondition.RECOVERY_CONDITIONAL_EXPRESSION //
         + "     AND ( res.agent.id = :agentId OR :agentId IS NULL ) " //
+        + "     AND ( res.id = :resourceId OR :resourceId IS NULL ) " //
         + "     AND ad.enabled = TRUE " //
         + "     AND ad.deleted = FALSE " //
         + "     AND ac.category = 'EVENT' " //
@@ -238,6 +246,7 @@ import org.rhq.core.domain.operation.OperationRequestStatus;
         + "    LEFT JOIN res.resourceConfiguration resConfig " //
         + "   WHERE " + AlertCondition.RECOVERY_CONDITIONAL_EXPRESSION //
         + "     AND ( res.agent.id = :agentId OR :agentId IS NULL ) " //
+        + "     AND ( res.id = :resourceId OR :resourceId IS NULL ) " //
         + "     AND ad.enabled = TRUE " //
         + "     AND ad.deleted = FALSE " //
         + "     AND ac.category = 'RESOURCE_CONFIG' " //
@@ -253,6 +262,7 @@ import org.rhq.core.domain.operation.OperationRequestStatus;
         + "    JOIN ad.resource res " //
         + "   WHERE " + AlertCondition.RECOVERY_CONDITIONAL_EXPRESSION //
         + "     AND ( res.agent.id = :agentId OR :agentId IS NULL ) " //
+        + "     AND ( res.id = :resourceId OR :resourceId IS NULL ) " //
         + "     AND ad.enabled = TRUE " //
         + "     AND ad.deleted = FALSE " //
         + "     AND ac.category = 'DRIFT' " //
@@ -270,6 +280,7 @@ import org.rhq.core.domain.operation.OperationRequestStatus;
         + "    JOIN ac.measurementDefinition md, MeasurementSchedule ms " //
         + "   WHERE " + AlertCondition.RECOVERY_CONDITIONAL_EXPRESSION //
         + "     AND ( res.agent.id = :agentId OR :agentId IS NULL ) " //
+        + "     AND ( res.id = :resourceId OR :resourceId IS NULL ) " //
         + "     AND ad.enabled = TRUE " //
         + "     AND ad.deleted = FALSE " //
         + "     AND ms.definition = md " //
@@ -283,6 +294,7 @@ import org.rhq.core.domain.operation.OperationRequestStatus;
         + "    JOIN ad.resource res " //
         + "   WHERE " + AlertCondition.RECOVERY_CONDITIONAL_EXPRESSION //
         + "     AND ( res.agent.id = :agentId OR :agentId IS NULL ) " //
+        + "     AND ( res.id = :resourceId OR :resourceId IS NULL ) " //
         + "     AND ad.enabled = TRUE " //
         + "     AND ad.deleted = FALSE " //
         + "     AND ac.category = :category "),
@@ -227,7 +227,13 @@ import org.rhq.core.domain.resource.group.ResourceGroup;
         + "                      FROM AlertDefinition ad " //
         + "                     WHERE ad.groupAlertDefinition.id = :groupAlertDefinitionId " // find the children for this group alert def
         + "                       AND ad.resource.id = res.id " // correlated to the resource
-        + "                       AND ad.deleted = false ) ") // and not deleted
+        + "                       AND ad.deleted = false ) "), // and not deleted
+    @NamedQuery(name = AlertDefinition.QUERY_FIND_RESOURCE_IDS_WITH_MODIFIED_BY_AGENT, query = "" //
+        + "SELECT DISTINCT res.id " //
+        + "  FROM AlertDefinition ad " //
+        + "  JOIN ad.resource res " //
+        + " WHERE res.agent.id = :agentId " //
+        + "   AND ad.mtime > :modifiedSince ") // includes deleted definitions, their conditions need to be removed
 })
 @SequenceGenerator(allocationSize = org.rhq.core.domain.util.Constants.ALLOCATION_SIZE, name = "RHQ_ALERT_DEFINITION_ID_SEQ", sequenceName = "RHQ_ALERT_DEFINITION_ID_SEQ")
 @Table(name = "RHQ_ALERT_DEFINITION")
@@ -252,6 +258,7 @@ public class AlertDefinition implements Serializable {
     public static final String QUERY_IS_TEMPLATE = "AlertDefinition.isTemplate";
     public static final String QUERY_IS_GROUP_ALERT_DEFINITION = "AlertDefinition.isGroupAlertDefinition";
     public static final String QUERY_IS_RESOURCE_ALERT_DEFINITION = "AlertDefinition.isResourceAlertDefinition";
+    public static final String QUERY_FIND_RESOURCE_IDS_WITH_MODIFIED_BY_AGENT = "AlertDefinition.findResourceIdsWithModifiedByAgent";
 
     // group/template alert definitions
     public static final String QUERY_UPDATE_SET_PARENTS_NULL = "AlertDefinition.updateSetParentsNull";
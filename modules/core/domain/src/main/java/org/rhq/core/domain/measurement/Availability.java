@@ -70,6 +70,11 @@ import org.rhq.core.domain.resource.Resource;
         + "    FROM Availability av " //
         + "   WHERE av.resource.id IN ( :resourceIds ) " //
         + "     AND av.endTime IS NULL "), //
+    @NamedQuery(name = Availability.FIND_LATEST_TYPE_BY_RESOURCE_IDS, query = "" //
+        + "  SELECT av.resource.id, av.startTime, av.availabilityType " //
+        + "    FROM Availability av " //
+        + "   WHERE av.resource.id IN ( :resourceIds ) " //
+        + "     AND av.endTime IS NULL "), //
     @NamedQuery(name = Availability.FIND_BY_RESOURCE, query = "" //
         + "  SELECT av " //
         + "    FROM Availability av " //
@@ -146,6 +151,7 @@ public class Availability implements Serializable {
 
     public static final String FIND_CURRENT_BY_RESOURCE = "Availability.findCurrentByResource";
     public static final String FIND_LATEST_BY_RESOURCE_IDS = "Availability.findLatestByResourceIds";
+    public static final String FIND_LATEST_TYPE_BY_RESOURCE_IDS = "Availability.findLatestTypeByResourceIds";
     public static final String FIND_BY_RESOURCE = "Availability.findByResource";
     public static final String FIND_BY_RESOURCE_NO_SORT = "Availability.findByResourceNoSort";
     public static final String FIND_PLATFORM_COMPOSITE_BY_AGENT_AND_NONMATCHING_TYPE = "Availability.findPlatformCompositeByAgentAndNonmatchingType";
@@ -54,6 +54,14 @@ import org.rhq.core.domain.resource.Resource;
         + "SELECT ms " //
         + "  FROM MeasurementSchedule ms " //
         + " WHERE ms.id IN ( :ids )"), //
+    @NamedQuery(name = MeasurementSchedule.FIND_IDS_BY_RESOURCE_IDS, query = "" //
+        + "SELECT ms.id " //
+        + "  FROM MeasurementSchedule ms " //
+        + " WHERE ms.resource.id IN ( :resourceIds )"), //
+    @NamedQuery(name = MeasurementSchedule.FIND_RESOURCE_IDS_AND_DEFINITION_NAMES_BY_IDS, query = "" //
+        + "SELECT ms.resource.id, ms.definition.name " //
+        + "  FROM MeasurementSchedule ms " //
+        + " WHERE ms.id IN ( :ids )"), //
     @NamedQuery(name = MeasurementSchedule.FIND_ENABLED_BY_RESOURCES_AND_RESOURCE_TYPE, query = "" //
         + "SELECT ms.id, res.id, def.id " //
         + "  FROM MeasurementSchedule ms " //
@@ -150,6 +158,8 @@ public class MeasurementSchedule implements Serializable {
     public static final String FIND_ALL_FOR_DEFINITIONS = "MeasurementSchedule.FIND_ALL_FOR_DEFINITIONS";
 
     public static final String FIND_BY_IDS = "MeasurementSchedule.findByIds";
+    public static final String FIND_IDS_BY_RESOURCE_IDS = "MeasurementSchedule.findIdsByResourceIds";
+    public static final String FIND_RESOURCE_IDS_AND_DEFINITION_NAMES_BY_IDS = "MeasurementSchedule.findResourceIdsAndDefinitionNamesByIds";
 
     public static final String NATIVE_QUERY_REPORTING_RESOURCE_MEASUREMENT_SCHEDULE_REQUEST = "" //
         + "SELECT ms.RESOURCE_ID, ms.ID, def.NAME, ms.COLL_INTERVAL, ms.ENABLED, def.DATA_TYPE, def.RAW_NUMERIC_TYPE " //
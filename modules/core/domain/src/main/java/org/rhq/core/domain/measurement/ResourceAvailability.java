@@ -53,6 +53,11 @@ import org.rhq.core.domain.resource.Resource;
     + "  SELECT ra FROM ResourceAvailability ra WHERE ra.resourceId = :resourceId "),
     @NamedQuery(name = ResourceAvailability.QUERY_FIND_BY_RESOURCE_IDS, query = "" //
         + "  SELECT ra FROM ResourceAvailability ra WHERE ra.resourceId IN ( :resourceIds ) "),
+    @NamedQuery(name = ResourceAvailability.UPDATE_BY_RESOURCE_IDS, query = "" //
+        + "  UPDATE ResourceAvailability ra " //
+        + "     SET ra.availabilityType = :availabilityType " //
+        + "   WHERE ra.resourceId IN ( :resourceIds ) " //
+        + "     AND ra.availabilityType <> :availabilityType "),
     @NamedQuery(name = ResourceAvailability.UPDATE_PLATFORM_BY_AGENT_ID, query = "" //
         + "  UPDATE ResourceAvailability " //
         + "     SET availabilityType = :availabilityType " //
@@ -91,6 +96,7 @@ public class ResourceAvailability implements Serializable {
 
     public static final String QUERY_FIND_BY_RESOURCE_ID = "ResourceAvailability.findByResourceId";
     public static final String QUERY_FIND_BY_RESOURCE_IDS = "ResourceAvailability.findByResourceIds";
+    public static final String UPDATE_BY_RESOURCE_IDS = "ResourceAvailability.updateByResourceIds";
     public static final String UPDATE_CHILD_BY_AGENT_ID = "ResourceAvailability.updateChildByAgentId";
     public static final String UPDATE_PLATFORM_BY_AGENT_ID = "ResourceAvailability.updatePlatformByAgentId";
     public static final String QUERY_IS_AGENT_BACKFILLED = "ResourceAvailability.isAgentBackfilled";
@@ -82,6 +82,11 @@ import org.rhq.core.domain.cloud.Server;
         + "  FROM Agent a " //
         + " WHERE a.server.name = :serverName " //
         + "   AND a.status <> 0 "), //
+    @NamedQuery(name = Agent.QUERY_FIND_STATUS_BY_SERVER, query = "" //
+        + "SELECT a.id, a.status " //
+        + "  FROM Agent a " //
+        + " WHERE a.server.name = :serverName " //
+        + "   AND a.status <> 0 "), //
     @NamedQuery(name = Agent.QUERY_FIND_ALL_WITH_STATUS, query = "" //
         + "SELECT a.id " //
         + "  FROM Agent a " //
@@ -110,7 +115,7 @@ import org.rhq.core.domain.cloud.Server;
         + "   AND a.backFilled = true "), //
     @NamedQuery(name = Agent.QUERY_UPDATE_STATUS_BY_RESOURCE, query = "" //
         + " UPDATE Agent a " //
-        + "    SET a.status = -1 " // negative numbers so that bitmask strategy does not conflict with this one
+        + "    SET a.status = 4 " // Status.ALERT_DEFINITION, only conditions of modified alert definitions are reloaded
         + "  WHERE a.status = 0 " // we only need the first guy to set it
         + "    AND a.id = ( SELECT resA.id " // only update ourselves;
         + "                   FROM Resource res " //
@@ -118,7 +123,7 @@ import org.rhq.core.domain.cloud.Server;
         + "                  WHERE res.id = :resourceId ) "), //
     @NamedQuery(name = Agent.QUERY_UPDATE_STATUS_BY_ALERT_DEFINITION, query = "" //
         + " UPDATE Agent a " //
-        + "    SET a.status = -1 " // negative numbers so that bitmask strategy does not conflict with this one
+        + "    SET a.status = 4 " // Status.ALERT_DEFINITION, only conditions of modified alert definitions are reloaded
         + "  WHERE a.status = 0 " // we only need the first guy to set it
         + "    AND a.id = ( SELECT resA.id " // only update ourselves;
         + "                   FROM AlertDefinition ad " //
@@ -128,7 +133,7 @@ import org.rhq.core.domain.cloud.Server;
     @NamedQuery(name = Agent.QUERY_UPDATE_STATUS_BY_MEASUREMENT_BASELINE, query = "" //
         + " UPDATE Agent a " //
         + "    SET a.status = -1 " // negative numbers so that bitmask strategy does not conflict with this one
-        + "  WHERE a.status = 0 " // we only need the first guy to set it
+        + "  WHERE a.status <> -1 " // we only need the first guy to set it, but it overrides Status.ALERT_DEFINITION
         + "    AND a.id = ( SELECT resA.id " // only update ourselves;
         + "                   FROM MeasurementBaseline mb " //
         + "                   JOIN mb.schedule ms " //
@@ -138,12 +143,12 @@ import org.rhq.core.domain.cloud.Server;
     @NamedQuery(name = Agent.QUERY_UPDATE_STATUS_BY_AGENT, query = "" //
         + " UPDATE Agent a " //
         + "    SET a.status = -1 " // negative numbers so that bitmask strategy does not conflict with this one
-        + "  WHERE a.status = 0 " // we only need the first guy to set it
+        + "  WHERE a.status <> -1 " // we only need the first guy to set it, but it overrides Status.ALERT_DEFINITION
         + "    AND a.id = :agentId "), //
     @NamedQuery(name = Agent.QUERY_UPDATE_STATUS_FOR_ALL, query = "" //
         + " UPDATE Agent a " //
         + "    SET a.status = -1 " // negative numbers so that bitmask strategy does not conflict with this one
-        + "  WHERE a.status = 0 "), //
+        + "  WHERE a.status <> -1 "), // overrides Status.ALERT_DEFINITION
     @NamedQuery(name = Agent.QUERY_UPDATE_LAST_AVAIL_REPORT, query = "" //
         + " UPDATE Agent a " //
         + "    SET lastAvailabilityReport = :reportTime, backFilled = FALSE " //
@@ -183,6 +188,7 @@ public class Agent implements Serializable {
 
     // HA queries
     public static final String QUERY_FIND_ALL_WITH_STATUS_BY_SERVER = "Agent.findAllWithStatusByServer";
+    public static final String QUERY_FIND_STATUS_BY_SERVER = "Agent.findStatusByServer";
     public static final String QUERY_FIND_ALL_WITH_STATUS = "Agent.findAllWithStatus";
     public static final String QUERY_UPDATE_CLEAR_STATUS_BY_IDS = "Agent.updateClearStatusByIds";
     public static final String QUERY_REMOVE_SERVER_REFERENCE = "Agent.removeServerReference";
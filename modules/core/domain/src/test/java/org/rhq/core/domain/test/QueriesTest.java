@@ -89,8 +89,8 @@ public class QueriesTest extends AbstractEJB3Test {
         add(MeasurementBaseline.QUERY_FIND_BY_COMPUTE_TIME, new Object[] { "computeTime", 1L, "numericType",
             NumericType.DYNAMIC });
 
-        Object a[] = new Object[]{ "agentId", null };
-        Object ac[] = new Object[]{ "agentId", null, "category", null };
+        Object a[] = new Object[]{ "agentId", null, "resourceId", null };
+        Object ac[] = new Object[]{ "agentId", null, "resourceId", null, "category", null };
         add(AlertCondition.QUERY_BY_CATEGORY_AVAILABILITY, ac);
         add(AlertCondition.QUERY_BY_CATEGORY_BASELINE, a);
         add(AlertCondition.QUERY_BY_CATEGORY_CHANGE, a);
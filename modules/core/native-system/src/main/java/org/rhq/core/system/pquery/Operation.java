@@ -22,6 +22,8 @@
   */
 package org.rhq.core.system.pquery;
 
+import java.util.regex.Pattern;
+
 import org.rhq.core.system.pquery.Conditional.Operator;
 
 class Operation {
@@ -36,14 +38,22 @@ class Operation {
     }
 
     boolean doOperation(String value1, String value2) {
+        return doOperation(value1, (value2 != null) ? Pattern.compile(value2) : null);
+    }
+
+    /**
+     * Same as {@link #doOperation(String, String)}, with the regular expression already compiled, so it can be reused
+     * for all processes a query looks at.
+     */
+    boolean doOperation(String value1, Pattern value2) {
         if ((value1 == null) || (value2 == null)) {
-            return value1 == value2;
+            return (value1 == null) && (value2 == null);
         }
 
         if (operator.equals(Operator.match)) {
-            return value1.matches(value2);
+            return value2.matcher(value1).matches();
         } else if (operator.equals(Operator.nomatch)) {
-            return !value1.matches(value2);
+            return !value2.matcher(value1).matches();
         } else {
             // should never happen unless we add more operators but forgot to create a new else clause for it
             throw new IllegalArgumentException("Invalid operator: " + operator);
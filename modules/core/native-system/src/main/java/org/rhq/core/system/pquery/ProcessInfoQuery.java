@@ -28,11 +28,13 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.regex.Pattern;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -197,11 +199,28 @@ public class ProcessInfoQuery {
      */
     private final Map<Long, ProcessInfo> allProcesses;
 
+    /**
+     * Indexes of all processes, built on first use. A criteria that looks at all processes only needs to match the
+     * distinct values of its attribute rather than every process, e.g. a handful of basenames rather than thousands of
+     * processes.
+     */
+    private Map<String, List<ProcessInfo>> processesByName;
+    private Map<String, List<ProcessInfo>> processesByBaseName;
+    private Map<String, List<ProcessInfo>> processesByArg;
+
+    /**
+     * The compiled regular expressions of the queries performed so far, keyed on the expression.
+     */
+    private final Map<String, Pattern> patterns = new HashMap<String, Pattern>();
+
     /**
      * Constructor for {@link ProcessInfoQuery} given an collection of process information that represents the processes
      * currently running. Think of the <code>processes</code> data as coming from part of the output you see in the
      * typical UNIX "ps" command.
      *
+     * <p>The processes are a snapshot of the process table. Performing many queries on one {@link ProcessInfoQuery}
+     * is cheaper than creating one for each query, since the indexes built for the first queries are reused.</p>
+     *
      * @param processes
      *
      * @see   NativeSystemInfo#getAllProcesses()
@@ -240,29 +259,21 @@ public class ProcessInfoQuery {
             return new ArrayList<ProcessInfo>();
         }
 
-        // keyed on pid so we automatically avoid dups (in case more than one criteria matches)
-        Map<Long, ProcessInfo> queryResults = new HashMap<Long, ProcessInfo>(this.allProcesses);
-        Map<Long, ProcessInfo> criteriaResults;
+        // keyed on pid so we automatically avoid dups (in case more than one criteria matches);
+        // null until the first criteria has been run, which means all processes are candidates
+        Map<Long, ProcessInfo> queryResults = null;
 
         for (Criteria criteria : criteriaList) {
+            // multiple criteria results are ANDed together
+            // so each criteria only needs to look at those processes that were matched by the previous criteria
             if (criteria.getConditional().getCategory().equals(Conditional.Category.process)) {
-                criteriaResults = doProcessCriteriaQuery(criteria);
+                queryResults = doProcessCriteriaQuery(criteria, queryResults);
             } else if (criteria.getConditional().getCategory().equals(Conditional.Category.arg)) {
-                criteriaResults = doArgCriteriaQuery(criteria);
+                queryResults = doArgCriteriaQuery(criteria, queryResults);
             } else {
                 throw new IllegalArgumentException("Unknown category: " + criteria); // should never happen
             }
 
-            // multiple criteria results are ANDed together
-            // only retain those previously matched processes that were also matched in the latest criteria
-            Set<Long> pids = new HashSet<Long>(queryResults.keySet()); // new set to avoid concurrent mod exceptions
-
-            for (Long pid : pids) {
-                if (!criteriaResults.containsKey(pid)) { // a previously matched process was not matched in the latest criteria, so removed it
-                    queryResults.remove(pid);
-                }
-            }
-
             if (queryResults.size() == 0) {
                 // we've eliminated every possible process - don't bother running any more criteria
                 break;
@@ -278,13 +289,14 @@ public class ProcessInfoQuery {
     /**
      * Runs the given criteria with the arg conditional and returns the processes that match.
      *
-     * @param  criteria the criteria with the arg conditional
+     * @param  criteria   the criteria with the arg conditional
+     * @param  candidates the processes to look at, or <code>null</code> to look at all processes
      *
      * @return the matched processes keyed on the pids
      *
      * @throws IllegalArgumentException
      */
-    private Map<Long, ProcessInfo> doArgCriteriaQuery(Criteria criteria) {
+    private Map<Long, ProcessInfo> doArgCriteriaQuery(Criteria criteria, Map<Long, ProcessInfo> candidates) {
         Map<Long, ProcessInfo> matches = new HashMap<Long, ProcessInfo>();
 
         Attribute attribute = criteria.getConditional().getAttribute();
@@ -292,9 +304,15 @@ public class ProcessInfoQuery {
         Qualifier qualifier = criteria.getConditional().getQualifier();
 
         String operand1 = null;
-        String operand2 = criteria.getValue();
+        Pattern operand2 = getPattern(criteria.getValue());
 
-        for (ProcessInfo process : getProcesses()) {
+        if ((candidates == null) && !qualifier.equals(Qualifier.parent) && attribute.getAttributeValue().equals("*")) {
+            // * means see if any arg matches - look at every distinct arg once
+            addIndexMatches(matches, getProcessesByArg(), op, operand2);
+            return matches;
+        }
+
+        for (ProcessInfo process : getCandidates(candidates)) {
             ProcessInfo processToMatch; // will be the same as process unless the parent qualifier was provided
 
             if (qualifier.equals(Qualifier.parent)) {
@@ -374,13 +392,14 @@ public class ProcessInfoQuery {
     /**
      * Runs the given criteria with the process conditional and returns the processes that match.
      *
-     * @param  criteria the criteria with the process conditional
+     * @param  criteria   the criteria with the process conditional
+     * @param  candidates the processes to look at, or <code>null</code> to look at all processes
      *
      * @return the matched processes keyed on the pids
      *
      * @throws IllegalArgumentException
      */
-    private Map<Long, ProcessInfo> doProcessCriteriaQuery(Criteria criteria) {
+    private Map<Long, ProcessInfo> doProcessCriteriaQuery(Criteria criteria, Map<Long, ProcessInfo> candidates) {
         Map<Long, ProcessInfo> matches = new HashMap<Long, ProcessInfo>();
 
         Attribute attribute = criteria.getConditional().getAttribute();
@@ -388,11 +407,22 @@ public class ProcessInfoQuery {
         Qualifier qualifier = criteria.getConditional().getQualifier();
 
         String operand1;
-        String operand2;
+        Pattern operand2;
 
         String pidfileContentsCache = null; // so we avoid reading the file over and over again
 
-        for (ProcessInfo process : getProcesses()) {
+        if ((candidates == null) && !qualifier.equals(Qualifier.parent)) {
+            // look at each distinct name or basename once
+            if (attribute.getAttributeValue().equals(Attribute.ProcessCategoryAttributes.name.toString())) {
+                addIndexMatches(matches, getProcessesByName(), op, getPattern(criteria.getValue()));
+                return matches;
+            } else if (attribute.getAttributeValue().equals(Attribute.ProcessCategoryAttributes.basename.toString())) {
+                addIndexMatches(matches, getProcessesByBaseName(), op, getPattern(criteria.getValue()));
+                return matches;
+            }
+        }
+
+        for (ProcessInfo process : getCandidates(candidates)) {
             ProcessInfo processToMatch; // will be the same as process unless the parent qualifier was provided
 
             if (qualifier.equals(Qualifier.parent)) {
@@ -403,20 +433,20 @@ public class ProcessInfoQuery {
 
             if (attribute.getAttributeValue().equals(Attribute.ProcessCategoryAttributes.name.toString())) {
                 operand1 = (processToMatch != null) ? processToMatch.getName() : "";
-                operand2 = criteria.getValue();
+                operand2 = getPattern(criteria.getValue());
             } else if (attribute.getAttributeValue().equals(Attribute.ProcessCategoryAttributes.basename.toString())) {
                 operand1 = (processToMatch != null) ? processToMatch.getBaseName() : "";
-                operand2 = criteria.getValue();
+                operand2 = getPattern(criteria.getValue());
             } else if (attribute.getAttributeValue().equals(Attribute.ProcessCategoryAttributes.pid.toString())) {
                 operand1 = (processToMatch != null) ? Long.toString(processToMatch.getPid()) : "";
-                operand2 = criteria.getValue();
+                operand2 = getPattern(criteria.getValue());
             } else if (attribute.getAttributeValue().equals(Attribute.ProcessCategoryAttributes.pidfile.toString())) {
                 if (pidfileContentsCache == null) {
                     pidfileContentsCache = getPidfileContents(criteria.getValue());
                 }
 
                 operand1 = (processToMatch != null) ? String.valueOf(processToMatch.getPid()) : null;
-                operand2 = pidfileContentsCache;
+                operand2 = getPattern(pidfileContentsCache);
             } else {
                 throw new IllegalArgumentException(
                     "Criteria with 'process' category must have an attribute of either 'name' or 'basename': "
@@ -431,6 +461,87 @@ public class ProcessInfoQuery {
         return matches;
     }
 
+    /**
+     * Adds the processes of all index entries whose key matches to the given matches.
+     */
+    private void addIndexMatches(Map<Long, ProcessInfo> matches, Map<String, List<ProcessInfo>> index, Operation op,
+        Pattern operand2) {
+        for (Map.Entry<String, List<ProcessInfo>> entry : index.entrySet()) {
+            if (op.doOperation(entry.getKey(), operand2)) {
+                for (ProcessInfo process : entry.getValue()) {
+                    matches.put(process.getPid(), process);
+                }
+            }
+        }
+    }
+
+    private Collection<ProcessInfo> getCandidates(Map<Long, ProcessInfo> candidates) {
+        return (candidates != null) ? candidates.values() : this.allProcesses.values();
+    }
+
+    private synchronized Map<String, List<ProcessInfo>> getProcessesByName() {
+        if (this.processesByName == null) {
+            this.processesByName = new HashMap<String, List<ProcessInfo>>();
+            for (ProcessInfo process : this.allProcesses.values()) {
+                addToIndex(this.processesByName, process.getName(), process);
+            }
+        }
+        return this.processesByName;
+    }
+
+    private synchronized Map<String, List<ProcessInfo>> getProcessesByBaseName() {
+        if (this.processesByBaseName == null) {
+            this.processesByBaseName = new HashMap<String, List<ProcessInfo>>();
+            for (ProcessInfo process : this.allProcesses.values()) {
+                addToIndex(this.processesByBaseName, process.getBaseName(), process);
+            }
+        }
+        return this.processesByBaseName;
+    }
+
+    private synchronized Map<String, List<ProcessInfo>> getProcessesByArg() {
+        if (this.processesByArg == null) {
+            this.processesByArg = new HashMap<String, List<ProcessInfo>>();
+            for (ProcessInfo process : this.allProcesses.values()) {
+                String[] cmdline = process.getCommandLine();
+                if (cmdline != null) {
+                    // a process is listed once per distinct arg
+                    for (String arg : new HashSet<String>(Arrays.asList(cmdline))) {
+                        addToIndex(this.processesByArg, arg, process);
+                    }
+                }
+            }
+        }
+        return this.processesByArg;
+    }
+
+    /**
+     * Processes without a value are left out of an index, since a <code>null</code> value never matches a criteria.
+     */
+    private static void addToIndex(Map<String, List<ProcessInfo>> index, String key, ProcessInfo process) {
+        if (key == null) {
+            return;
+        }
+        List<ProcessInfo> processes = index.get(key);
+        if (processes == null) {
+            processes = new ArrayList<ProcessInfo>(1);
+            index.put(key, processes);
+        }
+        processes.add(process);
+    }
+
+    private synchronized Pattern getPattern(String regex) {
+        if (regex == null) {
+            return null;
+        }
+        Pattern pattern = this.patterns.get(regex);
+        if (pattern == null) {
+            pattern = Pattern.compile(regex);
+            this.patterns.put(regex, pattern);
+        }
+        return pattern;
+    }
+
     /**
      * Gets the parent process for the given process. The parent will be searched for within the {@link #getProcesses()}
      * list.
@@ -511,6 +511,28 @@ public class ProcessInfoQueryTest {
         assertPidExists(5, results, "pid 5 is an exec process with a parent that matches");
     }
 
+    /**
+     * Tests that many queries on one process table snapshot look at the basename of every process only once.
+     */
+    public void testPIQLManyQueriesOnSnapshot() {
+        List<ProcessInfo> processes = new ArrayList<ProcessInfo>();
+        for (int i = 1; i <= 3000; i++) {
+            processes.add(buildProcessInfo(i, "/usr/bin/proc" + (i % 100), "-Dinstance=" + i));
+        }
+        query = new ProcessInfoQuery(processes);
+
+        for (int i = 0; i < 200; i++) {
+            results = query.query("process|basename|match=^proc" + (i % 100) + "$,arg|-Dinstance|match=.*");
+            assert results.size() == 30 : "should have been 30 processes with basename proc" + (i % 100) + ": "
+                + results.size();
+        }
+
+        for (ProcessInfo process : processes) {
+            assert ((MockProcessInfo) process).baseNameReads == 1 : "basename of " + process.getPid() + " read "
+                + ((MockProcessInfo) process).baseNameReads + " times";
+        }
+    }
+
     public void testSimpleProcessInfo() {
         // sanity checking - making sure our test ProcessInfos are what we think they are
 
@@ -645,6 +667,7 @@ public class ProcessInfoQueryTest {
         private String mockBaseName;
         private String[] mockCommandLine;
         private long mockPpid;
+        private int baseNameReads;
 
         public MockProcessInfo(long pid, String name, String baseName, String[] commandLine, long ppid) {
             this.mockPid = pid;
@@ -666,6 +689,7 @@ public class ProcessInfoQueryTest {
 
         @Override
         public String getBaseName() {
+            this.baseNameReads++;
             return this.mockBaseName;
         }
 
@@ -19,18 +19,12 @@
 
 package org.rhq.core.pluginapi.event.log;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.Reader;
 import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.hyperic.sigar.FileInfo;
-import org.hyperic.sigar.SigarException;
-import org.hyperic.sigar.SigarProxy;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -39,7 +33,8 @@ import org.rhq.core.pluginapi.event.EventContext;
 import org.rhq.core.pluginapi.event.EventPoller;
 
 /**
- * An Event poller that polls a log file for new entries. 
+ * An Event poller that polls a log file for new entries. Only the bytes appended to the file since the previous poll
+ * are read, see {@link LogFileTailer}.
  *
  * @author Ian Springer
  */
@@ -48,7 +43,7 @@ public class LogFileEventPoller implements EventPoller {
 
     private String eventType;
     private File logFile;
-    private FileInfo logFileInfo;
+    private LogFileTailer tailer;
     private LogEntryProcessor entryProcessor;
     private EventContext eventContext;
     private boolean initialized;
@@ -71,6 +66,24 @@ public class LogFileEventPoller implements EventPoller {
         return this.logFile.getPath();
     }
 
+    /**
+     * @return the log file being polled
+     * @since 4.14
+     */
+    @NotNull
+    public File getLogFile() {
+        return this.logFile;
+    }
+
+    /**
+     * @return the processor the new lines of the log file are passed to
+     * @since 4.14
+     */
+    @NotNull
+    public LogEntryProcessor getEntryProcessor() {
+        return this.entryProcessor;
+    }
+
     @Nullable
     public Set<Event> poll() {
         if (!this.logFile.exists()) {
@@ -86,21 +99,15 @@ public class LogFileEventPoller implements EventPoller {
         if (!this.initialized) {
             init();
         }
-        if (this.logFileInfo == null) {
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Cannot poll log file [" + this.logFile
-                    + "] because native integration is either disabled or unavailable.");
-            }
+        if (this.tailer == null) {
             return null;
         }
         try {
-            if (!this.logFileInfo.changed()) {
-                return null;
-            }
-        } catch (SigarException e) {
-            throw new RuntimeException(e);
+            return this.tailer.poll(this.entryProcessor);
+        } catch (IOException e) {
+            LOG.error("Failed to read log file being tailed: " + this.logFile, e);
+            return null;
         }
-        return processNewLines(this.logFileInfo);
     }
 
     /**
@@ -110,76 +117,15 @@ public class LogFileEventPoller implements EventPoller {
      * invocation of that method, at which point the PC will be initialized.
      */
     protected void init() {
-        SigarProxy sigar = this.eventContext.getSigar();
-        if (sigar != null) {
-            try {
-                this.logFileInfo = new LogFileInfo(sigar.getFileInfo(logFile.getPath()));
-            } catch (SigarException e) {
-                throw new RuntimeException("Failed to obtain file info for log file [" + this.logFile + "].", e);
-            }
-        } else {
-            LOG.warn("SIGAR is unavailable - cannot poll log file [" + this.logFile + "] for events.");
-        }
-
-        this.initialized = true;
-    }
-
-    private Set<Event> processNewLines(FileInfo fileInfo) {
-        Set<Event> events = null;
-        Reader reader = null;
+        // SIGAR is optional, it only makes detecting a rotated log file more reliable
+        LogFileTailer tailer = new LogFileTailer(this.logFile, this.eventContext.getSigar());
         try {
-            reader = new FileReader(this.logFile);
-
-            long offset = getOffset(fileInfo);
-
-            if (offset > 0) {
-                reader.skip(offset);
-            }
-            BufferedReader bufferedReader = new BufferedReader(reader);
-            events = this.entryProcessor.processLines(bufferedReader);
+            tailer.seekToEnd();
+            this.tailer = tailer;
+            this.initialized = true;
         } catch (IOException e) {
-            LOG.error("Failed to read log file being tailed: " + this.logFile, e);
-        } finally {
-            if (reader != null) {
-                //noinspection EmptyCatchBlock
-                try {
-                    reader.close();
-                } catch (IOException e) {
-                }
-            }
+            // try again on the next poll
+            LOG.error("Failed to open log file being tailed: " + this.logFile, e);
         }
-        return events;
-    }
-
-    private long getOffset(FileInfo fileInfo) {
-        FileInfo previousFileInfo = fileInfo.getPreviousInfo();
-
-        if (previousFileInfo == null) {
-            if (LOG.isDebugEnabled()) {
-                LOG.debug(this.logFile + ": first stat");
-            }
-            return fileInfo.getSize();
-        }
-
-        if (fileInfo.getInode() != previousFileInfo.getInode()) {
-            if (LOG.isDebugEnabled()) {
-                LOG.debug(this.logFile + ": file inode changed");
-            }
-            return -1;
-        }
-
-        if (fileInfo.getSize() < previousFileInfo.getSize()) {
-            if (LOG.isDebugEnabled()) {
-                LOG.debug(this.logFile + ": file truncated");
-            }
-            return -1;
-        }
-
-        if (LOG.isDebugEnabled()) {
-            long diff = fileInfo.getSize() - previousFileInfo.getSize();
-            LOG.debug(this.logFile + ": " + diff + " new bytes");
-        }
-
-        return previousFileInfo.getSize();
     }
 }
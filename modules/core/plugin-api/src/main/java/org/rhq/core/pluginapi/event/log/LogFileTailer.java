@@ -0,0 +1,351 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2014 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+package org.rhq.core.pluginapi.event.log;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hyperic.sigar.SigarException;
+import org.hyperic.sigar.SigarProxy;
+
+import org.rhq.core.domain.event.Event;
+
+/**
+ * Tails a log file by its byte offset. Every {@link #poll(LogEntryProcessor) poll} opens the file, positions its
+ * channel at the offset reached by the previous poll and hands only the bytes appended since to the
+ * {@link LogEntryProcessor}, so the cost of a poll depends on the amount of new data rather than on the size of the
+ * file. The file is not kept open between polls, so it can be rotated on any platform.
+ * <p>
+ * The file is read from the start again when it has been replaced or truncated. A replaced file is recognized by a
+ * changed inode, if SIGAR is available, or by a change of the first bytes of the file, which are remembered. A
+ * truncated file is recognized by a size smaller than the offset.
+ * </p>
+ * Not thread-safe; a tailer is meant to be polled by one thread at a time.
+ *
+ * @since 4.14
+ */
+public class LogFileTailer {
+    private static final Log LOG = LogFactory.getLog(LogFileTailer.class);
+
+    /** The number of bytes at the start of the file that identify it */
+    private static final int HEAD_SIZE = 128;
+
+    /** The most bytes held in memory to be handed to several processors */
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    private final File logFile;
+    private final SigarProxy sigar;
+
+    private long position;
+    private long inode = -1;
+    private byte[] head = new byte[0];
+    private long lastBytesRead;
+    // the size of the file when the previous poll carried its unterminated last line over, -1 if it did not
+    private long carriedOverSize = -1;
+
+    /**
+     * @param logFile the file to tail
+     * @param sigar used to detect a replaced file by its inode, or <code>null</code> to rely on the first bytes of the
+     *              file only
+     */
+    public LogFileTailer(File logFile, SigarProxy sigar) {
+        this.logFile = logFile;
+        this.sigar = sigar;
+    }
+
+    /**
+     * Moves the offset to the current end of the file, so the next poll only sees what is appended from now on.
+     */
+    public void seekToEnd() throws IOException {
+        FileInputStream input = new FileInputStream(this.logFile);
+        try {
+            FileChannel channel = input.getChannel();
+            this.inode = getInode();
+            this.head = readHead(channel);
+            this.position = channel.size();
+            this.carriedOverSize = -1;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Passes the lines appended to the file since the previous poll to the given processor.
+     *
+     * @return the events returned by the processor, or <code>null</code> if nothing has been appended
+     */
+    public Set<Event> poll(LogEntryProcessor entryProcessor) throws IOException {
+        List<Set<Event>> events = poll(Collections.singletonList(entryProcessor));
+        return (events != null) ? events.get(0) : null;
+    }
+
+    /**
+     * Passes the lines appended to the file since the previous poll to each of the given processors. The new bytes
+     * are read from the file once. If there is more than one processor, they are read in chunks of whole lines that
+     * are handed to every processor in turn. An unterminated last line, which may still be being written, is then
+     * carried over to the first chunk of the next poll, unless the file has not grown since it was carried over.
+     *
+     * @return the events returned by each processor, in the order of the processors, or <code>null</code> if nothing
+     * has been appended
+     */
+    public List<Set<Event>> poll(List<? extends LogEntryProcessor> entryProcessors) throws IOException {
+        this.lastBytesRead = 0;
+        FileInputStream input = new FileInputStream(this.logFile);
+        try {
+            FileChannel channel = input.getChannel();
+            long size = channel.size();
+
+            long currentInode = getInode();
+            byte[] currentHead = readHead(channel);
+            if (currentInode != this.inode) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug(this.logFile + ": file inode changed");
+                }
+                this.position = 0;
+                this.carriedOverSize = -1;
+            } else if (size < this.position) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug(this.logFile + ": file truncated");
+                }
+                this.position = 0;
+                this.carriedOverSize = -1;
+            } else if (!startsWith(currentHead, this.head)) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug(this.logFile + ": file replaced");
+                }
+                this.position = 0;
+                this.carriedOverSize = -1;
+            }
+            this.inode = currentInode;
+            this.head = currentHead;
+
+            if (size == this.position) {
+                return null;
+            }
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(this.logFile + ": " + (size - this.position) + " new bytes");
+            }
+
+            List<Set<Event>> events;
+            if (entryProcessors.size() == 1) {
+                channel.position(this.position);
+                BoundedInputStream newBytes = new BoundedInputStream(input, size - this.position);
+                BufferedReader reader = new BufferedReader(new InputStreamReader(newBytes));
+                events = Collections.singletonList(entryProcessors.get(0).processLines(reader));
+                this.lastBytesRead = newBytes.getBytesRead();
+                this.position = size;
+                this.carriedOverSize = -1;
+            } else {
+                events = processChunks(channel, size, entryProcessors);
+            }
+            return events;
+        } finally {
+            input.close();
+        }
+    }
+
+    public long getPosition() {
+        return this.position;
+    }
+
+    /**
+     * @return the number of bytes passed to the processor by the last poll
+     */
+    public long getLastBytesRead() {
+        return this.lastBytesRead;
+    }
+
+    /**
+     * Hands the new bytes to every processor in chunks of whole lines and moves the offset past the bytes handed over.
+     */
+    private List<Set<Event>> processChunks(FileChannel channel, long size,
+        List<? extends LogEntryProcessor> entryProcessors) throws IOException {
+        List<Set<Event>> events = new ArrayList<Set<Event>>(entryProcessors.size());
+        for (int i = 0; i < entryProcessors.size(); i++) {
+            events.add(null);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(CHUNK_SIZE, size - this.position));
+        long offset = this.position;
+        while (offset < size) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), size - offset));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    break;
+                }
+            }
+            int length = buffer.position();
+            if (length == 0) {
+                break;
+            }
+            boolean lastChunk = (offset + length == size);
+            boolean carryOver = false;
+            if (!lastChunk || ((buffer.get(length - 1) != '\n') && (size != this.carriedOverSize))) {
+                // end the chunk after its last line, unless the line does not even fit into a chunk
+                int end = length;
+                while ((end > 0) && (buffer.get(end - 1) != '\n')) {
+                    end--;
+                }
+                if (end > 0) {
+                    length = end;
+                } else if (lastChunk && (length < buffer.capacity())) {
+                    // the unterminated last line is all that is left
+                    length = 0;
+                }
+                if (lastChunk && (offset + length < size)) {
+                    carryOver = true;
+                    this.carriedOverSize = size;
+                }
+            }
+            if (length == 0) {
+                break;
+            }
+
+            for (int i = 0; i < entryProcessors.size(); i++) {
+                InputStream chunk = new ByteArrayInputStream(buffer.array(), 0, length);
+                Set<Event> chunkEvents = entryProcessors.get(i).processLines(
+                    new BufferedReader(new InputStreamReader(chunk)));
+                if (chunkEvents != null) {
+                    if (events.get(i) == null) {
+                        events.set(i, chunkEvents);
+                    } else {
+                        Set<Event> merged = new LinkedHashSet<Event>(events.get(i));
+                        merged.addAll(chunkEvents);
+                        events.set(i, merged);
+                    }
+                }
+            }
+            offset += length;
+            this.lastBytesRead += length;
+            if (carryOver) {
+                break;
+            }
+        }
+        if (offset == size) {
+            this.carriedOverSize = -1;
+        }
+        this.position = offset;
+        return events;
+    }
+
+    private long getInode() {
+        if (this.sigar == null) {
+            return -1;
+        }
+        try {
+            return this.sigar.getFileInfo(this.logFile.getPath()).getInode();
+        } catch (SigarException e) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Failed to obtain file info for log file [" + this.logFile + "]: " + e);
+            }
+            return this.inode;
+        }
+    }
+
+    /**
+     * Reads the first bytes of the file, no more than {@link #HEAD_SIZE}, so this does not depend on the file size.
+     */
+    private static byte[] readHead(FileChannel channel) throws IOException {
+        int length = (int) Math.min(HEAD_SIZE, channel.size());
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, buffer.position()) < 0) {
+                break;
+            }
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private static boolean startsWith(byte[] bytes, byte[] prefix) {
+        if (bytes.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads no more than the given number of bytes from the underlying stream, the bytes that were appended up to the
+     * start of the poll. Whatever is appended while the poll is in progress is left for the next one.
+     */
+    private static class BoundedInputStream extends InputStream {
+        private final InputStream input;
+        private final long limit;
+        private long bytesRead;
+
+        BoundedInputStream(InputStream input, long limit) {
+            this.input = input;
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (this.bytesRead >= this.limit) {
+                return -1;
+            }
+            int b = this.input.read();
+            if (b >= 0) {
+                this.bytesRead++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (this.bytesRead >= this.limit) {
+                return -1;
+            }
+            int count = this.input.read(b, off, (int) Math.min(len, this.limit - this.bytesRead));
+            if (count > 0) {
+                this.bytesRead += count;
+            }
+            return count;
+        }
+
+        @Override
+        public void close() {
+            // the file is closed by the tailer
+        }
+
+        long getBytesRead() {
+            return this.bytesRead;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2014 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+package org.rhq.core.pluginapi.event.log;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.rhq.core.domain.event.Event;
+
+@Test
+public class LogFileTailerTest {
+
+    private File logFile;
+    private RecordingProcessor processor;
+
+    @BeforeMethod
+    public void createLogFile() throws IOException {
+        logFile = File.createTempFile("LogFileTailerTest", ".log");
+        processor = new RecordingProcessor();
+    }
+
+    @AfterMethod
+    public void deleteLogFile() {
+        logFile.delete();
+    }
+
+    public void readOnlyAppendedLines() throws Exception {
+        append("existing line\n");
+        LogFileTailer tailer = new LogFileTailer(logFile, null);
+        tailer.seekToEnd();
+
+        assertNull(tailer.poll(processor), "Expected nothing to be read before anything is appended");
+        assertTrue(processor.lines.isEmpty());
+
+        append("line 1\nline 2\n");
+        tailer.poll(processor);
+        assertEquals(processor.lines, list("line 1", "line 2"));
+
+        append("line 3\n");
+        tailer.poll(processor);
+        assertEquals(processor.lines, list("line 1", "line 2", "line 3"));
+        assertEquals(tailer.getPosition(), logFile.length());
+    }
+
+    public void readTruncatedFileFromStart() throws Exception {
+        append("a long line that will be gone after the truncation\n");
+        LogFileTailer tailer = new LogFileTailer(logFile, null);
+        tailer.seekToEnd();
+
+        truncate();
+        append("new 1\n");
+        tailer.poll(processor);
+        assertEquals(processor.lines, list("new 1"));
+    }
+
+    public void readReplacedFileFromStart() throws Exception {
+        append("old 1\n");
+        LogFileTailer tailer = new LogFileTailer(logFile, null);
+        tailer.seekToEnd();
+
+        // the file is rotated and the new one has grown past the old offset by the next poll
+        truncate();
+        append("new 1\nnew 2\n");
+        tailer.poll(processor);
+        assertEquals(processor.lines, list("new 1", "new 2"));
+    }
+
+    public void passNewLinesToEveryProcessor() throws Exception {
+        LogFileTailer tailer = new LogFileTailer(logFile, null);
+        tailer.seekToEnd();
+
+        // more than a chunk, so that the lines are handed over in several chunks
+        StringBuilder text = new StringBuilder();
+        List<String> lines = new ArrayList<String>();
+        for (int i = 0; text.length() < 3 * 1024 * 1024; i++) {
+            String line = "2014-01-01 00:00:00,000 INFO [com.example.FooBar] line " + i;
+            text.append(line).append('\n');
+            lines.add(line);
+        }
+        append(text.toString());
+
+        RecordingProcessor other = new RecordingProcessor();
+        List<RecordingProcessor> processors = new ArrayList<RecordingProcessor>();
+        processors.add(processor);
+        processors.add(other);
+        List<Set<Event>> events = tailer.poll(processors);
+
+        assertEquals(events.size(), 2);
+        assertEquals(processor.lines, lines, "Expected every line once, in order");
+        assertEquals(other.lines, lines, "Expected every line once, in order");
+        assertEquals(tailer.getLastBytesRead(), text.length());
+        assertNull(tailer.poll(processors));
+    }
+
+    public void carryUnterminatedLastLineOverToNextPoll() throws Exception {
+        LogFileTailer tailer = new LogFileTailer(logFile, null);
+        tailer.seekToEnd();
+        RecordingProcessor other = new RecordingProcessor();
+        List<RecordingProcessor> processors = new ArrayList<RecordingProcessor>();
+        processors.add(processor);
+        processors.add(other);
+
+        append("line 1\nline 2 is being");
+        tailer.poll(processors);
+        assertEquals(processor.lines, list("line 1"), "Expected the unterminated line to be carried over");
+        assertEquals(other.lines, list("line 1"), "Expected the unterminated line to be carried over");
+        assertEquals(tailer.getPosition(), "line 1\n".length());
+
+        append(" written\nline 3 is never terminated");
+        tailer.poll(processors);
+        assertEquals(processor.lines, list("line 1", "line 2 is being written"));
+        assertEquals(other.lines, list("line 1", "line 2 is being written"));
+
+        // the file has not grown since the line was carried over, it is not going to be terminated soon
+        tailer.poll(processors);
+        assertEquals(processor.lines, list("line 1", "line 2 is being written", "line 3 is never terminated"));
+        assertEquals(other.lines, list("line 1", "line 2 is being written", "line 3 is never terminated"));
+        assertEquals(tailer.getPosition(), logFile.length());
+        assertNull(tailer.poll(processors));
+    }
+
+    /**
+     * The bytes read by a poll must only depend on the bytes appended since the previous poll, not on the size of the
+     * file.
+     */
+    public void keepPollCostIndependentOfFileSize() throws Exception {
+        LogFileTailer tailer = new LogFileTailer(logFile, null);
+        tailer.seekToEnd();
+
+        StringBuilder chunk = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            chunk.append("2014-01-01 00:00:00,000 INFO [com.example.FooBar] filler line ").append(i).append('\n');
+        }
+        String line = "2014-01-01 00:00:00,000 ERROR [com.example.FooBar] appended\n";
+
+        for (int round = 0; round < 10; round++) {
+            append(chunk.toString());
+            tailer.poll(processor);
+
+            append(line);
+            processor.lines.clear();
+            tailer.poll(processor);
+
+            assertEquals(tailer.getLastBytesRead(), line.length(), "Unexpected bytes read at file size "
+                + logFile.length());
+            assertEquals(processor.lines.size(), 1);
+        }
+    }
+
+    private void append(String text) throws IOException {
+        FileOutputStream out = new FileOutputStream(logFile, true);
+        try {
+            out.write(text.getBytes());
+        } finally {
+            out.close();
+        }
+    }
+
+    private void truncate() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+        try {
+            raf.setLength(0);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static List<String> list(String... lines) {
+        List<String> list = new ArrayList<String>();
+        for (String line : lines) {
+            list.add(line);
+        }
+        return list;
+    }
+
+    private static class RecordingProcessor implements LogEntryProcessor {
+        final List<String> lines = new ArrayList<String>();
+
+        @Override
+        public Set<Event> processLines(BufferedReader bufferedReader) throws IOException {
+            String line;
+            while ((line = bufferedReader.readLine()) != null) {
+                lines.add(line);
+            }
+            return null;
+        }
+    }
+}
@@ -4,8 +4,11 @@ import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.when;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.testng.Assert;
 import org.testng.annotations.BeforeMethod;
@@ -23,11 +26,13 @@ import org.rhq.core.domain.discovery.AvailabilityReport.Datum;
 import org.rhq.core.domain.measurement.AvailabilityType;
 import org.rhq.core.domain.measurement.MeasurementScheduleRequest;
 import org.rhq.core.domain.resource.InventoryStatus;
+import org.rhq.core.domain.resource.Resource;
 import org.rhq.core.pc.PluginContainer;
 import org.rhq.core.pc.PluginContainerConfiguration;
 import org.rhq.core.pc.inventory.AvailabilityExecutor;
 import org.rhq.core.pc.inventory.AvailabilityExecutor.Scan;
 import org.rhq.core.pc.inventory.ForceAvailabilityExecutor;
+import org.rhq.core.pc.inventory.InventoryManager;
 import org.rhq.core.pc.inventory.ResourceContainer;
 import org.rhq.core.pluginapi.inventory.ResourceComponent;
 import org.rhq.plugins.test.avail.AvailDiscoveryComponent;
@@ -532,6 +537,150 @@ public class AvailTest extends Arquillian {
         assertScan(scan, true, false, 29, 0, 17, 16, 0, 12);
     }
 
+    @Test(groups = "pc.itest.avail", priority = 21)
+    // The subtrees of the top level servers are checked concurrently, the report must still be in the order of a
+    // sequential depth first scan.
+    public void testSubtreeReportMergeOrder() throws Exception {
+        Assert.assertTrue(pluginContainer.isStarted());
+        Assert.assertTrue(pluginContainer.isRunning());
+        InventoryManager inventoryManager = this.pluginContainer.getInventoryManager();
+        AvailabilityExecutor executor = new ForceAvailabilityExecutor(inventoryManager);
+        AvailabilityReport report = executor.call();
+        Assert.assertNotNull(report);
+
+        List<Integer> expectedIds = new ArrayList<Integer>();
+        collectResourceIds(inventoryManager, inventoryManager.getPlatform(), expectedIds);
+        Assert.assertEquals(getResourceIds(report), expectedIds, "Report should be in sequential scan order");
+
+        List<Integer> serverIds = new ArrayList<Integer>();
+        for (Resource server : inventoryManager.getContainerChildren(inventoryManager.getPlatform())) {
+            serverIds.add(server.getId());
+        }
+        List<Integer> subtreeRootIds = new ArrayList<Integer>();
+        for (Scan subtreeScan : executor.getMostRecentScanHistory().getSubtreeScans()) {
+            subtreeRootIds.add(subtreeScan.getRootResourceId());
+        }
+        Assert.assertEquals(subtreeRootIds, serverIds, "Expected one subtree scan per server, in scan order");
+    }
+
+    @Test(groups = "pc.itest.avail", priority = 21)
+    // The counts of the subtree scans are added to the scan of the whole inventory.
+    public void testSubtreeScanAggregation() throws Exception {
+        Assert.assertTrue(pluginContainer.isStarted());
+        Assert.assertTrue(pluginContainer.isRunning());
+        AvailabilityExecutor executor = new ForceAvailabilityExecutor(this.pluginContainer.getInventoryManager());
+        AvailabilityReport report = executor.call();
+        Assert.assertNotNull(report);
+
+        AvailabilityExecutor.Scan scan = executor.getMostRecentScanHistory();
+        Assert.assertEquals(scan.getSubtreeScans().size(), 4, "Expected one subtree scan per server");
+        int numResources = 0;
+        int numChanges = 0;
+        int numCalls = 0;
+        int numSched = 0;
+        for (Scan subtreeScan : scan.getSubtreeScans()) {
+            // each server with its 2 children and 4 grandchildren
+            assertScan(subtreeScan, true, true, 7, 7, 7, 7, 0, 0);
+            Assert.assertTrue(subtreeScan.getSubtreeScans().isEmpty(), "Subtrees should not be split any further");
+            numResources += subtreeScan.getNumResources();
+            numChanges += subtreeScan.getNumAvailabilityChanges();
+            numCalls += subtreeScan.getNumGetAvailabilityCalls();
+            numSched += subtreeScan.getNumScheduledRandomly();
+        }
+        // the platform is checked by the scan itself, but has no schedule
+        assertScan(scan, true, true, numResources + 1, numChanges + 1, numCalls + 1, numSched, 0, 0);
+        assertScan(scan, true, true, 29, 29, 29, 28, 0, 0);
+    }
+
+    @Test(groups = "pc.itest.avail", priority = 21)
+    // A DOWN server is handed down to its descendants within its own subtree only.
+    public void testDeferToParentDownWithinSubtree() throws Exception {
+        Assert.assertTrue(pluginContainer.isStarted());
+        Assert.assertTrue(pluginContainer.isRunning());
+        InventoryManager inventoryManager = this.pluginContainer.getInventoryManager();
+        AvailabilityExecutor executor = new ForceAvailabilityExecutor(inventoryManager);
+        AvailabilityReport report = executor.call();
+        Assert.assertNotNull(report);
+
+        AvailResourceComponent downParent = this.parentComponents1.iterator().next();
+        downParent.setNextAvailability(AvailabilityType.DOWN);
+        int downParentId = 0;
+        for (ResourceContainer c : parentContainers1) {
+            if (c.getResourceComponent() == downParent) {
+                downParentId = c.getResource().getId();
+            }
+        }
+        Assert.assertTrue(downParentId != 0, "Could not find the container of the DOWN server");
+
+        report = executor.call();
+        Assert.assertNotNull(report);
+        List<Integer> expectedIds = new ArrayList<Integer>();
+        collectResourceIds(inventoryManager, inventoryManager.getResourceContainer(downParentId).getResource(),
+            expectedIds);
+        Assert.assertEquals(getResourceIds(report), expectedIds, "Only the DOWN server's subtree should change");
+        for (Datum datum : report.getResourceAvailability()) {
+            Assert.assertEquals(datum.getAvailabilityType(), AvailabilityType.DOWN);
+        }
+
+        AvailabilityExecutor.Scan scan = executor.getMostRecentScanHistory();
+        for (Scan subtreeScan : scan.getSubtreeScans()) {
+            if (subtreeScan.getRootResourceId() == downParentId) {
+                assertScan(subtreeScan, true, false, 7, 7, 1, 7, 0, 6);
+            } else {
+                assertScan(subtreeScan, true, false, 7, 0, 7, 7, 0, 0);
+            }
+        }
+        assertScan(scan, true, false, 29, 7, 23, 28, 0, 6);
+    }
+
+    @Test(groups = "pc.itest.avail", priority = 21)
+    // If one subtree check fails, the checks of the other subtrees are cancelled and the scan is abandoned.
+    public void testCancelSubtreesWhenOneFails() throws Exception {
+        Assert.assertTrue(pluginContainer.isStarted());
+        Assert.assertTrue(pluginContainer.isRunning());
+        InventoryManager inventoryManager = this.pluginContainer.getInventoryManager();
+
+        List<Resource> servers = new ArrayList<Resource>(inventoryManager.getContainerChildren(inventoryManager
+            .getPlatform()));
+        final int failingServerId = servers.get(0).getId();
+        final List<Integer> blockingServerIds = new ArrayList<Integer>();
+        for (Resource server : servers.subList(1, servers.size())) {
+            blockingServerIds.add(server.getId());
+        }
+        final CountDownLatch blocking = new CountDownLatch(blockingServerIds.size());
+        final CountDownLatch interrupted = new CountDownLatch(blockingServerIds.size());
+
+        AvailabilityExecutor executor = new ForceAvailabilityExecutor(inventoryManager) {
+            @Override
+            protected void checkInventory(Resource resource, AvailabilityReport availabilityReport,
+                AvailabilityType parentAvailType, boolean forceCheck, Scan scan, boolean traceEnabled)
+                throws InterruptedException {
+
+                if (resource.getId() == failingServerId) {
+                    // only fail once the other subtree checks are running, so they have to be interrupted
+                    blocking.await(1, TimeUnit.MINUTES);
+                    throw new IllegalStateException("Failed to check " + resource);
+                } else if (blockingServerIds.contains(resource.getId())) {
+                    blocking.countDown();
+                    try {
+                        Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+                    } catch (InterruptedException e) {
+                        interrupted.countDown();
+                        throw e;
+                    }
+                }
+                super.checkInventory(resource, availabilityReport, parentAvailType, forceCheck, scan, traceEnabled);
+            }
+        };
+
+        AvailabilityReport report = executor.call();
+        Assert.assertNotNull(report);
+        Assert.assertTrue(interrupted.await(10, TimeUnit.SECONDS), "The other subtree checks should be cancelled");
+        Assert.assertEquals(getResourceIds(report), Collections.singletonList(inventoryManager.getPlatform().getId()),
+            "No subtree should be merged into the report of a failed scan");
+        Assert.assertNull(executor.getMostRecentScanHistory(), "A failed scan should not be added to the history");
+    }
+
     private void assertScan(Scan scan, boolean isForced, boolean isFull, int numResources, int numChanges,
         int numCalls, int numSched, int numPushed, int numDeferred) {
         Assert.assertEquals(scan.isForced(), isForced, "Unexpected isForced");
@@ -549,6 +698,21 @@ public class AvailTest extends Arquillian {
             "Unexpected numDeferred, remember to include disabled and implied (when parent goes DOWN)");
     }
 
+    private void collectResourceIds(InventoryManager inventoryManager, Resource resource, List<Integer> ids) {
+        ids.add(resource.getId());
+        for (Resource child : inventoryManager.getContainerChildren(resource)) {
+            collectResourceIds(inventoryManager, child, ids);
+        }
+    }
+
+    private List<Integer> getResourceIds(AvailabilityReport report) {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (Datum datum : report.getResourceAvailability()) {
+            ids.add(datum.getResourceId());
+        }
+        return ids;
+    }
+
     private void dumpContainers(String title) {
         List<Set<ResourceContainer>> containerSets = new ArrayList<Set<ResourceContainer>>();
         containerSets.add(parentContainers1);
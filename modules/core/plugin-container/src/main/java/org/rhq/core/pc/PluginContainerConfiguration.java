@@ -79,6 +79,8 @@ public class PluginContainerConfiguration {
     public static final int RESOURCE_FACTORY_MAX_POOL_SIZE_DEFAULT = 100;
     private static final String RESOURCE_FACTORY_KEEP_ALIVE_PROP = PROP_PREFIX + "resource-factory-keep-alive";
     public static final int RESOURCE_FACTORY_KEEP_ALIVE_DEFAULT = 1000;
+    private static final String INVENTORY_JOURNAL_PERIOD_PROP = PROP_PREFIX + "inventory-journal-period";
+    public static final long INVENTORY_JOURNAL_PERIOD_DEFAULT = 30L; // in seconds
 
     // Availability ----------
 
@@ -89,6 +91,9 @@ public class PluginContainerConfiguration {
     public static final long AVAILABILITY_SCAN_PERIOD_DEFAULT = 30L;
     public static final String AVAILABILITY_SCAN_THREADPOOL_SIZE_PROP = "availability-scan-threadpool-size";
     public static final int AVAILABILITY_SCAN_THREADPOOL_SIZE_DEFAULT = 100;
+    private static final String AVAILABILITY_SCAN_SUBTREE_THREADCOUNT_PROP = PROP_PREFIX
+        + "availability-scan-subtree-threadpoolsize";
+    public static final int AVAILABILITY_SCAN_SUBTREE_THREADCOUNT_DEFAULT = 4;
 
     // Measurement ----------
 
@@ -502,6 +507,27 @@ public class PluginContainerConfiguration {
         configuration.put(AVAILABILITY_SCAN_THREADPOOL_SIZE_PROP, Integer.valueOf(size));
     }
 
+    /**
+     * Returns the number of threads that check the availabilities of the subtrees of the platform's top level resources
+     * concurrently during an availability scan. If 1 or less, the whole inventory is scanned by a single thread.
+     *
+     * @return threadpool size used for thread pool that scans the availabilities of the top level subtrees
+     */
+    public int getAvailabilityScanSubtreeThreadPoolSize() {
+        Integer size = (Integer) configuration.get(AVAILABILITY_SCAN_SUBTREE_THREADCOUNT_PROP);
+        return (size == null) ? AVAILABILITY_SCAN_SUBTREE_THREADCOUNT_DEFAULT : size.intValue();
+    }
+
+    /**
+     * Sets the number of threads that check the availabilities of the subtrees of the platform's top level resources
+     * concurrently during an availability scan.
+     *
+     * @param size threadpool size used for thread pool that scans the availabilities of the top level subtrees
+     */
+    public void setAvailabilityScanSubtreeThreadPoolSize(int size) {
+        configuration.put(AVAILABILITY_SCAN_SUBTREE_THREADCOUNT_PROP, Integer.valueOf(size));
+    }
+
     /**
      * Returns the length of time, in seconds, before measurements begin getting collected.
      *
@@ -628,6 +654,26 @@ public class PluginContainerConfiguration {
         configuration.put(CHILD_RESOURCE_DISCOVERY_DELAY_PROP, Long.valueOf(delay));
     }
 
+    /**
+     * Returns the length of time, in seconds, between each write of the inventory changes to the inventory journal. If
+     * 0 or less, the inventory is only persisted when the plugin container shuts down.
+     *
+     * @return number of seconds between each write of the inventory journal
+     */
+    public long getInventoryJournalPeriod() {
+        Long period = (Long) configuration.get(INVENTORY_JOURNAL_PERIOD_PROP);
+        return (period == null) ? INVENTORY_JOURNAL_PERIOD_DEFAULT : period.longValue();
+    }
+
+    /**
+     * Sets the length of time, in seconds, between each write of the inventory changes to the inventory journal.
+     *
+     * @param period number of seconds between each write of the inventory journal, 0 or less to disable the journal
+     */
+    public void setInventoryJournalPeriod(long period) {
+        configuration.put(INVENTORY_JOURNAL_PERIOD_PROP, Long.valueOf(period));
+    }
+
     /**
      * Returns the instance of <code>PluginFinder</code> for the container to use to locate all plugins to be loaded.
      *
@@ -649,10 +695,11 @@ public class PluginContainerConfiguration {
 
     /**
      * When measurements are scheduled for collection, the collection will be performed by threads from a thread pool.
-     * This defines the number of threads within that thread pool, effectively defining the number of measurements that
-     * can be collected concurrently.
+     * Every plugin has its own thread pool, so that slow collections of one plugin do not delay the collections of
+     * the others. This defines the number of threads within the thread pool of each plugin, effectively defining the
+     * number of measurements of a plugin that can be collected concurrently.
      *
-     * @return the size of the thread pool
+     * @return the size of the thread pool of each plugin
      */
     public int getMeasurementCollectionThreadPoolSize() {
         Integer size = (Integer) configuration.get(MEASUREMENT_COLLECTION_THREADCOUNT_PROP);
@@ -660,9 +707,9 @@ public class PluginContainerConfiguration {
     }
 
     /**
-     * Defines the number of threads that can concurrently collection measurements.
+     * Defines the number of threads of each plugin that can concurrently collect measurements.
      *
-     * @param size the new size of the thread pool
+     * @param size the new size of the thread pool of each plugin
      */
     public void setMeasurementCollectionThreadPoolSize(int size) {
         configuration.put(MEASUREMENT_COLLECTION_THREADCOUNT_PROP, Integer.valueOf(size));
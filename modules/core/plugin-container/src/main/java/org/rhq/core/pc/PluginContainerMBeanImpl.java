@@ -41,6 +41,7 @@ import org.rhq.core.domain.configuration.PropertyMap;
 import org.rhq.core.domain.configuration.PropertySimple;
 import org.rhq.core.pc.inventory.InventoryManager;
 import org.rhq.core.pc.inventory.ResourceContainer;
+import org.rhq.core.pc.measurement.MeasurementManager;
 import org.rhq.core.pc.plugin.CanonicalResourceKey;
 import org.rhq.core.pc.plugin.ClassLoaderManager;
 import org.rhq.core.pluginapi.operation.OperationResult;
@@ -299,6 +300,18 @@ public class PluginContainerMBeanImpl implements PluginContainerMBeanImplMBean {
         return this.pluginContainer.getPluginManager().getClassLoaderManager().getNumberOfResourceClassLoaders();
     }
 
+    public Map<String, Integer> getMeasurementCollectionQueueDepthPerPlugin() {
+        MeasurementManager measurementManager = this.pluginContainer.getMeasurementManager();
+        return (measurementManager != null) ? measurementManager.getQueuedCollectionsPerPlugin()
+            : new HashMap<String, Integer>();
+    }
+
+    public Map<String, Long> getMeasurementCollectionLatencyPerPlugin() {
+        MeasurementManager measurementManager = this.pluginContainer.getMeasurementManager();
+        return (measurementManager != null) ? measurementManager.getCollectionLatencyPerPlugin()
+            : new HashMap<String, Long>();
+    }
+
     private String generateInventoryReportString(InventoryReport report) {
         StringBuilder reportStr = new StringBuilder();
         if (report != null) {
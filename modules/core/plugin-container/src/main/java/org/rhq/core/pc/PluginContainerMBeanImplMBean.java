@@ -22,6 +22,8 @@
  */
 package org.rhq.core.pc;
 
+import java.util.Map;
+
 import org.rhq.core.pluginapi.operation.OperationResult;
 
 /**
@@ -106,4 +108,20 @@ public interface PluginContainerMBeanImplMBean {
      * @return resource classloader count
      */
     int getNumberOfResourceClassLoaders();
+
+    /**
+     * Returns the number of batches of measurements waiting for a collector thread, by plugin. Every plugin collects
+     * its measurements with its own threads.
+     * 
+     * @return queued measurement collections by plugin name
+     */
+    Map<String, Integer> getMeasurementCollectionQueueDepthPerPlugin();
+
+    /**
+     * Returns the average time, in milliseconds, from the time a batch of measurements was due until its collection
+     * was done, by plugin.
+     * 
+     * @return measurement collection latency by plugin name
+     */
+    Map<String, Long> getMeasurementCollectionLatencyPerPlugin();
 }
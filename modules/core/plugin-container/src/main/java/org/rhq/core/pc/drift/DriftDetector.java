@@ -28,15 +28,29 @@ import static org.rhq.core.util.file.FileUtil.copyFile;
 import static org.rhq.core.util.file.FileUtil.forEachFile;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -48,11 +62,17 @@ import org.rhq.common.drift.Headers;
 import org.rhq.core.domain.drift.DriftChangeSetCategory;
 import org.rhq.core.domain.drift.DriftDefinition;
 import org.rhq.core.domain.drift.Filter;
+import org.rhq.core.pc.util.LoggingThreadFactory;
 import org.rhq.core.util.MessageDigestGenerator;
 import org.rhq.core.util.file.FileVisitor;
 
 /**
  * Mechanism to detect and report Drift for active Drift Definitions.
+ * <p>
+ * Files are hashed in parallel by a small pool of threads while the directories are walked and the snapshot is read,
+ * so that the initial snapshot of a large base directory is not limited to one core. The entries are still written
+ * in the order the files are found. Large files are hashed from memory-mapped regions rather than a stream.
+ * </p>
  *
  * @author John Sanda
  */
@@ -63,11 +83,31 @@ public class DriftDetector implements Runnable {
     static final String FILE_CHANGESET_DELTA = "drift-changeset.txt";
     static final String FILE_SNAPSHOT_PINNED = "snapshot.pinned";
 
+    private static final String HASH_THREAD_POOL_NAME = "DriftDetector.hash";
+    private static final int MAX_HASH_THREADS = 4;
+
+    /** The most files being hashed ahead of the entry that is handled next; bounds the memory held by a scan */
+    private static final int MAX_PENDING_FILES = 256;
+
+    /** Files at least this large are hashed from memory-mapped regions of this size */
+    private static final long MAPPED_REGION_SIZE = 8L * 1024 * 1024;
+
+    // a mapped file cannot be deleted on Windows until the mapping is garbage collected, which would get in the way of
+    // redeploying the files under drift detection
+    private static final boolean MAP_LARGE_FILES = (File.separatorChar != '\\');
+
     private final ScheduleQueue scheduleQueue;
 
     private final ChangeSetManager changeSetMgr;
 
-    private final MessageDigestGenerator digestGenerator = new MessageDigestGenerator(MessageDigestGenerator.SHA_256);
+    private final ThreadLocal<MessageDigestGenerator> digestGenerator = new ThreadLocal<MessageDigestGenerator>() {
+        @Override
+        protected MessageDigestGenerator initialValue() {
+            return new MessageDigestGenerator(MessageDigestGenerator.SHA_256);
+        }
+    };
+
+    private final ThreadPoolExecutor hashThreadPool;
 
     private final DriftClient driftClient;
 
@@ -75,6 +115,21 @@ public class DriftDetector implements Runnable {
         this.scheduleQueue = scheduleQueue;
         this.changeSetMgr = changeSetMgr;
         this.driftClient = driftClient;
+
+        int hashThreads = Math.max(1, Math.min(MAX_HASH_THREADS, Runtime.getRuntime().availableProcessors()));
+        hashThreadPool = new ThreadPoolExecutor(hashThreads, hashThreads, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new LoggingThreadFactory(HASH_THREAD_POOL_NAME, true));
+        hashThreadPool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Stops the threads that hash files. Detection must not be run after this. The files still waiting to be hashed
+     * are cancelled so that a detection waiting for them does not hang.
+     */
+    public void shutdown() {
+        for (Runnable queued : hashThreadPool.shutdownNow()) {
+            ((Future<?>) queued).cancel(false);
+        }
     }
 
     @Override
@@ -183,10 +238,10 @@ public class DriftDetector implements Runnable {
         File snapshotFile = isPinned ? new File(currentFullSnapshot.getParentFile(), FILE_SNAPSHOT_PINNED)
             : currentFullSnapshot;
 
-        // get a Set of all files in the detection, consider them initially new files, and we'll knock the
-        // list down as we go.  As we build up FileEntries in memory this Set will shrink.  It's marginally
-        // less memory than if we had both in memory at the same time.
-        final Set<File> newFiles = new HashSet<File>(1000);
+        // get all files in the detection, consider them initially new files, and we'll mark the ones found in the
+        // snapshot as we go. The files are sorted and looked up as the snapshot is streamed, which takes far less
+        // memory than a hash set of every file.
+        final List<File> files = new ArrayList<File>(1000);
 
         // If the basedir is still valid we need to do a directory tree scan to look for newly added files
         if (basedir.isDirectory()) {
@@ -200,7 +255,7 @@ public class DriftDetector implements Runnable {
                     public void visit(File file) {
                         if (file.isFile()) {
                             if (file.canRead()) {
-                                newFiles.add(file);
+                                files.add(file);
                             } else if (log.isDebugEnabled()) {
                                 log.debug("Skipping " + file.getPath() + " as new file since it is not readable.");
                             }
@@ -220,6 +275,9 @@ public class DriftDetector implements Runnable {
         // are used if we re-write the pinned snapshot file.
         final List<FileEntry> changedPinnedEntries = isPinned ? new LinkedList<FileEntry>() : null;
 
+        FileListing newFiles = new FileListing(files);
+        files.clear();
+
         try {
             ChangeSetReader snapshotReader = null;
             int newVersion;
@@ -268,24 +326,31 @@ public class DriftDetector implements Runnable {
             }
 
             // add new files to the snapshotEntries and deltaEntries
-            for (File file : newFiles) {
-                try {
-                    if (log.isInfoEnabled()) {
-                        log.info("Detected added file for " + schedule + " --> " + file.getAbsolutePath());
-                    }
-
-                    FileEntry addedFileEntry = getAddedFileEntry(basedir, file);
-                    if (null != addedFileEntry) {
-                        addedEntries.add(addedFileEntry);
-                    }
+            AddedFileHasher addedFileHasher = new AddedFileHasher(basedir) {
+                @Override
+                void added(File file, FileEntry addedFileEntry) {
+                    addedEntries.add(addedFileEntry);
+                }
 
-                } catch (Throwable t) {
+                @Override
+                void failed(File file, Throwable t) {
                     // report the error but keep going, perhaps it is specific to a single file, try to
                     // finish the change set generation.
                     log.error(
                         "An unexpected error occurred while generating a drift change set for file " + file.getPath()
                             + " in schedule " + schedule + ". Skipping file.", t);
                 }
+            };
+            try {
+                for (File file : newFiles.getUnmarkedFiles()) {
+                    if (log.isInfoEnabled()) {
+                        log.info("Detected added file for " + schedule + " --> " + file.getAbsolutePath());
+                    }
+                    addedFileHasher.add(file);
+                }
+                addedFileHasher.finish();
+            } finally {
+                addedFileHasher.cancel();
             }
 
             // The new snapshot contains all changed, unchanged and added files. Not removed files.
@@ -343,7 +408,7 @@ public class DriftDetector implements Runnable {
             }
         } finally {
             // Help out the garbage collector by clearing all of our collections
-            safeClear(newFiles, unchangedEntries, changedEntries, changedPinnedEntries);
+            safeClear(files, unchangedEntries, changedEntries, changedPinnedEntries);
         }
     }
 
@@ -413,67 +478,112 @@ public class DriftDetector implements Runnable {
 
     /**
      * Process the entries for the snapshotReader. Each entry will be placed in one of the various Lists depending
-     * on what bucket it fall into.
+     * on what bucket it fall into. The files whose SHA has to be compared are hashed in parallel, their entries are
+     * placed in order as the SHAs become available.
      * @return true if unchangedEntries (meaning no drift) had timestamp/filesize info updated, in which case the
      * snapshot should be re-written to disk even if there was no drift.
      * @throws IOException
      */
     private boolean scanSnapshot(DriftDetectionSchedule schedule, File basedir, ChangeSetReader snapshotReader,
-        Set<File> newFiles, List<FileEntry> unchangedEntries, List<FileEntry> changedEntries,
+        FileListing newFiles, List<FileEntry> unchangedEntries, List<FileEntry> changedEntries,
         List<FileEntry> removedEntries, List<FileEntry> changedPinnedEntries) throws IOException {
 
         boolean result = false;
+        LinkedList<ScannedEntry> pendingEntries = new LinkedList<ScannedEntry>();
 
-        for (FileEntry entry : snapshotReader) {
-            File file = new File(basedir, entry.getFile());
-            newFiles.remove(file);
-
-            if (!(file.exists() && file.canRead())) {
-                // The file has been deleted or is no longer readable, since the last scan
-                if (log.isDebugEnabled()) {
-                    log.debug("Detected " + (file.exists() ? "unreadable" : "deleted") + " file for " + schedule
-                        + " --> " + file.getAbsolutePath());
-                }
-                removedEntries.add(removedFileEntry(entry.getFile(), entry.getNewSHA()));
+        try {
+            for (FileEntry entry : snapshotReader) {
+                final File file = new File(basedir, entry.getFile());
+                newFiles.mark(file);
 
-                if (null != changedPinnedEntries) {
-                    changedPinnedEntries.add(entry);
-                }
-            } else {
-                String currentSHA = null;
-                boolean isChanged = false;
+                ScannedEntry scannedEntry = new ScannedEntry(entry, file);
+                scannedEntry.exists = file.exists() && file.canRead();
 
                 // perform a SHA comparison if we are unable to compare size and lastModified or if the
                 // size or lastModified test fails.  We may not have size or lastModified values for the
                 // entry when the current snapshot was provided by the server, either due to a synch or
                 // pinning scenario.  The server does not store that information and will provide -1 for defaults.
-                if (entry.getLastModified() == -1 || entry.getSize() == -1
-                    || entry.getLastModified() != file.lastModified() || entry.getSize() != file.length()) {
+                if (scannedEntry.exists
+                    && (entry.getLastModified() == -1 || entry.getSize() == -1
+                        || entry.getLastModified() != file.lastModified() || entry.getSize() != file.length())) {
+
+                    scannedEntry.currentSHA = hashThreadPool.submit(new Callable<String>() {
+                        @Override
+                        public String call() throws IOException {
+                            return sha256(file);
+                        }
+                    });
+                }
 
-                    currentSHA = sha256(file);
-                    isChanged = !entry.getNewSHA().equals(currentSHA);
+                pendingEntries.add(scannedEntry);
+                if (pendingEntries.size() > MAX_PENDING_FILES) {
+                    result |= scanEntry(schedule, pendingEntries.removeFirst(), unchangedEntries, changedEntries,
+                        removedEntries, changedPinnedEntries);
                 }
+            }
 
-                if (isChanged) {
-                    FileEntry changedEntry = changedFileEntry(entry.getFile(), entry.getNewSHA(), currentSHA,
-                        file.lastModified(), file.length());
-                    changedEntries.add(changedEntry);
+            while (!pendingEntries.isEmpty()) {
+                result |= scanEntry(schedule, pendingEntries.removeFirst(), unchangedEntries, changedEntries,
+                    removedEntries, changedPinnedEntries);
+            }
+        } finally {
+            for (ScannedEntry scannedEntry : pendingEntries) {
+                if (null != scannedEntry.currentSHA) {
+                    scannedEntry.currentSHA.cancel(false);
+                }
+            }
+        }
 
-                    if (null != changedPinnedEntries) {
-                        changedPinnedEntries.add(entry);
-                    }
+        return result;
+    }
 
-                } else {
-                    if (-1 == entry.getLastModified()) {
-                        entry.setLastModified(file.lastModified());
-                        result = true;
-                    }
-                    if (-1 == entry.getSize()) {
-                        entry.setSize(file.length());
-                        result = true;
-                    }
-                    unchangedEntries.add(entry);
+    private boolean scanEntry(DriftDetectionSchedule schedule, ScannedEntry scannedEntry,
+        List<FileEntry> unchangedEntries, List<FileEntry> changedEntries, List<FileEntry> removedEntries,
+        List<FileEntry> changedPinnedEntries) throws IOException {
+
+        boolean result = false;
+        FileEntry entry = scannedEntry.entry;
+        File file = scannedEntry.file;
+
+        if (!scannedEntry.exists) {
+            // The file has been deleted or is no longer readable, since the last scan
+            if (log.isDebugEnabled()) {
+                log.debug("Detected " + (file.exists() ? "unreadable" : "deleted") + " file for " + schedule
+                    + " --> " + file.getAbsolutePath());
+            }
+            removedEntries.add(removedFileEntry(entry.getFile(), entry.getNewSHA()));
+
+            if (null != changedPinnedEntries) {
+                changedPinnedEntries.add(entry);
+            }
+        } else {
+            String currentSHA = null;
+            boolean isChanged = false;
+
+            if (null != scannedEntry.currentSHA) {
+                currentSHA = getResult(scannedEntry.currentSHA);
+                isChanged = !entry.getNewSHA().equals(currentSHA);
+            }
+
+            if (isChanged) {
+                FileEntry changedEntry = changedFileEntry(entry.getFile(), entry.getNewSHA(), currentSHA,
+                    file.lastModified(), file.length());
+                changedEntries.add(changedEntry);
+
+                if (null != changedPinnedEntries) {
+                    changedPinnedEntries.add(entry);
+                }
+
+            } else {
+                if (-1 == entry.getLastModified()) {
+                    entry.setLastModified(file.lastModified());
+                    result = true;
+                }
+                if (-1 == entry.getSize()) {
+                    entry.setSize(file.length());
+                    result = true;
                 }
+                unchangedEntries.add(entry);
             }
         }
 
@@ -672,11 +782,27 @@ public class DriftDetector implements Runnable {
         List<Filter> includes = driftDef.getIncludes();
         List<Filter> excludes = driftDef.getExcludes();
 
-        for (File dir : getScanDirectories(basedir, includes)) {
-            forEachFile(dir, new FilterFileVisitor(basedir, includes, excludes, new FileVisitor() {
-                @Override
-                public void visit(File file) {
-                    try {
+        // the files are hashed while the directories are walked
+        final AddedFileHasher addedFileHasher = new AddedFileHasher(basedir) {
+            @Override
+            void added(File file, FileEntry addedFileEntry) throws IOException {
+                writer.write(addedFileEntry);
+            }
+
+            @Override
+            void failed(File file, Throwable t) {
+                // report the error but keep going, perhaps it is specific to a single file, try to
+                // finish the detection.
+                log.error("An unexpected error occurred while generating a coverage change set for file "
+                    + file.getPath() + " in schedule " + schedule + ". Skipping file.", t);
+            }
+        };
+
+        try {
+            for (File dir : getScanDirectories(basedir, includes)) {
+                forEachFile(dir, new FilterFileVisitor(basedir, includes, excludes, new FileVisitor() {
+                    @Override
+                    public void visit(File file) {
                         if (!file.canRead()) {
                             if (log.isDebugEnabled()) {
                                 log.debug("Skipping " + file.getPath() + " since we do not have read access.");
@@ -688,19 +814,13 @@ public class DriftDetector implements Runnable {
                             log.debug("Adding " + file.getPath() + " to coverage change set for " + schedule);
                         }
 
-                        FileEntry addedFileEntry = getAddedFileEntry(basedir, file);
-                        if (null != addedFileEntry) {
-                            writer.write(addedFileEntry);
-                        }
-
-                    } catch (Throwable t) {
-                        // report the error but keep going, perhaps it is specific to a single file, try to
-                        // finish the detection.
-                        log.error("An unexpected error occurred while generating a coverage change set for file "
-                            + file.getPath() + " in schedule " + schedule + ". Skipping file.", t);
+                        addedFileHasher.add(file);
                     }
-                }
-            }));
+                }));
+            }
+            addedFileHasher.finish();
+        } finally {
+            addedFileHasher.cancel();
         }
     }
 
@@ -717,8 +837,52 @@ public class DriftDetector implements Runnable {
         return filePath.substring(basedirLen);
     }
 
+    /**
+     * May be called by several threads at once, each uses its own digest.
+     */
     private String sha256(File file) throws IOException {
-        return digestGenerator.calcDigestString(file);
+        MessageDigestGenerator generator = digestGenerator.get();
+        // forget whatever was left by a hash that failed
+        generator.getMessageDigest().reset();
+
+        if (!MAP_LARGE_FILES || file.length() < MAPPED_REGION_SIZE) {
+            return generator.calcDigestString(file);
+        }
+
+        FileInputStream input = new FileInputStream(file);
+        try {
+            FileChannel channel = input.getChannel();
+            MessageDigest digest = generator.getMessageDigest();
+            long size = channel.size();
+            for (long position = 0; position < size; position += MAPPED_REGION_SIZE) {
+                digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position,
+                    Math.min(MAPPED_REGION_SIZE, size - position)));
+            }
+            return generator.getDigestString();
+        } finally {
+            input.close();
+        }
+    }
+
+    private static <T> T getResult(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a file to be hashed");
+        } catch (CancellationException e) {
+            throw new InterruptedIOException("Hashing the file was cancelled because drift detection is shutting down");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
     }
 
     private String basedir(int resourceId, DriftDefinition driftDef) {
@@ -783,4 +947,122 @@ public class DriftDetector implements Runnable {
         }
     }
 
+    /**
+     * Hashes added files in parallel and hands their entries over in the order the files were added, so that no more
+     * than {@link #MAX_PENDING_FILES} entries are held at any time.
+     */
+    private abstract class AddedFileHasher {
+        private final File basedir;
+        private final LinkedList<File> pendingFiles = new LinkedList<File>();
+        private final LinkedList<Future<FileEntry>> pendingEntries = new LinkedList<Future<FileEntry>>();
+
+        AddedFileHasher(File basedir) {
+            this.basedir = basedir;
+        }
+
+        void add(final File file) {
+            pendingFiles.add(file);
+            pendingEntries.add(hashThreadPool.submit(new Callable<FileEntry>() {
+                @Override
+                public FileEntry call() throws IOException {
+                    return getAddedFileEntry(basedir, file);
+                }
+            }));
+            if (pendingFiles.size() > MAX_PENDING_FILES) {
+                next();
+            }
+        }
+
+        /**
+         * Hands over the entries of all files still being hashed.
+         */
+        void finish() {
+            while (!pendingFiles.isEmpty()) {
+                next();
+            }
+        }
+
+        /**
+         * Gives up on the files still being hashed.
+         */
+        void cancel() {
+            for (Future<FileEntry> entry : pendingEntries) {
+                entry.cancel(false);
+            }
+            pendingFiles.clear();
+            pendingEntries.clear();
+        }
+
+        private void next() {
+            File file = pendingFiles.removeFirst();
+            try {
+                FileEntry addedFileEntry = getResult(pendingEntries.removeFirst());
+                if (null != addedFileEntry) {
+                    added(file, addedFileEntry);
+                }
+            } catch (Throwable t) {
+                failed(file, t);
+            }
+        }
+
+        abstract void added(File file, FileEntry addedFileEntry) throws IOException;
+
+        abstract void failed(File file, Throwable t);
+    }
+
+    /**
+     * A snapshot entry whose file may still be being hashed.
+     */
+    private static class ScannedEntry {
+        final FileEntry entry;
+        final File file;
+        boolean exists;
+        Future<String> currentSHA;
+
+        ScannedEntry(FileEntry entry, File file) {
+            this.entry = entry;
+            this.file = file;
+        }
+    }
+
+    /**
+     * The files found by a directory scan, sorted so that a file can be looked up and marked as the snapshot is
+     * streamed.
+     */
+    private static class FileListing {
+        private final File[] files;
+        private final BitSet marked;
+
+        FileListing(List<File> files) {
+            File[] sorted = files.toArray(new File[files.size()]);
+            Arrays.sort(sorted);
+            // the scan directories of the includes may overlap
+            int size = 0;
+            for (File file : sorted) {
+                if (size == 0 || !sorted[size - 1].equals(file)) {
+                    sorted[size++] = file;
+                }
+            }
+            this.files = Arrays.copyOf(sorted, size);
+            this.marked = new BitSet(size);
+        }
+
+        void mark(File file) {
+            int index = Arrays.binarySearch(files, file);
+            if (index >= 0) {
+                marked.set(index);
+            }
+        }
+
+        /**
+         * @return the files that were not marked, in sorted order
+         */
+        List<File> getUnmarkedFiles() {
+            List<File> unmarked = new ArrayList<File>();
+            for (int i = marked.nextClearBit(0); i < files.length; i = marked.nextClearBit(i + 1)) {
+                unmarked.add(files[i]);
+            }
+            return unmarked;
+        }
+    }
 }
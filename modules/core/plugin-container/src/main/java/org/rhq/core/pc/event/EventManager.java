@@ -41,7 +41,9 @@ import org.rhq.core.pc.ContainerService;
 import org.rhq.core.pc.PluginContainer;
 import org.rhq.core.pc.PluginContainerConfiguration;
 import org.rhq.core.pc.util.LoggingThreadFactory;
+import org.rhq.core.pluginapi.event.EventContext;
 import org.rhq.core.pluginapi.event.EventPoller;
+import org.rhq.core.pluginapi.event.log.LogFileEventPoller;
 import org.rhq.core.system.SigarAccess;
 
 /**
@@ -58,6 +60,7 @@ public class EventManager implements ContainerService {
     private static final String POLLER_THREAD_POOL_NAME = "EventManager.poller";
     private static final int POLLER_THREAD_POOL_CORE_SIZE = 3;
     private static final int POLLER_INITIAL_DELAY_SECS = 0;
+    private static final int LOG_FILE_WATCHER_PERIOD_SECS = EventContext.MINIMUM_POLLING_INTERVAL;
 
     private final PluginContainerConfiguration pcConfig;
     private final ScheduledThreadPoolExecutor senderThreadPool;
@@ -65,6 +68,7 @@ public class EventManager implements ContainerService {
     private final ReentrantReadWriteLock reportLock = new ReentrantReadWriteLock(true);
     private final ScheduledThreadPoolExecutor pollerThreadPool;
     private final Map<PollerKey, Runnable> pollerThreads;
+    private final LogFileWatcher logFileWatcher;
     private SigarProxy sigar;
 
     public EventManager(PluginContainerConfiguration configuration) {
@@ -77,6 +81,7 @@ public class EventManager implements ContainerService {
         pollerThreadPool = new ScheduledThreadPoolExecutor(POLLER_THREAD_POOL_CORE_SIZE, new LoggingThreadFactory(
             POLLER_THREAD_POOL_NAME, true));
         pollerThreads = new HashMap<PollerKey, Runnable>();
+        logFileWatcher = new LogFileWatcher(this);
     }
 
     public void initialize() {
@@ -85,6 +90,9 @@ public class EventManager implements ContainerService {
         EventSenderRunner senderRunner = new EventSenderRunner(this);
         senderThreadPool.scheduleAtFixedRate(senderRunner, pcConfig.getEventSenderInitialDelay(),
             pcConfig.getEventSenderPeriod(), TimeUnit.SECONDS);
+        // A single task polls the log files of all log file pollers, see registerEventPoller().
+        pollerThreadPool.scheduleWithFixedDelay(logFileWatcher, POLLER_INITIAL_DELAY_SECS,
+            LOG_FILE_WATCHER_PERIOD_SECS, TimeUnit.SECONDS);
         log.info("Event Manager initialized.");
     }
 
@@ -157,10 +165,16 @@ public class EventManager implements ContainerService {
     }
 
     void registerEventPoller(EventPoller poller, int pollingInterval, Resource resource, String sourceLocation) {
+        PollerKey pollerKey = new PollerKey(resource.getId(), poller.getEventType(), sourceLocation);
+        // Log file pollers share the log file watcher, so that a file is read once for all the pollers watching it.
+        // Subclasses may have changed how the file is polled, they get a thread of their own like any other poller.
+        if (poller.getClass() == LogFileEventPoller.class) {
+            this.logFileWatcher.watch(pollerKey, (LogFileEventPoller) poller, pollingInterval, resource);
+            return;
+        }
         EventPollerRunner pollerRunner = new EventPollerRunner(poller, resource, this);
         Runnable pollerFuture = (Runnable) this.pollerThreadPool.scheduleAtFixedRate(pollerRunner,
             POLLER_INITIAL_DELAY_SECS, pollingInterval, TimeUnit.SECONDS);
-        PollerKey pollerKey = new PollerKey(resource.getId(), poller.getEventType(), sourceLocation);
         this.pollerThreads.put(pollerKey, pollerFuture);
     }
 
@@ -170,6 +184,9 @@ public class EventManager implements ContainerService {
         }
 
         PollerKey pollerKey = new PollerKey(resource.getId(), eventType, sourceLocation);
+        if (this.logFileWatcher.unwatch(pollerKey)) {
+            return;
+        }
         if (this.pollerThreads.containsKey(pollerKey)) {
             Runnable pollerThread = this.pollerThreads.get(pollerKey);
             boolean wasRemoved = this.pollerThreadPool.remove(pollerThread);
@@ -0,0 +1,198 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2014 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+package org.rhq.core.pc.event;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.rhq.core.domain.event.Event;
+import org.rhq.core.domain.resource.Resource;
+import org.rhq.core.pc.event.EventManager.PollerKey;
+import org.rhq.core.pluginapi.event.log.LogEntryProcessor;
+import org.rhq.core.pluginapi.event.log.LogFileEventPoller;
+import org.rhq.core.pluginapi.event.log.LogFileTailer;
+
+/**
+ * Polls the log files of all {@link LogFileEventPoller}s registered with the {@link EventManager} from a single task,
+ * instead of scheduling every poller on its own. A log file watched by several pollers, e.g. by several resources
+ * that log to the same file, is read once per poll and its new lines are handed to the {@link LogEntryProcessor} of
+ * every poller. A file is polled at the shortest polling interval of its pollers.
+ */
+class LogFileWatcher implements Runnable {
+    private static final Log LOG = LogFactory.getLog(LogFileWatcher.class);
+
+    private final EventManager eventManager;
+
+    // guarded by this
+    private final Map<File, WatchedFile> watchedFiles = new HashMap<File, WatchedFile>();
+    private final Map<PollerKey, File> filesByPoller = new HashMap<PollerKey, File>();
+
+    LogFileWatcher(EventManager eventManager) {
+        this.eventManager = eventManager;
+    }
+
+    synchronized void watch(PollerKey pollerKey, LogFileEventPoller poller, int pollingInterval, Resource resource) {
+        unwatch(pollerKey);
+
+        File file = getKey(poller.getLogFile());
+        WatchedFile watchedFile = this.watchedFiles.get(file);
+        if (watchedFile == null) {
+            watchedFile = new WatchedFile(poller.getLogFile());
+            this.watchedFiles.put(file, watchedFile);
+        }
+        watchedFile.subscribers.add(new Subscriber(pollerKey, poller, pollingInterval, resource));
+        watchedFile.nextPoll = 0;
+        this.filesByPoller.put(pollerKey, file);
+    }
+
+    /**
+     * @return false if no log file is watched for the given poller
+     */
+    synchronized boolean unwatch(PollerKey pollerKey) {
+        File file = this.filesByPoller.remove(pollerKey);
+        if (file == null) {
+            return false;
+        }
+        WatchedFile watchedFile = this.watchedFiles.get(file);
+        for (Iterator<Subscriber> iter = watchedFile.subscribers.iterator(); iter.hasNext();) {
+            if (iter.next().pollerKey.equals(pollerKey)) {
+                iter.remove();
+            }
+        }
+        if (watchedFile.subscribers.isEmpty()) {
+            this.watchedFiles.remove(file);
+        }
+        return true;
+    }
+
+    public void run() {
+        pollDueFiles(System.currentTimeMillis());
+    }
+
+    /**
+     * Polls the files whose polling interval has passed at the given time.
+     */
+    void pollDueFiles(long now) {
+        List<WatchedFile> dueFiles = new ArrayList<WatchedFile>();
+        List<List<Subscriber>> dueSubscribers = new ArrayList<List<Subscriber>>();
+        synchronized (this) {
+            for (WatchedFile watchedFile : this.watchedFiles.values()) {
+                if (watchedFile.nextPoll <= now) {
+                    watchedFile.nextPoll = now + (watchedFile.getPollingInterval() * 1000L);
+                    dueFiles.add(watchedFile);
+                    dueSubscribers.add(new ArrayList<Subscriber>(watchedFile.subscribers));
+                }
+            }
+        }
+
+        // this is the only thread polling the files, the tailers need no locking
+        for (int i = 0; i < dueFiles.size(); i++) {
+            try {
+                poll(dueFiles.get(i), dueSubscribers.get(i));
+            } catch (Throwable t) {
+                LOG.error("Failed to poll log file [" + dueFiles.get(i).logFile + "] for events.", t);
+            }
+        }
+    }
+
+    private void poll(WatchedFile watchedFile, List<Subscriber> subscribers) throws IOException {
+        File logFile = watchedFile.logFile;
+        if (!logFile.exists()) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Log file [" + logFile + "] being polled does not exist.");
+            }
+            return;
+        }
+        if (logFile.isDirectory()) {
+            LOG.error("Log file [" + logFile + "] being polled is a directory, not a regular file.");
+            return;
+        }
+        if (watchedFile.tailer == null) {
+            LogFileTailer tailer = new LogFileTailer(logFile, this.eventManager.getSigar());
+            tailer.seekToEnd();
+            watchedFile.tailer = tailer;
+            return;
+        }
+
+        List<LogEntryProcessor> entryProcessors = new ArrayList<LogEntryProcessor>(subscribers.size());
+        for (Subscriber subscriber : subscribers) {
+            entryProcessors.add(subscriber.poller.getEntryProcessor());
+        }
+        List<Set<Event>> events = watchedFile.tailer.poll(entryProcessors);
+        if (events == null) {
+            return;
+        }
+        for (int i = 0; i < subscribers.size(); i++) {
+            if (events.get(i) != null) {
+                this.eventManager.publishEvents(events.get(i), subscribers.get(i).resource);
+            }
+        }
+    }
+
+    private static File getKey(File logFile) {
+        try {
+            return logFile.getCanonicalFile();
+        } catch (IOException e) {
+            return logFile.getAbsoluteFile();
+        }
+    }
+
+    private static class WatchedFile {
+        final File logFile;
+        final List<Subscriber> subscribers = new ArrayList<Subscriber>();
+        LogFileTailer tailer;
+        long nextPoll;
+
+        WatchedFile(File logFile) {
+            this.logFile = logFile;
+        }
+
+        int getPollingInterval() {
+            int interval = Integer.MAX_VALUE;
+            for (Subscriber subscriber : subscribers) {
+                interval = Math.min(interval, subscriber.pollingInterval);
+            }
+            return interval;
+        }
+    }
+
+    private static class Subscriber {
+        final PollerKey pollerKey;
+        final LogFileEventPoller poller;
+        final int pollingInterval;
+        final Resource resource;
+
+        Subscriber(PollerKey pollerKey, LogFileEventPoller poller, int pollingInterval, Resource resource) {
+            this.pollerKey = pollerKey;
+            this.poller = poller;
+            this.pollingInterval = pollingInterval;
+            this.resource = resource;
+        }
+    }
+}
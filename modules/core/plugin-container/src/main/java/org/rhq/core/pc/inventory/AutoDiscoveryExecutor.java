@@ -92,8 +92,8 @@ public class AutoDiscoveryExecutor implements Runnable, Callable<InventoryReport
             report.setStartTime(System.currentTimeMillis());
             if ((autoDiscoveryRequest == null)
                 || autoDiscoveryRequest.getScanTypes().contains(AutoDiscoveryScanType.Plugin)) {
-                List<ProcessInfo> processInfos = getProcessInfos();
-                pluginDiscovery(report, processInfos);
+                ProcessInfoQuery processTable = getProcessTable();
+                pluginDiscovery(report, processTable);
             }
             report.setEndTime(System.currentTimeMillis());
 
@@ -127,7 +127,12 @@ public class AutoDiscoveryExecutor implements Runnable, Callable<InventoryReport
         return report;
     }
 
-    private List<ProcessInfo> getProcessInfos() {
+    /**
+     * Takes a snapshot of the process table, which all process scans of this discovery run are performed against.
+     *
+     * @return the snapshot, or <code>null</code> if there are no processes to scan
+     */
+    private ProcessInfoQuery getProcessTable() {
         SystemInfo systemInfo = SystemInfoFactory.createSystemInfo();
         log.debug("Retrieving process table...");
         long startTime = System.currentTimeMillis();
@@ -141,17 +146,17 @@ public class AutoDiscoveryExecutor implements Runnable, Callable<InventoryReport
         if (log.isDebugEnabled()) {
             log.debug("Retrieval of process table took " + elapsedTime + " ms.");
         }
-        return processInfos;
+        return ((processInfos != null) && !processInfos.isEmpty()) ? new ProcessInfoQuery(processInfos) : null;
     }
 
     /**
      * Goes through server plugins running auto discovery
      *
      * @param report the inventory report to which to add the discovered servers
-     * @param processInfos
+     * @param processTable the process table snapshot the process scans are performed against
      */
     @SuppressWarnings("unchecked")
-    private void pluginDiscovery(InventoryReport report, List<ProcessInfo> processInfos) {
+    private void pluginDiscovery(InventoryReport report, ProcessInfoQuery processTable) {
         inventoryManager.executePlatformScan();
 
         PluginManager pluginManager = inventoryManager.getPluginManager();
@@ -180,7 +185,7 @@ public class AutoDiscoveryExecutor implements Runnable, Callable<InventoryReport
                 }
 
                 // Perform auto-discovery PIQL queries now to see if we can auto-detect servers that are currently running.
-                List<ProcessScanResult> scanResults = performProcessScans(processInfos, serverType);
+                List<ProcessScanResult> scanResults = performProcessScans(processTable, serverType);
 
                 Set<Resource> discoveredServers = this.inventoryManager.executeComponentDiscovery(serverType,
                     component, platformContainer, scanResults);
@@ -216,16 +221,15 @@ public class AutoDiscoveryExecutor implements Runnable, Callable<InventoryReport
         return;
     }
 
-    private List<ProcessScanResult> performProcessScans(List<ProcessInfo> processInfos, ResourceType serverType) {
-        if (processInfos == null || processInfos.isEmpty())
+    private List<ProcessScanResult> performProcessScans(ProcessInfoQuery processTable, ResourceType serverType) {
+        if (processTable == null)
             return Collections.emptyList();
         List<ProcessScanResult> scanResults = new ArrayList<ProcessScanResult>();
         Set<ProcessScan> processScans = serverType.getProcessScans();
         if (processScans != null && !processScans.isEmpty()) {
             log.debug("Executing process scans for server type " + serverType + "...");
-            ProcessInfoQuery piq = new ProcessInfoQuery(processInfos);
             for (ProcessScan processScan : processScans) {
-                List<ProcessInfo> queryResults = piq.query(processScan.getQuery());
+                List<ProcessInfo> queryResults = processTable.query(processScan.getQuery());
                 if ((queryResults != null) && (queryResults.size() > 0)) {
                     for (ProcessInfo autoDiscoveredProcess : queryResults) {
                         scanResults.add(new ProcessScanResult(processScan, autoDiscoveredProcess));
@@ -26,11 +26,16 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.logging.Log;
@@ -191,6 +196,9 @@ public class AvailabilityExecutor implements Runnable, Callable<AvailabilityRepo
 
         if (LOG.isDebugEnabled()) {
             LOG.debug("Scan Ended   : " + new Date(scan.getEndTime()) + " : " + scan.toString());
+            for (Scan subtreeScan : scan.getSubtreeScans()) {
+                LOG.debug("Subtree Scan : " + subtreeScan.toString());
+            }
         }
 
         addScanHistory(scan);
@@ -396,10 +404,74 @@ public class AvailabilityExecutor implements Runnable, Callable<AvailabilityRepo
             availabilityReport.addAvailability(availability);
         }
 
-        for (Resource child : this.inventoryManager.getContainerChildren(resource, resourceContainer)) {
-            checkInventory(child, availabilityReport, current, isForced, scan, traceEnabled);
+        checkChildren(resource, resourceContainer, availabilityReport, current, isForced, scan, traceEnabled);
+    }
+
+    /**
+     * Checks the availability of the children of a resource and their descendants. If the inventory manager provides
+     * a {@link InventoryManager#getAvailabilitySubtreeExecutor() subtree executor}, the subtrees of the first level of
+     * the scan that has more than one child are checked concurrently, each with its own {@link Scan} which is then
+     * added to the subtree scans of the given scan. A slow resource then only holds up its own subtree. Parent
+     * availability is still handed down within each subtree, so the descendants of a DOWN resource are not checked.
+     *
+     * @throws InterruptedException if this checking thread was interrupted
+     */
+    protected void checkChildren(Resource resource, ResourceContainer resourceContainer,
+        AvailabilityReport availabilityReport, AvailabilityType availType, boolean isForced, Scan scan,
+        boolean traceEnabled) throws InterruptedException {
+
+        Set<Resource> children = this.inventoryManager.getContainerChildren(resource, resourceContainer);
+        ExecutorService subtreeExecutor = (scan.rootResourceId == 0) ? this.inventoryManager
+            .getAvailabilitySubtreeExecutor() : null;
+
+        if (subtreeExecutor == null || children.size() < 2) {
+            for (Resource child : children) {
+                checkInventory(child, availabilityReport, availType, isForced, scan, traceEnabled);
+            }
+            return;
         }
 
+        List<SubtreeCheck> checks = new ArrayList<SubtreeCheck>(children.size());
+        List<Future<Scan>> futures = new ArrayList<Future<Scan>>(children.size());
+        boolean done = false;
+        try {
+            for (Resource child : children) {
+                SubtreeCheck check = new SubtreeCheck(child, availabilityReport, availType, isForced, scan,
+                    traceEnabled);
+                checks.add(check);
+                futures.add(subtreeExecutor.submit(check));
+            }
+
+            // merge in submission order so the report is the same as the one a sequential scan would build
+            for (int i = 0; i < checks.size(); ++i) {
+                Scan subtreeScan;
+                try {
+                    subtreeScan = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof InterruptedException) {
+                        throw (InterruptedException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new RuntimeException(cause);
+                }
+
+                for (AvailabilityReport.Datum datum : checks.get(i).subtreeReport.getResourceAvailability()) {
+                    availabilityReport.addAvailability(datum);
+                }
+                scan.addSubtreeScan(subtreeScan);
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                for (Future<Scan> future : futures) {
+                    future.cancel(true);
+                }
+            }
+        }
     }
 
     /**
@@ -478,11 +550,48 @@ public class AvailabilityExecutor implements Runnable, Callable<AvailabilityRepo
         }
     }
 
+    /**
+     * Checks the availabilities of one subtree into its own report and {@link Scan}.
+     */
+    private class SubtreeCheck implements Callable<Scan> {
+        private final Resource subtreeRoot;
+        private final AvailabilityReport subtreeReport;
+        private final AvailabilityType parentAvailType;
+        private final boolean isForced;
+        private final Scan subtreeScan;
+        private final boolean traceEnabled;
+
+        SubtreeCheck(Resource subtreeRoot, AvailabilityReport availabilityReport, AvailabilityType parentAvailType,
+            boolean isForced, Scan scan, boolean traceEnabled) {
+            this.subtreeRoot = subtreeRoot;
+            this.subtreeReport = new AvailabilityReport(availabilityReport.isChangesOnlyReport(),
+                availabilityReport.getAgentName());
+            this.parentAvailType = parentAvailType;
+            this.isForced = isForced;
+            // the subtree is scheduled relative to the start of the whole scan
+            this.subtreeScan = new Scan(scan.startTime, scan.isFull);
+            this.subtreeScan.rootResourceId = subtreeRoot.getId();
+            this.traceEnabled = traceEnabled;
+        }
+
+        public Scan call() throws InterruptedException {
+            long start = System.currentTimeMillis();
+            checkInventory(subtreeRoot, subtreeReport, parentAvailType, isForced, subtreeScan, traceEnabled);
+            subtreeScan.endTime = System.currentTimeMillis();
+            subtreeScan.runtime = subtreeScan.endTime - start;
+            return subtreeScan;
+        }
+    }
+
     public static class Scan {
         private final long startTime;
         private long endTime;
         private long runtime;
 
+        // the id of the resource whose subtree this scan covers, 0 for a scan started by startScan
+        private int rootResourceId = 0;
+        private List<Scan> subtreeScans = Collections.emptyList();
+
         private boolean isFull = false;
         private boolean isForced = false;
 
@@ -551,13 +660,44 @@ public class AvailabilityExecutor implements Runnable, Callable<AvailabilityRepo
             return numDeferToParent;
         }
 
+        /**
+         * @return the id of the resource whose subtree this scan covers, 0 if this is not a subtree scan
+         */
+        public int getRootResourceId() {
+            return rootResourceId;
+        }
+
+        /**
+         * @return the scans of the subtrees that were checked concurrently as part of this scan, with their own
+         * runtimes. Their counts are included in the counts of this scan.
+         */
+        public List<Scan> getSubtreeScans() {
+            return subtreeScans;
+        }
+
+        void addSubtreeScan(Scan subtreeScan) {
+            if (subtreeScans.isEmpty()) {
+                subtreeScans = new ArrayList<Scan>();
+            }
+            subtreeScans.add(subtreeScan);
+
+            isForced |= subtreeScan.isForced;
+            numResources += subtreeScan.numResources;
+            numGetAvailabilityCalls += subtreeScan.numGetAvailabilityCalls;
+            numScheduledRandomly += subtreeScan.numScheduledRandomly;
+            numPushedByInterval += subtreeScan.numPushedByInterval;
+            numAvailabilityChanges += subtreeScan.numAvailabilityChanges;
+            numDeferToParent += subtreeScan.numDeferToParent;
+        }
+
         @Override
         public String toString() {
             return "Scan [startTime=" + startTime + ", endTime=" + endTime + ", runtime=" + runtime + ", isFull="
                 + isFull + ", isForced=" + isForced + ", numResources=" + numResources + ", numGetAvailabilityCalls="
                 + numGetAvailabilityCalls + ", numScheduledRandomly=" + numScheduledRandomly + ", numPushedByInterval="
                 + numPushedByInterval + ", numAvailabilityChanges=" + numAvailabilityChanges + ", numDeferToParent="
-                + numDeferToParent + "]";
+                + numDeferToParent + ", rootResourceId=" + rootResourceId + ", numSubtreeScans=" + subtreeScans.size()
+                + "]";
         }
     }
 }
@@ -19,12 +19,15 @@
 
 package org.rhq.core.pc.inventory;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OptionalDataException;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
@@ -39,7 +42,9 @@ import org.rhq.core.domain.resource.ResourceType;
 import org.rhq.core.pc.PluginContainer;
 
 /**
- * Provides methods to read and write inventory data to a file.
+ * Provides methods to read and write inventory data to a file. The file holds a snapshot of the inventory. If an
+ * {@link InventoryJournal inventory journal} is given, the changes journaled after the snapshot are applied when the
+ * inventory is loaded.
  *
  * @author John Mazzitelli
  */
@@ -47,8 +52,10 @@ public class InventoryFile {
     private static final Log log = LogFactory.getLog(InventoryFile.class);
 
     private final File inventoryFile;
+    private final InventoryJournal journal;
     private Resource platform;
     private Map<String, ResourceContainer> resourceContainers; // keyed on UUID
+    private long journalSequence;
 
     private final InventoryManager inventoryManager;
 
@@ -58,7 +65,19 @@ public class InventoryFile {
      * @param inventoryFile the path to the inventory.dat file
      */
     public InventoryFile(File inventoryFile, InventoryManager inventoryManager) {
+        this(inventoryFile, null, inventoryManager);
+    }
+
+    /**
+     * Constructor for {@link InventoryFile} that will read and write inventory data to the given file and also apply
+     * the changes found in the given journal when loading the inventory.
+     *
+     * @param inventoryFile the path to the inventory.dat file
+     * @param journal the journal of the changes made since the inventory file was written, may be <code>null</code>
+     */
+    InventoryFile(File inventoryFile, InventoryJournal journal, InventoryManager inventoryManager) {
         this.inventoryFile = inventoryFile;
+        this.journal = journal;
         this.inventoryManager = inventoryManager;
     }
 
@@ -103,6 +122,16 @@ public class InventoryFile {
         return resourceContainers;
     }
 
+    /**
+     * Returns the sequence number of the last journal record contained in the inventory, which is 0 if the inventory
+     * was never journaled.
+     *
+     * @return sequence number of the last journal record that has been loaded or stored
+     */
+    public long getJournalSequence() {
+        return journalSequence;
+    }
+
     /**
      * Reads in the inventory found in the file. Once this returns, {@link #getPlatform()} and
      * {@link #getResourceContainers()} will return non-<code>null</code> objects as found in the file.
@@ -113,15 +142,39 @@ public class InventoryFile {
     public void loadInventory() throws PluginContainerException {
         FileInputStream fis = null;
         try {
-            fis = new FileInputStream(inventoryFile);
-            ObjectInputStream ois = new ObjectInputStream(fis);
+            // without a journal, the snapshot must exist
+            if ((journal == null) || inventoryFile.exists()) {
+                fis = new FileInputStream(inventoryFile);
+                ObjectInputStream ois = new ObjectInputStream(fis);
+
+                this.platform = (Resource) ois.readObject();
+                this.resourceContainers = (Map<String, ResourceContainer>) ois.readObject();
+                this.journalSequence = readJournalSequence(ois);
+            } else {
+                this.platform = null;
+                this.resourceContainers = new HashMap<String, ResourceContainer>();
+                this.journalSequence = 0L;
+            }
+
+            if (journal != null) {
+                InventoryJournal.Replay replay = journal.replay(this.platform, this.resourceContainers,
+                    this.journalSequence);
+                if (replay.getApplied() > 0) {
+                    log.info("Applied [" + replay.getApplied() + "] inventory changes from journal ["
+                        + journal.getJournalFile() + "]");
+                }
+                this.platform = replay.getPlatform();
+                this.journalSequence = journal.getSequence();
+            }
+
+            if (this.platform == null) {
+                throw new PluginContainerException("No platform found in inventory");
+            }
 
             // this list will contain UUIDs of resources that we should ignore usually due to disabled plugins
             Set<String> uuidsToIgnore = new HashSet<String>();
 
-            this.platform = (Resource) ois.readObject();
             connectTypes(this.platform, uuidsToIgnore);
-            this.resourceContainers = (Map<String, ResourceContainer>) ois.readObject();
             for (ResourceContainer resourceContainer : this.resourceContainers.values()) {
                 connectTypes(resourceContainer.getResource(), uuidsToIgnore);
             }
@@ -133,6 +186,8 @@ public class InventoryFile {
             // purge all resources from disabled plugins
             removeIgnoredResourcesFromChildren(this.platform, uuidsToIgnore);
             return;
+        } catch (PluginContainerException e) {
+            throw e;
         } catch (Exception e) {
             throw new PluginContainerException("Cannot load inventory file: " + inventoryFile, e);
         } finally {
@@ -145,6 +200,17 @@ public class InventoryFile {
         }
     }
 
+    private static long readJournalSequence(ObjectInputStream ois) throws IOException, ClassNotFoundException {
+        // inventory files written before the journal existed end after the resource containers
+        try {
+            return (Long) ois.readObject();
+        } catch (EOFException e) {
+            return 0L;
+        } catch (OptionalDataException e) {
+            return 0L;
+        }
+    }
+
     private void removeIgnoredResourcesFromChildren(Resource resource, Set<String> uuidsToIgnore) {
         // nothing to ignore, just return
         if (null == uuidsToIgnore || uuidsToIgnore.isEmpty()) {
@@ -245,20 +311,49 @@ public class InventoryFile {
      * @throws IOException
      */
     public void storeInventory(Resource platformResource, Map<String, ResourceContainer> containers) throws IOException {
-        FileOutputStream fos = new FileOutputStream(inventoryFile);
+        storeInventory(platformResource, containers, 0L);
+    }
+
+    /**
+     * Like {@link #storeInventory(Resource, Map)}, but also records the sequence number of the last journal record
+     * contained in the inventory. The inventory is written to a temporary file first, which then replaces the
+     * inventory file, so a failure while writing does not destroy the previous inventory.
+     *
+     * @param  platformResource
+     * @param  containers
+     * @param  journalSequence the sequence number of the last journal record contained in the inventory
+     *
+     * @throws IOException
+     */
+    public void storeInventory(Resource platformResource, Map<String, ResourceContainer> containers,
+        long journalSequence) throws IOException {
+        File tmpFile = new File(inventoryFile.getAbsolutePath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmpFile);
         try {
             ObjectOutputStream oos = new ObjectOutputStream(fos);
             try {
                 oos.writeObject(platformResource);
                 oos.writeObject(containers);
-
-                this.platform = platformResource;
-                this.resourceContainers = containers;
+                oos.writeObject(Long.valueOf(journalSequence));
+                oos.flush();
+                fos.getFD().sync();
             } finally {
                 oos.close();
             }
         } finally {
             fos.close();
         }
+
+        if (!tmpFile.renameTo(inventoryFile)) {
+            // some platforms do not allow renaming to an existing file
+            inventoryFile.delete();
+            if (!tmpFile.renameTo(inventoryFile)) {
+                throw new IOException("Failed to rename [" + tmpFile + "] to [" + inventoryFile + "]");
+            }
+        }
+
+        this.platform = platformResource;
+        this.resourceContainers = containers;
+        this.journalSequence = journalSequence;
     }
 }
@@ -0,0 +1,536 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2014 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+package org.rhq.core.pc.inventory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.rhq.core.domain.resource.Resource;
+
+/**
+ * An append-only log of the changes made to the inventory since the last snapshot was written to the
+ * {@link InventoryFile inventory file}. It allows the inventory to be persisted while the plugin container is running,
+ * one changed resource container at a time, rather than only as a whole on shutdown.
+ * <p>
+ * Every record is prefixed with its length and CRC, so a record that was being written when the process died is
+ * detected and dropped on {@link #replay(Resource, Map, long) replay}. Every record also has a sequence number. A
+ * snapshot remembers the sequence number of the last record it contains, so records that made it into the snapshot
+ * but were not yet discarded from the journal are skipped.
+ * </p>
+ * A changed resource container is stored with its resource, but without the resource's parent and children. These are
+ * stored as references to their UUIDs and reconnected on replay.
+ */
+class InventoryJournal {
+    private static final Log log = LogFactory.getLog(InventoryJournal.class);
+
+    private static final int MAGIC = 0x524a524e; // "RJRN"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+
+    private static final byte PUT = 1;
+    private static final byte MOVE = 2;
+    private static final byte REMOVE = 3;
+
+    private final File journalFile;
+
+    private FileOutputStream fileOutput;
+    private DataOutputStream output;
+    private long sequence;
+
+    /**
+     * @param journalFile the journal file, which is created when the first record is written
+     * @param sequence the sequence number of the last record written so far, in the journal or in the snapshot
+     */
+    InventoryJournal(File journalFile, long sequence) {
+        this.journalFile = journalFile;
+        this.sequence = sequence;
+    }
+
+    File getJournalFile() {
+        return journalFile;
+    }
+
+    /**
+     * @return the sequence number of the last record written
+     */
+    synchronized long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return the size of the journal file in bytes
+     */
+    long length() {
+        return journalFile.length();
+    }
+
+    /**
+     * Writes the records of the resources that have been removed or changed their UUIDs, followed by the given
+     * resource containers. The records are forced to disk before this method returns. If they cannot be written,
+     * whatever the reason, none of them are kept.
+     *
+     * @param pendingRecords the removed and renamed resources, see {@link #removed(String)} and
+     *                       {@link #moved(String, String)}
+     * @param containers the containers that have changed, sorted so that a parent comes before its children
+     */
+    synchronized void write(List<PendingRecord> pendingRecords, Collection<ResourceContainer> containers)
+        throws IOException {
+        if (pendingRecords.isEmpty() && containers.isEmpty()) {
+            return;
+        }
+        long start = -1L;
+        long startSequence = sequence;
+        boolean written = false;
+        try {
+            DataOutputStream out = getOutput();
+            start = fileOutput.getChannel().position();
+            writeRecords(out, pendingRecords, containers);
+            written = true;
+        } finally {
+            if (!written) {
+                rollback(start, startSequence);
+            }
+        }
+    }
+
+    /**
+     * Cuts the records of a failed write off the journal. The sequence numbers are only reused if that succeeds, the
+     * records that remain are otherwise dropped or applied again on replay like any other.
+     */
+    private void rollback(long start, long startSequence) {
+        close();
+        if (start < 0) {
+            // nothing was written, or only a partial header which is written again
+            sequence = startSequence;
+            return;
+        }
+        try {
+            RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+            try {
+                raf.setLength(start);
+            } finally {
+                raf.close();
+            }
+            sequence = startSequence;
+        } catch (IOException e) {
+            log.warn("Failed to cut the records of a failed write off inventory journal [" + journalFile + "]: " + e);
+        }
+    }
+
+    private void writeRecords(DataOutputStream out, List<PendingRecord> pendingRecords,
+        Collection<ResourceContainer> containers) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(1024);
+        for (PendingRecord record : pendingRecords) {
+            buffer.reset();
+            DataOutputStream data = new DataOutputStream(buffer);
+            data.writeLong(++sequence);
+            data.writeByte(record.type);
+            data.writeUTF(record.uuid);
+            if (record.type == MOVE) {
+                data.writeUTF(record.newUuid);
+            }
+            data.flush();
+            writeRecord(out, buffer);
+        }
+        for (ResourceContainer container : containers) {
+            Resource resource = container.getResource();
+            Resource parent = resource.getParentResource();
+            buffer.reset();
+            DataOutputStream data = new DataOutputStream(buffer);
+            data.writeLong(++sequence);
+            data.writeByte(PUT);
+            data.writeUTF(resource.getUuid());
+            data.writeUTF((parent == null) ? "" : parent.getUuid());
+            data.flush();
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                DeflaterOutputStream deflaterStream = new DeflaterOutputStream(buffer, deflater);
+                ContainerOutputStream oos = new ContainerOutputStream(deflaterStream, resource);
+                // the container's setters synchronize on it, so this writes a consistent state of its fields
+                synchronized (container) {
+                    oos.writeObject(container);
+                }
+                oos.flush();
+                deflaterStream.finish();
+            } finally {
+                deflater.end();
+            }
+            writeRecord(out, buffer);
+        }
+        out.flush();
+        fileOutput.getFD().sync();
+    }
+
+    /**
+     * Discards all records, which must all be contained in a snapshot.
+     */
+    synchronized void reset() throws IOException {
+        close();
+        if (journalFile.exists() && !journalFile.delete()) {
+            throw new IOException("Failed to delete inventory journal [" + journalFile + "]");
+        }
+    }
+
+    synchronized void close() {
+        if (output != null) {
+            try {
+                output.close();
+            } catch (IOException e) {
+                log.warn("Failed to close inventory journal [" + journalFile + "]: " + e);
+            }
+            output = null;
+            fileOutput = null;
+        }
+    }
+
+    private DataOutputStream getOutput() throws IOException {
+        if (output == null) {
+            boolean exists = journalFile.exists() && journalFile.length() >= HEADER_SIZE;
+            fileOutput = new FileOutputStream(journalFile, exists);
+            output = new DataOutputStream(new BufferedOutputStream(fileOutput, 64 * 1024));
+            if (!exists) {
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                output.flush();
+            }
+        }
+        return output;
+    }
+
+    private static void writeRecord(DataOutputStream out, ByteArrayOutputStream record) throws IOException {
+        byte[] bytes = record.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        out.writeInt(bytes.length);
+        out.writeInt((int) crc.getValue());
+        out.write(bytes);
+    }
+
+    /**
+     * Hashes the persisted fields of a resource that are changed in place by the inventory manager, so changes to a
+     * resource can be detected without it having to notify anyone. Configurations are replaced rather than changed in
+     * place, so their identities are hashed rather than their contents.
+     *
+     * @return the fingerprint of the resource
+     */
+    static int fingerprint(Resource resource) {
+        Resource parent = resource.getParentResource();
+        int result = resource.getId();
+        result = (31 * result) + hashCode(resource.getUuid());
+        result = (31 * result) + hashCode(resource.getResourceKey());
+        result = (31 * result) + hashCode(resource.getName());
+        result = (31 * result) + hashCode(resource.getVersion());
+        result = (31 * result) + hashCode(resource.getDescription());
+        result = (31 * result) + hashCode(resource.getInventoryStatus());
+        result = (31 * result) + ((parent == null) ? 0 : hashCode(parent.getUuid()));
+        result = (31 * result) + System.identityHashCode(resource.getPluginConfiguration());
+        return result;
+    }
+
+    private static int hashCode(Object o) {
+        return (o == null) ? 0 : o.hashCode();
+    }
+
+    static PendingRecord removed(String uuid) {
+        return new PendingRecord(REMOVE, uuid, null);
+    }
+
+    static PendingRecord moved(String oldUuid, String newUuid) {
+        return new PendingRecord(MOVE, oldUuid, newUuid);
+    }
+
+    /**
+     * Applies the records of the journal that are newer than the snapshot to the inventory loaded from it. A record
+     * that cannot be read ends the replay and is cut off the journal, along with anything written after it.
+     *
+     * @param platform the platform loaded from the snapshot, <code>null</code> if there was no snapshot
+     * @param containers the resource containers loaded from the snapshot, keyed on UUID; the replayed changes are
+     *                   applied to this map
+     * @param snapshotSequence the sequence number of the last record contained in the snapshot
+     *
+     * @return the outcome of the replay
+     */
+    Replay replay(Resource platform, Map<String, ResourceContainer> containers, long snapshotSequence)
+        throws IOException {
+        Replay replay = new Replay(platform, containers, snapshotSequence);
+        if (!journalFile.exists()) {
+            return replay;
+        }
+
+        long validLength = HEADER_SIZE;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile), 64 * 1024));
+        try {
+            if (journalFile.length() < HEADER_SIZE || in.readInt() != MAGIC || in.readInt() != VERSION) {
+                log.warn("Ignoring inventory journal [" + journalFile + "] with an unknown format");
+                validLength = 0;
+            } else {
+                while (true) {
+                    byte[] record = readRecord(in);
+                    if (record == null) {
+                        break;
+                    }
+                    replay.apply(record);
+                    validLength += 8 + record.length;
+                }
+            }
+        } finally {
+            in.close();
+        }
+
+        if (validLength < journalFile.length()) {
+            log.warn("Dropping [" + (journalFile.length() - validLength) + "] bytes of incomplete records from the "
+                + "end of inventory journal [" + journalFile + "]");
+            RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+            try {
+                raf.setLength(validLength);
+            } finally {
+                raf.close();
+            }
+        }
+
+        this.sequence = Math.max(this.sequence, replay.sequence);
+        return replay;
+    }
+
+    private static byte[] readRecord(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            int crc = in.readInt();
+            if (length <= 0) {
+                return null;
+            }
+            byte[] record = new byte[length];
+            in.readFully(record);
+            CRC32 actual = new CRC32();
+            actual.update(record);
+            return ((int) actual.getValue() == crc) ? record : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A removal or UUID change that has not been written to the journal yet.
+     */
+    static class PendingRecord {
+        final byte type;
+        final String uuid;
+        final String newUuid;
+
+        PendingRecord(byte type, String uuid, String newUuid) {
+            this.type = type;
+            this.uuid = uuid;
+            this.newUuid = newUuid;
+        }
+    }
+
+    /**
+     * The inventory resulting from a replay.
+     */
+    static class Replay {
+        private Resource platform;
+        private final Map<String, ResourceContainer> containers;
+        private final long snapshotSequence;
+        private long sequence;
+        private int applied;
+
+        Replay(Resource platform, Map<String, ResourceContainer> containers, long snapshotSequence) {
+            this.platform = platform;
+            this.containers = containers;
+            this.snapshotSequence = snapshotSequence;
+            this.sequence = snapshotSequence;
+        }
+
+        Resource getPlatform() {
+            return platform;
+        }
+
+        /**
+         * @return the number of records that have been applied
+         */
+        int getApplied() {
+            return applied;
+        }
+
+        private void apply(byte[] record) throws IOException {
+            DataInputStream data = new DataInputStream(new ByteArrayInputStream(record));
+            long recordSequence = data.readLong();
+            if (recordSequence <= snapshotSequence) {
+                return;
+            }
+            sequence = Math.max(sequence, recordSequence);
+            applied++;
+
+            byte type = data.readByte();
+            String uuid = data.readUTF();
+            switch (type) {
+            case PUT:
+                String parentUuid = data.readUTF();
+                ContainerInputStream ois = new ContainerInputStream(new InflaterInputStream(data));
+                ResourceContainer container;
+                try {
+                    container = (ResourceContainer) ois.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("Cannot read inventory journal record: " + e);
+                }
+                put(uuid, parentUuid, container);
+                break;
+            case MOVE:
+                String newUuid = data.readUTF();
+                ResourceContainer moved = containers.remove(uuid);
+                if (moved != null) {
+                    containers.put(newUuid, moved);
+                }
+                break;
+            case REMOVE:
+                remove(uuid);
+                break;
+            default:
+                throw new IOException("Unknown inventory journal record type [" + type + "]");
+            }
+        }
+
+        private void put(String uuid, String parentUuid, ResourceContainer container) {
+            Resource resource = container.getResource();
+            Resource parent = null;
+            if (parentUuid.length() > 0) {
+                ResourceContainer parentContainer = containers.get(parentUuid);
+                if (parentContainer == null) {
+                    log.warn("Ignoring journaled resource [" + resource + "] - its parent is not in inventory");
+                    return;
+                }
+                parent = parentContainer.getResource();
+            }
+
+            // the children are not part of the record, they are taken over from the resource it replaces
+            Set<Resource> children = new CopyOnWriteArraySet<Resource>();
+            ResourceContainer existing = containers.get(uuid);
+            if (existing != null) {
+                Resource existingResource = existing.getResource();
+                children.addAll(existingResource.getChildResources());
+                if (existingResource.getParentResource() != null) {
+                    existingResource.getParentResource().getChildResources().remove(existingResource);
+                }
+            }
+            resource.setChildResources(children);
+            for (Resource child : children) {
+                child.setParentResourceWithoutAncestry(resource);
+            }
+
+            resource.setParentResourceWithoutAncestry(parent);
+            if (parent != null) {
+                parent.getChildResources().remove(resource);
+                parent.addChildResourceWithoutAncestry(resource);
+            } else {
+                platform = resource;
+            }
+            containers.put(uuid, container);
+        }
+
+        private void remove(String uuid) {
+            ResourceContainer container = containers.remove(uuid);
+            if (container == null) {
+                return;
+            }
+            Resource resource = container.getResource();
+            for (Resource child : new ArrayList<Resource>(resource.getChildResources())) {
+                remove(child.getUuid());
+            }
+            if (resource.getParentResource() != null) {
+                resource.getParentResource().getChildResources().remove(resource);
+            }
+            if (resource.equals(platform)) {
+                platform = null;
+            }
+        }
+    }
+
+    /**
+     * Stands in for a resource other than the one of the container being written.
+     */
+    private static class ResourceReference implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String uuid;
+
+        ResourceReference(String uuid) {
+            this.uuid = uuid;
+        }
+    }
+
+    private static class ContainerOutputStream extends ObjectOutputStream {
+        private final Resource resource;
+
+        ContainerOutputStream(OutputStream out, Resource resource) throws IOException {
+            super(out);
+            this.resource = resource;
+            enableReplaceObject(true);
+        }
+
+        @Override
+        protected Object replaceObject(Object obj) throws IOException {
+            if ((obj instanceof Resource) && (obj != resource)) {
+                return new ResourceReference(((Resource) obj).getUuid());
+            }
+            return obj;
+        }
+    }
+
+    private static class ContainerInputStream extends ObjectInputStream {
+        ContainerInputStream(InputStream in) throws IOException {
+            super(in);
+            enableResolveObject(true);
+        }
+
+        @Override
+        protected Object resolveObject(Object obj) throws IOException {
+            // the parent and children are reconnected after reading
+            return (obj instanceof ResourceReference) ? null : obj;
+        }
+    }
+}
@@ -24,10 +24,12 @@ import gnu.trove.map.TIntObjectMap;
 import gnu.trove.map.hash.TIntObjectHashMap;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -43,6 +45,8 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -163,6 +167,13 @@ public class InventoryManager extends AgentService implements ContainerService,
     private static final String INVENTORY_THREAD_POOL_NAME = "InventoryManager.discovery";
     private static final String AVAIL_THREAD_POOL_NAME = "InventoryManager.availability";
     private static final int AVAIL_THREAD_POOL_CORE_POOL_SIZE = 1;
+    private static final String AVAIL_SUBTREE_THREAD_POOL_NAME = "InventoryManager.availability-subtree";
+    private static final String JOURNAL_THREAD_POOL_NAME = "InventoryManager.journal";
+
+    private static final String INVENTORY_FILE_NAME = "inventory.dat";
+    private static final String INVENTORY_JOURNAL_FILE_NAME = "inventory.journal";
+    // the journal is compacted into a new inventory file once it is larger than the inventory file, or this
+    private static final long MIN_INVENTORY_JOURNAL_COMPACTION_SIZE = 1024L * 1024L;
 
     private static final int COMPONENT_START_TIMEOUT = 60 * 1000; // 60 seconds
     private static final int COMPONENT_STOP_TIMEOUT = 5 * 1000; // 5 seconds
@@ -184,6 +195,19 @@ public class InventoryManager extends AgentService implements ContainerService,
 
     private ScheduledThreadPoolExecutor inventoryThreadPoolExecutor;
     private ScheduledThreadPoolExecutor availabilityThreadPoolExecutor;
+    private ExecutorService availabilitySubtreeThreadPoolExecutor;
+    private ScheduledThreadPoolExecutor journalThreadPoolExecutor;
+
+    /**
+     * The journal of the inventory changes since the inventory file was written, only used inside the agent.
+     */
+    private InventoryJournal inventoryJournal;
+
+    /**
+     * The removed and renamed resources that have not been written to the journal yet.
+     */
+    private final List<InventoryJournal.PendingRecord> pendingJournalRecords =
+        new ArrayList<InventoryJournal.PendingRecord>();
 
     // The executors are Callable
     private final AutoDiscoveryExecutor serverScanExecutor;
@@ -304,6 +328,13 @@ public class InventoryManager extends AgentService implements ContainerService,
             availabilityThreadPoolExecutor = new ScheduledThreadPoolExecutor(AVAIL_THREAD_POOL_CORE_POOL_SIZE,
                 new LoggingThreadFactory(AVAIL_THREAD_POOL_NAME, true));
 
+            // The subtrees of the platform's top level resources are scanned concurrently within one avail check.
+            int availSubtreeThreadPoolSize = configuration.getAvailabilityScanSubtreeThreadPoolSize();
+            if (availSubtreeThreadPoolSize > 1) {
+                availabilitySubtreeThreadPoolExecutor = Executors.newFixedThreadPool(availSubtreeThreadPoolSize,
+                    new LoggingThreadFactory(AVAIL_SUBTREE_THREAD_POOL_NAME, true));
+            }
+
             // Never run more than one discovery scan at a time (service and service scans share the same pool).
             inventoryThreadPoolExecutor = new ScheduledThreadPoolExecutor(1, new LoggingThreadFactory(
                 INVENTORY_THREAD_POOL_NAME, true));
@@ -325,6 +356,19 @@ public class InventoryManager extends AgentService implements ContainerService,
                 inventoryThreadPoolExecutor.scheduleWithFixedDelay(serviceScanExecutor,
                     configuration.getServiceDiscoveryInitialDelay(), configuration.getServiceDiscoveryPeriod(),
                     TimeUnit.SECONDS);
+
+                // Periodically write the inventory changes to the journal (every 30s by default).
+                long journalPeriod = configuration.getInventoryJournalPeriod();
+                if (journalPeriod > 0) {
+                    journalThreadPoolExecutor = new ScheduledThreadPoolExecutor(1, new LoggingThreadFactory(
+                        JOURNAL_THREAD_POOL_NAME, true));
+                    journalThreadPoolExecutor.scheduleWithFixedDelay(new Runnable() {
+                        @Override
+                        public void run() {
+                            writeInventoryJournal();
+                        }
+                    }, journalPeriod, journalPeriod, TimeUnit.SECONDS);
+                }
             }
         } finally {
             inventoryLock.writeLock().unlock();
@@ -340,6 +384,12 @@ public class InventoryManager extends AgentService implements ContainerService,
     public void shutdown() {
         PluginContainer.shutdownExecutorService(this.inventoryThreadPoolExecutor, true);
         PluginContainer.shutdownExecutorService(this.availabilityThreadPoolExecutor, true);
+        if (this.availabilitySubtreeThreadPoolExecutor != null) {
+            PluginContainer.shutdownExecutorService(this.availabilitySubtreeThreadPoolExecutor, true);
+        }
+        if (this.journalThreadPoolExecutor != null) {
+            PluginContainer.shutdownExecutorService(this.journalThreadPoolExecutor, true);
+        }
         if (this.configuration.isInsideAgent()) {
             this.persistToDisk();
         }
@@ -1613,6 +1663,7 @@ public class InventoryManager extends AgentService implements ContainerService,
                 }
             } else {
                 this.resourceContainerByResourceId.remove(resource.getId());
+                addPendingJournalRecord(InventoryJournal.removed(resource.getUuid()));
             }
 
             // Notify InventoryEventListeners a Resource has been removed.
@@ -1699,6 +1750,14 @@ public class InventoryManager extends AgentService implements ContainerService,
         return this.agent;
     }
 
+    /**
+     * @return the executor that scans the subtrees of the platform's top level resources concurrently during an
+     * availability scan, or null if the subtrees are to be scanned by the thread running the scan
+     */
+    ExecutorService getAvailabilitySubtreeExecutor() {
+        return this.availabilitySubtreeThreadPoolExecutor;
+    }
+
     /**
      * Inject a new availability
      *
@@ -2464,19 +2523,23 @@ public class InventoryManager extends AgentService implements ContainerService,
     }
 
     /**
-     * Tries to load an existing inventory from the file data/inventory.dat
+     * Tries to load an existing inventory from the file data/inventory.dat and the changes journaled since it was
+     * written from the file data/inventory.journal
      */
     private void loadFromDisk() {
         this.inventoryLock.writeLock().lock();
 
         File file = null;
+        File journalFile = null;
         try {
-            file = new File(this.configuration.getDataDirectory(), "inventory.dat");
-            if (file.exists()) {
+            file = new File(this.configuration.getDataDirectory(), INVENTORY_FILE_NAME);
+            journalFile = new File(this.configuration.getDataDirectory(), INVENTORY_JOURNAL_FILE_NAME);
+            this.inventoryJournal = new InventoryJournal(journalFile, 0L);
+            if (file.exists() || journalFile.exists()) {
                 long start = System.currentTimeMillis();
                 log.info("Loading inventory from data file [" + file + "]...");
 
-                InventoryFile inventoryFile = new InventoryFile(file, this);
+                InventoryFile inventoryFile = new InventoryFile(file, this.inventoryJournal, this);
                 inventoryFile.loadInventory();
 
                 this.platform = inventoryFile.getPlatform();
@@ -2490,6 +2553,7 @@ public class InventoryManager extends AgentService implements ContainerService,
                     practiceSafeSets(resource);
                     this.resourceContainerByResourceId.put(resource.getId(), resourceContainer);
                     compactResource(resource);
+                    resourceContainer.setJournaled(InventoryJournal.fingerprint(resource));
                 }
 
                 log.info("Inventory with size [" + this.resourceContainersByUUID.size()
@@ -2502,6 +2566,13 @@ public class InventoryManager extends AgentService implements ContainerService,
             if (file != null) {
                 file.renameTo(new File(file.getAbsolutePath() + ".invalid")); // move it out of the way if we can, retain it for later analysis
             }
+            if (journalFile != null) {
+                if (this.inventoryJournal != null) {
+                    this.inventoryJournal.close();
+                }
+                journalFile.renameTo(new File(journalFile.getAbsolutePath() + ".invalid"));
+                this.inventoryJournal = new InventoryJournal(journalFile, 0L);
+            }
             log.error(
                 "Could not load inventory from data file. The agent has lost knowledge of its previous inventory - "
                     + "it will resync its inventory once it can reconnect with a server.", e);
@@ -2564,17 +2635,136 @@ public class InventoryManager extends AgentService implements ContainerService,
     private void persistToDisk() {
         try {
             deactivateResource(this.platform);
+            storeInventory();
+        } catch (Exception e) {
+            log.error("Could not persist inventory data to disk", e);
+        }
+    }
+
+    /**
+     * Writes the whole inventory to the inventory file and discards the journaled changes, which are contained in it.
+     */
+    private void storeInventory() throws IOException {
+        this.inventoryLock.readLock().lock();
+        try {
             File dataDir = this.configuration.getDataDirectory();
             if (!dataDir.exists()) {
                 if (!dataDir.mkdirs()) {
                     throw new RuntimeException("Failed to create data directory [" + dataDir + "].");
                 }
             }
-            File file = new File(dataDir, "inventory.dat");
+            File file = new File(dataDir, INVENTORY_FILE_NAME);
             InventoryFile inventoryFile = new InventoryFile(file, this);
-            inventoryFile.storeInventory(this.platform, this.resourceContainersByUUID);
-        } catch (Exception e) {
-            log.error("Could not persist inventory data to disk", e);
+            if (this.inventoryJournal == null) {
+                inventoryFile.storeInventory(this.platform, this.resourceContainersByUUID);
+                return;
+            }
+
+            // everything journaled so far, and everything pending, is part of the inventory file
+            synchronized (this.pendingJournalRecords) {
+                this.pendingJournalRecords.clear();
+            }
+            for (ResourceContainer container : this.resourceContainersByUUID.values()) {
+                container.setJournaled(InventoryJournal.fingerprint(container.getResource()));
+            }
+            inventoryFile.storeInventory(this.platform, this.resourceContainersByUUID,
+                this.inventoryJournal.getSequence());
+            this.inventoryJournal.reset();
+        } finally {
+            this.inventoryLock.readLock().unlock();
+        }
+    }
+
+    private void addPendingJournalRecord(InventoryJournal.PendingRecord record) {
+        if (this.inventoryJournal != null) {
+            synchronized (this.pendingJournalRecords) {
+                this.pendingJournalRecords.add(record);
+            }
+        }
+    }
+
+    /**
+     * Writes the resource containers that have changed since they were last written, and the resources that have been
+     * removed since, to the inventory journal. Once the journal has grown larger than the inventory file, the whole
+     * inventory is written to the inventory file instead and the journal is discarded.
+     */
+    void writeInventoryJournal() {
+        if (this.inventoryJournal == null) {
+            return;
+        }
+
+        // the write lock is held while resources are added, removed or merged, so their changes are written together
+        this.inventoryLock.readLock().lock();
+        try {
+            if (this.platform == null) {
+                return;
+            }
+
+            List<InventoryJournal.PendingRecord> pendingRecords;
+            synchronized (this.pendingJournalRecords) {
+                pendingRecords = new ArrayList<InventoryJournal.PendingRecord>(this.pendingJournalRecords);
+                this.pendingJournalRecords.clear();
+            }
+
+            final Map<ResourceContainer, Integer> depths = new HashMap<ResourceContainer, Integer>();
+            for (ResourceContainer container : this.resourceContainersByUUID.values()) {
+                Resource resource = container.getResource();
+                int fingerprint = InventoryJournal.fingerprint(resource);
+                if (container.isJournalDirty(fingerprint)) {
+                    container.setJournaled(fingerprint);
+                    int depth = 0;
+                    for (Resource parent = resource.getParentResource(); parent != null; parent = parent
+                        .getParentResource()) {
+                        depth++;
+                    }
+                    depths.put(container, depth);
+                }
+            }
+
+            // parents must be written before their children
+            List<ResourceContainer> changed = new ArrayList<ResourceContainer>(depths.keySet());
+            boolean written = false;
+            try {
+                Collections.sort(changed, new Comparator<ResourceContainer>() {
+                    @Override
+                    public int compare(ResourceContainer c1, ResourceContainer c2) {
+                        return depths.get(c1).compareTo(depths.get(c2));
+                    }
+                });
+                this.inventoryJournal.write(pendingRecords, changed);
+                written = true;
+            } catch (IOException e) {
+                log.warn("Could not write inventory changes to journal [" + this.inventoryJournal.getJournalFile()
+                    + "], will try again later: " + e);
+                return;
+            } finally {
+                // the containers were marked as journaled before they were written, whatever failed they have not been
+                if (!written) {
+                    synchronized (this.pendingJournalRecords) {
+                        this.pendingJournalRecords.addAll(0, pendingRecords);
+                    }
+                    for (ResourceContainer container : changed) {
+                        container.setJournalDirty();
+                    }
+                }
+            }
+
+            if (log.isDebugEnabled() && (!pendingRecords.isEmpty() || !changed.isEmpty())) {
+                log.debug("Journaled [" + changed.size() + "] changed and [" + pendingRecords.size()
+                    + "] removed or renamed resources");
+            }
+
+            File file = new File(this.configuration.getDataDirectory(), INVENTORY_FILE_NAME);
+            if (this.inventoryJournal.length() > Math.max(MIN_INVENTORY_JOURNAL_COMPACTION_SIZE, file.length())) {
+                long start = System.currentTimeMillis();
+                storeInventory();
+                log.info("Compacted inventory journal into data file [" + file + "] in ["
+                    + (System.currentTimeMillis() - start) + "ms]");
+            }
+        } catch (Throwable t) {
+            log.error("Could not journal inventory changes", t);
+        } finally {
+            this.inventoryLock.readLock().unlock();
         }
     }
 
@@ -3511,6 +3701,10 @@ public class InventoryManager extends AgentService implements ContainerService,
                     this.resourceContainerByResourceId.remove(existingResource.getId());
                     this.resourceContainersByUUID.put(resourceFromServer.getUuid().intern(), resourceContainer);
                     this.resourceContainerByResourceId.put(resourceFromServer.getId(), resourceContainer);
+                    if (!existingResource.getUuid().equals(resourceFromServer.getUuid())) {
+                        addPendingJournalRecord(InventoryJournal.moved(existingResource.getUuid(),
+                            resourceFromServer.getUuid()));
+                    }
                 } else {
                     log.error("No ResourceContainer found for existing " + existingResource + ".");
                     return;
@@ -127,6 +127,11 @@ public class ResourceContainer implements Serializable {
     private transient long availabilityScheduleTime;
     private transient AvailabilityProxy availabilityProxy;
 
+    // whether the non-transient fields have changed since the container was last written to the inventory journal;
+    // a new container has not been written yet, a deserialized one has just been read from disk
+    private transient volatile boolean journalDirty;
+    private transient int journaledResourceFingerprint;
+
     /**
      * Initialize the ResourceContainer's internals, such as its thread pools.
      *
@@ -155,6 +160,7 @@ public class ResourceContainer implements Serializable {
     public ResourceContainer(Resource resource, ClassLoader resourceClassLoader) {
         this.resource = resource;
         this.resourceClassLoader = resourceClassLoader;
+        this.journalDirty = true;
     }
 
     public Availability updateAvailability(AvailabilityType availabilityType) {
@@ -220,6 +226,7 @@ public class ResourceContainer implements Serializable {
     public void setInstalledPackages(Set<ResourcePackageDetails> installedPackages) {
         synchronized (this) {
             this.installedPackages = installedPackages;
+            this.journalDirty = true;
         }
     }
 
@@ -261,6 +268,7 @@ public class ResourceContainer implements Serializable {
     public void setMeasurementSchedule(Set<MeasurementScheduleRequest> measurementSchedule) {
         synchronized (this) {
             this.measurementSchedule = new THashSet<MeasurementScheduleRequest>(measurementSchedule);
+            this.journalDirty = true;
 
             // this should not happen but if it does, protect against it because it will sink the agent
             if (null != this.measurementSchedule) {
@@ -307,6 +315,7 @@ public class ResourceContainer implements Serializable {
     public void setAvailabilitySchedule(MeasurementScheduleRequest availabilitySchedule) {
         synchronized (this) {
             this.availabilitySchedule = availabilitySchedule;
+            this.journalDirty = true;
             // when the schedule is (re)set just 0 out the schedule time and it will get rescheduled on the
             // next avail execution.
             this.availabilityScheduleTime = 0;
@@ -375,6 +384,7 @@ public class ResourceContainer implements Serializable {
             }
             // first remove all the old versions of the measurement schedules
             this.measurementSchedule.removeAll(toBeRemoved);
+            this.journalDirty = true;
 
             // then add the new versions
             return this.measurementSchedule.addAll(measurementScheduleUpdate);
@@ -404,6 +414,7 @@ public class ResourceContainer implements Serializable {
                 driftDefinitions = new HashMap<String, DriftDefinition>(1);
             }
             driftDefinitions.put(d.getName(), d);
+            this.journalDirty = true;
         }
     }
 
@@ -411,6 +422,7 @@ public class ResourceContainer implements Serializable {
         synchronized (this) {
             if (driftDefinitions != null) {
                 driftDefinitions.remove(d.getName());
+                this.journalDirty = true;
 
                 if (driftDefinitions.isEmpty()) {
                     driftDefinitions = null;
@@ -440,9 +452,39 @@ public class ResourceContainer implements Serializable {
     public void setSynchronizationState(SynchronizationState synchronizationState) {
         synchronized (this) {
             this.synchronizationState = synchronizationState;
+            this.journalDirty = true;
         }
     }
 
+    /**
+     * Indicates if this container needs to be written to the inventory journal, because any of its persisted fields
+     * or those of its resource have changed since it was last written or read.
+     *
+     * @param resourceFingerprint the {@link InventoryJournal#fingerprint(Resource) fingerprint} of the resource
+     * @return true if the container has changed
+     */
+    boolean isJournalDirty(int resourceFingerprint) {
+        return this.journalDirty || (resourceFingerprint != this.journaledResourceFingerprint);
+    }
+
+    /**
+     * Marks this container as written to, or read from, the inventory journal. This must be called before the
+     * container is written, so that changes made while it is written are not lost.
+     *
+     * @param resourceFingerprint the {@link InventoryJournal#fingerprint(Resource) fingerprint} of the resource
+     */
+    void setJournaled(int resourceFingerprint) {
+        this.journalDirty = false;
+        this.journaledResourceFingerprint = resourceFingerprint;
+    }
+
+    /**
+     * Marks this container as changed, so it is written to the inventory journal again.
+     */
+    void setJournalDirty() {
+        this.journalDirty = true;
+    }
+
     public ClassLoader getResourceClassLoader() {
         return this.resourceClassLoader;
     }
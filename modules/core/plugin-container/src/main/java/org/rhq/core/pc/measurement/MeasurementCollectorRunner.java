@@ -23,7 +23,6 @@ import java.util.ArrayDeque;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Set;
-import java.util.concurrent.Callable;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -40,14 +39,18 @@ import org.rhq.core.pluginapi.measurement.MeasurementFacet;
 import org.rhq.core.util.exception.ThrowableUtil;
 
 /**
-* Executes the collection of measurements. Every call results in one new batch of measurements collected. Each batch is
-* limited to a single resource and the measurements that are due to be collected at that time.
+* Executes the collection of measurements. Every call collects one batch of measurements, which is limited to a single
+* resource and the measurements that are due to be collected at that time. Batches are collected concurrently by the
+* collector threads of the {@link MeasurementManager}, each batch by the threads of the plugin of its resource.
 *
 * @author Greg Hinkle
 */
-public class MeasurementCollectorRunner implements Callable<MeasurementReport>, Runnable {
+public class MeasurementCollectorRunner {
     private static final Log log = LogFactory.getLog(MeasurementCollectorRunner.class);
 
+    /** The least time a collection is given, however late it has started */
+    static final long MIN_COLLECTION_TIMEOUT = 5000L;
+
     private final MeasurementManager measurementManager;
 
     // this is only kept when in debug mode to help figure out which metrics are slowing things down.
@@ -57,7 +60,14 @@ public class MeasurementCollectorRunner implements Callable<MeasurementReport>,
         this.measurementManager = measurementManager;
     }
 
-    public MeasurementReport call() {
+    /**
+     * Collects the given batch of measurements into the active report and reschedules them.
+     *
+     * @param requests measurements of a single resource that are due to be collected at the same time
+     *
+     * @return the report the measurements have been collected into
+     */
+    public MeasurementReport collect(Set<ScheduledMeasurementInfo> requests) {
         MeasurementReport report = null;
         try {
             this.measurementManager.getLock().readLock().lock();
@@ -67,54 +77,62 @@ public class MeasurementCollectorRunner implements Callable<MeasurementReport>,
 
             InventoryManager im = this.measurementManager.getInventoryManager();
 
-            Set<ScheduledMeasurementInfo> requests = this.measurementManager.getNextScheduledSet();
+            ScheduledMeasurementInfo next = requests.iterator().next();
 
-            if (requests != null) {
-                ScheduledMeasurementInfo next = requests.iterator().next();
+            Integer resourceId = next.getResourceId();
+            ResourceContainer container = im.getResourceContainer(resourceId);
+            if (container == null) {
+                // the resource has been removed from inventory in the meantime, which unscheduled its measurements
+                if (log.isDebugEnabled()) {
+                    log.debug("Measurements not collected for removed resource [" + resourceId + "]");
+                }
+                return report;
+            }
+            String plugin = container.getResource().getResourceType().getPlugin();
 
-                if ((System.currentTimeMillis() - 30000L) > next.getNextCollection()) {
-                    this.measurementManager.incrementLateCollections(requests.size());
-                    if (log.isDebugEnabled()) {
-                        log.debug("Measurement collection is falling behind... Missed requested time by ["
-                            + (System.currentTimeMillis() - requests.iterator().next().getNextCollection()) + "ms]");
+            if ((System.currentTimeMillis() - 30000L) > next.getNextCollection()) {
+                this.measurementManager.incrementLateCollections(plugin, requests.size());
+                if (log.isDebugEnabled()) {
+                    log.debug("Measurement collection is falling behind... Missed requested time by ["
+                        + (System.currentTimeMillis() - next.getNextCollection()) + "ms]");
 
+                    synchronized (scheduleHistory) {
                         if (!scheduleHistory.isEmpty()) {
                             log.debug("The most recent measurement requests prior to this detected delay: "
                                 + scheduleHistory);
                         }
                     }
-
-                    // BZ 834019 - reschedule these requests for the future, and away from the set of requests on this schedule
-                    this.measurementManager.rescheduleLateCollections(requests);
-                    return report;
                 }
 
-                Integer resourceId = next.getResourceId();
-                ResourceContainer container = im.getResourceContainer(resourceId);
-                if (container.getResourceComponentState() != ResourceContainer.ResourceComponentState.STARTED
-                    || container.getAvailability() == null
-                    || container.getAvailability().getAvailabilityType() == AvailabilityType.DOWN) {
-                    // Don't collect metrics for resources that are down
-                    if (log.isDebugEnabled()) {
-                        log.debug("Measurements not collected for inactive resource component: "
-                            + container.getResource());
-                    }
-                } else {
-                    MeasurementFacet measurementComponent = ComponentUtil
-                        .getComponent(resourceId, MeasurementFacet.class, FacetLockType.READ,
-                            MeasurementManager.FACET_METHOD_TIMEOUT, true, true, true);
+                // BZ 834019 - reschedule these requests for the future, and away from the set of requests on this schedule
+                this.measurementManager.rescheduleLateCollections(requests);
+                return report;
+            }
+
+            if (container.getResourceComponentState() != ResourceContainer.ResourceComponentState.STARTED
+                || container.getAvailability() == null
+                || container.getAvailability().getAvailabilityType() == AvailabilityType.DOWN) {
+                // Don't collect metrics for resources that are down
+                if (log.isDebugEnabled()) {
+                    log.debug("Measurements not collected for inactive resource component: "
+                        + container.getResource());
+                }
+            } else {
+                MeasurementFacet measurementComponent = ComponentUtil.getComponent(resourceId,
+                    MeasurementFacet.class, FacetLockType.READ, getCollectionTimeout(requests), true, true, true);
 
-                    if (log.isDebugEnabled()) {
+                if (log.isDebugEnabled()) {
+                    synchronized (scheduleHistory) {
                         scheduleHistory.addRequests(requests);
                     }
-
-                    getValues(measurementComponent, report, requests, container.getResource());
                 }
 
-                this.measurementManager.reschedule(requests);
-
-                report.incrementCollectionTime(System.currentTimeMillis() - start);
+                getValues(measurementComponent, report, requests, container.getResource(), plugin);
             }
+
+            this.measurementManager.reschedule(requests);
+
+            report.incrementCollectionTime(System.currentTimeMillis() - start);
         } catch (Throwable t) {
             log.error("Failed to run measurement collection", t);
         } finally {
@@ -124,8 +142,23 @@ public class MeasurementCollectorRunner implements Callable<MeasurementReport>,
         return report;
     }
 
+    /**
+     * A collection that is still running when the measurements are due again is of no use, so it is given no more time
+     * than is left until then, though at least {@link #MIN_COLLECTION_TIMEOUT}.
+     *
+     * @return the time, in milliseconds, the collection of the given batch is given before it is cancelled
+     */
+    static long getCollectionTimeout(Set<ScheduledMeasurementInfo> requests) {
+        long deadline = Long.MAX_VALUE;
+        for (ScheduledMeasurementInfo request : requests) {
+            deadline = Math.min(deadline, request.getNextCollection() + request.getInterval());
+        }
+        long timeout = Math.min(MeasurementManager.FACET_METHOD_TIMEOUT, deadline - System.currentTimeMillis());
+        return Math.max(MIN_COLLECTION_TIMEOUT, timeout);
+    }
+
     private void getValues(MeasurementFacet measurementComponent, MeasurementReport report,
-        Set<? extends MeasurementScheduleRequest> requests, Resource resource) {
+        Set<? extends MeasurementScheduleRequest> requests, Resource resource, String plugin) {
         try {
             long start = System.currentTimeMillis();
             measurementComponent.getValues(report, Collections.unmodifiableSet(requests));
@@ -139,7 +172,7 @@ public class MeasurementCollectorRunner implements Callable<MeasurementReport>,
                 log.info(message);
             }
         } catch (Throwable t) {
-            this.measurementManager.incrementFailedCollections(requests.size());
+            this.measurementManager.incrementFailedCollections(plugin, requests.size());
             if (log.isDebugEnabled()) {
                 log.warn("Failure to collect measurement data for " + resource + ", requests=" + requests
                     + ", report.size()=" + report.getDataCount(), t);
@@ -150,14 +183,6 @@ public class MeasurementCollectorRunner implements Callable<MeasurementReport>,
         }
     }
 
-    public void run() {
-        try {
-            call();
-        } catch (Exception e) {
-            log.error("Could not get measurement report.", e);
-        }
-    }
-
     private static class ScheduleHistory extends ArrayDeque<String> {
         private static final long serialVersionUID = 1L;
         private static final int HISTORY_SIZE;
@@ -25,10 +25,13 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
@@ -86,9 +89,16 @@ public class MeasurementManager extends AgentService implements MeasurementAgent
 
     static final int FACET_METHOD_TIMEOUT = 30 * 1000; // 30 seconds
 
+    // the resolution of the collection times and the number of slots of the schedule wheel, about 17 minutes worth
+    private static final long SCHEDULE_TICK_MILLIS = 1000L;
+    private static final int SCHEDULE_WHEEL_SIZE = 1024;
+
     static final Log LOG = LogFactory.getLog(MeasurementManager.class);
 
     private final ScheduledThreadPoolExecutor collectorThreadPool;
+    private final ConcurrentMap<String, PluginCollectorPool> pluginCollectorPools =
+        new ConcurrentHashMap<String, PluginCollectorPool>();
+    private final int pluginCollectorThreadPoolSize;
     private final ScheduledThreadPoolExecutor senderThreadPool;
 
     private final MeasurementSenderRunner measurementSenderRunner;
@@ -96,8 +106,8 @@ public class MeasurementManager extends AgentService implements MeasurementAgent
 
     private final PluginContainerConfiguration configuration;
 
-    private final PriorityQueue<ScheduledMeasurementInfo> scheduledRequests = new PriorityQueue<ScheduledMeasurementInfo>(
-        10000);
+    private final MeasurementScheduleWheel scheduledRequests = new MeasurementScheduleWheel(SCHEDULE_TICK_MILLIS,
+        SCHEDULE_WHEEL_SIZE, System.currentTimeMillis());
 
     private final InventoryManager inventoryManager;
 
@@ -117,6 +127,10 @@ public class MeasurementManager extends AgentService implements MeasurementAgent
 
     private final AtomicLong lateCollections = new AtomicLong(0);
     private final AtomicLong failedCollection = new AtomicLong(0);
+    private final ConcurrentMap<String, AtomicLong> lateCollectionsPerPlugin =
+        new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, AtomicLong> failedCollectionsPerPlugin =
+        new ConcurrentHashMap<String, AtomicLong>();
 
     public MeasurementManager(PluginContainerConfiguration configuration, AgentServiceStreamRemoter streamRemoter,
         InventoryManager inventoryManager) {
@@ -127,8 +141,9 @@ public class MeasurementManager extends AgentService implements MeasurementAgent
         this.inventoryManager = inventoryManager;
 
         if (configuration.isInsideAgent()) {
-            int threadPoolSize = configuration.getMeasurementCollectionThreadPoolSize();
-            collectorThreadPool = new ScheduledThreadPoolExecutor(threadPoolSize, new LoggingThreadFactory(
+            // the collector thread only dispatches the batches, they are collected by the threads of their plugins
+            pluginCollectorThreadPoolSize = configuration.getMeasurementCollectionThreadPoolSize();
+            collectorThreadPool = new ScheduledThreadPoolExecutor(1, new LoggingThreadFactory(
                 COLLECTOR_THREAD_POOL_NAME, true));
             senderThreadPool = new ScheduledThreadPoolExecutor(2, new LoggingThreadFactory(SENDER_THREAD_POOL_NAME,
                 true));
@@ -137,6 +152,7 @@ public class MeasurementManager extends AgentService implements MeasurementAgent
         } else {
             senderThreadPool = null;
             collectorThreadPool = null;
+            pluginCollectorThreadPoolSize = 0;
             measurementSenderRunner = null;
             measurementCollectorRunner = null;
         }
@@ -160,10 +176,9 @@ public class MeasurementManager extends AgentService implements MeasurementAgent
             // Schedule the measurement sender to send measurement reports periodically.
             senderThreadPool.scheduleAtFixedRate(measurementSenderRunner, collectionInitialDelaySecs, 30,
                 TimeUnit.SECONDS);
-            // Schedule the measurement collector to collect metrics periodically, whenever there are one or more
-            // metrics due to be collected.
-            collectorThreadPool.schedule(new MeasurementCollectionRequester(), collectionInitialDelaySecs,
-                TimeUnit.SECONDS);
+            // Advance the schedule wheel every tick and hand the batches that are due to the collector threads.
+            collectorThreadPool.scheduleWithFixedDelay(new MeasurementCollectionRequester(),
+                collectionInitialDelaySecs * 1000L, SCHEDULE_TICK_MILLIS, TimeUnit.MILLISECONDS);
 
             // Load persistent measurement schedules from the InventoryManager and reconstitute them.
             Resource platform = inventoryManager.getPlatform();
@@ -176,37 +191,50 @@ public class MeasurementManager extends AgentService implements MeasurementAgent
         LOG.info("Measurement Manager initialized.");
     }
 
+    /**
+     * Takes the batches that are due from the schedule wheel and queues each of them with the collector threads of the
+     * plugin of its resource. It runs once per tick; a tick that is missed is caught up on the next run.
+     */
     class MeasurementCollectionRequester implements Runnable {
         @Override
         public void run() {
             try {
-                while (!collectorThreadPool.isShutdown()) {
-                    long next = getNextExpectedCollectionTime();
-                    if (next == Long.MIN_VALUE) {
-                        Thread.sleep(10000);
-                    } else {
-                        long delay = next - System.currentTimeMillis();
-                        if (delay <= 0) {
-                            //                  collectorThreadPool.execute(measurementCollectorRunner);
-                            measurementCollectorRunner.call();
-                        } else {
-                            if (!collectorThreadPool.isShutdown()) {
-                                Thread.sleep(delay);
-                            }
+                for (final Set<ScheduledMeasurementInfo> batch : getNextScheduledSets()) {
+                    Runnable collection = new Runnable() {
+                        @Override
+                        public void run() {
+                            measurementCollectorRunner.collect(batch);
                         }
+                    };
+                    ScheduledMeasurementInfo next = batch.iterator().next();
+                    ResourceContainer container = inventoryManager.getResourceContainer(next.getResourceId());
+                    if (container == null) {
+                        // the resource is gone, the collector only needs to drop the batch
+                        collection.run();
+                    } else {
+                        String plugin = container.getResource().getResourceType().getPlugin();
+                        getPluginCollectorPool(plugin).execute(collection, next.getNextCollection());
                     }
                 }
-            } catch (InterruptedException e) {
-                // Log nothing - if we got interrupted, it's probably because the PC is shutting down.
-                Thread.currentThread().interrupt();
+            } catch (RejectedExecutionException e) {
+                // Log nothing - the collector thread pool is shutting down.
             } catch (Throwable e) {
-                LOG.error("Measurement collection shutting down due to error", e);
-            } finally {
-                LOG.info("Shutting down measurement collection...");
+                // do not let the exception cancel the periodic execution
+                LOG.error("Failed to dispatch measurement collections", e);
             }
         }
     }
 
+    private PluginCollectorPool getPluginCollectorPool(String plugin) {
+        PluginCollectorPool pool = this.pluginCollectorPools.get(plugin);
+        if (pool == null) {
+            // only the collection requester creates pools, there is no race
+            pool = new PluginCollectorPool(COLLECTOR_THREAD_POOL_NAME + "." + plugin, pluginCollectorThreadPoolSize);
+            this.pluginCollectorPools.put(plugin, pool);
+        }
+        return pool;
+    }
+
     private void reschedule(Resource resource) {
         if (LOG.isDebugEnabled()) {
             LOG.debug("In Reschedule for: " + resource);
@@ -301,6 +329,9 @@ public class MeasurementManager extends AgentService implements MeasurementAgent
         if (this.collectorThreadPool != null) {
             LOG.debug("Shutting down measurement collector thread pool...");
             PluginContainer.shutdownExecutorService(this.collectorThreadPool, true);
+            for (PluginCollectorPool pool : this.pluginCollectorPools.values()) {
+                PluginContainer.shutdownExecutorService(pool.getExecutor(), true);
+            }
         }
 
         if (this.senderThreadPool != null) {
@@ -328,7 +359,7 @@ public class MeasurementManager extends AgentService implements MeasurementAgent
      * @param scheduleRequests
      */
     @Override
-    public synchronized void updateCollection(Set<ResourceMeasurementScheduleRequest> scheduleRequests) {
+    public void updateCollection(Set<ResourceMeasurementScheduleRequest> scheduleRequests) {
         for (ResourceMeasurementScheduleRequest resourceRequest : scheduleRequests) {
             ResourceContainer resourceContainer = inventoryManager.getResourceContainer(resourceRequest.getResourceId());
             if (resourceContainer != null) {
@@ -349,12 +380,6 @@ public class MeasurementManager extends AgentService implements MeasurementAgent
                     + resourceRequest.getResourceId());
             }
         }
-
-        // TODO GH: Should I kick the pool or should I just go with the 30 second granularity on collections?
-        // If I get much more granular then the server could end up with too many small reports from many agents
-        // This may be another reason to have a separate sending mechanism from the collection mechanism.
-        clearDuplicateSchedules();
-
     }
 
     /**
@@ -367,7 +392,7 @@ public class MeasurementManager extends AgentService implements MeasurementAgent
      * @param scheduleRequests
      */
     @Override
-    public synchronized void scheduleCollection(Set<ResourceMeasurementScheduleRequest> scheduleRequests) {
+    public void scheduleCollection(Set<ResourceMeasurementScheduleRequest> scheduleRequests) {
         for (ResourceMeasurementScheduleRequest resourceRequest : scheduleRequests) {
             ResourceContainer resourceContainer = inventoryManager.getResourceContainer(resourceRequest.getResourceId());
             if (resourceContainer != null) {
@@ -386,11 +411,6 @@ public class MeasurementManager extends AgentService implements MeasurementAgent
                     + resourceRequest.getResourceId());
             }
         }
-
-        // TODO GH: Should I kick the pool or should I just go with the 30 second granularity on collections?
-        // If I get much more granular then the server could end up with too many small reports from many agents
-        // This may be another reason to have a separate sending mechanism from the collection mechanism.
-        clearDuplicateSchedules();
     }
 
     /**
@@ -399,7 +419,7 @@ public class MeasurementManager extends AgentService implements MeasurementAgent
      * @param resourceId The resource to collect on
      * @param requests   The measurements to collect
      */
-    public synchronized void scheduleCollection(int resourceId, Set<MeasurementScheduleRequest> requests) {
+    public void scheduleCollection(int resourceId, Set<MeasurementScheduleRequest> requests) {
         // This ensures that all the schedules for a single resource start at the same time
         // This will enable them to be collected at the same time
         long firstCollection = System.currentTimeMillis();
@@ -415,38 +435,14 @@ public class MeasurementManager extends AgentService implements MeasurementAgent
 
             info.setNextCollection(firstCollection);
 
-            this.scheduledRequests.remove(info);
-
-            // Don't add it if collection is disabled for this resource
-            if (info.isEnabled()) {
-                this.scheduledRequests.offer(info);
-            }
+            // This replaces the existing schedule with the same id, and only removes it if collection is disabled
+            this.scheduledRequests.schedule(info);
         }
     }
 
     @Override
-    public synchronized void unscheduleCollection(Set<Integer> resourceIds) {
-        Iterator<ScheduledMeasurementInfo> itr = this.scheduledRequests.iterator();
-        while (itr.hasNext()) {
-            ScheduledMeasurementInfo info = itr.next();
-            if (resourceIds.contains(info.getResourceId())) {
-                itr.remove();
-            }
-        }
-    }
-
-    private void clearDuplicateSchedules() {
-        HashSet<Integer> set = new HashSet<Integer>(this.scheduledRequests.size());
-        Iterator<ScheduledMeasurementInfo> iter = this.scheduledRequests.iterator();
-        while (iter.hasNext()) {
-            ScheduledMeasurementInfo info = iter.next();
-            if (set.contains(info.getScheduleId())) {
-                LOG.debug("Found duplicate schedule - will remove it: " + info);
-                iter.remove();
-            } else {
-                set.add(info.getScheduleId());
-            }
-        }
+    public void unscheduleCollection(Set<Integer> resourceIds) {
+        this.scheduledRequests.unschedule(resourceIds);
     }
 
     // spinder 12/16/11. BZ 760139. Modified to return empty sets instead of 'null' even for erroneous conditions.
@@ -509,35 +505,18 @@ public class MeasurementManager extends AgentService implements MeasurementAgent
 
     @Override
     public long getNextExpectedCollectionTime() {
-        ScheduledMeasurementInfo nextScheduledMeasurement = this.scheduledRequests.peek();
-        if (nextScheduledMeasurement == null) {
-            return Long.MIN_VALUE;
-        } else {
-            return nextScheduledMeasurement.getNextCollection();
-        }
+        return this.scheduledRequests.getNextCollection();
     }
 
     /**
-     * Returns the complete set of scheduled measurement collections.
+     * Takes the measurement collections that are due. Each set holds the measurements of a single resource that are
+     * due to be collected at the same time. The measurements are out of the schedule until they are
+     * {@link #reschedule(Set) rescheduled}.
      *
-     * @return all measurement schedules
+     * @return the due measurement collections, empty if there are none
      */
-    public synchronized Set<ScheduledMeasurementInfo> getNextScheduledSet() {
-        ScheduledMeasurementInfo first = this.scheduledRequests.peek();
-        if ((first == null) || (first.getNextCollection() > System.currentTimeMillis())) {
-            return null;
-        }
-
-        Set<ScheduledMeasurementInfo> nextScheduledSet = new HashSet<ScheduledMeasurementInfo>();
-
-        ScheduledMeasurementInfo next = this.scheduledRequests.peek();
-        while ((next != null) && (next.getResourceId() == first.getResourceId())
-            && (next.getNextCollection() == first.getNextCollection())) {
-            nextScheduledSet.add(this.scheduledRequests.poll());
-            next = this.scheduledRequests.peek();
-        }
-
-        return nextScheduledSet;
+    List<Set<ScheduledMeasurementInfo>> getNextScheduledSets() {
+        return this.scheduledRequests.advance(System.currentTimeMillis());
     }
 
     /**
@@ -547,12 +526,12 @@ public class MeasurementManager extends AgentService implements MeasurementAgent
      *
      * @param scheduledMeasurementInfos the schedules to reschedule
      */
-    public synchronized void reschedule(Set<ScheduledMeasurementInfo> scheduledMeasurementInfos) {
+    public void reschedule(Set<ScheduledMeasurementInfo> scheduledMeasurementInfos) {
 
         for (ScheduledMeasurementInfo scheduledMeasurement : scheduledMeasurementInfos) {
             long interval = scheduledMeasurement.getInterval();
             scheduledMeasurement.setNextCollection(scheduledMeasurement.getNextCollection() + interval);
-            this.scheduledRequests.offer(scheduledMeasurement);
+            this.scheduledRequests.reschedule(scheduledMeasurement);
         }
     }
 
@@ -569,7 +548,7 @@ public class MeasurementManager extends AgentService implements MeasurementAgent
      *
      * @param scheduledMeasurementInfos the late schedules to reschedule
      */
-    synchronized void rescheduleLateCollections(Set<ScheduledMeasurementInfo> scheduledMeasurementInfos) {
+    void rescheduleLateCollections(Set<ScheduledMeasurementInfo> scheduledMeasurementInfos) {
 
         if (LOG.isDebugEnabled()) {
             LOG.debug("Rescheduling [" + scheduledMeasurementInfos.size() + "] late collections: "
@@ -595,7 +574,7 @@ public class MeasurementManager extends AgentService implements MeasurementAgent
             }
 
             scheduledMeasurement.setNextCollection(nextCollection);
-            this.scheduledRequests.offer(scheduledMeasurement);
+            this.scheduledRequests.reschedule(scheduledMeasurement);
         }
     }
 
@@ -643,7 +622,7 @@ public class MeasurementManager extends AgentService implements MeasurementAgent
     public Map<String, Object> getMeasurementScheduleInfoForResource(int resourceId) {
         Map<String, Object> results = null;
 
-        for (ScheduledMeasurementInfo info : new PriorityQueue<ScheduledMeasurementInfo>(scheduledRequests)) {
+        for (ScheduledMeasurementInfo info : scheduledRequests.getSchedules()) {
             if (info.getResourceId() == resourceId) {
                 if (results == null) {
                     results = new HashMap<String, Object>();
@@ -773,12 +752,14 @@ public class MeasurementManager extends AgentService implements MeasurementAgent
         }
     }
 
-    void incrementLateCollections(int count) {
+    void incrementLateCollections(String plugin, int count) {
         this.lateCollections.addAndGet(count);
+        increment(this.lateCollectionsPerPlugin, plugin, count);
     }
 
-    void incrementFailedCollections(int count) {
+    void incrementFailedCollections(String plugin, int count) {
         this.failedCollection.addAndGet(count);
+        increment(this.failedCollectionsPerPlugin, plugin, count);
     }
 
     @Override
@@ -786,6 +767,60 @@ public class MeasurementManager extends AgentService implements MeasurementAgent
         return failedCollection.get();
     }
 
+    @Override
+    public Map<String, Long> getLateCollectionsPerPlugin() {
+        return toMap(lateCollectionsPerPlugin);
+    }
+
+    @Override
+    public Map<String, Long> getFailedCollectionsPerPlugin() {
+        return toMap(failedCollectionsPerPlugin);
+    }
+
+    /**
+     * @return the number of batches of measurements waiting for a collector thread by the name of the plugin of the
+     * resources
+     */
+    public Map<String, Integer> getQueuedCollectionsPerPlugin() {
+        Map<String, Integer> map = new HashMap<String, Integer>(this.pluginCollectorPools.size());
+        for (Map.Entry<String, PluginCollectorPool> entry : this.pluginCollectorPools.entrySet()) {
+            map.put(entry.getKey(), entry.getValue().getQueueDepth());
+        }
+        return map;
+    }
+
+    /**
+     * @return the average time, in milliseconds, from the time a batch of measurements was due until its collection
+     * was done by the name of the plugin of the resources
+     */
+    public Map<String, Long> getCollectionLatencyPerPlugin() {
+        Map<String, Long> map = new HashMap<String, Long>(this.pluginCollectorPools.size());
+        for (Map.Entry<String, PluginCollectorPool> entry : this.pluginCollectorPools.entrySet()) {
+            map.put(entry.getKey(), entry.getValue().getAverageLatency());
+        }
+        return map;
+    }
+
+    private static void increment(ConcurrentMap<String, AtomicLong> counters, String plugin, int count) {
+        AtomicLong counter = counters.get(plugin);
+        if (counter == null) {
+            AtomicLong newCounter = new AtomicLong();
+            counter = counters.putIfAbsent(plugin, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        counter.addAndGet(count);
+    }
+
+    private static Map<String, Long> toMap(Map<String, AtomicLong> counters) {
+        Map<String, Long> map = new HashMap<String, Long>(counters.size());
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            map.put(entry.getKey(), entry.getValue().get());
+        }
+        return map;
+    }
+
     private static class CachedValue {
         CachedValue(long timestamp, double value) {
             this.timestamp = timestamp;
@@ -22,6 +22,8 @@
   */
 package org.rhq.core.pc.measurement;
 
+import java.util.Map;
+
 /**
  * @author Greg Hinkle
  */
@@ -39,4 +41,14 @@ public interface MeasurementManagerMBean {
     long getLateCollections();
 
     long getFailedCollections();
+
+    /**
+     * @return the number of late collections by the name of the plugin of the resources
+     */
+    Map<String, Long> getLateCollectionsPerPlugin();
+
+    /**
+     * @return the number of failed collections by the name of the plugin of the resources
+     */
+    Map<String, Long> getFailedCollectionsPerPlugin();
 }
\ No newline at end of file
@@ -0,0 +1,241 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2014 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+package org.rhq.core.pc.measurement;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A hashed timer wheel holding the measurement schedules of the plugin container. Time is divided into ticks and every
+ * tick maps to one of a fixed number of slots. A schedule is put into the slot of the tick its next collection falls
+ * in; schedules due more than one revolution of the wheel ahead share the slot and are simply skipped until their
+ * tick comes up. Every slot has its own lock, so scheduling and rescheduling do not contend with each other or with
+ * {@link #advance(long)} other than when they hit the same slot.
+ * <p>
+ * Schedules are grouped into batches of the same resource and collection time, the unit of work of the
+ * {@link MeasurementCollectorRunner}. The schedule currently in effect for a schedule id is kept in an index. Replaced
+ * and removed schedules are not searched for in the slots, they are dropped when their tick comes up.
+ * </p>
+ * {@link #advance(long)} must only be called by one thread at a time.
+ */
+class MeasurementScheduleWheel {
+
+    private final long tickMillis;
+
+    private final Slot[] slots;
+
+    private final ConcurrentMap<Integer, ScheduledMeasurementInfo> schedules =
+        new ConcurrentHashMap<Integer, ScheduledMeasurementInfo>();
+
+    /** The last tick whose schedules have been taken */
+    private volatile long currentTick;
+
+    /**
+     * @param tickMillis The duration of a tick, the resolution of the collection times
+     * @param wheelSize The number of slots, rounded up to a power of two
+     * @param now The current time, the wheel starts with the tick that contains it
+     */
+    MeasurementScheduleWheel(long tickMillis, int wheelSize, long now) {
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.tickMillis = tickMillis;
+        this.slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            this.slots[i] = new Slot();
+        }
+        this.currentTick = (now / tickMillis) - 1;
+    }
+
+    /**
+     * Adds the schedule, replacing the one with the same schedule id, if any. A disabled schedule only removes the
+     * one it replaces.
+     */
+    void schedule(ScheduledMeasurementInfo info) {
+        if (!info.isEnabled()) {
+            schedules.remove(info.getScheduleId());
+            return;
+        }
+        schedules.put(info.getScheduleId(), info);
+        add(info);
+    }
+
+    /**
+     * Puts a schedule that has been taken from the wheel back in at its new collection time, unless it has been
+     * replaced or removed in the meantime.
+     *
+     * @return false if the schedule is no longer in effect
+     */
+    boolean reschedule(ScheduledMeasurementInfo info) {
+        if (schedules.get(info.getScheduleId()) != info) {
+            return false;
+        }
+        add(info);
+        return true;
+    }
+
+    /**
+     * Removes the schedules of the given resources.
+     */
+    void unschedule(Set<Integer> resourceIds) {
+        Iterator<ScheduledMeasurementInfo> iter = schedules.values().iterator();
+        while (iter.hasNext()) {
+            if (resourceIds.contains(iter.next().getResourceId())) {
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Takes the batches of all of the ticks that have fully elapsed at the given time.
+     *
+     * @return The due batches, each holding the schedules of one resource with the same collection time
+     */
+    List<Set<ScheduledMeasurementInfo>> advance(long now) {
+        List<Set<ScheduledMeasurementInfo>> due = new ArrayList<Set<ScheduledMeasurementInfo>>();
+        long tick = currentTick;
+        while (((tick + 2) * tickMillis) <= now) {
+            tick++;
+            // publish the tick before taking its slot, so that a schedule that is added concurrently either makes it
+            // into the slot in time or goes to a later tick
+            currentTick = tick;
+            slots[slotIndex(tick)].take(tick, ((tick + 1) * tickMillis) - 1, due);
+        }
+
+        for (Set<ScheduledMeasurementInfo> batch : due) {
+            Iterator<ScheduledMeasurementInfo> iter = batch.iterator();
+            while (iter.hasNext()) {
+                ScheduledMeasurementInfo info = iter.next();
+                if (schedules.get(info.getScheduleId()) != info) {
+                    iter.remove();
+                }
+            }
+        }
+        for (Iterator<Set<ScheduledMeasurementInfo>> iter = due.iterator(); iter.hasNext();) {
+            if (iter.next().isEmpty()) {
+                iter.remove();
+            }
+        }
+        return due;
+    }
+
+    /**
+     * @return The earliest collection time of all schedules, or {@link Long#MIN_VALUE} if there are none. This looks
+     * at every schedule and is not meant to be called for every collection.
+     */
+    long getNextCollection() {
+        long next = Long.MAX_VALUE;
+        for (ScheduledMeasurementInfo info : schedules.values()) {
+            next = Math.min(next, info.getNextCollection());
+        }
+        return (next == Long.MAX_VALUE) ? Long.MIN_VALUE : next;
+    }
+
+    int size() {
+        return schedules.size();
+    }
+
+    Collection<ScheduledMeasurementInfo> getSchedules() {
+        return schedules.values();
+    }
+
+    private void add(ScheduledMeasurementInfo info) {
+        long tick = info.getNextCollection() / tickMillis;
+        while (true) {
+            // a collection time in a tick that has been taken already goes to the next one
+            long target = Math.max(tick, currentTick + 1);
+            if (slots[slotIndex(target)].add(info, target)) {
+                return;
+            }
+        }
+    }
+
+    private int slotIndex(long tick) {
+        return (int) (tick & (slots.length - 1));
+    }
+
+    private static class Slot {
+        private final Map<BatchKey, Set<ScheduledMeasurementInfo>> batches =
+            new HashMap<BatchKey, Set<ScheduledMeasurementInfo>>();
+        private long takenTick = Long.MIN_VALUE;
+
+        /**
+         * @return false if the tick has been taken already
+         */
+        synchronized boolean add(ScheduledMeasurementInfo info, long tick) {
+            if (tick <= takenTick) {
+                return false;
+            }
+            BatchKey key = new BatchKey(info.getResourceId(), info.getNextCollection());
+            Set<ScheduledMeasurementInfo> batch = batches.get(key);
+            if (batch == null) {
+                batch = new HashSet<ScheduledMeasurementInfo>();
+                batches.put(key, batch);
+            }
+            batch.add(info);
+            return true;
+        }
+
+        synchronized void take(long tick, long until, List<Set<ScheduledMeasurementInfo>> due) {
+            takenTick = tick;
+            Iterator<Map.Entry<BatchKey, Set<ScheduledMeasurementInfo>>> iter = batches.entrySet().iterator();
+            while (iter.hasNext()) {
+                Map.Entry<BatchKey, Set<ScheduledMeasurementInfo>> entry = iter.next();
+                if (entry.getKey().nextCollection <= until) {
+                    due.add(entry.getValue());
+                    iter.remove();
+                }
+            }
+        }
+    }
+
+    private static class BatchKey {
+        final int resourceId;
+        final long nextCollection;
+
+        BatchKey(int resourceId, long nextCollection) {
+            this.resourceId = resourceId;
+            this.nextCollection = nextCollection;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof BatchKey)) {
+                return false;
+            }
+            BatchKey that = (BatchKey) o;
+            return (resourceId == that.resourceId) && (nextCollection == that.nextCollection);
+        }
+
+        @Override
+        public int hashCode() {
+            return (31 * resourceId) + (int) (nextCollection ^ (nextCollection >>> 32));
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2014 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+package org.rhq.core.pc.measurement;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.rhq.core.pc.util.LoggingThreadFactory;
+
+/**
+ * The collector threads and queue of one plugin. Every plugin collects its measurements with its own threads, so a
+ * plugin whose collections are slow, e.g. because its managed resources do not respond, only delays its own
+ * collections rather than taking the threads of all plugins. The threads of a plugin that has nothing to collect time
+ * out and go away.
+ */
+class PluginCollectorPool {
+
+    private static final long KEEP_ALIVE_SECONDS = 60L;
+
+    private final ThreadPoolExecutor executor;
+
+    // -- monitoring information
+    private final AtomicLong collections = new AtomicLong(0);
+    private final AtomicLong totalLatency = new AtomicLong(0);
+
+    /**
+     * @param threadPoolName the name of the threads
+     * @param threadPoolSize the number of batches of the plugin that can be collected concurrently
+     */
+    PluginCollectorPool(String threadPoolName, int threadPoolSize) {
+        this.executor = new ThreadPoolExecutor(threadPoolSize, threadPoolSize, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new LoggingThreadFactory(threadPoolName, true));
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues the collection of a batch that was due at the given time.
+     *
+     * @throws java.util.concurrent.RejectedExecutionException if the pool has been shut down
+     */
+    void execute(final Runnable collection, final long dueTime) {
+        this.executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    collection.run();
+                } finally {
+                    collections.incrementAndGet();
+                    totalLatency.addAndGet(Math.max(0L, System.currentTimeMillis() - dueTime));
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the number of batches waiting for a collector thread
+     */
+    int getQueueDepth() {
+        return this.executor.getQueue().size();
+    }
+
+    /**
+     * @return the average time, in milliseconds, from the time a batch was due until its collection was done
+     */
+    long getAverageLatency() {
+        long count = this.collections.get();
+        return (count == 0) ? 0L : (this.totalLatency.get() / count);
+    }
+
+    ThreadPoolExecutor getExecutor() {
+        return this.executor;
+    }
+}
@@ -27,16 +27,16 @@ import org.rhq.core.domain.measurement.MeasurementScheduleRequest;
  /**
  * This is an object that has a natural ordering by when a measurement next needs to be collected as well as by its
  * resource. Requests for the same resource that have the same measurement Implementation notes: This class has a
- * natural ordering to it used by the measurement manager in order to track the next collection time. This ordering
- * includes distinctive information that should be unnecessary, but is because the {@link java.util.PriorityQueue}
- * requires that IFF a.compareTo(b) == 0 Then a.equals(b). This is unfortunate and slows us up some.
+ * natural ordering to it by the next collection time. This ordering includes distinctive information so that
+ * IFF a.compareTo(b) == 0 Then a.equals(b). The measurement manager keeps the schedules in a
+ * {@link MeasurementScheduleWheel}, which does not rely on the ordering.
  *
  * @author Greg Hinkle
  */
 public class ScheduledMeasurementInfo extends MeasurementScheduleRequest implements
     Comparable<ScheduledMeasurementInfo> {
     private int resourceId;
-    private long nextCollection;
+    private volatile long nextCollection;
 
     public ScheduledMeasurementInfo(MeasurementScheduleRequest scheduleRequest, Integer resourceId) {
         super(scheduleRequest);
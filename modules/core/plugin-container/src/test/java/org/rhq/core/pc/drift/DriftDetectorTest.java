@@ -492,6 +492,66 @@ public class DriftDetectorTest extends DriftTest {
             coverageChangeSet);
     }
 
+    @Test
+    public void detectDriftInDirectoryWithManyAndLargeFiles() throws Exception {
+        DriftDefinition def = driftDefinition("many-files-drift-test", resourceDir.getAbsolutePath());
+
+        // more files than are hashed at once, and a file that is hashed in several mapped regions
+        File libDir = mkdir(resourceDir, "lib");
+        List<File> files = new ArrayList<File>();
+        for (int i = 0; i < 600; ++i) {
+            files.add(createRandomFile(libDir, "lib-" + i + ".jar"));
+        }
+        files.add(createRandomFile(libDir, "large.jar", 20 * 1024 * 1024));
+
+        scheduleQueue.addSchedule(new DriftDetectionSchedule(resourceId(), def));
+        detector.run();
+
+        List<FileEntry> coverageEntries = new ArrayList<FileEntry>();
+        for (File file : files) {
+            coverageEntries.add(addedFileEntry("lib/" + file.getName(), sha256(file), file.lastModified(),
+                file.length()));
+        }
+        assertFileEntriesMatch("The coverage change set should include every file", coverageEntries,
+            changeSet(def.getName(), COVERAGE));
+
+        // create some drift
+        File changedFile = files.get(0);
+        String oldChangedHash = sha256(changedFile);
+        changedFile.delete();
+        changedFile = createRandomFile(libDir, changedFile.getName(), 48);
+
+        File removedFile = files.get(1);
+        String removedHash = sha256(removedFile);
+        removedFile.delete();
+
+        File largeFile = files.get(files.size() - 1);
+        String oldLargeHash = sha256(largeFile);
+        largeFile.delete();
+        largeFile = createRandomFile(libDir, largeFile.getName(), 20 * 1024 * 1024 + 1);
+
+        File addedFile = createRandomFile(libDir, "added.jar");
+
+        DriftDetectionSchedule schedule = scheduleQueue.remove(resourceId(), def);
+        schedule.resetSchedule();
+        scheduleQueue.addSchedule(schedule);
+        detector.run();
+
+        List<FileEntry> driftEntries = asList(
+            changedFileEntry("lib/" + changedFile.getName(), oldChangedHash, sha256(changedFile),
+                changedFile.lastModified(), changedFile.length()),
+            removedFileEntry("lib/" + removedFile.getName(), removedHash),
+            changedFileEntry("lib/" + largeFile.getName(), oldLargeHash, sha256(largeFile), largeFile.lastModified(),
+                largeFile.length()),
+            addedFileEntry("lib/" + addedFile.getName(), sha256(addedFile), addedFile.lastModified(),
+                addedFile.length()));
+
+        File driftChangeSet = changeSet(def.getName(), DRIFT);
+        assertHeaderEquals(driftChangeSet, createHeaders(def, DRIFT, 1));
+        assertFileEntriesMatch("The drift change set does not match the expected values", driftEntries,
+            driftChangeSet);
+    }
+
     @Test
     public void reportDriftWhenBaseDirIsDeleted() throws Exception {
         File confDir = mkdir(resourceDir, "conf");
@@ -0,0 +1,195 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2014 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+package org.rhq.core.pc.event;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hyperic.sigar.SigarProxy;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.rhq.core.domain.event.Event;
+import org.rhq.core.domain.event.EventSeverity;
+import org.rhq.core.domain.resource.Resource;
+import org.rhq.core.pc.PluginContainerConfiguration;
+import org.rhq.core.pc.event.EventManager.PollerKey;
+import org.rhq.core.pluginapi.event.log.LogEntryProcessor;
+import org.rhq.core.pluginapi.event.log.LogFileEventPoller;
+
+@Test
+public class LogFileWatcherTest {
+
+    private static final String EVENT_TYPE = "logEvent";
+    private static final long START = 1000000L;
+
+    private File logFile;
+    private RecordingEventManager eventManager;
+    private LogFileWatcher watcher;
+
+    @BeforeMethod
+    public void createWatcher() throws IOException {
+        logFile = File.createTempFile("LogFileWatcherTest", ".log");
+        append("existing line\n");
+        eventManager = new RecordingEventManager();
+        watcher = new LogFileWatcher(eventManager);
+    }
+
+    @AfterMethod
+    public void deleteLogFile() {
+        eventManager.shutdown();
+        logFile.delete();
+    }
+
+    public void passNewLinesToEveryPollerOfAFile() throws Exception {
+        // the same file by another path
+        File samePath = new File(logFile.getParentFile(), "." + File.separator + logFile.getName());
+        watch(1, logFile, 30);
+        watch(2, samePath, 30);
+
+        // the first poll only seeks to the end of the file
+        watcher.pollDueFiles(START);
+        assertTrue(eventManager.published.isEmpty());
+
+        append("line 1\nline 2\n");
+        watcher.pollDueFiles(START + 30000L);
+        assertEquals(eventManager.published.get(1), Arrays.asList("line 1", "line 2"));
+        assertEquals(eventManager.published.get(2), Arrays.asList("line 1", "line 2"));
+    }
+
+    public void stopPassingLinesToUnwatchedPollers() throws Exception {
+        watch(1, logFile, 30);
+        watch(2, logFile, 30);
+        watcher.pollDueFiles(START);
+
+        assertTrue(watcher.unwatch(key(1)));
+        assertFalse(watcher.unwatch(key(1)), "Expected the poller to be unwatched already");
+        append("line 1\n");
+        watcher.pollDueFiles(START + 30000L);
+        assertNull(eventManager.published.get(1));
+        assertEquals(eventManager.published.get(2), Arrays.asList("line 1"));
+
+        assertTrue(watcher.unwatch(key(2)));
+        append("line 2\n");
+        watcher.pollDueFiles(START + 60000L);
+        assertEquals(eventManager.published.get(2), Arrays.asList("line 1"), "Expected the file to be unwatched");
+    }
+
+    public void pollAtTheShortestIntervalOfThePollers() throws Exception {
+        watch(1, logFile, 60);
+        watch(2, logFile, 10);
+        watcher.pollDueFiles(START);
+
+        append("line 1\n");
+        watcher.pollDueFiles(START + 9999L);
+        assertTrue(eventManager.published.isEmpty(), "Expected no poll before the shortest interval has passed");
+        watcher.pollDueFiles(START + 10000L);
+        assertEquals(eventManager.published.get(1), Arrays.asList("line 1"));
+        assertEquals(eventManager.published.get(2), Arrays.asList("line 1"));
+
+        // the poll already scheduled is kept, the one after that is scheduled at the remaining poller's interval
+        watcher.unwatch(key(2));
+        append("line 2\n");
+        watcher.pollDueFiles(START + 20000L);
+        assertEquals(eventManager.published.get(1), Arrays.asList("line 1", "line 2"));
+
+        append("line 3\n");
+        watcher.pollDueFiles(START + 79999L);
+        assertEquals(eventManager.published.get(1), Arrays.asList("line 1", "line 2"));
+        watcher.pollDueFiles(START + 80000L);
+        assertEquals(eventManager.published.get(1), Arrays.asList("line 1", "line 2", "line 3"));
+    }
+
+    private void watch(int resourceId, File file, int pollingInterval) {
+        LogFileEventPoller poller = new LogFileEventPoller(null, EVENT_TYPE, file, new LineProcessor());
+        watcher.watch(key(resourceId), poller, pollingInterval, new Resource(resourceId));
+    }
+
+    private PollerKey key(int resourceId) {
+        return new PollerKey(resourceId, EVENT_TYPE, logFile.getPath());
+    }
+
+    private void append(String text) throws IOException {
+        FileOutputStream out = new FileOutputStream(logFile, true);
+        try {
+            out.write(text.getBytes());
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Turns every line into an event with the line as its detail.
+     */
+    private static class LineProcessor implements LogEntryProcessor {
+        @Override
+        public Set<Event> processLines(BufferedReader bufferedReader) throws IOException {
+            Set<Event> events = new LinkedHashSet<Event>();
+            String line;
+            while ((line = bufferedReader.readLine()) != null) {
+                events.add(new Event(EVENT_TYPE, "test", 0L, EventSeverity.INFO, line));
+            }
+            return events.isEmpty() ? null : events;
+        }
+    }
+
+    /**
+     * Records the details of the published events by resource id, rather than adding them to a report.
+     */
+    private static class RecordingEventManager extends EventManager {
+        final Map<Integer, List<String>> published = new HashMap<Integer, List<String>>();
+
+        RecordingEventManager() {
+            super(new PluginContainerConfiguration());
+        }
+
+        @Override
+        void publishEvents(Set<Event> events, Resource resource) {
+            List<String> details = published.get(resource.getId());
+            if (details == null) {
+                details = new ArrayList<String>();
+                published.put(resource.getId(), details);
+            }
+            for (Event event : events) {
+                details.add(event.getDetail());
+            }
+        }
+
+        @Override
+        SigarProxy getSigar() {
+            return null;
+        }
+    }
+}
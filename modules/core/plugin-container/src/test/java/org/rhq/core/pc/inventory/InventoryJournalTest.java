@@ -0,0 +1,219 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2014 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+package org.rhq.core.pc.inventory;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.rhq.core.domain.resource.InventoryStatus;
+import org.rhq.core.domain.resource.Resource;
+import org.rhq.core.domain.resource.ResourceCategory;
+import org.rhq.core.domain.resource.ResourceType;
+
+@Test
+public class InventoryJournalTest {
+
+    private File journalFile;
+
+    @BeforeMethod
+    public void createJournalFile() {
+        journalFile = new File(System.getProperty("java.io.tmpdir"), "inventory-" + System.nanoTime() + ".journal");
+    }
+
+    @AfterMethod
+    public void deleteJournalFile() {
+        journalFile.delete();
+    }
+
+    public void replayChangesOnTopOfSnapshot() throws Exception {
+        Resource platform = resource("platform", ResourceCategory.PLATFORM, null);
+        Resource server = resource("server", ResourceCategory.SERVER, platform);
+        Resource service = resource("service", ResourceCategory.SERVICE, server);
+
+        InventoryJournal journal = new InventoryJournal(journalFile, 0L);
+        journal.write(Collections.<InventoryJournal.PendingRecord> emptyList(),
+            Arrays.asList(container(platform), container(server), container(service)));
+        assertEquals(journal.getSequence(), 3L);
+
+        server.setInventoryStatus(InventoryStatus.COMMITTED);
+        String oldServiceUuid = service.getUuid();
+        service.setUuid(UUID.randomUUID().toString());
+        journal.write(Arrays.asList(InventoryJournal.moved(oldServiceUuid, service.getUuid())),
+            Arrays.asList(container(server)));
+        journal.close();
+
+        // the snapshot contains the first three records
+        Map<String, ResourceContainer> containers = new HashMap<String, ResourceContainer>();
+        containers.put(platform.getUuid(), container(platform));
+        containers.put(server.getUuid(), container(server));
+        containers.put(oldServiceUuid, container(service));
+
+        journal = new InventoryJournal(journalFile, 0L);
+        InventoryJournal.Replay replay = journal.replay(platform, containers, 3L);
+        assertEquals(replay.getApplied(), 2);
+        assertEquals(journal.getSequence(), 5L);
+        assertEquals(containers.size(), 3);
+        assertNotNull(containers.get(service.getUuid()), "Expected the container to be found by its new UUID");
+
+        Resource replayedServer = containers.get(server.getUuid()).getResource();
+        assertTrue(replayedServer != server, "Expected the server to be replaced by the journaled one");
+        assertEquals(replayedServer.getInventoryStatus(), InventoryStatus.COMMITTED);
+        assertTrue(replayedServer.getParentResource() == platform);
+        assertEquals(platform.getChildResources().size(), 1);
+        assertTrue(platform.getChildResources().iterator().next() == replayedServer);
+        assertEquals(replayedServer.getChildResources().size(), 1, "Expected the children to be taken over");
+        assertTrue(service.getParentResource() == replayedServer);
+    }
+
+    public void replayWithoutSnapshot() throws Exception {
+        Resource platform = resource("platform", ResourceCategory.PLATFORM, null);
+        Resource server = resource("server", ResourceCategory.SERVER, platform);
+        Resource service = resource("service", ResourceCategory.SERVICE, server);
+
+        InventoryJournal journal = new InventoryJournal(journalFile, 0L);
+        journal.write(Collections.<InventoryJournal.PendingRecord> emptyList(),
+            Arrays.asList(container(platform), container(server), container(service)));
+        journal.write(Arrays.asList(InventoryJournal.removed(server.getUuid())),
+            Collections.<ResourceContainer> emptyList());
+        journal.close();
+
+        Map<String, ResourceContainer> containers = new HashMap<String, ResourceContainer>();
+        InventoryJournal.Replay replay = new InventoryJournal(journalFile, 0L).replay(null, containers, 0L);
+        assertEquals(replay.getApplied(), 4);
+        assertNotNull(replay.getPlatform());
+        assertEquals(replay.getPlatform().getUuid(), platform.getUuid());
+        assertEquals(containers.size(), 1, "Expected the server and its child to be removed");
+        assertTrue(replay.getPlatform().getChildResources().isEmpty());
+    }
+
+    public void dropIncompleteRecords() throws Exception {
+        Resource platform = resource("platform", ResourceCategory.PLATFORM, null);
+
+        InventoryJournal journal = new InventoryJournal(journalFile, 0L);
+        journal.write(Collections.<InventoryJournal.PendingRecord> emptyList(), Arrays.asList(container(platform)));
+        journal.close();
+        long length = journalFile.length();
+
+        // a record that was being written when the process died
+        FileOutputStream out = new FileOutputStream(journalFile, true);
+        try {
+            out.write(new byte[] { 0, 0, 1, 0, 1, 2, 3, 4, 5 });
+        } finally {
+            out.close();
+        }
+
+        Map<String, ResourceContainer> containers = new HashMap<String, ResourceContainer>();
+        journal = new InventoryJournal(journalFile, 0L);
+        InventoryJournal.Replay replay = journal.replay(null, containers, 0L);
+        assertEquals(replay.getApplied(), 1);
+        assertEquals(journalFile.length(), length, "Expected the incomplete record to be cut off");
+
+        // the next record goes where the incomplete one was
+        journal.write(Arrays.asList(InventoryJournal.removed(platform.getUuid())),
+            Collections.<ResourceContainer> emptyList());
+        journal.close();
+        containers.clear();
+        replay = new InventoryJournal(journalFile, 0L).replay(null, containers, 0L);
+        assertEquals(replay.getApplied(), 2);
+        assertNull(replay.getPlatform());
+        assertTrue(containers.isEmpty());
+    }
+
+    public void rollBackFailedWrite() throws Exception {
+        Resource platform = resource("platform", ResourceCategory.PLATFORM, null);
+        Resource server = resource("server", ResourceCategory.SERVER, platform);
+        Resource unwritable = new UnwritableResource();
+        unwritable.setUuid(UUID.randomUUID().toString());
+        platform.addChildResourceWithoutAncestry(unwritable);
+
+        InventoryJournal journal = new InventoryJournal(journalFile, 0L);
+        journal.write(Collections.<InventoryJournal.PendingRecord> emptyList(), Arrays.asList(container(platform)));
+        long length = journalFile.length();
+
+        try {
+            journal.write(Arrays.asList(InventoryJournal.removed(UUID.randomUUID().toString())),
+                Arrays.asList(container(server), container(unwritable)));
+            fail("Expected the write to fail");
+        } catch (IllegalStateException e) {
+            // expected, not an IOException
+        }
+        assertEquals(journal.getSequence(), 1L, "Expected the sequence numbers of the failed write to be reused");
+        assertEquals(journalFile.length(), length, "Expected the records of the failed write to be cut off");
+
+        journal.write(Collections.<InventoryJournal.PendingRecord> emptyList(), Arrays.asList(container(server)));
+        journal.close();
+        Map<String, ResourceContainer> containers = new HashMap<String, ResourceContainer>();
+        InventoryJournal.Replay replay = new InventoryJournal(journalFile, 0L).replay(null, containers, 0L);
+        assertEquals(replay.getApplied(), 2);
+        assertEquals(containers.size(), 2);
+    }
+
+    public void detectChangedResources() {
+        Resource platform = resource("platform", ResourceCategory.PLATFORM, null);
+        ResourceContainer container = container(platform);
+        assertTrue(container.isJournalDirty(InventoryJournal.fingerprint(platform)), "Expected a new container");
+
+        container.setJournaled(InventoryJournal.fingerprint(platform));
+        assertFalse(container.isJournalDirty(InventoryJournal.fingerprint(platform)));
+
+        platform.setName("renamed");
+        assertTrue(container.isJournalDirty(InventoryJournal.fingerprint(platform)));
+    }
+
+    private static Resource resource(String name, ResourceCategory category, Resource parent) {
+        ResourceType type = new ResourceType(name + "Type", "test", category, null);
+        Resource resource = new Resource(name + "Key", name, type);
+        resource.setUuid(UUID.randomUUID().toString());
+        resource.setInventoryStatus(InventoryStatus.NEW);
+        if (parent != null) {
+            parent.addChildResourceWithoutAncestry(resource);
+        }
+        return resource;
+    }
+
+    private static ResourceContainer container(Resource resource) {
+        return new ResourceContainer(resource, InventoryJournalTest.class.getClassLoader());
+    }
+
+    private static class UnwritableResource extends Resource {
+        private static final long serialVersionUID = 1L;
+
+        private void writeObject(ObjectOutputStream out) {
+            throw new IllegalStateException("Cannot serialize " + this);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2014 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+package org.rhq.core.pc.measurement;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.testng.annotations.Test;
+
+import org.rhq.core.domain.measurement.DataType;
+import org.rhq.core.domain.measurement.MeasurementScheduleRequest;
+
+@Test
+public class MeasurementScheduleWheelTest {
+
+    private static final long START = 1000000L;
+
+    public void takeBatchesWhenTheirTickHasElapsed() {
+        MeasurementScheduleWheel wheel = new MeasurementScheduleWheel(1000L, 16, START);
+        wheel.schedule(info(1, 10, START + 5000L, 30000L));
+        wheel.schedule(info(2, 10, START + 5000L, 30000L));
+        wheel.schedule(info(3, 20, START + 5000L, 30000L));
+        wheel.schedule(info(4, 10, START + 7000L, 30000L));
+
+        assertEquals(wheel.size(), 4);
+        assertEquals(wheel.getNextCollection(), START + 5000L);
+        assertTrue(wheel.advance(START + 5000L).isEmpty(), "Expected no batches before the tick has elapsed");
+
+        List<Set<ScheduledMeasurementInfo>> due = wheel.advance(START + 6000L);
+        assertEquals(due.size(), 2, "Expected one batch per resource");
+        for (Set<ScheduledMeasurementInfo> batch : due) {
+            int resourceId = batch.iterator().next().getResourceId();
+            assertEquals(batch.size(), (resourceId == 10) ? 2 : 1);
+        }
+
+        due = wheel.advance(START + 60000L);
+        assertEquals(due.size(), 1);
+        assertEquals(due.get(0).iterator().next().getScheduleId(), 4);
+        assertTrue(wheel.advance(START + 120000L).isEmpty(), "Expected the taken schedules to stay out of the wheel");
+    }
+
+    public void keepSchedulesDueAfterMoreThanOneRevolution() {
+        MeasurementScheduleWheel wheel = new MeasurementScheduleWheel(1000L, 16, START);
+        wheel.schedule(info(1, 10, START + 20000L, 60000L));
+
+        assertTrue(wheel.advance(START + 20000L).isEmpty(), "Expected the schedule to be skipped on the first pass");
+        assertEquals(wheel.advance(START + 21000L).size(), 1);
+    }
+
+    public void rescheduleAtTheNextCollectionTime() {
+        MeasurementScheduleWheel wheel = new MeasurementScheduleWheel(1000L, 16, START);
+        ScheduledMeasurementInfo info = info(1, 10, START + 1000L, 30000L);
+        wheel.schedule(info);
+
+        assertEquals(wheel.advance(START + 2000L).size(), 1);
+        info.setNextCollection(info.getNextCollection() + info.getInterval());
+        assertTrue(wheel.reschedule(info));
+
+        assertTrue(wheel.advance(START + 31000L).isEmpty());
+        assertEquals(wheel.advance(START + 32000L).size(), 1);
+    }
+
+    public void takeCollectionsThatAreAlreadyDueOnTheNextTick() {
+        MeasurementScheduleWheel wheel = new MeasurementScheduleWheel(1000L, 16, START);
+        wheel.advance(START + 10000L);
+        wheel.schedule(info(1, 10, START + 2000L, 30000L));
+
+        assertEquals(wheel.advance(START + 11000L).size(), 1);
+    }
+
+    public void dropReplacedAndRemovedSchedules() {
+        MeasurementScheduleWheel wheel = new MeasurementScheduleWheel(1000L, 16, START);
+        ScheduledMeasurementInfo replaced = info(1, 10, START + 1000L, 30000L);
+        wheel.schedule(replaced);
+        wheel.schedule(info(1, 10, START + 3000L, 30000L));
+        wheel.schedule(info(2, 20, START + 1000L, 30000L));
+        assertEquals(wheel.size(), 2, "Expected the schedule with the same id to be replaced");
+
+        wheel.unschedule(Collections.singleton(20));
+        assertEquals(wheel.size(), 1);
+        assertTrue(wheel.advance(START + 2000L).isEmpty(), "Expected the replaced and removed schedules to be dropped");
+        assertFalse(wheel.reschedule(replaced), "Expected a replaced schedule not to be rescheduled");
+
+        List<Set<ScheduledMeasurementInfo>> due = wheel.advance(START + 4000L);
+        assertEquals(due.size(), 1);
+        assertEquals(due.get(0).iterator().next().getNextCollection(), START + 3000L);
+
+        wheel.schedule(new ScheduledMeasurementInfo(new MeasurementScheduleRequest(1, "metric-1", 30000L, false,
+            DataType.MEASUREMENT), 10));
+        assertEquals(wheel.size(), 0, "Expected a disabled schedule to remove the existing one");
+        assertEquals(wheel.getNextCollection(), Long.MIN_VALUE);
+    }
+
+    private static ScheduledMeasurementInfo info(int scheduleId, int resourceId, long nextCollection, long interval) {
+        ScheduledMeasurementInfo info = new ScheduledMeasurementInfo(new MeasurementScheduleRequest(scheduleId,
+            "metric-" + scheduleId, interval, true, DataType.MEASUREMENT), resourceId);
+        info.setNextCollection(nextCollection);
+        return info;
+    }
+}
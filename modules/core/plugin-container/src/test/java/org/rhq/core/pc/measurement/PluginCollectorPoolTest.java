@@ -0,0 +1,104 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2014 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+package org.rhq.core.pc.measurement;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+import org.rhq.core.domain.measurement.DataType;
+import org.rhq.core.domain.measurement.MeasurementScheduleRequest;
+
+@Test
+public class PluginCollectorPoolTest {
+
+    public void collectOtherPluginsWhileOneIsStuck() throws Exception {
+        PluginCollectorPool stuckPool = new PluginCollectorPool("PluginCollectorPoolTest.stuck", 1);
+        PluginCollectorPool otherPool = new PluginCollectorPool("PluginCollectorPoolTest.other", 1);
+        try {
+            final CountDownLatch release = new CountDownLatch(1);
+            Runnable stuckCollection = new Runnable() {
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            long now = System.currentTimeMillis();
+            stuckPool.execute(stuckCollection, now);
+            stuckPool.execute(stuckCollection, now);
+            stuckPool.execute(stuckCollection, now);
+
+            final CountDownLatch collected = new CountDownLatch(1);
+            otherPool.execute(new Runnable() {
+                public void run() {
+                    collected.countDown();
+                }
+            }, now);
+            assertTrue(collected.await(10, TimeUnit.SECONDS), "Expected the other plugin to collect");
+            assertEquals(stuckPool.getQueueDepth(), 2, "Expected the batches of the stuck plugin to wait");
+
+            release.countDown();
+            stuckPool.getExecutor().shutdown();
+            assertTrue(stuckPool.getExecutor().awaitTermination(10, TimeUnit.SECONDS));
+            assertEquals(stuckPool.getQueueDepth(), 0);
+            assertTrue(stuckPool.getAverageLatency() >= 0L);
+        } finally {
+            stuckPool.getExecutor().shutdownNow();
+            otherPool.getExecutor().shutdownNow();
+        }
+    }
+
+    public void limitTimeoutToNextCollection() {
+        long now = System.currentTimeMillis();
+        Set<ScheduledMeasurementInfo> batch = new HashSet<ScheduledMeasurementInfo>();
+
+        // on time, the collection gets the full facet timeout
+        batch.add(info(1, now, 60000L));
+        assertEquals(MeasurementCollectorRunner.getCollectionTimeout(batch),
+            (long) MeasurementManager.FACET_METHOD_TIMEOUT);
+
+        // started late, the collection must be done before the schedule with the shortest interval is due again
+        batch.add(info(2, now - 20000L, 30000L));
+        long timeout = MeasurementCollectorRunner.getCollectionTimeout(batch);
+        assertTrue((timeout > 5000L) && (timeout <= 10000L), "Unexpected timeout " + timeout);
+
+        // however late, a collection gets some time
+        batch.add(info(3, now - 29000L, 30000L));
+        assertEquals(MeasurementCollectorRunner.getCollectionTimeout(batch),
+            MeasurementCollectorRunner.MIN_COLLECTION_TIMEOUT);
+    }
+
+    private static ScheduledMeasurementInfo info(int scheduleId, long nextCollection, long interval) {
+        MeasurementScheduleRequest request = new MeasurementScheduleRequest(scheduleId, "metric" + scheduleId,
+            interval, true, DataType.MEASUREMENT);
+        ScheduledMeasurementInfo info = new ScheduledMeasurementInfo(request, 10);
+        info.setNextCollection(nextCollection);
+        return info;
+    }
+}
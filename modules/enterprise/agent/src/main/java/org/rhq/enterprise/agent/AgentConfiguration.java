@@ -763,6 +763,21 @@ public class AgentConfiguration {
         return flag;
     }
 
+    /**
+     * Returns the command spool segmented flag that, if true, indicates the commands should be spooled to a directory
+     * of memory-mapped segment files rather than to the single command spool file.
+     *
+     * @return <code>true</code> if the command spool should be segmented; <code>false</code> means the commands should
+     *         be spooled to the single command spool file.
+     */
+    public boolean isClientSenderCommandSpoolFileSegmented() {
+        boolean flag = m_preferences.getBoolean(
+            AgentConfigurationConstants.CLIENT_SENDER_COMMAND_SPOOL_FILE_SEGMENTED,
+            AgentConfigurationConstants.DEFAULT_CLIENT_SENDER_COMMAND_SPOOL_FILE_SEGMENTED);
+
+        return flag;
+    }
+
     /**
      * Returns an array of send throttling parameters or <code>null</code> if send throttling is to be disabled. The
      * first element of the array is the maximum number of commands that can be sent before the quiet period must start.
@@ -928,6 +943,7 @@ public class AgentConfiguration {
         config.dataDirectory = getDataDirectory();
         config.serverPollingIntervalMillis = getClientSenderServerPollingInterval();
         config.commandSpoolFileCompressData = isClientSenderCommandSpoolFileCompressed();
+        config.commandSpoolFileSegmented = isClientSenderCommandSpoolFileSegmented();
         config.retryInterval = getClientSenderRetryInterval();
         config.maxRetries = getClientSenderMaxRetries();
         config.commandSpoolFileName = getClientSenderCommandSpoolFileName();
@@ -1158,6 +1174,9 @@ public class AgentConfiguration {
         long childResourceDiscoveryDelay = m_preferences.getLong(
             AgentConfigurationConstants.PLUGINS_CHILD_RESOURCE_DISOVERY_PERIOD,
             AgentConfigurationConstants.DEFAULT_PLUGINS_CHILD_RESOURCE_DISCOVERY_PERIOD);
+        long inventory_journal_period = m_preferences.getLong(
+            AgentConfigurationConstants.PLUGINS_INVENTORY_JOURNAL_PERIOD,
+            AgentConfigurationConstants.DEFAULT_PLUGINS_INVENTORY_JOURNAL_PERIOD);
 
         // get the time interval in which availability scans run
         long avail_scan_period = m_preferences.getLong(AgentConfigurationConstants.PLUGINS_AVAILABILITY_SCAN_PERIOD,
@@ -1170,6 +1189,9 @@ public class AgentConfiguration {
         int avail_scan_threadpool_size = m_preferences.getInt(
             AgentConfigurationConstants.PLUGINS_AVAILABILITY_SCAN_THREADPOOL_SIZE,
             AgentConfigurationConstants.DEFAULT_PLUGINS_AVAILABILITY_SCAN_THREADPOOL_SIZE);
+        int avail_scan_subtree_threadpool_size = m_preferences.getInt(
+            AgentConfigurationConstants.PLUGINS_AVAILABILITY_SCAN_SUBTREE_THREADPOOL_SIZE,
+            AgentConfigurationConstants.DEFAULT_PLUGINS_AVAILABILITY_SCAN_SUBTREE_THREADPOOL_SIZE);
 
         // get the initial delay before measurement collections begin
         long meas_scan_initial_delay = m_preferences.getLong(
@@ -1291,9 +1313,11 @@ public class AgentConfiguration {
         config.setServiceDiscoveryInitialDelay(service_discovery_initial_delay);
         config.setServiceDiscoveryPeriod(service_discovery_period);
         config.setChildResourceDiscoveryDelay(childResourceDiscoveryDelay);
+        config.setInventoryJournalPeriod(inventory_journal_period);
         config.setAvailabilityScanInitialDelay(avail_scan_initial_delay);
         config.setAvailabilityScanPeriod(avail_scan_period);
         config.setAvailabilityScanThreadPoolSize(avail_scan_threadpool_size);
+        config.setAvailabilityScanSubtreeThreadPoolSize(avail_scan_subtree_threadpool_size);
         config.setMeasurementCollectionThreadPoolSize(meas_threadpool_size);
         config.setMeasurementCollectionInitialDelay(meas_scan_initial_delay);
         config.setDriftDetectionInitialDelay(drift_initial_delay);
@@ -348,6 +348,17 @@ public interface AgentConfigurationConstants {
      */
     boolean DEFAULT_CLIENT_SENDER_COMMAND_SPOOL_FILE_COMPRESSED = false;
 
+    /**
+     * Property that indicates if the commands are spooled to a directory of memory-mapped segment files rather than to
+     * the single spool file.
+     */
+    String CLIENT_SENDER_COMMAND_SPOOL_FILE_SEGMENTED = PROPERTY_NAME_PREFIX + "client.command-spool-file.segmented";
+
+    /**
+     * If the client sender command spool segmented flag is not specified, this is the default.
+     */
+    boolean DEFAULT_CLIENT_SENDER_COMMAND_SPOOL_FILE_SEGMENTED = false;
+
     /**
      * Property that provides the amount of time, in milliseconds, that the sender will pause before attempting to retry
      * a failed command whose delivery is to be guaranteed.
@@ -637,6 +648,16 @@ public interface AgentConfigurationConstants {
      */
     long DEFAULT_PLUGINS_CHILD_RESOURCE_DISCOVERY_PERIOD = PluginContainerConfiguration.CHILD_RESOURCE_DISCOVERY_DELAY_DEFAULT;
 
+    /**
+     * Defines, in seconds, how often inventory changes are written to the inventory journal.
+     */
+    String PLUGINS_INVENTORY_JOURNAL_PERIOD = PROPERTY_NAME_PREFIX + "plugins.inventory-journal.period-secs";
+
+    /**
+     * The default time period between each write to the inventory journal, in seconds.
+     */
+    long DEFAULT_PLUGINS_INVENTORY_JOURNAL_PERIOD = PluginContainerConfiguration.INVENTORY_JOURNAL_PERIOD_DEFAULT;
+
     /**
      * Defines, in seconds, the initial delay before the first availability scan is run.
      */
@@ -670,14 +691,25 @@ public interface AgentConfigurationConstants {
     int DEFAULT_PLUGINS_AVAILABILITY_SCAN_THREADPOOL_SIZE = PluginContainerConfiguration.AVAILABILITY_SCAN_THREADPOOL_SIZE_DEFAULT;
 
     /**
-     * If defined, this is to be the size of the measurement collection thread pool. If not defined, the plugin
-     * container should default to something it considers appropriate.
+     * Defines how many threads can be concurrently scanning the availabilities of the platform's top level subtrees.
+     */
+    String PLUGINS_AVAILABILITY_SCAN_SUBTREE_THREADPOOL_SIZE = PROPERTY_NAME_PREFIX
+        + "plugins.availability-scan.subtree-threadpool-size";
+
+    /**
+     * The default threadpool size for scanning the availabilities of the top level subtrees.
+     */
+    int DEFAULT_PLUGINS_AVAILABILITY_SCAN_SUBTREE_THREADPOOL_SIZE = PluginContainerConfiguration.AVAILABILITY_SCAN_SUBTREE_THREADCOUNT_DEFAULT;
+
+    /**
+     * If defined, this is to be the size of the measurement collection thread pool of each plugin. If not defined, the
+     * plugin container should default to something it considers appropriate.
      */
     String PLUGINS_MEASUREMENT_COLL_THREADPOOL_SIZE = PROPERTY_NAME_PREFIX
         + "plugins.measurement-collection.threadpool-size";
 
     /**
-     * The default number of measurements that can be collected concurrently.
+     * The default number of measurements of a plugin that can be collected concurrently.
      */
     int DEFAULT_PLUGINS_MEASUREMENT_COLL_THREADPOOL_SIZE = PluginContainerConfiguration.MEASUREMENT_COLLECTION_THREADCOUNT_DEFAULT;
 
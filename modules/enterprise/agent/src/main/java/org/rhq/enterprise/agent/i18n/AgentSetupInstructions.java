@@ -857,8 +857,8 @@ public interface AgentSetupInstructions {
     @I18NMessages({ @I18NMessage("Measurement Collection Thread Pool Size") })
     String SETUP_INSTRUCTION_PCMEASUREMENTTHREADCOUNT_PROMPT = "PromptCommand.setup.instruction.measurementthreadcount.prompt";
     @I18NMessages({ @I18NMessage("This defines the number of threads within the plugin container's measurement\\n\\\n"
-        + "collection thread pool.  The higher the number, the more measurements that\\n\\\n"
-        + "can be collected concurrently.") })
+        + "collection thread pool of each plugin.  The higher the number, the more\\n\\\n"
+        + "measurements of a plugin that can be collected concurrently.") })
     String SETUP_INSTRUCTION_PCMEASUREMENTTHREADCOUNT_HELP = "PromptCommand.setup.instruction.measurementthreadcount.help";
 
     // PLUGINS OPERATION INVOKER THREADPOOL SIZE
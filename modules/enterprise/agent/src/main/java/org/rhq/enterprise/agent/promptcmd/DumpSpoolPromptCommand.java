@@ -26,6 +26,7 @@ import org.rhq.enterprise.agent.i18n.AgentI18NFactory;
 import org.rhq.enterprise.agent.i18n.AgentI18NResourceKeys;
 import org.rhq.enterprise.communications.command.client.ClientCommandSenderConfiguration;
 import org.rhq.enterprise.communications.command.client.PersistentFifo;
+import org.rhq.enterprise.communications.command.client.SegmentedPersistentFifo;
 import org.rhq.enterprise.communications.util.DumpBytes;
 
 /**
@@ -80,8 +81,15 @@ public class DumpSpoolPromptCommand implements AgentPromptCommand {
         File spool_file = new File(sender_config.dataDirectory, sender_config.commandSpoolFileName);
 
         try {
-            PersistentFifo.dumpContents(agent.getOut(), spool_file, agent_config
-                .isClientSenderCommandSpoolFileCompressed(), raw_byte_base);
+            if (sender_config.commandSpoolFileSegmented) {
+                spool_file = new File(sender_config.dataDirectory, sender_config.commandSpoolFileName
+                    + SegmentedPersistentFifo.DIRECTORY_SUFFIX);
+                SegmentedPersistentFifo.dumpContents(agent.getOut(), spool_file, agent_config
+                    .isClientSenderCommandSpoolFileCompressed(), raw_byte_base);
+            } else {
+                PersistentFifo.dumpContents(agent.getOut(), spool_file, agent_config
+                    .isClientSenderCommandSpoolFileCompressed(), raw_byte_base);
+            }
         } catch (Exception e) {
             agent.getOut().println(MSG.getMsg(AgentI18NResourceKeys.DUMPSPOOL_ERROR, spool_file, e));
         }
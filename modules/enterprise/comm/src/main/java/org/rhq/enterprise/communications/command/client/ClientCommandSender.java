@@ -187,7 +187,7 @@ public class ClientCommandSender {
      * {@link #isDeliveryGuaranteed(Command) guaranteed commands}. The actual objects that will be stored in this object
      * will be {@link CommandAndCallback} objects.
      */
-    private PersistentFifo m_commandStore;
+    private CommandSpool m_commandStore;
 
     /**
      * The configuration for this sender.
@@ -253,15 +253,35 @@ public class ClientCommandSender {
 
         if (config.commandSpoolFileName != null) {
             File cmd_spool_file = new File(config.dataDirectory, config.commandSpoolFileName);
+            File cmd_spool_dir = new File(config.dataDirectory, config.commandSpoolFileName
+                + SegmentedPersistentFifo.DIRECTORY_SUFFIX);
+
+            // the spool of the other format is left over from before the agent switched formats
+            File old_spool = config.commandSpoolFileSegmented ? cmd_spool_file : cmd_spool_dir;
+            File new_spool = config.commandSpoolFileSegmented ? cmd_spool_dir : cmd_spool_file;
 
             try {
-                m_commandStore = new PersistentFifo(cmd_spool_file, config.commandSpoolFileMaxSize,
-                    config.commandSpoolFilePurgePercentage, config.commandSpoolFileCompressData);
+                if (config.commandSpoolFileSegmented) {
+                    m_commandStore = new SegmentedPersistentFifo(cmd_spool_dir, config.commandSpoolFileMaxSize,
+                        config.commandSpoolFilePurgePercentage, config.commandSpoolFileCompressData);
+                } else {
+                    m_commandStore = new PersistentFifo(cmd_spool_file, config.commandSpoolFileMaxSize,
+                        config.commandSpoolFilePurgePercentage, config.commandSpoolFileCompressData);
+                }
             } catch (Exception e) {
                 m_commandStore = null;
-                LOG.warn(CommI18NResourceKeys.CLIENT_COMMAND_SENDER_COMMAND_SPOOL_ACCESS_ERROR, cmd_spool_file,
+                LOG.warn(CommI18NResourceKeys.CLIENT_COMMAND_SENDER_COMMAND_SPOOL_ACCESS_ERROR, new_spool,
                     remote_communicator, e);
             }
+
+            if (m_commandStore != null) {
+                try {
+                    convertCommandSpool(old_spool, new_spool, config);
+                } catch (Exception e) {
+                    LOG.warn(CommI18NResourceKeys.CLIENT_COMMAND_SENDER_COMMAND_SPOOL_ACCESS_ERROR, old_spool,
+                        remote_communicator, e);
+                }
+            }
         } else {
             m_commandStore = null;
             LOG.debug(CommI18NResourceKeys.CLIENT_COMMAND_SENDER_NO_COMMAND_SPOOL_FILENAME, remote_communicator);
@@ -1362,6 +1382,55 @@ public class ClientCommandSender {
         return;
     }
 
+    /**
+     * Moves the commands left over in a command spool of the other format (that is, the one not selected by
+     * {@link ClientCommandSenderConfiguration#commandSpoolFileSegmented}) to the {@link #m_commandStore command store}
+     * and deletes the old spool. This keeps guaranteed commands from being lost when an agent switches formats.
+     *
+     * @param  old_spool the old spool file or segment directory, nothing is done if it does not exist
+     * @param  new_spool the spool the commands are moved to, only used for logging
+     * @param  config    the sender configuration
+     *
+     * @throws IOException if failed to read the old spool or write to the new one
+     */
+    private void convertCommandSpool(File old_spool, File new_spool, ClientCommandSenderConfiguration config)
+        throws IOException {
+        if (!old_spool.exists()) {
+            return;
+        }
+
+        CommandSpool old_store;
+
+        if (old_spool.isDirectory()) {
+            old_store = new SegmentedPersistentFifo(old_spool, config.commandSpoolFileMaxSize,
+                config.commandSpoolFilePurgePercentage, config.commandSpoolFileCompressData);
+        } else {
+            old_store = new PersistentFifo(old_spool, config.commandSpoolFileMaxSize,
+                config.commandSpoolFilePurgePercentage, config.commandSpoolFileCompressData);
+        }
+
+        long converted = 0L;
+
+        // both spools compress the same way, so the entries are moved as they are once uncompressed
+        for (byte[] entry = old_store.take(); entry != null; entry = old_store.take()) {
+            m_commandStore.put(entry);
+            converted++;
+        }
+
+        if (old_store instanceof SegmentedPersistentFifo) {
+            ((SegmentedPersistentFifo) old_store).clear();
+        }
+
+        old_spool.delete();
+
+        if (converted > 0) {
+            LOG.info(CommI18NResourceKeys.CLIENT_COMMAND_SENDER_COMMAND_SPOOL_CONVERTED, converted, old_spool,
+                new_spool);
+        }
+
+        return;
+    }
+
     /**
      * Given a command/callback pair, this will spool it in its serialized form to the command spool file.
      *
@@ -158,6 +158,17 @@ public class ClientCommandSenderConfiguration implements Serializable {
      */
     public boolean commandSpoolFileCompressData = false;
 
+    /**
+     * If this flag is <code>true</code>, the commands will be spooled to a directory of memory-mapped segment files
+     * (see {@link SegmentedPersistentFifo}) rather than to the single spool file (see {@link PersistentFifo}). The
+     * directory is named after {@link #commandSpoolFileName} with the
+     * {@link SegmentedPersistentFifo#DIRECTORY_SUFFIX} suffix. The segmented spool
+     * stays fast when a large amount of commands is spooled, e.g. while the server is down for a long time, at the
+     * cost of using disk space in chunks of a tenth of {@link #commandSpoolFileMaxSize}. Commands spooled in the other
+     * format are moved over when the sender is created.
+     */
+    public boolean commandSpoolFileSegmented = false;
+
     /**
      * A fully qualified class name of a {@link CommandPreprocessor} implementation that will be used to preprocess all
      * commands that are to be queued and sent by the client command sender. May be <code>null</code> or empty string in
@@ -253,6 +264,7 @@ public class ClientCommandSenderConfiguration implements Serializable {
         config_copy.commandSpoolFileMaxSize = this.commandSpoolFileMaxSize;
         config_copy.commandSpoolFilePurgePercentage = this.commandSpoolFilePurgePercentage;
         config_copy.commandSpoolFileCompressData = this.commandSpoolFileCompressData;
+        config_copy.commandSpoolFileSegmented = this.commandSpoolFileSegmented;
         config_copy.commandPreprocessors = this.commandPreprocessors;
         config_copy.securityServerAuthMode = this.securityServerAuthMode;
         config_copy.securityKeystoreFile = this.securityKeystoreFile;
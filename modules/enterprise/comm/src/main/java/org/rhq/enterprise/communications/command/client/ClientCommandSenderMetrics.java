@@ -33,7 +33,7 @@ import java.util.concurrent.atomic.AtomicLong;
  */
 public class ClientCommandSenderMetrics {
     private final CommandQueue queue;
-    private final PersistentFifo commandStore;
+    private final CommandSpool commandStore;
     private ThreadPoolExecutor threadPool;
 
     // these member variables are package-protected to allow the sender to directly set their values
@@ -54,7 +54,7 @@ public class ClientCommandSenderMetrics {
      * @param commandStore the place where guaranteed commands are persisted (may be <code>null</code>)
      * @param threadPool   contains the threads that execute the queued tasks (may be <code>null</code>)
      */
-    public ClientCommandSenderMetrics(CommandQueue queue, PersistentFifo commandStore, ThreadPoolExecutor threadPool) {
+    public ClientCommandSenderMetrics(CommandQueue queue, CommandSpool commandStore, ThreadPoolExecutor threadPool) {
         this.queue = queue; // if null, just consider it always empty
         this.commandStore = commandStore; // if null, just consider its size to always be 0
         setThreadPool(threadPool); // if null, just assume everything about it is 0
@@ -134,7 +134,7 @@ public class ClientCommandSenderMetrics {
      *
      * @return number of persisted commands
      *
-     * @see    PersistentFifo
+     * @see    CommandSpool
      */
     public long getNumberCommandsSpooled() {
         long num = 0L;
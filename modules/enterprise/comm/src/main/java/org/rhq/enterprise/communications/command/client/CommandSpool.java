@@ -0,0 +1,83 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2014 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.communications.command.client;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * A persistent FIFO queue of byte arrays where the {@link ClientCommandSender} spools the commands that are flagged
+ * for guaranteed delivery.
+ *
+ * @see PersistentFifo
+ * @see SegmentedPersistentFifo
+ */
+public interface CommandSpool {
+    /**
+     * Serializes the given object and puts its bytes on the queue.
+     *
+     * @param  o the object to serialize and put in the queue
+     *
+     * @throws IOException      if failed to put the data in the queue
+     * @throws RuntimeException if failed to serialize the data
+     */
+    void putObject(Serializable o) throws IOException, RuntimeException;
+
+    /**
+     * Takes the next entry from the queue and deserializes it.
+     *
+     * @return the deserialized object, or <code>null</code> if the queue is empty
+     *
+     * @throws IOException      if failed to access the queue
+     * @throws RuntimeException if failed to deserialize the object
+     */
+    Object takeObject() throws IOException, RuntimeException;
+
+    /**
+     * Puts an array of bytes on the queue.
+     *
+     * @param  bytes the data to put in the queue
+     *
+     * @throws IOException if failed to access the queue
+     */
+    void put(byte[] bytes) throws IOException;
+
+    /**
+     * Takes the next entry from the queue.
+     *
+     * @return the next entry, or <code>null</code> if the queue is empty
+     *
+     * @throws IOException if failed to access the queue
+     */
+    byte[] take() throws IOException;
+
+    /**
+     * @return <code>true</code> if the queue does not contain any entries
+     *
+     * @throws IOException if failed to access the queue
+     */
+    boolean isEmpty() throws IOException;
+
+    /**
+     * @return the number of entries in the queue
+     *
+     * @throws IOException if failed to access the queue
+     */
+    long count() throws IOException;
+}
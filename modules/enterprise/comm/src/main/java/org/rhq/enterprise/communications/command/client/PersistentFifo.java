@@ -70,7 +70,7 @@ import org.rhq.enterprise.communications.util.DumpBytes;
  *
  * @author John Mazzitelli
  */
-public class PersistentFifo {
+public class PersistentFifo implements CommandSpool {
     /**
      * Logger
      */
@@ -171,52 +171,65 @@ public class PersistentFifo {
             raf.readFully(entry);
 
             if (fifo.m_compress) {
-                entry = fifo.decompress(entry);
+                entry = decompress(entry);
             }
 
-            String entry_string;
+            dumpEntry(out, entry_num++, entry, raw_byte_base);
+        }
 
-            out.print("[" + entry_num++ + "] ");
+        out.flush();
 
-            if (raw_byte_base == 0) {
-                Object obj = StreamUtil.deserialize(entry);
-                entry_string = obj.toString();
-            } else {
-                out.println();
-
-                switch (raw_byte_base) {
-                case DumpBytes.BASE_HEX: {
-                    entry_string = DumpBytes.dumpHexData(entry);
-                    break;
-                }
-
-                case DumpBytes.BASE_DEC: {
-                    entry_string = DumpBytes.dumpDecData(entry);
-                    break;
-                }
-
-                case DumpBytes.BASE_OCT: {
-                    entry_string = DumpBytes.dumpOctData(entry);
-                    break;
-                }
-
-                case DumpBytes.BASE_BIN: {
-                    entry_string = DumpBytes.dumpBinData(entry);
-                    break;
-                }
-
-                default: {
-                    entry_string = DumpBytes.dumpData(entry, 7, raw_byte_base);
-                }
-                }
+        return;
+    }
+
+    /**
+     * Dumps a single entry, see {@link #dumpContents(PrintWriter, File, boolean, int)} for the meaning of <code>
+     * raw_byte_base</code>.
+     *
+     * @param out           the stream to dump the output
+     * @param entry_num     the position of the entry in the FIFO
+     * @param entry         the entry's uncompressed data
+     * @param raw_byte_base the base in which to dump the raw bytes, 0 to dump the entry as an object
+     */
+    static void dumpEntry(PrintWriter out, long entry_num, byte[] entry, int raw_byte_base) {
+        String entry_string;
+
+        out.print("[" + entry_num + "] ");
+
+        if (raw_byte_base == 0) {
+            Object obj = StreamUtil.deserialize(entry);
+            entry_string = obj.toString();
+        } else {
+            out.println();
+
+            switch (raw_byte_base) {
+            case DumpBytes.BASE_HEX: {
+                entry_string = DumpBytes.dumpHexData(entry);
+                break;
             }
 
-            out.println(entry_string);
-        }
+            case DumpBytes.BASE_DEC: {
+                entry_string = DumpBytes.dumpDecData(entry);
+                break;
+            }
 
-        out.flush();
+            case DumpBytes.BASE_OCT: {
+                entry_string = DumpBytes.dumpOctData(entry);
+                break;
+            }
 
-        return;
+            case DumpBytes.BASE_BIN: {
+                entry_string = DumpBytes.dumpBinData(entry);
+                break;
+            }
+
+            default: {
+                entry_string = DumpBytes.dumpData(entry, 7, raw_byte_base);
+            }
+            }
+        }
+
+        out.println(entry_string);
     }
 
     /**
@@ -659,7 +672,7 @@ public class PersistentFifo {
      *
      * @throws IOException if failed to compress the bytes
      */
-    private byte[] compress(byte[] bytes) throws IOException {
+    static byte[] compress(byte[] bytes) throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream(bytes.length);
         GZIPOutputStream gzip = new GZIPOutputStream(baos);
 
@@ -680,7 +693,7 @@ public class PersistentFifo {
      *
      * @throws IOException if failed to decompress the bytes
      */
-    private byte[] decompress(byte[] entry) throws IOException {
+    static byte[] decompress(byte[] entry) throws IOException {
         ByteArrayOutputStream decompressed = new ByteArrayOutputStream(entry.length);
         ByteArrayInputStream in = new ByteArrayInputStream(entry);
         GZIPInputStream gzip_in = new GZIPInputStream(in);
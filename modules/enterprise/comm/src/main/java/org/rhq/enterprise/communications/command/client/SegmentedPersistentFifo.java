@@ -0,0 +1,544 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2014 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.communications.command.client;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.CRC32;
+import mazz.i18n.Logger;
+
+import org.rhq.core.util.stream.StreamUtil;
+import org.rhq.enterprise.communications.i18n.CommI18NFactory;
+import org.rhq.enterprise.communications.i18n.CommI18NResourceKeys;
+
+/**
+ * Persists byte arrays in a FIFO queue that is made of a directory of fixed size segment files. This is an
+ * alternative to {@link PersistentFifo} that stays fast when a large number of entries is spooled, for example while
+ * the server is down for a long time.
+ *
+ * <p>Entries are only ever appended to the last segment, which is memory-mapped so that a put is a plain memory
+ * write. Each entry is stored as its length and a CRC32 of its data followed by the data itself. A zero length or a
+ * CRC mismatch marks the end of the entries of a segment, which takes care of an entry that was being written when the
+ * process died. The header of each segment holds the offset of its next entry to be taken. Once all the entries of a
+ * segment have been taken, the whole segment file is deleted - entries are never moved around.</p>
+ *
+ * <p>If the segments grow beyond the maximum size, the oldest segments are deleted, along with the entries they
+ * contain, until the size is back under the purge percentage of the maximum size.</p>
+ *
+ * <pre>
+ * segment file: MAGIC | VERSION | next entry offset | reserved | length | crc | entry-data | length | crc | ...
+ * </pre>
+ */
+public class SegmentedPersistentFifo implements CommandSpool {
+    /**
+     * The suffix appended to the name of a command spool file to name the directory of its segments.
+     */
+    public static final String DIRECTORY_SUFFIX = ".segments";
+
+    /**
+     * Logger
+     */
+    private static final Logger LOG = CommI18NFactory.getLogger(SegmentedPersistentFifo.class);
+
+    private static final int MAGIC = 0x52485153;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int READ_OFFSET_POSITION = 8;
+    private static final int ENTRY_HEADER_SIZE = 8;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+
+    /**
+     * The smallest and largest sizes of a segment. Within those bounds, a segment is a tenth of the maximum size so
+     * that a purge drops a reasonably small share of the entries.
+     */
+    private static final int MIN_SEGMENT_SIZE = 64 * 1024;
+    private static final int MAX_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private final File m_directory;
+    private final long m_maxSizeBytes; // total size of the segments that, when exceeded, triggers a purge
+    private final long m_purgeResultMaxBytes; // the total size the segments must be less than after a purge
+    private final boolean m_compress; // will be true if we are to compress the data before persisting
+    private final int m_segmentSize;
+    private final CRC32 m_crc = new CRC32();
+
+    private final LinkedList<Segment> m_segments = new LinkedList<Segment>(); // oldest first, the last is appended to
+    private long m_nextSequence;
+    private long m_count; // the current count of entries in the FIFO
+    private long m_totalBytes; // the current size of all the segment files
+
+    /**
+     * Creates a new {@link SegmentedPersistentFifo} object, recovering the entries of the segments found in the given
+     * directory. The meaning of the parameters is the same as for {@link PersistentFifo}, the size applies to the
+     * total size of the segment files.
+     *
+     * @param  directory        the directory containing the segment files, created if it does not exist
+     * @param  max_size_bytes   the maximum size, in bytes, the segments are allowed to grow before a purge is
+     *                          triggered
+     * @param  purge_percentage when a purge is triggered, it will delete enough of the oldest segments to lower the
+     *                          amount of used space down to this percentage of the total max space
+     * @param  compress         if <code>true</code>, the data spooled to the segments should be compressed
+     *
+     * @throws IOException              if the directory does not exist but cannot be created
+     * @throws IllegalArgumentException if purge_percentage is not between 0 and 99 or max_size_bytes is less than 1000
+     */
+    public SegmentedPersistentFifo(File directory, long max_size_bytes, int purge_percentage, boolean compress)
+        throws IOException {
+        if ((purge_percentage < 0) || (purge_percentage > 99)) {
+            throw new IllegalArgumentException(LOG.getMsgString(CommI18NResourceKeys.INVALID_PURGE_PERCENTAGE,
+                purge_percentage));
+        }
+
+        if (max_size_bytes < 1000L) {
+            throw new IllegalArgumentException(LOG.getMsgString(CommI18NResourceKeys.INVALID_MAX_SIZE, max_size_bytes,
+                1000));
+        }
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create the command spool directory [" + directory + "]");
+        }
+
+        m_directory = directory;
+        m_maxSizeBytes = max_size_bytes;
+        m_purgeResultMaxBytes = (long) (max_size_bytes * (purge_percentage / 100.0f));
+        m_compress = compress;
+        m_segmentSize = (int) Math.max(MIN_SEGMENT_SIZE, Math.min(MAX_SEGMENT_SIZE, max_size_bytes / 10));
+
+        recover();
+    }
+
+    /**
+     * A simple utility that dumps all the data found in the segments of a FIFO to the given stream without taking
+     * anything from it. See {@link PersistentFifo#dumpContents(PrintWriter, File, boolean, int)} for the meaning of
+     * the parameters.
+     *
+     * @param  out           the stream to dump the output
+     * @param  directory     the directory of the FIFO segments
+     * @param  compressed    if <code>true</code>, the entries will be assumed to be compressed
+     * @param  raw_byte_base the base in which to dump the raw bytes, 0 to dump entries as objects, -1 to only dump the
+     *                       number of entries
+     *
+     * @throws IOException
+     */
+    public static void dumpContents(PrintWriter out, File directory, boolean compressed, int raw_byte_base)
+        throws IOException {
+        List<byte[]> entries = new ArrayList<byte[]>();
+        for (File file : listSegmentFiles(directory)) {
+            ByteBuffer buffer = ByteBuffer.wrap(StreamUtil.slurp(new FileInputStream(file)));
+            if (isSegment(buffer)) {
+                int offset = buffer.getInt(READ_OFFSET_POSITION);
+                int end = scanEntries(buffer, new CRC32());
+                while (offset < end) {
+                    byte[] entry = new byte[buffer.getInt(offset)];
+                    buffer.position(offset + ENTRY_HEADER_SIZE);
+                    buffer.get(entry);
+                    entries.add(entry);
+                    offset += ENTRY_HEADER_SIZE + entry.length;
+                }
+            }
+        }
+
+        out.println(directory);
+        out.println(entries.size());
+        out.flush();
+
+        // don't bother to continue, return immediately if caller only wanted to see the number of entries
+        if (raw_byte_base < 0) {
+            return;
+        }
+
+        long entry_num = 0;
+        for (byte[] entry : entries) {
+            PersistentFifo.dumpEntry(out, entry_num++, compressed ? PersistentFifo.decompress(entry) : entry,
+                raw_byte_base);
+        }
+
+        out.flush();
+
+        return;
+    }
+
+    public void putObject(Serializable o) throws IOException, RuntimeException {
+        byte[] serialized_bytes = StreamUtil.serialize(o);
+        put(serialized_bytes);
+        return;
+    }
+
+    public Object takeObject() throws IOException, RuntimeException {
+        Object o = null;
+
+        byte[] serialized_bytes = take();
+        if (serialized_bytes != null) {
+            o = StreamUtil.deserialize(serialized_bytes);
+        }
+
+        return o;
+    }
+
+    public void put(byte[] bytes) throws IOException {
+        if (m_compress) {
+            bytes = PersistentFifo.compress(bytes);
+        }
+
+        synchronized (m_segments) {
+            int entry_size = ENTRY_HEADER_SIZE + bytes.length;
+            Segment tail = m_segments.isEmpty() ? null : m_segments.getLast();
+            if ((tail == null) || (tail.m_writeOffset + entry_size > tail.m_size)) {
+                tail = roll(entry_size);
+            }
+
+            m_crc.reset();
+            m_crc.update(bytes, 0, bytes.length);
+
+            // write the data before the length so an entry that is only partially written is never considered valid
+            MappedByteBuffer buffer = tail.map();
+            buffer.position(tail.m_writeOffset + 4);
+            buffer.putInt((int) m_crc.getValue());
+            buffer.put(bytes);
+            buffer.putInt(tail.m_writeOffset, bytes.length);
+
+            tail.m_writeOffset += entry_size;
+            tail.m_entries++;
+            m_count++;
+
+            // if we went over the maximum size limit, delete the oldest segments to make room
+            if (m_totalBytes > m_maxSizeBytes) {
+                purge();
+            }
+        }
+
+        return;
+    }
+
+    public byte[] take() throws IOException {
+        byte[] entry = null;
+
+        synchronized (m_segments) {
+            while ((entry == null) && !m_segments.isEmpty()) {
+                Segment head = m_segments.getFirst();
+
+                if (head.m_entries == 0) {
+                    if (head == m_segments.getLast()) {
+                        break; // the queue is empty, keep appending to this segment
+                    }
+
+                    delete(m_segments.removeFirst());
+                    continue;
+                }
+
+                MappedByteBuffer buffer = head.map();
+                entry = new byte[buffer.getInt(head.m_readOffset)];
+                buffer.position(head.m_readOffset + ENTRY_HEADER_SIZE);
+                buffer.get(entry);
+
+                head.m_readOffset += ENTRY_HEADER_SIZE + entry.length;
+                head.m_entries--;
+                m_count--;
+                buffer.putInt(READ_OFFSET_POSITION, head.m_readOffset);
+
+                if ((head.m_entries == 0) && (head != m_segments.getLast())) {
+                    delete(m_segments.removeFirst());
+                }
+            }
+        }
+
+        if ((entry != null) && m_compress) {
+            entry = PersistentFifo.decompress(entry);
+        }
+
+        return entry;
+    }
+
+    public boolean isEmpty() {
+        return count() == 0;
+    }
+
+    public long count() {
+        synchronized (m_segments) {
+            return m_count;
+        }
+    }
+
+    /**
+     * Deletes all the entries and their segment files.
+     */
+    public void clear() {
+        synchronized (m_segments) {
+            while (!m_segments.isEmpty()) {
+                delete(m_segments.removeFirst());
+            }
+
+            m_count = 0L;
+        }
+
+        return;
+    }
+
+    /**
+     * Flushes the entries written to the last segment to disk.
+     */
+    public void force() {
+        synchronized (m_segments) {
+            if (!m_segments.isEmpty() && (m_segments.getLast().m_buffer != null)) {
+                m_segments.getLast().m_buffer.force();
+            }
+        }
+
+        return;
+    }
+
+    /**
+     * Loads the segments left over from a previous run. Segments whose entries have all been taken are deleted.
+     *
+     * @throws IOException
+     */
+    private void recover() throws IOException {
+        synchronized (m_segments) {
+            File[] files = listSegmentFiles(m_directory);
+
+            for (int i = 0; i < files.length; i++) {
+                File file = files[i];
+                m_nextSequence = Math.max(m_nextSequence, sequenceOf(file) + 1);
+
+                Segment segment = new Segment(file, (int) file.length());
+                MappedByteBuffer buffer = segment.map();
+                if (!isSegment(buffer)) {
+                    segment.unmap();
+                    LOG.warn(CommI18NResourceKeys.SEGMENTED_FIFO_INVALID_SEGMENT, file);
+                    continue;
+                }
+
+                segment.m_writeOffset = scanEntries(buffer, m_crc);
+                segment.m_readOffset = Math.min(buffer.getInt(READ_OFFSET_POSITION), segment.m_writeOffset);
+                if ((segment.m_writeOffset < segment.m_size) && (buffer.getInt(segment.m_writeOffset) != 0)) {
+                    LOG.warn(CommI18NResourceKeys.SEGMENTED_FIFO_CORRUPT_SEGMENT, file, segment.m_writeOffset);
+                }
+
+                for (int offset = segment.m_readOffset; offset < segment.m_writeOffset; segment.m_entries++) {
+                    offset += ENTRY_HEADER_SIZE + buffer.getInt(offset);
+                }
+
+                m_totalBytes += segment.m_size;
+                m_count += segment.m_entries;
+                m_segments.add(segment);
+                if (i < files.length - 1) {
+                    // only the last segment is appended to, the others are mapped when their entries are taken
+                    segment.unmap();
+                }
+            }
+
+            // drop the segments with no entries left, except the last one which is appended to
+            while ((m_segments.size() > 1) && (m_segments.getFirst().m_entries == 0)) {
+                delete(m_segments.removeFirst());
+            }
+        }
+
+        return;
+    }
+
+    /**
+     * Starts a new segment to append to. The segment that was appended to so far is no longer mapped, unless its
+     * entries are being taken.
+     *
+     * @param  entry_size the size of the entry that is to be appended
+     *
+     * @return the new segment
+     *
+     * @throws IOException
+     */
+    private Segment roll(int entry_size) throws IOException {
+        // keep the segment that is appended to so far mapped if its entries are being taken
+        if (m_segments.size() > 1) {
+            m_segments.getLast().unmap();
+        }
+
+        File file = new File(m_directory, SEGMENT_PREFIX + (m_nextSequence++) + SEGMENT_SUFFIX);
+        Segment segment = new Segment(file, Math.max(m_segmentSize, HEADER_SIZE + entry_size));
+        MappedByteBuffer buffer = segment.map();
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(READ_OFFSET_POSITION, HEADER_SIZE);
+        segment.m_readOffset = HEADER_SIZE;
+        segment.m_writeOffset = HEADER_SIZE;
+
+        m_totalBytes += segment.m_size;
+        m_segments.add(segment);
+
+        return segment;
+    }
+
+    /**
+     * Deletes the oldest segments, except the one that is appended to, until the total size is under the purge
+     * limit.
+     */
+    private void purge() {
+        long purged = 0L;
+
+        while ((m_totalBytes > m_purgeResultMaxBytes) && (m_segments.size() > 1)) {
+            Segment oldest = m_segments.removeFirst();
+            purged += oldest.m_entries;
+            m_count -= oldest.m_entries;
+            delete(oldest);
+        }
+
+        if (purged > 0) {
+            LOG.warn(CommI18NResourceKeys.SEGMENTED_FIFO_PURGED, m_directory, m_maxSizeBytes, purged);
+        }
+
+        return;
+    }
+
+    private void delete(Segment segment) {
+        segment.unmap();
+        m_totalBytes -= segment.m_size;
+
+        if (!segment.m_file.delete() && segment.m_file.exists()) {
+            // some platforms do not allow deleting a file that is still mapped; since all of its entries have been
+            // taken or purged, it is deleted the next time the segments are recovered
+            LOG.warn(CommI18NResourceKeys.SEGMENTED_FIFO_DELETE_FAILED, segment.m_file);
+            segment.m_file.deleteOnExit();
+        }
+
+        return;
+    }
+
+    /**
+     * @return the offset right after the last valid entry of the segment
+     */
+    private static int scanEntries(ByteBuffer buffer, CRC32 crc) {
+        int offset = HEADER_SIZE;
+        int limit = buffer.limit();
+
+        while (offset + ENTRY_HEADER_SIZE <= limit) {
+            int length = buffer.getInt(offset);
+            if ((length <= 0) || (length > limit - offset - ENTRY_HEADER_SIZE)) {
+                break;
+            }
+
+            byte[] entry = new byte[length];
+            buffer.position(offset + ENTRY_HEADER_SIZE);
+            buffer.get(entry);
+            crc.reset();
+            crc.update(entry, 0, length);
+            if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+                break;
+            }
+
+            offset += ENTRY_HEADER_SIZE + length;
+        }
+
+        return offset;
+    }
+
+    private static boolean isSegment(ByteBuffer buffer) {
+        return (buffer.limit() >= HEADER_SIZE) && (buffer.getInt(0) == MAGIC) && (buffer.getInt(4) == VERSION);
+    }
+
+    private static File[] listSegmentFiles(File directory) {
+        File[] files = directory.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.isFile() && (sequenceOf(file) >= 0);
+            }
+        });
+
+        if (files == null) {
+            return new File[0];
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File left, File right) {
+                long left_sequence = sequenceOf(left);
+                long right_sequence = sequenceOf(right);
+                return (left_sequence < right_sequence) ? -1 : ((left_sequence == right_sequence) ? 0 : 1);
+            }
+        });
+
+        return files;
+    }
+
+    private static long sequenceOf(File file) {
+        String name = file.getName();
+        if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+            return -1L;
+        }
+
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1L;
+        }
+    }
+
+    /**
+     * A segment file along with the state needed to append to it and take from it.
+     */
+    private static class Segment {
+        private final File m_file;
+        private final int m_size;
+        private MappedByteBuffer m_buffer;
+        private int m_readOffset; // the offset of the next entry to take
+        private int m_writeOffset; // the offset right after the last entry
+        private int m_entries; // the number of entries not yet taken
+
+        Segment(File file, int size) {
+            m_file = file;
+            m_size = size;
+        }
+
+        /**
+         * Maps the segment file, which is created with the segment size if it does not exist yet.
+         */
+        MappedByteBuffer map() throws IOException {
+            if (m_buffer == null) {
+                RandomAccessFile raf = new RandomAccessFile(m_file, "rw");
+                try {
+                    if (raf.length() < m_size) {
+                        raf.setLength(m_size);
+                    }
+                    // the mapping stays valid after the file is closed
+                    m_buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, m_size);
+                } finally {
+                    raf.close();
+                }
+            }
+
+            return m_buffer;
+        }
+
+        void unmap() {
+            if (m_buffer != null) {
+                m_buffer.force();
+                m_buffer = null;
+            }
+        }
+    }
+}
@@ -24,6 +24,7 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.Hashtable;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import mazz.i18n.Logger;
 import org.jboss.remoting.invocation.NameBasedInvocation;
 import org.rhq.core.communications.command.annotation.LimitedConcurrency;
@@ -61,6 +62,12 @@ public class RemotePojoInvocationCommandService extends CommandService implement
      */
     private Map<String, Object> m_remotedPojos;
 
+    /**
+     * The methods that have been invoked so far, keyed on their interface name, method name and signature (see
+     * {@link #getDispatchKey(String, String, String[])}). This avoids the reflection lookups on every invocation.
+     */
+    private Map<String, Dispatch> m_dispatchTable;
+
     /**
      * @see CommandMBean#startService()
      */
@@ -69,6 +76,7 @@ public class RemotePojoInvocationCommandService extends CommandService implement
         super.startService();
 
         m_remotedPojos = new Hashtable<String, Object>();
+        m_dispatchTable = new ConcurrentHashMap<String, Dispatch>();
     }
 
     /**
@@ -79,6 +87,7 @@ public class RemotePojoInvocationCommandService extends CommandService implement
         super.stopService();
 
         m_remotedPojos.clear();
+        m_dispatchTable.clear();
     }
 
     /**
@@ -137,7 +146,6 @@ public class RemotePojoInvocationCommandService extends CommandService implement
         String method_name = invocation.getMethodName();
         Object[] params = invocation.getParameters();
         String[] signature = invocation.getSignature();
-        Class<?>[] class_signature = new Class[signature.length];
 
         Permit permit = null;
         Method pojo_method = null;
@@ -154,17 +162,12 @@ public class RemotePojoInvocationCommandService extends CommandService implement
                 throw new NoSuchMethodException(LOG.getMsgString(CommI18NResourceKeys.NO_POJO_SERVICE, command));
             }
 
-            for (int x = 0; x < signature.length; x++) {
-                class_signature[x] = ClassUtil.getClassFromTypeName(signature[x]);
-            }
+            Dispatch dispatch = getDispatch(pojo, target_interface_name, method_name, signature);
 
             // If the remote POJO interface method has limited concurrency allowed, we need to make
-            // sure we have permission to invoke that method. None of these calls should throw an exception.
-            Class<?> target_interface = Class.forName(target_interface_name);
-            Method target_method = target_interface.getMethod(method_name, class_signature);
-            LimitedConcurrency limited_concurrency = target_method.getAnnotation(LimitedConcurrency.class);
-            if ((limited_concurrency != null) && (concurrency_manager != null)) {
-                permit = concurrency_manager.getPermit(limited_concurrency.value());
+            // sure we have permission to invoke that method.
+            if ((dispatch.m_limitedConcurrency != null) && (concurrency_manager != null)) {
+                permit = concurrency_manager.getPermit(dispatch.m_limitedConcurrency);
             }
 
             // if a parameter is a remote stream, we have to create a sender for it to use
@@ -180,7 +183,7 @@ public class RemotePojoInvocationCommandService extends CommandService implement
             }
 
             // use reflection to make the call
-            pojo_method = pojo.getClass().getMethod(method_name, class_signature);
+            pojo_method = dispatch.m_pojoMethod;
             Object response_object = pojo_method.invoke(pojo, params);
 
             response = new RemotePojoInvocationCommandResponse(remote_pojo_command, response_object);
@@ -214,6 +217,69 @@ public class RemotePojoInvocationCommandService extends CommandService implement
         return response;
     }
 
+    /**
+     * Returns the resolved methods to invoke for the given POJO method. They are looked up once and then taken from
+     * the {@link #m_dispatchTable dispatch table}, unless the POJO that implements the interface has been replaced by
+     * an instance of another class.
+     *
+     * @param  pojo                  the remote POJO to be invoked
+     * @param  target_interface_name the name of the remote interface the POJO implements
+     * @param  method_name           the name of the method to invoke
+     * @param  signature             the names of the method's parameter types
+     *
+     * @return the resolved methods
+     *
+     * @throws ClassNotFoundException if the interface or one of the parameter types does not exist
+     * @throws NoSuchMethodException  if the interface or the POJO does not have the method
+     */
+    private Dispatch getDispatch(Object pojo, String target_interface_name, String method_name, String[] signature)
+        throws ClassNotFoundException, NoSuchMethodException {
+        String key = getDispatchKey(target_interface_name, method_name, signature);
+        Dispatch dispatch = m_dispatchTable.get(key);
+
+        if ((dispatch == null) || !dispatch.m_pojoMethod.getDeclaringClass().isInstance(pojo)) {
+            Class<?>[] class_signature = new Class[signature.length];
+
+            for (int x = 0; x < signature.length; x++) {
+                class_signature[x] = ClassUtil.getClassFromTypeName(signature[x]);
+            }
+
+            Class<?> target_interface = Class.forName(target_interface_name);
+            Method target_method = target_interface.getMethod(method_name, class_signature);
+            LimitedConcurrency limited_concurrency = target_method.getAnnotation(LimitedConcurrency.class);
+
+            dispatch = new Dispatch(pojo.getClass().getMethod(method_name, class_signature),
+                (limited_concurrency != null) ? limited_concurrency.value() : null);
+            m_dispatchTable.put(key, dispatch);
+        }
+
+        return dispatch;
+    }
+
+    /**
+     * Builds the key of a method in the {@link #m_dispatchTable dispatch table}.
+     *
+     * @param  target_interface_name the name of the remote interface
+     * @param  method_name           the name of the method
+     * @param  signature             the names of the method's parameter types
+     *
+     * @return the key that uniquely identifies the method
+     */
+    private static String getDispatchKey(String target_interface_name, String method_name, String[] signature) {
+        StringBuilder key = new StringBuilder(target_interface_name.length() + method_name.length() + 64);
+        key.append(target_interface_name).append('.').append(method_name).append('(');
+
+        for (int x = 0; x < signature.length; x++) {
+            if (x > 0) {
+                key.append(',');
+            }
+
+            key.append(signature[x]);
+        }
+
+        return key.append(')').toString();
+    }
+
     /**
      * Supports {@link RemotePojoInvocationCommand#COMMAND_TYPE}.
      *
@@ -314,4 +380,24 @@ public class RemotePojoInvocationCommandService extends CommandService implement
         // didn't match any of the method's declared exceptions - wrap it
         return new WrappedRemotingException(e);
     }
-}
\ No newline at end of file
+
+    /**
+     * A method of a remote POJO along with what it takes to invoke it.
+     */
+    private static class Dispatch {
+        /**
+         * The method of the POJO class to invoke.
+         */
+        private final Method m_pojoMethod;
+
+        /**
+         * The name of the concurrency limit of the interface method, <code>null</code> if it is not limited.
+         */
+        private final String m_limitedConcurrency;
+
+        Dispatch(Method pojo_method, String limited_concurrency) {
+            m_pojoMethod = pojo_method;
+            m_limitedConcurrency = limited_concurrency;
+        }
+    }
+}
@@ -237,6 +237,18 @@ public interface CommI18NResourceKeys {
         @I18NMessage(value = "Die Maximalgrüße [{0}] muss größer oder gleich [{1}] sein", locale = "de") })
     String INVALID_MAX_SIZE = "PersistentFifo.invalid-max-size";
 
+    @I18NMessages( { @I18NMessage("[{0}] is not a command spool segment - it will be ignored") })
+    String SEGMENTED_FIFO_INVALID_SEGMENT = "SegmentedPersistentFifo.invalid-segment";
+
+    @I18NMessages( { @I18NMessage("Command spool segment [{0}] is corrupt at offset [{1}] - the entries after that offset are lost") })
+    String SEGMENTED_FIFO_CORRUPT_SEGMENT = "SegmentedPersistentFifo.corrupt-segment";
+
+    @I18NMessages( { @I18NMessage("The command spool [{0}] grew beyond [{1}] bytes - [{2}] of the oldest entries were dropped") })
+    String SEGMENTED_FIFO_PURGED = "SegmentedPersistentFifo.purged";
+
+    @I18NMessages( { @I18NMessage("Failed to delete the consumed command spool segment [{0}] - it will be deleted later") })
+    String SEGMENTED_FIFO_DELETE_FAILED = "SegmentedPersistentFifo.delete-failed";
+
     @I18NMessages( { @I18NMessage("Failed to execute remote POJO method [{0}]. Cause: {1}") })
     String CLIENT_REMOTE_POJO_INVOKER_EXECUTION_FAILURE = "ClientRemotePojoFactory.execution-failure";
 
@@ -346,6 +358,9 @@ public interface CommI18NResourceKeys {
     @I18NMessages( { @I18NMessage("Cannot access the command spool file [{0}] - cannot guarantee the delivery of commands to [{1}]. Cause: {2}") })
     String CLIENT_COMMAND_SENDER_COMMAND_SPOOL_ACCESS_ERROR = "ClientCommandSender.command-spool-access-error";
 
+    @I18NMessages( { @I18NMessage("Moved [{0}] spooled commands from the command spool [{1}] to [{2}]") })
+    String CLIENT_COMMAND_SENDER_COMMAND_SPOOL_CONVERTED = "ClientCommandSender.command-spool-converted";
+
     @I18NMessages( { @I18NMessage("Failed to queue up the previously queued tasks - some commands are lost for [{0}]") })
     String CLIENT_COMMAND_SENDER_REQUEUE_FAILED = "ClientCommandSender.requeue-failed";
 
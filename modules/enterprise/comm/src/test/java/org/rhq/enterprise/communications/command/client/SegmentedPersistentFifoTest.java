@@ -0,0 +1,195 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2014 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.communications.command.client;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the segmented persistent fifo.
+ */
+@Test(groups = "comm.client")
+public class SegmentedPersistentFifoTest {
+    private File fifoDir;
+
+    @BeforeMethod
+    public void createFifoDir() {
+        fifoDir = new File(System.getProperty("java.io.tmpdir"), "TEST-SEGMENTS-" + System.nanoTime());
+    }
+
+    @AfterMethod
+    public void deleteFifoDir() {
+        File[] files = fifoDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+
+        fifoDir.delete();
+    }
+
+    /**
+     * Tests putting and taking from fifo.
+     */
+    public void testFifo() throws Exception {
+        doFifoTests(false);
+    }
+
+    /**
+     * Tests putting and taking from fifo.
+     */
+    public void testFifoCompressed() throws Exception {
+        doFifoTests(true);
+    }
+
+    /**
+     * Tests that the entries not yet taken survive reopening the fifo.
+     */
+    public void testRecover() throws Exception {
+        SegmentedPersistentFifo fifo = new SegmentedPersistentFifo(fifoDir, 10000000L, 75, false);
+        for (int i = 0; i < 5000; i++) {
+            fifo.putObject("entry-" + i);
+        }
+
+        for (int i = 0; i < 1234; i++) {
+            assert ("entry-" + i).equals(fifo.takeObject()) : "entries should be taken in order";
+        }
+
+        fifo.force();
+
+        fifo = new SegmentedPersistentFifo(fifoDir, 10000000L, 75, false);
+        assert fifo.count() == 5000 - 1234 : "count should be " + (5000 - 1234) + " but was " + fifo.count();
+
+        for (int i = 1234; i < 5000; i++) {
+            assert ("entry-" + i).equals(fifo.takeObject()) : "taken entries should not be taken again";
+        }
+
+        assert fifo.takeObject() == null : "SHOULD NOT BE ABLE TO TAKE";
+        assert fifoDir.listFiles().length == 1 : "consumed segments should have been deleted";
+    }
+
+    /**
+     * Tests that the oldest entries are dropped when the fifo grows beyond its max size.
+     */
+    public void testPurge() throws Exception {
+        SegmentedPersistentFifo fifo = new SegmentedPersistentFifo(fifoDir, 500000L, 50, false);
+        byte[] entry = new byte[1000];
+        for (int i = 0; i < 2000; i++) {
+            fifo.put(entry);
+        }
+
+        long size = 0L;
+        for (File file : fifoDir.listFiles()) {
+            size += file.length();
+        }
+
+        assert size <= 500000L : "segments should not be larger than the max size: " + size;
+        assert fifo.count() < 2000 : "the oldest entries should have been dropped";
+        assert fifo.count() * 1008 <= size : "the count should match the entries left: " + fifo.count();
+
+        long taken = 0L;
+        while (fifo.take() != null) {
+            taken++;
+        }
+
+        assert taken > 0 : "the newest entries should have been kept";
+        assert fifo.count() == 0 : "count should be 0";
+    }
+
+    /**
+     * Tests that an entry that was being written when the process died is not taken.
+     */
+    public void testTornEntry() throws Exception {
+        SegmentedPersistentFifo fifo = new SegmentedPersistentFifo(fifoDir, 1000000L, 75, false);
+        fifo.put("Mazz Was Here 1".getBytes());
+        fifo.put("Mazz Was Here 2!".getBytes());
+        fifo.put("Mazz Was Here 3!!".getBytes());
+        fifo.force();
+
+        // corrupt the data of the last entry
+        RandomAccessFile raf = new RandomAccessFile(fifoDir.listFiles()[0], "rw");
+        try {
+            raf.seek(16 + (8 + 15) + (8 + 16) + 8);
+            raf.write('X');
+        } finally {
+            raf.close();
+        }
+
+        fifo = new SegmentedPersistentFifo(fifoDir, 1000000L, 75, false);
+        assert fifo.count() == 2 : "count should be 2 but was " + fifo.count();
+        assert "Mazz Was Here 1".equals(new String(fifo.take()));
+        assert "Mazz Was Here 2!".equals(new String(fifo.take()));
+        assert fifo.take() == null : "SHOULD NOT BE ABLE TO TAKE";
+
+        // the corrupt entry is overwritten by the next one
+        fifo.put("Mazz Was Here 4!!!".getBytes());
+        assert "Mazz Was Here 4!!!".equals(new String(fifo.take()));
+    }
+
+    private void doFifoTests(boolean compress) throws Exception {
+        SegmentedPersistentFifo fifo = new SegmentedPersistentFifo(fifoDir, 2000000L, 75, compress);
+
+        assert fifo.take() == null : "SHOULD NOT BE ABLE TO TAKE";
+        assert fifo.isEmpty() : "SHOULD BE EMPTY";
+        assert fifo.count() == 0 : "SHOULD BE EMPTY - count should be 0";
+
+        fifo.put("Mazz Was Here 1".getBytes());
+
+        assert !fifo.isEmpty() : "SHOULD NOT BE EMPTY";
+        assert fifo.count() == 1 : "count should be 1";
+        assert "Mazz Was Here 1".equals(new String(fifo.take()));
+
+        assert fifo.take() == null : "SHOULD NOT BE ABLE TO TAKE";
+        assert fifo.isEmpty() : "SHOULD BE EMPTY";
+
+        // enough entries to span several segments
+        for (int i = 0; i < 20000; i++) {
+            fifo.put(("0123456789012345678901234567890123456789x-" + i).getBytes());
+        }
+
+        assert fifo.count() == 20000 : "count should be 20000 but was " + fifo.count();
+        assert fifoDir.listFiles().length > 1 : "entries should span several segments";
+
+        for (int i = 0; i < 10000; i++) {
+            assert ("0123456789012345678901234567890123456789x-" + i).equals(new String(fifo.take()));
+        }
+
+        fifo.putObject(new float[] { 0.0f, 1.1f, 2.2f });
+
+        for (int i = 10000; i < 20000; i++) {
+            assert ("0123456789012345678901234567890123456789x-" + i).equals(new String(fifo.take()));
+        }
+
+        float[] floats = (float[]) fifo.takeObject();
+        assert floats.length == 3 && floats[2] == 2.2f : "Failed to properly put/take object";
+
+        assert fifo.take() == null : "SHOULD NOT BE ABLE TO TAKE";
+        assert fifo.count() == 0 : "count should be 0";
+
+        fifo.put("Mazz Was Here 2!".getBytes());
+        fifo.clear();
+
+        assert fifo.take() == null : "SHOULD NOT BE ABLE TO TAKE";
+        assert fifo.count() == 0 : "count should be 0";
+    }
+}
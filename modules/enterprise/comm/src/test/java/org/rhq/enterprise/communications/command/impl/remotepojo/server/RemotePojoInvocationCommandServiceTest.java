@@ -0,0 +1,188 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2014 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.communications.command.impl.remotepojo.server;
+
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Map;
+import org.jboss.remoting.invocation.NameBasedInvocation;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.rhq.core.communications.command.annotation.LimitedConcurrency;
+import org.rhq.enterprise.communications.ServiceContainer;
+import org.rhq.enterprise.communications.command.CommandResponse;
+import org.rhq.enterprise.communications.command.impl.remotepojo.RemotePojoInvocationCommand;
+import org.rhq.enterprise.communications.util.ConcurrencyManager;
+import org.rhq.enterprise.communications.util.ConcurrencyManager.Permit;
+import org.rhq.enterprise.communications.util.NotPermittedException;
+
+/**
+ * Tests the dispatch table of the remote POJO invocation command service.
+ */
+@Test
+public class RemotePojoInvocationCommandServiceTest {
+    private RemotePojoInvocationCommandService service;
+    private ConcurrencyManager concurrencyManager;
+
+    @BeforeMethod
+    public void startService() {
+        Map<String, Integer> limits = new HashMap<String, Integer>();
+        limits.put("echoLimited", 1);
+        concurrencyManager = new ConcurrencyManager(limits);
+
+        ServiceContainer container = new ServiceContainer();
+        container.setConcurrencyManager(concurrencyManager);
+
+        service = new RemotePojoInvocationCommandService();
+        service.setServiceContainer(container);
+        service.startService();
+    }
+
+    @AfterMethod
+    public void stopService() {
+        service.stopService();
+    }
+
+    /**
+     * Tests that the second invocation of a method is dispatched with the cached method.
+     *
+     * @throws Exception
+     */
+    public void testCacheHit() throws Exception {
+        service.addPojo(new EchoPojoA(concurrencyManager), IEchoPojo.class);
+
+        assert "A:one".equals(invoke("echo", "one"));
+        Object dispatch = getDispatchTable().get(getEchoKey());
+        assert dispatch != null : "The method should have been added to the dispatch table";
+
+        assert "A:two".equals(invoke("echo", "two"));
+        assert getDispatchTable().size() == 1 : "Unexpected dispatch table: " + getDispatchTable();
+        assert getDispatchTable().get(getEchoKey()) == dispatch : "The cached method should have been used";
+    }
+
+    /**
+     * Tests that the concurrency limit of the interface method is still enforced when the method is cached.
+     *
+     * @throws Exception
+     */
+    public void testCacheHitAcquiresPermit() throws Exception {
+        service.addPojo(new EchoPojoA(concurrencyManager), IEchoPojo.class);
+
+        // the POJO reports whether it could get a permit itself, which it can't while the service holds the only one
+        assert "A:blocked".equals(invoke("echoLimited", "one"));
+        assert "A:blocked".equals(invoke("echoLimited", "two"));
+
+        // the service must have released its permit after each call
+        Permit permit = concurrencyManager.getPermit("echoLimited");
+        concurrencyManager.releasePermit(permit);
+    }
+
+    /**
+     * Tests that the method is resolved again after the POJO has been replaced by an instance of another class.
+     *
+     * @throws Exception
+     */
+    public void testPojoReplacedByAnotherClass() throws Exception {
+        service.addPojo(new EchoPojoA(concurrencyManager), IEchoPojo.class);
+        assert "A:one".equals(invoke("echo", "one"));
+        Object dispatch = getDispatchTable().get(getEchoKey());
+
+        service.addPojo(new EchoPojoB(), IEchoPojo.class);
+
+        // invoking the cached method of EchoPojoA on an EchoPojoB would fail
+        assert "B:two".equals(invoke("echo", "two"));
+        assert getDispatchTable().get(getEchoKey()) != dispatch : "The method should have been resolved again";
+        assert "B:three".equals(invoke("echo", "three"));
+    }
+
+    /**
+     * Tests that the dispatch table is emptied when the service stops.
+     *
+     * @throws Exception
+     */
+    public void testStopClearsDispatchTable() throws Exception {
+        service.addPojo(new EchoPojoA(concurrencyManager), IEchoPojo.class);
+        assert "A:one".equals(invoke("echo", "one"));
+
+        service.stopService();
+
+        assert getDispatchTable().isEmpty() : "Unexpected dispatch table: " + getDispatchTable();
+    }
+
+    private Object invoke(String methodName, String param) throws Exception {
+        RemotePojoInvocationCommand command = new RemotePojoInvocationCommand();
+        command.setTargetInterfaceName(IEchoPojo.class.getName());
+        command.setNameBasedInvocation(new NameBasedInvocation(methodName, new Object[] { param },
+            new String[] { String.class.getName() }));
+
+        CommandResponse response = service.execute(command, null, null);
+        assert response.isSuccessful() : "The invocation failed: " + response;
+
+        return response.getResults();
+    }
+
+    private String getEchoKey() {
+        return IEchoPojo.class.getName() + ".echo(" + String.class.getName() + ")";
+    }
+
+    private Map<?, ?> getDispatchTable() throws Exception {
+        Field field = RemotePojoInvocationCommandService.class.getDeclaredField("m_dispatchTable");
+        field.setAccessible(true);
+        return (Map<?, ?>) field.get(service);
+    }
+
+    public interface IEchoPojo {
+        String echo(String str);
+
+        @LimitedConcurrency("echoLimited")
+        String echoLimited(String str);
+    }
+
+    public static class EchoPojoA implements IEchoPojo {
+        private final ConcurrencyManager concurrencyManager;
+
+        public EchoPojoA(ConcurrencyManager concurrencyManager) {
+            this.concurrencyManager = concurrencyManager;
+        }
+
+        public String echo(String str) {
+            return "A:" + str;
+        }
+
+        public String echoLimited(String str) {
+            try {
+                concurrencyManager.releasePermit(concurrencyManager.getPermit("echoLimited"));
+                return "A:" + str;
+            } catch (NotPermittedException e) {
+                return "A:blocked";
+            }
+        }
+    }
+
+    public static class EchoPojoB implements IEchoPojo {
+        public String echo(String str) {
+            return "B:" + str;
+        }
+
+        public String echoLimited(String str) {
+            return "B:" + str;
+        }
+    }
+}
@@ -981,6 +981,71 @@ public class AvailabilityManagerTest extends AbstractEJB3Test {
         }
     }
 
+    /**
+     * Merges full reports for many resources, like the ones all agents send after a network partition. The number of
+     * resources can be raised with the rhq.test.availability.merge.resources system property, e.g. to 100000.
+     */
+    @Test(enabled = ENABLE_TESTS)
+    public void testFullReportMergePerformance() throws Exception {
+        int numResources = Integer.getInteger("rhq.test.availability.merge.resources", 1000);
+
+        beginTx();
+        List<Resource> allResources = new ArrayList<Resource>();
+
+        try {
+            prepareForTestAgents();
+
+            setupResource(); // setup theResource
+            allResources.add(theResource);
+            for (int i = 1; i < numResources; i++) {
+                allResources.add(setupAnotherResource(i, theResource));
+            }
+            em.flush();
+
+            commitAndClose();
+
+            // the first full report changes every resource from UNKNOWN to UP
+            AvailabilityReport report = new AvailabilityReport(false, theAgent.getName());
+            for (Resource resource : allResources) {
+                report.addAvailability(new Availability(resource, UP));
+            }
+            long start = System.currentTimeMillis();
+            availabilityManager.mergeAvailabilityReport(report);
+            System.out.println("testFullReportMergePerformance: merging " + numResources + " changed avails took "
+                + (System.currentTimeMillis() - start) + "ms");
+
+            long count = countAvailabilitiesInDB();
+
+            // the next full report, with one resource going DOWN, leaves all other resources as they are
+            Thread.sleep(100);
+            report = new AvailabilityReport(false, theAgent.getName());
+            for (Resource resource : allResources) {
+                report.addAvailability(new Availability(resource, (resource == theResource) ? DOWN : UP));
+            }
+            start = System.currentTimeMillis();
+            assert availabilityManager.mergeAvailabilityReport(report) : "Should not have asked for a full report";
+            System.out.println("testFullReportMergePerformance: merging " + numResources + " mostly unchanged "
+                + "avails took " + (System.currentTimeMillis() - start) + "ms");
+
+            assert countAvailabilitiesInDB() == (count + 1) : "Only the avail that changed should have been inserted";
+            assert availabilityManager.getCurrentAvailabilityTypeForResource(overlord, theResource.getId()) == DOWN;
+            Resource lastResource = allResources.get(allResources.size() - 1);
+            assert availabilityManager.getCurrentAvailabilityTypeForResource(overlord, lastResource.getId()) == UP;
+            assert resourceAvailabilityManager.getLatestAvailability(theResource.getId()).getAvailabilityType() == DOWN;
+            assert resourceAvailabilityManager.getLatestAvailability(lastResource.getId()).getAvailabilityType() == UP;
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw e;
+        } finally {
+            unprepareForTestAgents();
+
+            if (Status.STATUS_ACTIVE == getTransactionManager().getStatus()) {
+                getTransactionManager().rollback();
+            }
+        }
+    }
+
     @Test(enabled = ENABLE_TESTS)
     public void testAgentOldReport() throws Exception {
         beginTx();
@@ -266,6 +266,37 @@ public class ExpressionEvaluatorTest extends AbstractEJB3Test {
         }
     }
 
+    @Test(groups = "integration.session")
+    public void testIncrementalEvaluation() throws Exception {
+        ExpressionEvaluator evaluator = new ExpressionEvaluator();
+        evaluator.setTestMode(true); // to prevent actual query from happening
+        evaluator.addExpression("resource.type.plugin = JBossAS");
+        evaluator.addExpression("resource.trait[partitionName] = DefaultPartition");
+        evaluator.addExpression("groupby resource.pluginConfiguration[bindAddress]");
+        assert evaluator.isResourceLocal();
+        assert evaluator.getTraitNames().equals(Collections.singleton("partitionName")) : evaluator.getTraitNames();
+        assert evaluator.isPluginConfigurationDependent();
+
+        evaluator.setResourceIdFilter(Arrays.asList(1, 2, 3));
+        evaluator.execute();
+        assert evaluator.getComputedJPQLStatement().contains("res.id IN ( :resourceIds )") : evaluator
+            .getComputedJPQLStatement();
+        assert evaluator.getComputedJPQLGroupStatement().contains("res.id IN ( :resourceIds )") : evaluator
+            .getComputedJPQLGroupStatement();
+
+        evaluator = new ExpressionEvaluator();
+        evaluator.setTestMode(true);
+        evaluator.addExpression("resource.parent.name = joseph");
+        assert !evaluator.isResourceLocal();
+        assert evaluator.getTraitNames().isEmpty();
+        assert !evaluator.isPluginConfigurationDependent();
+
+        evaluator = new ExpressionEvaluator();
+        evaluator.setTestMode(true);
+        evaluator.addExpression("memberof = GroupName");
+        assert !evaluator.isResourceLocal();
+    }
+
     private static interface ExpressionGenerator {
         String[] getExpressions();
     }
@@ -0,0 +1,220 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2014 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.server.resource.group.definition.test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.testng.annotations.Test;
+
+import org.rhq.core.domain.auth.Subject;
+import org.rhq.core.domain.resource.InventoryStatus;
+import org.rhq.core.domain.resource.Resource;
+import org.rhq.core.domain.resource.ResourceCategory;
+import org.rhq.core.domain.resource.ResourceType;
+import org.rhq.core.domain.resource.group.GroupDefinition;
+import org.rhq.enterprise.server.resource.group.definition.GroupDefinitionManagerLocal;
+import org.rhq.enterprise.server.test.AbstractEJB3Test;
+import org.rhq.enterprise.server.test.TransactionCallback;
+import org.rhq.enterprise.server.util.LookupUtil;
+import org.rhq.enterprise.server.util.ResourceTreeHelper;
+
+/**
+ * Tests the incremental recalculation of the DynaGroups of a group definition that groups its members by version.
+ */
+@Test
+public class GroupDefinitionManagerBeanTest extends AbstractEJB3Test {
+
+    private GroupDefinitionManagerLocal groupDefinitionManager;
+    private Subject overlord;
+
+    private ResourceType resourceType;
+    private Resource[] resources;
+    private GroupDefinition groupDefinition;
+
+    @Override
+    protected void beforeMethod() throws Exception {
+        groupDefinitionManager = LookupUtil.getGroupDefinitionManager();
+        overlord = LookupUtil.getSubjectManager().getOverlord();
+
+        executeInTransaction(false, new TransactionCallback() {
+            @Override
+            public void execute() throws Exception {
+                resourceType = new ResourceType("GroupDefinitionManagerBeanTest" + System.currentTimeMillis(),
+                    "test", ResourceCategory.PLATFORM, null);
+                em.persist(resourceType);
+
+                resources = new Resource[] { createResource("member-1", "1.0"), createResource("member-2", "1.0"),
+                    createResource("member-3", "2.0"), createResource("member-4", "2.0") };
+            }
+        });
+
+        groupDefinition = new GroupDefinition(resourceType.getName());
+        groupDefinition.setExpression("resource.type.name = " + resourceType.getName() + "\n"
+            + "resource.name.startswith = member\n" + "groupby resource.version");
+        groupDefinition = groupDefinitionManager.createGroupDefinition(overlord, groupDefinition);
+        groupDefinitionManager.calculateGroupMembership(overlord, groupDefinition.getId());
+
+        Map<String, Set<Integer>> members = getMembersByVersion();
+        assertEquals("The full recalculation should have created a group per version", 2, members.size());
+        assertEquals(getIds(0, 1), members.get("1.0"));
+        assertEquals(getIds(2, 3), members.get("2.0"));
+    }
+
+    @Override
+    protected void afterMethod() throws Exception {
+        if (groupDefinition != null && groupDefinition.getId() != 0) {
+            groupDefinitionManager.removeGroupDefinition(overlord, groupDefinition.getId());
+        }
+        groupDefinition = null;
+
+        executeInTransaction(false, new TransactionCallback() {
+            @Override
+            public void execute() throws Exception {
+                for (Resource resource : resources) {
+                    ResourceTreeHelper.deleteResource(em, em.find(Resource.class, resource.getId()));
+                }
+                em.remove(em.find(ResourceType.class, resourceType.getId()));
+            }
+        });
+    }
+
+    public void testMoveMemberToExistingGroup() throws Exception {
+        Map<String, Integer> groupIds = getGroupIdsByVersion();
+
+        updateResource(1, "member-2", "2.0");
+        groupDefinitionManager.calculateGroupMembershipIncrementally(overlord, groupDefinition.getId(),
+            Collections.singletonList(resources[1].getId()));
+
+        Map<String, Set<Integer>> members = getMembersByVersion();
+        assertEquals(2, members.size());
+        assertEquals(getIds(0), members.get("1.0"));
+        assertEquals(getIds(1, 2, 3), members.get("2.0"));
+        assertEquals("The groups should have been updated, not replaced", groupIds, getGroupIdsByVersion());
+    }
+
+    public void testMoveMemberToNewGroup() throws Exception {
+        Map<String, Integer> groupIds = getGroupIdsByVersion();
+
+        updateResource(0, "member-1", "3.0");
+        groupDefinitionManager.calculateGroupMembershipIncrementally(overlord, groupDefinition.getId(),
+            Collections.singletonList(resources[0].getId()));
+
+        Map<String, Set<Integer>> members = getMembersByVersion();
+        assertEquals(3, members.size());
+        assertEquals(getIds(1), members.get("1.0"));
+        assertEquals(getIds(2, 3), members.get("2.0"));
+        assertEquals(getIds(0), members.get("3.0"));
+
+        Map<String, Integer> newGroupIds = getGroupIdsByVersion();
+        assertEquals(groupIds.get("1.0"), newGroupIds.get("1.0"));
+        assertEquals(groupIds.get("2.0"), newGroupIds.get("2.0"));
+    }
+
+    public void testRemoveMemberThatNoLongerMatches() throws Exception {
+        Map<String, Integer> groupIds = getGroupIdsByVersion();
+
+        updateResource(2, "other-3", "2.0");
+        groupDefinitionManager.calculateGroupMembershipIncrementally(overlord, groupDefinition.getId(),
+            Arrays.asList(resources[1].getId(), resources[2].getId()));
+
+        Map<String, Set<Integer>> members = getMembersByVersion();
+        assertEquals(2, members.size());
+        assertEquals(getIds(0, 1), members.get("1.0"));
+        assertEquals(getIds(3), members.get("2.0"));
+        assertEquals("The groups should have been updated, not replaced", groupIds, getGroupIdsByVersion());
+    }
+
+    public void testRemoveManagedResourceGroupMembers() throws Exception {
+        Map<String, Integer> groupIds = getGroupIdsByVersion();
+
+        groupDefinitionManager.removeManagedResourceGroupMembers_helper(overlord, groupIds.get("2.0"),
+            Collections.singletonList(resources[3].getId()));
+
+        Map<String, Set<Integer>> members = getMembersByVersion();
+        assertEquals(getIds(0, 1), members.get("1.0"));
+        assertEquals(getIds(2), members.get("2.0"));
+    }
+
+    private Resource createResource(String name, String version) {
+        Resource resource = new Resource(name + System.currentTimeMillis(), name, resourceType);
+        resource.setUuid(UUID.randomUUID().toString());
+        resource.setVersion(version);
+        resource.setInventoryStatus(InventoryStatus.COMMITTED);
+        em.persist(resource);
+        return resource;
+    }
+
+    private void updateResource(final int index, final String name, final String version) {
+        executeInTransaction(false, new TransactionCallback() {
+            @Override
+            public void execute() throws Exception {
+                Resource resource = em.find(Resource.class, resources[index].getId());
+                resource.setName(name);
+                resource.setVersion(version);
+            }
+        });
+    }
+
+    private Set<Integer> getIds(int... indexes) {
+        Set<Integer> ids = new HashSet<Integer>();
+        for (int index : indexes) {
+            ids.add(resources[index].getId());
+        }
+        return ids;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Set<Integer>> getMembersByVersion() {
+        List<Object[]> rows = getEntityManager().createQuery(
+            "SELECT rg.groupByClause, res.id FROM ResourceGroup rg, IN (rg.explicitResources) res "
+                + "WHERE rg.groupDefinition.id = :groupDefinitionId")
+            .setParameter("groupDefinitionId", groupDefinition.getId()).getResultList();
+
+        Map<String, Set<Integer>> members = new HashMap<String, Set<Integer>>();
+        for (Object[] row : rows) {
+            Set<Integer> ids = members.get(row[0]);
+            if (ids == null) {
+                ids = new HashSet<Integer>();
+                members.put((String) row[0], ids);
+            }
+            ids.add((Integer) row[1]);
+        }
+        return members;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Integer> getGroupIdsByVersion() {
+        List<Object[]> rows = getEntityManager().createQuery(
+            "SELECT rg.groupByClause, rg.id FROM ResourceGroup rg WHERE rg.groupDefinition.id = :groupDefinitionId")
+            .setParameter("groupDefinitionId", groupDefinition.getId()).getResultList();
+
+        Map<String, Integer> groupIds = new HashMap<String, Integer>();
+        for (Object[] row : rows) {
+            groupIds.put((String) row[0], (Integer) row[1]);
+        }
+        return groupIds;
+    }
+}
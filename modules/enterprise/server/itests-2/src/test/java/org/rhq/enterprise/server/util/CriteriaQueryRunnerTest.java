@@ -0,0 +1,154 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2014 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.server.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.UUID;
+
+import javax.persistence.EntityManager;
+
+import org.hibernate.Hibernate;
+import org.hibernate.stat.Statistics;
+import org.testng.annotations.Test;
+
+import org.rhq.core.domain.auth.Subject;
+import org.rhq.core.domain.criteria.ResourceCriteria;
+import org.rhq.core.domain.measurement.DataType;
+import org.rhq.core.domain.measurement.MeasurementDefinition;
+import org.rhq.core.domain.measurement.MeasurementSchedule;
+import org.rhq.core.domain.measurement.NumericType;
+import org.rhq.core.domain.resource.InventoryStatus;
+import org.rhq.core.domain.resource.Resource;
+import org.rhq.core.domain.resource.ResourceCategory;
+import org.rhq.core.domain.resource.ResourceType;
+import org.rhq.core.domain.server.PersistenceUtility;
+import org.rhq.core.domain.tagging.Tag;
+import org.rhq.core.domain.util.PageList;
+import org.rhq.enterprise.server.test.AbstractEJB3Test;
+import org.rhq.enterprise.server.test.TransactionCallback;
+
+/**
+ * Tests that the fetch fields of a page of criteria results are loaded in batches.
+ */
+@Test
+public class CriteriaQueryRunnerTest extends AbstractEJB3Test {
+
+    // more than the hibernate.default_batch_fetch_size, which already loads lazy collections 32 at a time
+    private static final int RESOURCE_COUNT = 100;
+    private static final int DEFAULT_BATCH_FETCH_SIZE = 32;
+    private static final int SCHEDULES_PER_RESOURCE = 2;
+
+    public void testFetchFieldsInBatches() throws Exception {
+        executeInTransaction(new TransactionCallback() {
+            @Override
+            public void execute() throws Exception {
+                EntityManager em = getEntityManager();
+                ResourceType resourceType = createResources(em);
+                em.flush();
+                em.clear();
+
+                Statistics stats = PersistenceUtility.getStatisticsService(em,
+                    ManagementFactory.getPlatformMBeanServer());
+                boolean statisticsEnabled = stats.isStatisticsEnabled();
+                stats.setStatisticsEnabled(true);
+                try {
+                    // initialize the fetch fields of each entity on its own, the way it was done before batching
+                    long start = stats.getPrepareStatementCount();
+                    CriteriaQueryRunner<Resource> runner = createRunner(em, resourceType, false);
+                    PageList<Resource> resources = runner.execute();
+                    for (Resource resource : resources) {
+                        runner.initFetchFields(resource);
+                    }
+                    long perEntityStatements = stats.getPrepareStatementCount() - start;
+                    assertFetchFieldsInitialized(resources);
+                    em.clear();
+
+                    start = stats.getPrepareStatementCount();
+                    resources = createRunner(em, resourceType, true).execute();
+                    long batchStatements = stats.getPrepareStatementCount() - start;
+                    assertFetchFieldsInitialized(resources);
+
+                    // per entity, each of the two fetch fields takes a statement per default batch fetch size of
+                    // entities, in batches a statement for the whole page
+                    assertTrue("Loading the fetch fields in batches took " + batchStatements
+                        + " statements, loading them per entity took " + perEntityStatements,
+                        perEntityStatements - batchStatements >= 2 * (RESOURCE_COUNT / DEFAULT_BATCH_FETCH_SIZE));
+                } finally {
+                    stats.setStatisticsEnabled(statisticsEnabled);
+                }
+            }
+        });
+    }
+
+    private ResourceType createResources(EntityManager em) {
+        String prefix = "CriteriaQueryRunnerTest" + System.currentTimeMillis();
+        ResourceType resourceType = new ResourceType(prefix, "test", ResourceCategory.PLATFORM, null);
+        em.persist(resourceType);
+
+        MeasurementDefinition[] definitions = new MeasurementDefinition[SCHEDULES_PER_RESOURCE];
+        for (int i = 0; i < definitions.length; ++i) {
+            definitions[i] = new MeasurementDefinition(resourceType, prefix + "-metric-" + i);
+            definitions[i].setDataType(DataType.MEASUREMENT);
+            definitions[i].setMeasurementType(NumericType.DYNAMIC);
+            em.persist(definitions[i]);
+        }
+
+        for (int i = 0; i < RESOURCE_COUNT; ++i) {
+            Resource resource = new Resource(prefix + "-key-" + i, prefix + "-" + i, resourceType);
+            resource.setUuid(UUID.randomUUID().toString());
+            resource.setInventoryStatus(InventoryStatus.COMMITTED);
+            em.persist(resource);
+
+            for (MeasurementDefinition definition : definitions) {
+                MeasurementSchedule schedule = new MeasurementSchedule(definition, resource);
+                resource.addSchedule(schedule);
+                em.persist(schedule);
+            }
+
+            Tag tag = new Tag("test", prefix, "tag-" + i);
+            tag.addResource(resource);
+            em.persist(tag);
+        }
+
+        return resourceType;
+    }
+
+    private CriteriaQueryRunner<Resource> createRunner(EntityManager em, ResourceType resourceType,
+        boolean automaticFetching) {
+        ResourceCriteria criteria = new ResourceCriteria();
+        criteria.addFilterResourceTypeId(resourceType.getId());
+        criteria.fetchTags(true);
+        criteria.fetchSchedules(true);
+        criteria.setPaging(0, RESOURCE_COUNT);
+
+        Subject overlord = LookupUtil.getSubjectManager().getOverlord();
+        CriteriaQueryGenerator generator = new CriteriaQueryGenerator(overlord, criteria);
+        return new CriteriaQueryRunner<Resource>(criteria, generator, em, automaticFetching);
+    }
+
+    private void assertFetchFieldsInitialized(PageList<Resource> resources) {
+        assertEquals(RESOURCE_COUNT, resources.size());
+        for (Resource resource : resources) {
+            assertTrue("The tags should have been fetched", Hibernate.isInitialized(resource.getTags()));
+            assertEquals(1, resource.getTags().size());
+            assertTrue("The schedules should have been fetched", Hibernate.isInitialized(resource.getSchedules()));
+            assertEquals(SCHEDULES_PER_RESOURCE, resource.getSchedules().size());
+        }
+    }
+}
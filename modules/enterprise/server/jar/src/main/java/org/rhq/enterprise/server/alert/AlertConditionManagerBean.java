@@ -18,6 +18,7 @@
  */
 package org.rhq.enterprise.server.alert;
 
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
@@ -41,6 +42,7 @@ import org.rhq.core.domain.alert.composite.AbstractAlertConditionCategoryComposi
 import org.rhq.core.domain.auth.Subject;
 import org.rhq.core.domain.authz.Permission;
 import org.rhq.core.domain.criteria.AlertDefinitionCriteria;
+import org.rhq.core.domain.measurement.MeasurementSchedule;
 import org.rhq.core.domain.resource.InventoryStatus;
 import org.rhq.core.domain.server.PersistenceUtility;
 import org.rhq.core.domain.util.PageControl;
@@ -85,11 +87,18 @@ public class AlertConditionManagerBean implements AlertConditionManagerLocal {
         return entityManager.find(AlertCondition.class, alertConditionId);
     }
 
-    @SuppressWarnings("unchecked")
     @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
     @Override
     public PageList<? extends AbstractAlertConditionCategoryComposite> getAlertConditionComposites(Subject user,
         Integer agentId, AlertConditionCategory category, PageControl pageControl) {
+        return getAlertConditionComposites(user, agentId, null, category, pageControl);
+    }
+
+    @SuppressWarnings("unchecked")
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    @Override
+    public PageList<? extends AbstractAlertConditionCategoryComposite> getAlertConditionComposites(Subject user,
+        Integer agentId, Integer resourceId, AlertConditionCategory category, PageControl pageControl) {
         if (authorizationManager.isOverlord(user) == false) {
             throw new PermissionException("User [" + user.getName() + "] does not have permission to call "
                 + "getAlertConditionComposites; only the overlord has that right");
@@ -153,6 +162,8 @@ public class AlertConditionManagerBean implements AlertConditionManagerLocal {
         }
         query.setParameter("agentId", agentId);
         queryCount.setParameter("agentId", agentId);
+        query.setParameter("resourceId", resourceId);
+        queryCount.setParameter("resourceId", resourceId);
 
         long totalCount = (Long) queryCount.getSingleResult();
         List<? extends AbstractAlertConditionCategoryComposite> list = query.getResultList();
@@ -161,6 +172,38 @@ public class AlertConditionManagerBean implements AlertConditionManagerLocal {
         return new PageList<AbstractAlertConditionCategoryComposite>(list, (int) totalCount, pageControl);
     }
 
+    @SuppressWarnings("unchecked")
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    @Override
+    public List<Integer> getResourceIdsWithModifiedAlertDefinitions(Subject user, int agentId, long modifiedSince) {
+        if (authorizationManager.isOverlord(user) == false) {
+            throw new PermissionException("User [" + user.getName() + "] does not have permission to call "
+                + "getResourceIdsWithModifiedAlertDefinitions; only the overlord has that right");
+        }
+
+        Query query = entityManager.createNamedQuery(AlertDefinition.QUERY_FIND_RESOURCE_IDS_WITH_MODIFIED_BY_AGENT);
+        query.setParameter("agentId", agentId);
+        query.setParameter("modifiedSince", modifiedSince);
+        return query.getResultList();
+    }
+
+    @SuppressWarnings("unchecked")
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    @Override
+    public List<Integer> getScheduleIdsForResources(Subject user, List<Integer> resourceIds) {
+        if (authorizationManager.isOverlord(user) == false) {
+            throw new PermissionException("User [" + user.getName() + "] does not have permission to call "
+                + "getScheduleIdsForResources; only the overlord has that right");
+        }
+        if (resourceIds.isEmpty()) {
+            return new ArrayList<Integer>();
+        }
+
+        Query query = entityManager.createNamedQuery(MeasurementSchedule.FIND_IDS_BY_RESOURCE_IDS);
+        query.setParameter("resourceIds", resourceIds);
+        return query.getResultList();
+    }
+
     @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
     @Override
     public InventoryStatus getResourceStatusByConditionIdNewTx(int alertConditionId) {
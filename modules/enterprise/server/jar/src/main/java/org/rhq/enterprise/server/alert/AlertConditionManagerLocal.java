@@ -18,6 +18,8 @@
  */
 package org.rhq.enterprise.server.alert;
 
+import java.util.List;
+
 import javax.ejb.Local;
 
 import org.rhq.core.domain.alert.AlertCondition;
@@ -42,6 +44,27 @@ public interface AlertConditionManagerLocal {
     PageList<? extends AbstractAlertConditionCategoryComposite> getAlertConditionComposites(Subject user,
         Integer agentId, AlertConditionCategory category, PageControl pageControl);
 
+    /**
+     * Same as {@link #getAlertConditionComposites(Subject, Integer, AlertConditionCategory, PageControl)} but
+     * optionally restricted to the conditions of a single resource.
+     *
+     * @param resourceId if not null, only the conditions of this resource's alert definitions are returned
+     */
+    PageList<? extends AbstractAlertConditionCategoryComposite> getAlertConditionComposites(Subject user,
+        Integer agentId, Integer resourceId, AlertConditionCategory category, PageControl pageControl);
+
+    /**
+     * Returns the ids of the resources managed by the given agent having at least one alert definition that was
+     * created, updated, enabled, disabled or deleted after the given time.
+     */
+    List<Integer> getResourceIdsWithModifiedAlertDefinitions(Subject user, int agentId, long modifiedSince);
+
+    /**
+     * Returns the ids of all measurement schedules of the given resources, which are the keys used by the
+     * schedule-based alert condition caches.
+     */
+    List<Integer> getScheduleIdsForResources(Subject user, List<Integer> resourceIds);
+
     InventoryStatus getResourceStatusByConditionIdNewTx(int alertConditionId);
 
     int purgeOrphanedAlertConditions();
@@ -106,6 +106,10 @@ public class AlertConditionCacheManagerBean implements AlertConditionCacheManage
         AlertConditionCacheCoordinator.getInstance().reloadCachesForAgent(agentId);
     }
 
+    public void reloadAlertDefinitionsForAgent(int agentId) {
+        AlertConditionCacheCoordinator.getInstance().reloadAlertDefinitionsForAgent(agentId);
+    }
+
     public void reloadGlobalCache() {
         AlertConditionCacheCoordinator.getInstance().reloadGlobalCache();
     }
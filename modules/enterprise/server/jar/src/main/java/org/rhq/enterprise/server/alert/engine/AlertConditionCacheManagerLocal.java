@@ -115,6 +115,14 @@ public interface AlertConditionCacheManagerLocal {
 
     void reloadCachesForAgent(int agentId);
 
+    /**
+     * Reloads only the conditions of those resources of the given agent whose alert definitions changed since the
+     * agent's cache was loaded. Falls back to {@link #reloadCachesForAgent(int)} if the agent has no cache yet.
+     *
+     * @param agentId the agent whose cache is stale
+     */
+    void reloadAlertDefinitionsForAgent(int agentId);
+
     void reloadGlobalCache();
 
     void reloadAllCaches();
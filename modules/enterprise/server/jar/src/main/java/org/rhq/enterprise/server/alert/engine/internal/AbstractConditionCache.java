@@ -19,6 +19,7 @@
 package org.rhq.enterprise.server.alert.engine.internal;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Map;
 
@@ -30,6 +31,7 @@ import org.rhq.enterprise.server.alert.engine.AlertConditionCacheStats;
 import org.rhq.enterprise.server.alert.engine.jms.CachedConditionProducerLocal;
 import org.rhq.enterprise.server.alert.engine.model.AbstractCacheElement;
 import org.rhq.enterprise.server.alert.engine.model.CacheElementActivity;
+import org.rhq.enterprise.server.alert.engine.model.NumericDoubleCacheElement;
 import org.rhq.enterprise.server.util.LookupUtil;
 
 /**
@@ -55,57 +57,135 @@ abstract class AbstractConditionCache {
         int errors = 0;
 
         for (T cacheElement : cacheElements) {
-            boolean matched = cacheElement.process(providedValue, extraParams);
+            if (!processCacheElement(cacheElement, providedValue, timestamp, stats, extraParams)) {
+                errors++;
+            }
+        }
+
+        logErrors(errors);
+    }
+
+    /**
+     * Processes the numeric conditions of one schedule. Only the threshold conditions crossed by the provided value,
+     * and those that are not crossed but may still be active, are visited; all other conditions are processed as
+     * usual.
+     */
+    void processNumericConditions(NumericConditionIndex index, Double providedValue, long timestamp,
+        AlertConditionCacheStats stats) {
+        if (index == null) {
+            return; // nothing to do
+        }
+
+        int errors = 0;
+
+        // unlike the threshold arrays the other elements carry no activity hints, so we don't need the index lock
+        for (NumericDoubleCacheElement cacheElement : index.otherElements) {
+            if (!processCacheElement(cacheElement, providedValue, timestamp, stats)) {
+                errors++;
+            }
+        }
+
+        // invalid values never match, but may still deactivate conditions
+        boolean valid = (providedValue != null) && !providedValue.isNaN() && !providedValue.isInfinite();
+
+        synchronized (index) {
+            int greaterThanEnd = valid ? index.greaterThanMatchEnd(providedValue) : 0;
+            errors += processRange(index.greaterThanElements, index.greaterThanMaybeActive, 0, greaterThanEnd,
+                providedValue, timestamp, stats);
+            errors += processMaybeActive(index.greaterThanElements, index.greaterThanMaybeActive, greaterThanEnd,
+                index.greaterThanElements.length, providedValue, timestamp, stats);
+
+            int lessThanStart = valid ? index.lessThanMatchStart(providedValue) : index.lessThanElements.length;
+            errors += processMaybeActive(index.lessThanElements, index.lessThanMaybeActive, 0, lessThanStart,
+                providedValue, timestamp, stats);
+            errors += processRange(index.lessThanElements, index.lessThanMaybeActive, lessThanStart,
+                index.lessThanElements.length, providedValue, timestamp, stats);
+        }
+
+        logErrors(errors);
+    }
+
+    private int processRange(NumericDoubleCacheElement[] cacheElements, BitSet maybeActive, int from, int to,
+        Double providedValue, long timestamp, AlertConditionCacheStats stats) {
+        int errors = 0;
+        for (int i = from; i < to; i++) {
+            if (!processCacheElement(cacheElements[i], providedValue, timestamp, stats)) {
+                errors++;
+            }
+            maybeActive.set(i, cacheElements[i].getActivity().maybeActive());
+        }
+        return errors;
+    }
+
+    private int processMaybeActive(NumericDoubleCacheElement[] cacheElements, BitSet maybeActive, int from, int to,
+        Double providedValue, long timestamp, AlertConditionCacheStats stats) {
+        int errors = 0;
+        for (int i = maybeActive.nextSetBit(from); (i >= 0) && (i < to); i = maybeActive.nextSetBit(i + 1)) {
+            if (!processCacheElement(cacheElements[i], providedValue, timestamp, stats)) {
+                errors++;
+            }
+            maybeActive.set(i, cacheElements[i].getActivity().maybeActive());
+        }
+        return errors;
+    }
+
+    /**
+     * @return false if the message for a matched, or deactivated, cache element could not be sent
+     */
+    private <T extends AbstractCacheElement<S>, S> boolean processCacheElement(T cacheElement, S providedValue,
+        long timestamp, AlertConditionCacheStats stats, Object... extraParams) {
+        boolean matched = cacheElement.process(providedValue, extraParams);
+
+        if (matched) // send positive event in case of a match
+        {
+            try {
+                /*
+                 * Set the active property for alertCondition-based cache elements, and send it on its way;
+                 * Thus, even if the element is already active, we're going to send another message with the new
+                 * value
+                 */
+                cacheElement.setActivity(CacheElementActivity.ACTIVE); // no harm to always set active (though, technically, STATELESS operators don't need it)
+                cachedConditionProducer.sendActivateAlertConditionMessage(cacheElement.getAlertConditionTriggerId(),
+                    timestamp, cacheElement.convertValueToString(providedValue), extraParams);
+
+                stats.matched++;
+            } catch (Exception e) {
+                log.error("Error processing matched cache element '" + cacheElement + "': " + e.getMessage());
+                return false;
+            }
+        } else // no match, negative event
+        {
+            /*
+             * but only send negative events if we're, 1) a type of operator that supports STATEFUL events, and
+             * 2) currently active
+             */
+            if (cacheElement.isType(AlertConditionOperator.Type.STATEFUL) && cacheElement.getActivity().maybeActive()) {
+                cacheElement.setActivity(CacheElementActivity.INACTIVE);
 
-            if (matched) // send positive event in case of a match
-            {
                 try {
-                    /*
-                     * Set the active property for alertCondition-based cache elements, and send it on its way;
-                     * Thus, even if the element is already active, we're going to send another message with the new
-                     * value
-                     */
-                    cacheElement.setActivity(CacheElementActivity.ACTIVE); // no harm to always set active (though, technically, STATELESS operators don't need it)
-                    cachedConditionProducer.sendActivateAlertConditionMessage(
-                        cacheElement.getAlertConditionTriggerId(), timestamp,
-                        cacheElement.convertValueToString(providedValue), extraParams);
-
-                    stats.matched++;
+                    // send negative message
+                    cachedConditionProducer.sendDeactivateAlertConditionMessage(
+                        cacheElement.getAlertConditionTriggerId(), timestamp);
                 } catch (Exception e) {
-                    log.error("Error processing matched cache element '" + cacheElement + "': " + e.getMessage());
-                    errors++;
+                    log.error("Error sending deactivation message for cache element '" + cacheElement + "': "
+                        + e.getMessage());
+                    return false;
                 }
-            } else // no match, negative event
-            {
+            } else {
                 /*
-                 * but only send negative events if we're, 1) a type of operator that supports STATEFUL events, and
-                 * 2) currently active
+                 * negative message, but nothing was active...so do nothing.
+                 *
+                 * this will occur in the overwhelming majority of cases.  in theory, since most of the time
+                 * conditions exist to alert people of non-ideal system state, it will not fire in the POSITIVE very
+                 * often.  thus, we suppress the firing of negative events unless we know we've already sent a
+                 * POSITIVE event that we need to compensate for.
                  */
-                if (cacheElement.isType(AlertConditionOperator.Type.STATEFUL) && cacheElement.getActivity().maybeActive()) {
-                    cacheElement.setActivity(CacheElementActivity.INACTIVE);
-
-                    try {
-                        // send negative message
-                        cachedConditionProducer.sendDeactivateAlertConditionMessage(
-                            cacheElement.getAlertConditionTriggerId(), timestamp);
-                    } catch (Exception e) {
-                        log.error("Error sending deactivation message for cache element '" + cacheElement + "': "
-                            + e.getMessage());
-                        errors++;
-                    }
-                } else {
-                    /*
-                     * negative message, but nothing was active...so do nothing.
-                     *
-                     * this will occur in the overwhelming majority of cases.  in theory, since most of the time
-                     * conditions exist to alert people of non-ideal system state, it will not fire in the POSITIVE very
-                     * often.  thus, we suppress the firing of negative events unless we know we've already sent a
-                     * POSITIVE event that we need to compensate for.
-                     */
-                }
             }
         }
+        return true;
+    }
 
+    private void logErrors(int errors) {
         if (errors != 0) {
             log.error("There were " + errors + " alert conditions that did not fire. "
                 + "Please check the configuration of the JMS subsystem and try again. ");
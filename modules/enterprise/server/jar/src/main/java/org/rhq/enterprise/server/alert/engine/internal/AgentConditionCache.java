@@ -19,13 +19,16 @@
 package org.rhq.enterprise.server.alert.engine.internal;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import org.rhq.core.domain.alert.AlertCondition;
@@ -76,22 +79,39 @@ import org.rhq.enterprise.server.util.LookupUtil;
  */
 class AgentConditionCache extends AbstractConditionCache {
 
+    /*
+     * the caches are filled while loading, and then turned into the int-keyed indexes below which are the only ones
+     * used for condition checks; once built, the indexes are never modified
+     */
     private Map<Integer, List<NumericDoubleCacheElement>> measurementDataCache; // key: schedule ID
     private Map<Integer, List<MeasurementTraitCacheElement>> measurementTraitCache; // key: schedule ID
     private Map<Integer, List<CallTimeDataCacheElement>> callTimeCache; // key: schedule ID
     private Map<Integer, List<EventCacheElement>> eventsCache; // key: resource ID
     private Map<Integer, List<DriftCacheElement>> driftCache; // key: resource ID
 
+    private IntObjectMap<NumericConditionIndex> measurementDataIndex; // key: schedule ID
+    private IntObjectMap<List<MeasurementTraitCacheElement>> measurementTraitIndex; // key: schedule ID
+    private IntObjectMap<List<CallTimeDataCacheElement>> callTimeIndex; // key: schedule ID
+    private IntObjectMap<List<EventCacheElement>> eventsIndex; // key: resource ID
+    private IntObjectMap<List<DriftCacheElement>> driftIndex; // key: resource ID
+
     private AlertConditionManagerLocal alertConditionManager;
     private MeasurementDataManagerLocal measurementDataManager;
     private SubjectManagerLocal subjectManager;
 
     private int agentId;
 
+    /*
+     * the time at which the conditions held by this cache started to be loaded; alert definitions modified after
+     * this time may not be reflected in this cache
+     */
+    private final long loadTime;
+
     public AgentConditionCache(int agentId) {
         super();
 
         this.agentId = agentId;
+        this.loadTime = System.currentTimeMillis();
 
         measurementDataCache = new HashMap<Integer, List<NumericDoubleCacheElement>>();
         measurementTraitCache = new HashMap<Integer, List<MeasurementTraitCacheElement>>();
@@ -104,6 +124,86 @@ class AgentConditionCache extends AbstractConditionCache {
         subjectManager = LookupUtil.getSubjectManager();
 
         loadCachesForAgent(agentId);
+        buildIndexes();
+    }
+
+    /**
+     * Creates a copy of the given cache in which only the conditions of the given resources are reloaded. The
+     * original cache is left untouched so that it can keep being used for condition checks until the copy replaces
+     * it. Cache elements of all other resources are shared with the original cache.
+     *
+     * @param original the cache to copy
+     * @param resourceIds the resources whose alert conditions need to be reloaded
+     * @param loadTime the time at which the caller determined which resources need to be reloaded
+     */
+    public AgentConditionCache(AgentConditionCache original, Collection<Integer> resourceIds, long loadTime) {
+        super();
+
+        this.agentId = original.agentId;
+        this.loadTime = loadTime;
+
+        alertConditionManager = original.alertConditionManager;
+        measurementDataManager = original.measurementDataManager;
+        subjectManager = original.subjectManager;
+
+        Subject overlord = subjectManager.getOverlord();
+        Set<Integer> resourceKeys = new HashSet<Integer>(resourceIds);
+        Set<Integer> scheduleKeys = new HashSet<Integer>(alertConditionManager.getScheduleIdsForResources(overlord,
+            new ArrayList<Integer>(resourceIds)));
+
+        measurementDataCache = new HashMap<Integer, List<NumericDoubleCacheElement>>();
+        IntObjectMap<NumericConditionIndex> originalMeasurementData = original.measurementDataIndex;
+        for (int scheduleId : originalMeasurementData.keys()) {
+            if (!scheduleKeys.contains(scheduleId)) {
+                measurementDataCache.put(scheduleId, originalMeasurementData.get(scheduleId).getElements());
+            }
+        }
+        measurementTraitCache = copyWithout(original.measurementTraitIndex, scheduleKeys);
+        callTimeCache = copyWithout(original.callTimeIndex, scheduleKeys);
+        eventsCache = copyWithout(original.eventsIndex, resourceKeys);
+        driftCache = copyWithout(original.driftIndex, resourceKeys);
+
+        for (Integer resourceId : resourceIds) {
+            loadCaches(agentId, resourceId);
+        }
+        buildIndexes();
+    }
+
+    private static <T> Map<Integer, List<T>> copyWithout(IntObjectMap<List<T>> index, Set<Integer> excludedKeys) {
+        Map<Integer, List<T>> copy = new HashMap<Integer, List<T>>(index.size());
+        for (int key : index.keys()) {
+            if (!excludedKeys.contains(key)) {
+                // the lists are copied too because addTo appends to them
+                copy.put(key, new ArrayList<T>(index.get(key)));
+            }
+        }
+        return copy;
+    }
+
+    private void buildIndexes() {
+        measurementDataIndex = new IntObjectMap<NumericConditionIndex>(measurementDataCache.size());
+        for (Map.Entry<Integer, List<NumericDoubleCacheElement>> entry : measurementDataCache.entrySet()) {
+            measurementDataIndex.put(entry.getKey(), new NumericConditionIndex(entry.getValue()));
+        }
+        measurementTraitIndex = IntObjectMap.copyOf(measurementTraitCache);
+        callTimeIndex = IntObjectMap.copyOf(callTimeCache);
+        eventsIndex = IntObjectMap.copyOf(eventsCache);
+        driftIndex = IntObjectMap.copyOf(driftCache);
+
+        // the loading caches are no longer needed, let the JVM release the memory
+        measurementDataCache = null;
+        measurementTraitCache = null;
+        callTimeCache = null;
+        eventsCache = null;
+        driftCache = null;
+    }
+
+    public int getAgentId() {
+        return agentId;
+    }
+
+    public long getLoadTime() {
+        return loadTime;
     }
 
     /**
@@ -115,11 +215,19 @@ class AgentConditionCache extends AbstractConditionCache {
      * @return the number of conditions that re/loaded
      */
     private AlertConditionCacheStats loadCachesForAgent(int agentId) {
+        return loadCaches(agentId, null);
+    }
+
+    /**
+     * @param resourceId if not null, only the conditions of this resource are loaded
+     */
+    private AlertConditionCacheStats loadCaches(int agentId, Integer resourceId) {
         AlertConditionCacheStats stats = new AlertConditionCacheStats();
 
         try {
             if (log.isDebugEnabled()) {
-                log.debug("Loading Alert Condition Caches for agent[id=" + agentId + "]...");
+                log.debug("Loading Alert Condition Caches for agent[id=" + agentId + "]"
+                    + ((resourceId != null) ? ", resource[id=" + resourceId + "]" : "") + "...");
             }
 
             Subject overlord = subjectManager.getOverlord();
@@ -138,7 +246,7 @@ class AgentConditionCache extends AbstractConditionCache {
                 while (true) {
                     PageList<? extends AbstractAlertConditionCategoryComposite> alertConditions = null;
                     alertConditions = alertConditionManager.getAlertConditionComposites(overlord, agentId,
-                        nextCategory, pc);
+                        resourceId, nextCategory, pc);
 
                     if (alertConditions.isEmpty()) {
                         break; // didn't get any rows back, must not have any data or no more rows left to process
@@ -397,11 +505,11 @@ class AgentConditionCache extends AbstractConditionCache {
                 int scheduleId = datum.getScheduleId();
 
                 if (datum instanceof MeasurementDataNumeric) {
-                    List<? extends NumericDoubleCacheElement> conditionCacheElements = lookupMeasurementDataCacheElements(scheduleId);
+                    NumericConditionIndex conditionIndex = lookupMeasurementDataCacheElements(scheduleId);
 
                     Double providedValue = ((MeasurementDataNumeric) datum).getValue();
 
-                    processCacheElements(conditionCacheElements, providedValue, datum.getTimestamp(), stats);
+                    processNumericConditions(conditionIndex, providedValue, datum.getTimestamp(), stats);
                 } else if (datum instanceof MeasurementDataTrait) {
                     List<MeasurementTraitCacheElement> cacheElements = lookupMeasurementTraitCacheElements(scheduleId);
 
@@ -580,24 +688,24 @@ class AgentConditionCache extends AbstractConditionCache {
         return stats;
     }
 
-    private List<? extends NumericDoubleCacheElement> lookupMeasurementDataCacheElements(int scheduleId) {
-        return measurementDataCache.get(scheduleId); // yup, might be null
+    private NumericConditionIndex lookupMeasurementDataCacheElements(int scheduleId) {
+        return measurementDataIndex.get(scheduleId); // yup, might be null
     }
 
     private List<? extends CallTimeDataCacheElement> lookupCallTimeDataCacheElements(int scheduleId) {
-        return callTimeCache.get(scheduleId); // yup, might be null
+        return callTimeIndex.get(scheduleId); // yup, might be null
     }
 
     private List<MeasurementTraitCacheElement> lookupMeasurementTraitCacheElements(int scheduleId) {
-        return measurementTraitCache.get(scheduleId); // yup, might be null
+        return measurementTraitIndex.get(scheduleId); // yup, might be null
     }
 
     private List<EventCacheElement> lookupEventCacheElements(int resourceId) {
-        return eventsCache.get(resourceId); // yup, might be null
+        return eventsIndex.get(resourceId); // yup, might be null
     }
 
     private List<DriftCacheElement> lookupDriftCacheElements(int resourceId) {
-        return driftCache.get(resourceId); // yup, might be null
+        return driftIndex.get(resourceId); // yup, might be null
     }
 
     private Double getCalculatedBaselineValue(int conditionId, AlertConditionBaselineCategoryComposite composite,
@@ -638,19 +746,31 @@ class AgentConditionCache extends AbstractConditionCache {
     @Override
     public int getCacheSize(Cache cache) {
         if (cache == AlertConditionCacheCoordinator.Cache.MeasurementDataCache) {
-            return AlertConditionCacheUtils.getMapListCount(measurementDataCache);
+            int count = 0;
+            for (NumericConditionIndex index : measurementDataIndex.values()) {
+                count += index.size();
+            }
+            return count;
         } else if (cache == AlertConditionCacheCoordinator.Cache.MeasurementTraitCache) {
-            return AlertConditionCacheUtils.getMapListCount(measurementTraitCache);
+            return getListCount(measurementTraitIndex);
         } else if (cache == AlertConditionCacheCoordinator.Cache.CallTimeDataCache) {
-            return AlertConditionCacheUtils.getMapListCount(callTimeCache);
+            return getListCount(callTimeIndex);
         } else if (cache == AlertConditionCacheCoordinator.Cache.EventsCache) {
-            return AlertConditionCacheUtils.getMapListCount(eventsCache);
+            return getListCount(eventsIndex);
         } else if (cache == AlertConditionCacheCoordinator.Cache.DriftCache) {
-            return AlertConditionCacheUtils.getMapListCount(driftCache);
+            return getListCount(driftIndex);
         } else {
             throw new IllegalArgumentException("The " + AgentConditionCache.class.getSimpleName()
                 + " either does not manage caches of type " + cache.type + ", or does not support obtaining their size");
         }
     }
 
+    private static int getListCount(IntObjectMap<? extends List<?>> index) {
+        int count = 0;
+        for (List<?> cacheElements : index.values()) {
+            count += cacheElements.size();
+        }
+        return count;
+    }
+
 }
\ No newline at end of file
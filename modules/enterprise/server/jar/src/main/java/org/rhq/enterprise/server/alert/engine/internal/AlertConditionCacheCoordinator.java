@@ -23,7 +23,8 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.persistence.EntityNotFoundException;
 
@@ -37,9 +38,12 @@ import org.rhq.core.domain.measurement.Availability;
 import org.rhq.core.domain.measurement.MeasurementData;
 import org.rhq.core.domain.measurement.calltime.CallTimeData;
 import org.rhq.core.domain.operation.OperationHistory;
+import org.rhq.core.domain.auth.Subject;
+import org.rhq.enterprise.server.alert.AlertConditionManagerLocal;
 import org.rhq.enterprise.server.alert.engine.AlertConditionCacheStats;
 import org.rhq.enterprise.server.alert.engine.model.AbstractCacheElement;
 import org.rhq.enterprise.server.alert.engine.model.AvailabilityDurationComposite;
+import org.rhq.enterprise.server.auth.SubjectManagerLocal;
 import org.rhq.enterprise.server.cloud.StatusManagerLocal;
 import org.rhq.enterprise.server.core.AgentManagerLocal;
 import org.rhq.enterprise.server.plugin.pc.drift.DriftChangeSetSummary;
@@ -54,6 +58,9 @@ import org.rhq.enterprise.server.util.LookupUtil;
  *
  * This manager forms a centralized interface through which to interact with the children caches.
  *
+ * Agent caches are never modified once they are published. A reload builds a new cache off to the side and then
+ * swaps it in, so condition checks never block on reloads, and reloads of different agents never block each other.
+ *
  * @author Joseph Marques
  */
 public final class AlertConditionCacheCoordinator {
@@ -81,6 +88,20 @@ public final class AlertConditionCacheCoordinator {
         ALERTED_EVENT_PROCESSING_DELAY = alertedEventProcessingDelay;
     }
 
+    /**
+     * Alert definition mtimes are set by whichever server performed the update, so when patching an agent cache we
+     * look back this far before the load time of the existing cache to tolerate clock skew between servers.
+     */
+    private static final long PATCH_CLOCK_SKEW_MILLIS = Long.getLong("rhq.server.alert-cache.patch-skew-millis",
+        5 * 60 * 1000L);
+
+    /**
+     * If more than this many resources of an agent had their alert definitions modified, the agent cache is fully
+     * reloaded instead of being patched resource by resource.
+     */
+    private static final int PATCH_MAX_RESOURCES = Integer.getInteger("rhq.server.alert-cache.patch-max-resources",
+        100);
+
     public enum Cache {
         MeasurementDataCache(Type.Agent), //
         MeasurementTraitCache(Type.Agent), //
@@ -105,22 +126,39 @@ public final class AlertConditionCacheCoordinator {
     }
 
     private volatile GlobalConditionCache globalCache;
-    private Map<Integer, AgentConditionCache> agentCaches;
+    private final ConcurrentMap<Integer, AgentConditionCache> agentCaches;
 
-    private ReentrantReadWriteLock agentReadWriteLock;
+    // serializes reloads of the same agent; readers never take these
+    private final ConcurrentMap<Integer, Object> agentReloadLocks;
 
     private AgentManagerLocal agentManager;
     private StatusManagerLocal statusManager;
+    private AlertConditionManagerLocal alertConditionManager;
+    private SubjectManagerLocal subjectManager;
 
     private AlertConditionCacheCoordinator() {
         agentManager = LookupUtil.getAgentManager();
         statusManager = LookupUtil.getStatusManager();
+        alertConditionManager = LookupUtil.getAlertConditionManager();
+        subjectManager = LookupUtil.getSubjectManager();
 
         globalCache = new GlobalConditionCache();
 
         // create the collections ahead of time
-        agentCaches = new HashMap<Integer, AgentConditionCache>();
-        agentReadWriteLock = new ReentrantReadWriteLock();
+        agentCaches = new ConcurrentHashMap<Integer, AgentConditionCache>();
+        agentReloadLocks = new ConcurrentHashMap<Integer, Object>();
+    }
+
+    private Object getReloadLock(int agentId) {
+        Object lock = agentReloadLocks.get(agentId);
+        if (lock == null) {
+            Object newLock = new Object();
+            lock = agentReloadLocks.putIfAbsent(agentId, newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+        return lock;
     }
 
     public static AlertConditionCacheCoordinator getInstance() {
@@ -158,50 +196,97 @@ public final class AlertConditionCacheCoordinator {
     }
 
     public void reloadCachesForAgent(int agentId) {
-        AgentConditionCache agentCache = null;
-        try {
-            if (log.isDebugEnabled()) {
-                log.debug("Start reloading cache for agent[id=" + agentId + "]");
-            }
-            agentCache = new AgentConditionCache(agentId);
-            if (log.isDebugEnabled()) {
-                log.debug("Finished reloading cache for agent[id=" + agentId + "]");
-            }
-        } catch (Throwable t) {
+        synchronized (getReloadLock(agentId)) {
+            AgentConditionCache agentCache = null;
             try {
-                Throwable throwable = t;
-                boolean found = false;
-                while (throwable != null) {
-                    if (throwable instanceof EntityNotFoundException) {
-                        // we're trying to load a list of conditions at the very moment one is deleted out from under us
-                        statusManager.updateByAgent(agentId);
-                        log.debug("EntityNotFoundException thrown during reload, resetting status bit for retry");
-                        found = true;
-                        break;
-                    }
-                    throwable = throwable.getCause();
+                if (log.isDebugEnabled()) {
+                    log.debug("Start reloading cache for agent[id=" + agentId + "]");
                 }
-                if (!found) {
-                    log.error("Error reloading cache for agent[id=" + agentId + "]", t);
+                agentCache = new AgentConditionCache(agentId);
+                if (log.isDebugEnabled()) {
+                    log.debug("Finished reloading cache for agent[id=" + agentId + "]");
                 }
-            } catch (Throwable inner) {
-                // again, don't let any exceptions bubble up to the calling SLSB layer
-                log.error("Error while resetting agent status bit during failed cache reload attempt for agent[id="
-                    + agentId + "]", inner);
+            } catch (Throwable t) {
+                handleReloadFailure(agentId, t);
             }
-        }
 
-        if (agentCache != null) {
-            agentReadWriteLock.writeLock().lock();
-            try {
+            if (agentCache != null) {
                 // simply "forget" about the old cache, let the JVM release the memory in time
                 agentCaches.put(agentId, agentCache);
                 log.debug("Reloaded agent[id=" + agentId + "] cache");
+            }
+        }
+    }
+
+    /**
+     * Brings the cache of the given agent up to date with alert definitions that were created, updated or deleted
+     * since it was loaded. Only the conditions of the resources whose alert definitions changed are reloaded; if the
+     * agent has no cache yet, or too many resources changed, this falls back to {@link #reloadCachesForAgent(int)}.
+     */
+    public void reloadAlertDefinitionsForAgent(int agentId) {
+        synchronized (getReloadLock(agentId)) {
+            AgentConditionCache existingCache = agentCaches.get(agentId);
+            if (existingCache == null) {
+                reloadCachesForAgent(agentId);
+                return;
+            }
+
+            AgentConditionCache agentCache = null;
+            try {
+                long now = System.currentTimeMillis();
+                Subject overlord = subjectManager.getOverlord();
+                List<Integer> resourceIds = alertConditionManager.getResourceIdsWithModifiedAlertDefinitions(overlord,
+                    agentId, existingCache.getLoadTime() - PATCH_CLOCK_SKEW_MILLIS);
+
+                if (resourceIds.size() > PATCH_MAX_RESOURCES) {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Alert definitions of " + resourceIds.size() + " resources changed for agent[id="
+                            + agentId + "], reloading the entire cache");
+                    }
+                    reloadCachesForAgent(agentId);
+                    return;
+                }
+
+                if (log.isDebugEnabled()) {
+                    log.debug("Start patching cache for agent[id=" + agentId + "], resources " + resourceIds);
+                }
+                // even if nothing changed, the patched cache records the new load time
+                agentCache = new AgentConditionCache(existingCache, resourceIds, now);
+                if (log.isDebugEnabled()) {
+                    log.debug("Finished patching cache for agent[id=" + agentId + "]");
+                }
             } catch (Throwable t) {
-                log.error("Error reloading cache for agent[id=" + agentId + "]", t); // don't let any exceptions bubble up to the calling SLSB layer
-            } finally {
-                agentReadWriteLock.writeLock().unlock();
+                handleReloadFailure(agentId, t);
+            }
+
+            if (agentCache != null) {
+                agentCaches.put(agentId, agentCache);
+                log.debug("Patched agent[id=" + agentId + "] cache");
+            }
+        }
+    }
+
+    private void handleReloadFailure(int agentId, Throwable t) {
+        try {
+            Throwable throwable = t;
+            boolean found = false;
+            while (throwable != null) {
+                if (throwable instanceof EntityNotFoundException) {
+                    // we're trying to load a list of conditions at the very moment one is deleted out from under us
+                    statusManager.updateByAgent(agentId);
+                    log.debug("EntityNotFoundException thrown during reload, resetting status bit for retry");
+                    found = true;
+                    break;
+                }
+                throwable = throwable.getCause();
+            }
+            if (!found) {
+                log.error("Error reloading cache for agent[id=" + agentId + "]", t);
             }
+        } catch (Throwable inner) {
+            // again, don't let any exceptions bubble up to the calling SLSB layer
+            log.error("Error while resetting agent status bit during failed cache reload attempt for agent[id="
+                + agentId + "]", inner);
         }
     }
 
@@ -218,15 +303,7 @@ public final class AlertConditionCacheCoordinator {
         }
 
         AlertConditionCacheStats stats = null;
-        AgentConditionCache agentCache = null;
-        agentReadWriteLock.readLock().lock();
-        try {
-            agentCache = agentCaches.get(agentId);
-        } catch (Throwable t) {
-            log.error("Error during checkConditions", t); // don't let any exceptions bubble up to the calling SLSB layer
-        } finally {
-            agentReadWriteLock.readLock().unlock();
-        }
+        AgentConditionCache agentCache = agentCaches.get(agentId);
         if (agentCache != null) {
             stats = agentCache.checkConditions(measurementData);
         } else {
@@ -249,15 +326,7 @@ public final class AlertConditionCacheCoordinator {
         }
 
         AlertConditionCacheStats stats = null;
-        AgentConditionCache agentCache = null;
-        agentReadWriteLock.readLock().lock();
-        try {
-            agentCache = agentCaches.get(agentId);
-        } catch (Throwable t) {
-            log.error("Error during checkConditions", t); // don't let any exceptions bubble up to the calling SLSB layer
-        } finally {
-            agentReadWriteLock.readLock().unlock();
-        }
+        AgentConditionCache agentCache = agentCaches.get(agentId);
         if (agentCache != null) {
             stats = agentCache.checkConditions(callTimeData);
         } else {
@@ -307,15 +376,7 @@ public final class AlertConditionCacheCoordinator {
         AlertConditionCacheStats stats = new AlertConditionCacheStats();
         List<Event> unprocessedEvents = new ArrayList(Arrays.asList(events)); // need a List that supports iterator remove
         while (!unprocessedEvents.isEmpty()) {
-            AgentConditionCache agentCache = null;
-            agentReadWriteLock.readLock().lock();
-            try {
-                agentCache = agentCaches.get(agentId);
-            } catch (Throwable t) {
-                log.error("Error during checkConditions", t); // don't let any exceptions bubble up to the calling SLSB layer
-            } finally {
-                agentReadWriteLock.readLock().unlock();
-            }
+            AgentConditionCache agentCache = agentCaches.get(agentId);
             if (agentCache != null) {
                 stats.add(agentCache.checkConditions(source, unprocessedEvents));
                 if (!unprocessedEvents.isEmpty()) {
@@ -346,15 +407,7 @@ public final class AlertConditionCacheCoordinator {
         }
 
         AlertConditionCacheStats stats = null;
-        AgentConditionCache agentCache = null;
-        agentReadWriteLock.readLock().lock();
-        try {
-            agentCache = agentCaches.get(agentId);
-        } catch (Throwable t) {
-            log.error("Error during checkConditions", t); // don't let any exceptions bubble up to the calling SLSB layer
-        } finally {
-            agentReadWriteLock.readLock().unlock();
-        }
+        AgentConditionCache agentCache = agentCaches.get(agentId);
         if (agentCache != null) {
             stats = agentCache.checkConditions(driftChangeSetSummary);
         } else {
@@ -438,17 +491,7 @@ public final class AlertConditionCacheCoordinator {
         if (cache.type == Cache.Type.Global) {
             result += globalCache.getCacheSize(cache);
         } else if (cache.type == Cache.Type.Agent) {
-            List<AgentConditionCache> cachesCopy = null;
-            agentReadWriteLock.readLock().lock();
-            try {
-                cachesCopy = new ArrayList<AgentConditionCache>(agentCaches.values());
-            } catch (Throwable t) {
-                log.error("Error during getCacheSize", t); // don't let any exceptions bubble up to the calling SLSB layer
-            } finally {
-                agentReadWriteLock.readLock().unlock();
-            }
-
-            for (AgentConditionCache agentCache : cachesCopy) {
+            for (AgentConditionCache agentCache : agentCaches.values()) {
                 result += agentCache.getCacheSize(cache);
             }
         } else {
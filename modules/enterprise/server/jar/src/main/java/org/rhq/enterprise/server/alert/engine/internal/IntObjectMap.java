@@ -0,0 +1,139 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2014 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.server.alert.engine.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A read-mostly map from primitive int keys to non-null values, backed by open addressing with linear probing. Cache
+ * lookups happen for every piece of data an agent reports, so this avoids boxing the schedule or resource id and
+ * the entry indirection of a {@link java.util.HashMap}.
+ *
+ * This map does not support removal; the caches are rebuilt rather than modified. It is safe for concurrent reads
+ * once it has been fully populated and safely published.
+ */
+final class IntObjectMap<V> {
+
+    private int[] keys;
+    private Object[] values; // a null value marks an empty slot
+    private int size;
+    private int mask;
+
+    IntObjectMap(int expectedSize) {
+        int capacity = 8;
+        // keep the load factor at or below 0.5 so probe sequences stay short
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        keys = new int[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    static <V> IntObjectMap<V> copyOf(Map<Integer, V> map) {
+        IntObjectMap<V> result = new IntObjectMap<V>(map.size());
+        for (Map.Entry<Integer, V> entry : map.entrySet()) {
+            result.put(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(int key) {
+        int slot = slot(key);
+        Object value;
+        while ((value = values[slot]) != null) {
+            if (keys[slot] == key) {
+                return (V) value;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    void put(int key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("null values are not supported");
+        }
+        if ((size + 1) * 2 > values.length) {
+            resize();
+        }
+        int slot = slot(key);
+        while (values[slot] != null) {
+            if (keys[slot] == key) {
+                values[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        size++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int[] keys() {
+        int[] result = new int[size];
+        int i = 0;
+        for (int slot = 0; slot < values.length; slot++) {
+            if (values[slot] != null) {
+                result[i++] = keys[slot];
+            }
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    List<V> values() {
+        List<V> result = new ArrayList<V>(size);
+        for (Object value : values) {
+            if (value != null) {
+                result.add((V) value);
+            }
+        }
+        return result;
+    }
+
+    private int slot(int key) {
+        // spread sequential database ids across the table
+        int hash = key * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    private void resize() {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new Object[oldValues.length * 2];
+        mask = keys.length - 1;
+        size = 0;
+        for (int slot = 0; slot < oldValues.length; slot++) {
+            if (oldValues[slot] != null) {
+                @SuppressWarnings("unchecked")
+                V value = (V) oldValues[slot];
+                put(oldKeys[slot], value);
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2014 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.server.alert.engine.internal;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.rhq.core.domain.alert.AlertConditionOperator;
+import org.rhq.enterprise.server.alert.engine.model.MeasurementBaselineCacheElement;
+import org.rhq.enterprise.server.alert.engine.model.MeasurementNumericCacheElement;
+import org.rhq.enterprise.server.alert.engine.model.NumericDoubleCacheElement;
+
+/**
+ * The numeric conditions of a single measurement schedule.
+ *
+ * Fixed {@link AlertConditionOperator#GREATER_THAN} and {@link AlertConditionOperator#LESS_THAN} thresholds are kept
+ * sorted so that a single binary search yields every condition a value crosses. Those are the only ones that need to
+ * be evaluated, along with the non-matching ones that may still be active and therefore need to be deactivated. All
+ * other numeric conditions (changes, ranges, baselines without a value yet, ...) are evaluated one by one.
+ */
+final class NumericConditionIndex {
+
+    private static final Comparator<NumericDoubleCacheElement> THRESHOLD_COMPARATOR = new Comparator<NumericDoubleCacheElement>() {
+        public int compare(NumericDoubleCacheElement first, NumericDoubleCacheElement second) {
+            return Double.compare(first.getAlertConditionValue(), second.getAlertConditionValue());
+        }
+    };
+
+    // ascending thresholds; for a value v the matching elements are [0, lowerBound(v))
+    final double[] greaterThanThresholds;
+    final NumericDoubleCacheElement[] greaterThanElements;
+    final BitSet greaterThanMaybeActive;
+
+    // ascending thresholds; for a value v the matching elements are [upperBound(v), length)
+    final double[] lessThanThresholds;
+    final NumericDoubleCacheElement[] lessThanElements;
+    final BitSet lessThanMaybeActive;
+
+    final List<NumericDoubleCacheElement> otherElements;
+
+    NumericConditionIndex(List<? extends NumericDoubleCacheElement> elements) {
+        List<NumericDoubleCacheElement> greaterThan = new ArrayList<NumericDoubleCacheElement>();
+        List<NumericDoubleCacheElement> lessThan = new ArrayList<NumericDoubleCacheElement>();
+        List<NumericDoubleCacheElement> others = new ArrayList<NumericDoubleCacheElement>();
+
+        for (NumericDoubleCacheElement element : elements) {
+            if (!isFixedThreshold(element)) {
+                others.add(element);
+            } else if (element.getAlertConditionOperator() == AlertConditionOperator.GREATER_THAN) {
+                greaterThan.add(element);
+            } else {
+                lessThan.add(element);
+            }
+        }
+
+        Collections.sort(greaterThan, THRESHOLD_COMPARATOR);
+        Collections.sort(lessThan, THRESHOLD_COMPARATOR);
+
+        greaterThanElements = greaterThan.toArray(new NumericDoubleCacheElement[greaterThan.size()]);
+        greaterThanThresholds = thresholdsOf(greaterThanElements);
+        greaterThanMaybeActive = activityOf(greaterThanElements);
+
+        lessThanElements = lessThan.toArray(new NumericDoubleCacheElement[lessThan.size()]);
+        lessThanThresholds = thresholdsOf(lessThanElements);
+        lessThanMaybeActive = activityOf(lessThanElements);
+
+        otherElements = others;
+    }
+
+    /*
+     * only elements whose match semantics are exactly those of NumericDoubleCacheElement, and whose condition value
+     * never changes, can be put in a sorted array
+     */
+    private static boolean isFixedThreshold(NumericDoubleCacheElement element) {
+        Class<?> type = element.getClass();
+        if (type != MeasurementNumericCacheElement.class && type != MeasurementBaselineCacheElement.class) {
+            return false;
+        }
+        AlertConditionOperator operator = element.getAlertConditionOperator();
+        if (operator != AlertConditionOperator.GREATER_THAN && operator != AlertConditionOperator.LESS_THAN) {
+            return false;
+        }
+        Double threshold = element.getAlertConditionValue();
+        return threshold != null && !threshold.isNaN() && !threshold.isInfinite();
+    }
+
+    private static double[] thresholdsOf(NumericDoubleCacheElement[] elements) {
+        double[] thresholds = new double[elements.length];
+        for (int i = 0; i < elements.length; i++) {
+            thresholds[i] = elements[i].getAlertConditionValue();
+        }
+        return thresholds;
+    }
+
+    private static BitSet activityOf(NumericDoubleCacheElement[] elements) {
+        BitSet maybeActive = new BitSet(elements.length);
+        for (int i = 0; i < elements.length; i++) {
+            if (elements[i].getActivity().maybeActive()) {
+                maybeActive.set(i);
+            }
+        }
+        return maybeActive;
+    }
+
+    /**
+     * @return the number of greater-than conditions the given value matches; they are the first ones in the array
+     */
+    int greaterThanMatchEnd(double value) {
+        return lowerBound(greaterThanThresholds, value);
+    }
+
+    /**
+     * @return the index of the first less-than condition the given value matches; all following ones match too
+     */
+    int lessThanMatchStart(double value) {
+        return upperBound(lessThanThresholds, value);
+    }
+
+    /**
+     * @return all the elements held by this index
+     */
+    List<NumericDoubleCacheElement> getElements() {
+        List<NumericDoubleCacheElement> result = new ArrayList<NumericDoubleCacheElement>(size());
+        Collections.addAll(result, greaterThanElements);
+        Collections.addAll(result, lessThanElements);
+        result.addAll(otherElements);
+        return result;
+    }
+
+    int size() {
+        return greaterThanElements.length + lessThanElements.length + otherElements.size();
+    }
+
+    // first index whose threshold is not less than value, using the same ordering as Double.compareTo
+    private static int lowerBound(double[] thresholds, double value) {
+        int low = 0;
+        int high = thresholds.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (Double.compare(thresholds[middle], value) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // first index whose threshold is greater than value, using the same ordering as Double.compareTo
+    private static int upperBound(double[] thresholds, double value) {
+        int low = 0;
+        int high = thresholds.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (Double.compare(thresholds[middle], value) <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
@@ -18,7 +18,10 @@
  */
 package org.rhq.enterprise.server.cloud;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.ejb.EJB;
 import javax.ejb.Stateless;
@@ -51,7 +54,9 @@ import org.rhq.enterprise.server.util.LookupUtil;
  * 
  * Unless we're debugging, let's use the status field on the {@link Agent} and {@link Server} entities
  * as a simple bit field; this way the logic for setting the field simplifies to a simple boolean check
- * instead of a more complex bit
+ * instead of a more complex bit.  The one exception is {@link Agent.Status#ALERT_DEFINITION}, which is set
+ * on its own when only alert definitions changed so that just the conditions of the affected resources are
+ * reloaded; any other change sets the status to -1, which requires a full reload of the agent's cache.
  * 
  * @author Joseph Marques
  */
@@ -85,15 +90,25 @@ public class StatusManagerBean implements StatusManagerLocal {
     //@IgnoreDependency
     AlertDefinitionManagerLocal alertDefinitionManager;
 
-    @SuppressWarnings("unchecked")
     @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
     public List<Integer> getAndClearAgentsWithStatusForServer(String serverName) {
-        Query selectQuery = entityManager.createNamedQuery(Agent.QUERY_FIND_ALL_WITH_STATUS_BY_SERVER);
+        return new ArrayList<Integer>(getAndClearAgentStatusesForServer(serverName).keySet());
+    }
+
+    @SuppressWarnings("unchecked")
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public Map<Integer, Integer> getAndClearAgentStatusesForServer(String serverName) {
+        Query selectQuery = entityManager.createNamedQuery(Agent.QUERY_FIND_STATUS_BY_SERVER);
         selectQuery.setParameter("serverName", serverName);
-        List<Integer> agentIds = selectQuery.getResultList();
+        List<Object[]> results = selectQuery.getResultList();
 
-        if (agentIds.size() > 0) {
+        Map<Integer, Integer> agentStatuses = new HashMap<Integer, Integer>();
+        for (Object[] result : results) {
+            agentStatuses.put((Integer) result[0], (Integer) result[1]);
+        }
+        List<Integer> agentIds = new ArrayList<Integer>(agentStatuses.keySet());
 
+        if (agentIds.size() > 0) {
             // handle the oracle 1000 member IN clause issue
             final int ORACLE_BATCH_SIZE = 1000;
 
@@ -117,7 +132,7 @@ public class StatusManagerBean implements StatusManagerLocal {
             }
         }
 
-        return agentIds;
+        return agentStatuses;
     }
 
     @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
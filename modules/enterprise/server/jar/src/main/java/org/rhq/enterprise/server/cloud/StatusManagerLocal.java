@@ -19,6 +19,7 @@
 package org.rhq.enterprise.server.cloud;
 
 import java.util.List;
+import java.util.Map;
 
 import javax.ejb.Local;
 
@@ -32,6 +33,15 @@ public interface StatusManagerLocal {
 
     List<Integer> getAndClearAgentsWithStatusForServer(String serverName);
 
+    /**
+     * Like {@link #getAndClearAgentsWithStatusForServer(String)} but also returns the status each agent had before it
+     * was cleared, so that callers can limit the work done for agents that only have some
+     * {@link org.rhq.core.domain.resource.Agent.Status} bits set.
+     *
+     * @return agent id to agent status
+     */
+    Map<Integer, Integer> getAndClearAgentStatusesForServer(String serverName);
+
     void markGlobalCache();
 
     void updateByResource(Subject subject, int resourceId);
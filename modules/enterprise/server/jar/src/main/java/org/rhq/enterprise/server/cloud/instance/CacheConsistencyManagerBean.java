@@ -18,9 +18,9 @@
  */
 package org.rhq.enterprise.server.cloud.instance;
 
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.annotation.Resource;
 import javax.ejb.EJB;
@@ -35,6 +35,7 @@ import javax.ejb.TransactionAttributeType;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import org.rhq.core.domain.resource.Agent;
 import org.rhq.enterprise.server.alert.engine.AlertConditionCacheManagerLocal;
 
 /**
@@ -127,12 +128,12 @@ public class CacheConsistencyManagerBean implements CacheConsistencyManagerLocal
          * catch absolutely everything, so that even if this REQUIRES_NEW transaction rollback, 
          * it doesn't rollback the caller (where we reschedule the TIMER to trigger this job again
          */
-        List<Integer> agentIds = new ArrayList<Integer>();
+        Map<Integer, Integer> agentStatuses = new HashMap<Integer, Integer>();
         try {
-            agentIds = serverManager.getAndClearAgentsWithStatus();
+            agentStatuses = serverManager.getAndClearAgentStatuses();
 
             // do nothing if nothing to do
-            if (agentIds.size() == 0) {
+            if (agentStatuses.isEmpty()) {
                 if (log.isDebugEnabled()) {
                     log.debug("No agent caches need reloading");
                 }
@@ -141,9 +142,16 @@ public class CacheConsistencyManagerBean implements CacheConsistencyManagerLocal
 
             // otherwise print informational messages for poor-man's verification purposes
             long startTime = System.currentTimeMillis();
-            for (Integer nextAgentId : agentIds) {
-                log.debug("Agent[id=" + nextAgentId + "] is stale ");
-                cacheManager.reloadCachesForAgent(nextAgentId);
+            for (Map.Entry<Integer, Integer> next : agentStatuses.entrySet()) {
+                Integer nextAgentId = next.getKey();
+                if (next.getValue() == Agent.Status.ALERT_DEFINITION.mask) {
+                    // only alert definitions changed, so only the affected resources need their conditions reloaded
+                    log.debug("Agent[id=" + nextAgentId + "] has stale alert definitions");
+                    cacheManager.reloadAlertDefinitionsForAgent(nextAgentId);
+                } else {
+                    log.debug("Agent[id=" + nextAgentId + "] is stale ");
+                    cacheManager.reloadCachesForAgent(nextAgentId);
+                }
             }
             long endTime = System.currentTimeMillis();
 
@@ -151,16 +159,16 @@ public class CacheConsistencyManagerBean implements CacheConsistencyManagerLocal
 
             if (log.isDebugEnabled()) {
                 log.debug(serverName + " took [" + (endTime - startTime)
-                    + "]ms to reload cache for the follow agentIds: " + agentIds + " agents");
+                    + "]ms to reload cache for the follow agentIds: " + agentStatuses.keySet() + " agents");
             } else {
-                log.info(serverName + " took [" + (endTime - startTime) + "]ms to reload cache for " + agentIds.size()
+                log.info(serverName + " took [" + (endTime - startTime) + "]ms to reload cache for " + agentStatuses.size()
                     + " agents");
             }
         } catch (Throwable t) {
             if (log.isDebugEnabled()) {
-                log.debug("Failed to reload caches for the following agents: " + agentIds, t);
+                log.debug("Failed to reload caches for the following agents: " + agentStatuses.keySet(), t);
             } else {
-                log.error("Failed to reload caches for the following agents: " + agentIds + ", cause: "
+                log.error("Failed to reload caches for the following agents: " + agentStatuses.keySet() + ", cause: "
                     + t.getMessage());
             }
         }
@@ -22,6 +22,7 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import javax.annotation.Resource;
 import javax.ejb.EJB;
@@ -183,6 +184,11 @@ public class ServerManagerBean implements ServerManagerLocal {
         return results;
     }
 
+    public Map<Integer, Integer> getAndClearAgentStatuses() {
+        Map<Integer, Integer> results = agentStatusManager.getAndClearAgentStatusesForServer(getServerName());
+        return results;
+    }
+
     public boolean getAndClearServerStatus() {
         Server server = topologyManager.getServerByName(getServerName());
         if (server == null) {
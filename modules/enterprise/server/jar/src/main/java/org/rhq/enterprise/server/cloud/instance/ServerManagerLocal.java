@@ -19,6 +19,7 @@
 package org.rhq.enterprise.server.cloud.instance;
 
 import java.util.List;
+import java.util.Map;
 
 import javax.ejb.Local;
 import javax.ejb.Timer;
@@ -75,6 +76,13 @@ public interface ServerManagerLocal {
      */
     List<Integer> getAndClearAgentsWithStatus();
 
+    /**
+     * Same as {@link #getAndClearAgentsWithStatus()} but also returns the status mask each agent had.
+     *
+     * @return agent id to the {@link Agent} status that was cleared
+     */
+    Map<Integer, Integer> getAndClearAgentStatuses();
+
     /**
      * A Server can have various status settings {@link Server}.  The Status, when set, indicates
      * that this server has some necessary work pending, typically processed by a periodic job.
@@ -124,6 +124,7 @@ import org.rhq.enterprise.server.resource.ResourceNotFoundException;
 import org.rhq.enterprise.server.resource.group.ResourceGroupManagerLocal;
 import org.rhq.enterprise.server.resource.group.ResourceGroupNotFoundException;
 import org.rhq.enterprise.server.resource.group.ResourceGroupUpdateException;
+import org.rhq.enterprise.server.resource.group.definition.DynaGroupChangeTracker;
 import org.rhq.enterprise.server.rest.BadArgumentException;
 import org.rhq.enterprise.server.scheduler.SchedulerLocal;
 import org.rhq.enterprise.server.util.CriteriaQuery;
@@ -389,6 +390,7 @@ public class ConfigurationManagerBean implements ConfigurationManagerLocal, Conf
         } else {
             resource.setPluginConfiguration(configuration.deepCopyWithoutProxies());
         }
+        DynaGroupChangeTracker.pluginConfigurationChanged(resource.getId());
     }
     // Use new transaction because this only works if the resource in question has not
     // yet been loaded by Hibernate.  We want the query to return a non-proxied configuration,
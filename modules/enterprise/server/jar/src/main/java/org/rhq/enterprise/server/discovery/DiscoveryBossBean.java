@@ -112,6 +112,7 @@ import org.rhq.enterprise.server.resource.ResourceAvailabilityManagerLocal;
 import org.rhq.enterprise.server.resource.ResourceManagerLocal;
 import org.rhq.enterprise.server.resource.ResourceTypeManagerLocal;
 import org.rhq.enterprise.server.resource.group.ResourceGroupManagerLocal;
+import org.rhq.enterprise.server.resource.group.definition.DynaGroupChangeTracker;
 import org.rhq.enterprise.server.resource.metadata.PluginManagerLocal;
 import org.rhq.enterprise.server.system.SystemManagerLocal;
 import org.rhq.enterprise.server.util.LookupUtil;
@@ -710,6 +711,7 @@ public class DiscoveryBossBean implements DiscoveryBossLocal, DiscoveryBossRemot
             } catch (ResourceAlreadyExistsException e) {
                 throw new IllegalStateException(e);
             }
+            DynaGroupChangeTracker.inventoryChanged(resource.getId());
 
             mergeResourceResponse = new MergeResourceResponse(resource.getId(), resource.getCtime(), false);
         }
@@ -796,6 +798,7 @@ public class DiscoveryBossBean implements DiscoveryBossLocal, DiscoveryBossRemot
                     productVersion = productVersionManager.addProductVersion(resource.getResourceType(), newVersion);
                 }
                 resource.setProductVersion(productVersion);
+                DynaGroupChangeTracker.inventoryChanged(resource.getId());
             }
         }
         return versionChanged;
@@ -840,6 +843,7 @@ public class DiscoveryBossBean implements DiscoveryBossLocal, DiscoveryBossRemot
             if (isUpgradeAll && needsUpgrade(resource.getName(), name)) {
                 resource.setName(name);
                 logMessage.append("name, ");
+                DynaGroupChangeTracker.inventoryChanged(resource.getId());
                 ret.setUpgradedResourceName(resource.getName());
             }
 
@@ -852,6 +856,7 @@ public class DiscoveryBossBean implements DiscoveryBossLocal, DiscoveryBossRemot
             if (needsUpgrade(resource.getVersion(), version)) {
                 resource.setVersion(version);
                 logMessage.append("version, ");
+                DynaGroupChangeTracker.inventoryChanged(resource.getId());
                 ret.setUpgradedResourceVersion(resource.getVersion());
             }
 
@@ -1396,6 +1401,9 @@ public class DiscoveryBossBean implements DiscoveryBossLocal, DiscoveryBossRemot
         resource.setModifiedBy(overlord.getName());
 
         setInventoryStatus(parentResource, resource, postMergeActions);
+        if (InventoryStatus.COMMITTED == resource.getInventoryStatus()) {
+            DynaGroupChangeTracker.inventoryChanged(resource.getId());
+        }
 
         // Extend implicit (recursive) group membership of the parent to the new child
         if (null != parentResource) {
@@ -1454,6 +1462,7 @@ public class DiscoveryBossBean implements DiscoveryBossLocal, DiscoveryBossRemot
 
             if (!isParentCommitted) {
                 parentResource.setInventoryStatus(InventoryStatus.COMMITTED);
+                DynaGroupChangeTracker.inventoryChanged(parentResource.getId());
             }
 
             addPostMergeAction(postMergeActions, resource, PostMergeAction.LINK_STORAGE_NODE);
@@ -24,9 +24,12 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.ejb.EJB;
 import javax.ejb.Stateless;
@@ -108,6 +111,10 @@ public class AvailabilityManagerBean implements AvailabilityManagerLocal, Availa
         MERGE_BATCH_SIZE = (mergeBatchSize > 999) ? 999 : mergeBatchSize;
     }
 
+    // the number of resources whose latest availability type is read at once, less than 1000 for Oracle IN clause
+    // limitation reasons
+    static private final int LATEST_TYPE_BATCH_SIZE = 999;
+
     @PersistenceContext(unitName = RHQConstants.PERSISTENCE_UNIT_NAME)
     private EntityManager entityManager;
 
@@ -734,6 +741,10 @@ public class AvailabilityManagerBean implements AvailabilityManagerLocal, Availa
 
         }
 
+        // most of a full report usually just confirms the current availabilities, weed those out with a few
+        // queries instead of merging them in the batches below
+        availabilities = removeUnchangedAvailabilities(availabilities, mergeInfo);
+
         // process the report in batches to avoid an overly long transaction and to potentially increase the
         // speed in which an avail change becomes visible.
 
@@ -771,6 +782,101 @@ public class AvailabilityManagerBean implements AvailabilityManagerLocal, Availa
         return true; // everything is OK and things look to be in sync
     }
 
+    /**
+     * Removes the reported availabilities that do not change the availability of their resource. The latest
+     * availability types are read with one projection query per {@link #LATEST_TYPE_BATCH_SIZE} resources, rather than
+     * loading the latest availability entities of every resource in a merge transaction. The alert condition cache is
+     * notified of the removed availabilities for enabled resources, as the merge would have done.
+     * <p>
+     * Everything out of the ordinary is left for the merge to handle: reports with several availabilities for a
+     * resource, resources without a unique latest availability, MISSING resources, enablement of DISABLED resources
+     * and availabilities older than the latest one.
+     * </p>
+     *
+     * @return the availabilities that have to be merged
+     */
+    private List<Availability> removeUnchangedAvailabilities(List<Availability> availabilities, MergeInfo mergeInfo) {
+        Set<Integer> resourceIds = new HashSet<Integer>(availabilities.size());
+        Set<Integer> repeatedResourceIds = new HashSet<Integer>();
+        for (Availability reported : availabilities) {
+            if (!resourceIds.add(reported.getResource().getId())) {
+                repeatedResourceIds.add(reported.getResource().getId());
+            }
+        }
+        resourceIds.clear(); // done with this, perhaps helps GC
+        resourceIds = null;
+
+        List<Availability> changedAvailabilities = new ArrayList<Availability>();
+        List<Availability> unchangedAvailabilities = new ArrayList<Availability>();
+        Query q = entityManager.createNamedQuery(Availability.FIND_LATEST_TYPE_BY_RESOURCE_IDS);
+
+        for (int fromIndex = 0; fromIndex < availabilities.size(); fromIndex += LATEST_TYPE_BATCH_SIZE) {
+            List<Availability> availBatch = availabilities.subList(fromIndex,
+                Math.min(fromIndex + LATEST_TYPE_BATCH_SIZE, availabilities.size()));
+
+            List<Integer> batchResourceIds = new ArrayList<Integer>(availBatch.size());
+            for (Availability reported : availBatch) {
+                batchResourceIds.add(reported.getResource().getId());
+            }
+            q.setParameter("resourceIds", batchResourceIds);
+            List<Object[]> latestTypes = q.getResultList();
+
+            // a null value marks a resource with several latest availabilities
+            Map<Integer, Object[]> latestTypesByResourceId = new HashMap<Integer, Object[]>(latestTypes.size());
+            for (Object[] latestType : latestTypes) {
+                Integer resourceId = (Integer) latestType[0];
+                if (latestTypesByResourceId.containsKey(resourceId)) {
+                    latestTypesByResourceId.put(resourceId, null);
+                } else {
+                    latestTypesByResourceId.put(resourceId, latestType);
+                }
+            }
+
+            for (Availability reported : availBatch) {
+                Integer resourceId = reported.getResource().getId();
+                Object[] latestType = latestTypesByResourceId.get(resourceId);
+                AvailabilityType reportedType = reported.getAvailabilityType();
+
+                if ((null == latestType) || repeatedResourceIds.contains(resourceId)
+                    || (AvailabilityType.MISSING == reportedType)) {
+                    changedAvailabilities.add(reported);
+                    continue;
+                }
+
+                long latestStartTime = (Long) latestType[1];
+                AvailabilityType latestAvailabilityType = (AvailabilityType) latestType[2];
+
+                if (AvailabilityType.DISABLED == latestAvailabilityType) {
+                    // the merge would ignore the reported avail, unless this report re-enables the resource
+                    if (mergeInfo.isEnablementReport() && (AvailabilityType.UNKNOWN == reportedType)) {
+                        changedAvailabilities.add(reported);
+                    }
+                } else if ((latestAvailabilityType == reportedType) && (reported.getStartTime() >= latestStartTime)) {
+                    unchangedAvailabilities.add(reported);
+
+                    // our last known state was unknown, ask for a full report to ensure we are in sync with agent
+                    if (AvailabilityType.UNKNOWN == latestAvailabilityType) {
+                        mergeInfo.setAskForFullReport(true);
+                    }
+                } else {
+                    changedAvailabilities.add(reported);
+                }
+            }
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Agent [" + mergeInfo.getAgentName() + "]: " + unchangedAvailabilities.size() + " of "
+                + availabilities.size() + " reported availabilities are unchanged");
+        }
+
+        if (!unchangedAvailabilities.isEmpty()) {
+            notifyAlertConditionCacheManager("mergeAvailabilityReport",
+                unchangedAvailabilities.toArray(new Availability[unchangedAvailabilities.size()]));
+        }
+
+        return changedAvailabilities;
+    }
+
     static class MergeInfo {
         private AvailabilityReport report;
         private int numInserted = 0;
@@ -805,6 +911,10 @@ public class AvailabilityManagerBean implements AvailabilityManagerLocal, Availa
             return report.isServerSideReport();
         }
 
+        public String getAgentName() {
+            return report.getAgentName();
+        }
+
         public String toString(boolean includeAll) {
             return report.toString(includeAll);
         }
@@ -1057,37 +1167,38 @@ public class AvailabilityManagerBean implements AvailabilityManagerLocal, Availa
         }
     }
 
-    // pulls all the ResourceAvailabilities in one query to reduce DB round trips
+    // updates the ResourceAvailabilities with one bulk update per availability type to reduce DB round trips
     private void updateResourceAvailabilities(List<Availability> reportedChanges) {
         if (null == reportedChanges || reportedChanges.isEmpty()) {
             return;
         }
 
-        Query q = entityManager.createNamedQuery(ResourceAvailability.QUERY_FIND_BY_RESOURCE_IDS);
-        List<Integer> resourceIds = new ArrayList<Integer>(reportedChanges.size());
+        // the last reported change of a resource is its current availability
+        Map<Integer, AvailabilityType> currentTypes = new LinkedHashMap<Integer, AvailabilityType>(
+            reportedChanges.size());
         for (Availability reported : reportedChanges) {
-            resourceIds.add(reported.getResource().getId());
+            currentTypes.put(reported.getResource().getId(), reported.getAvailabilityType());
         }
-        q.setParameter("resourceIds", resourceIds);
-        List<ResourceAvailability> resourceAvailabilityList = q.getResultList();
-        resourceIds.clear(); // done with this, perhaps helps GC
-        resourceIds = null;
 
-        // populate Map of resourceIds to resourceAvailability
-        Map<Integer, ResourceAvailability> resourceAvailabilities = new HashMap(reportedChanges.size());
-        for (ResourceAvailability resourceAvailability : resourceAvailabilityList) {
-            resourceAvailabilities.put(resourceAvailability.getResourceId(), resourceAvailability);
+        Map<AvailabilityType, List<Integer>> resourceIdsByType = new HashMap<AvailabilityType, List<Integer>>();
+        for (Map.Entry<Integer, AvailabilityType> entry : currentTypes.entrySet()) {
+            List<Integer> resourceIds = resourceIdsByType.get(entry.getValue());
+            if (null == resourceIds) {
+                resourceIds = new ArrayList<Integer>();
+                resourceIdsByType.put(entry.getValue(), resourceIds);
+            }
+            resourceIds.add(entry.getKey());
         }
-
-        for (Availability reported : reportedChanges) {
-            ResourceAvailability currentAvailability = resourceAvailabilities.get(reported.getResource().getId());
-
-            // update the last known availability data for this resource but only if necessary (actually changed)
-            updateResourceAvailabilityIfNecessary(reported, currentAvailability);
+        currentTypes.clear(); // done with these, perhaps helps GC
+        currentTypes = null;
+
+        // update the last known availability data for the resources but only if necessary (actually changed)
+        Query q = entityManager.createNamedQuery(ResourceAvailability.UPDATE_BY_RESOURCE_IDS);
+        for (Map.Entry<AvailabilityType, List<Integer>> entry : resourceIdsByType.entrySet()) {
+            q.setParameter("availabilityType", entry.getKey());
+            q.setParameter("resourceIds", entry.getValue());
+            q.executeUpdate();
         }
-
-        resourceAvailabilities.clear(); // done with these, perhaps helps GC
-        resourceAvailabilities = null;
     }
 
     @Override
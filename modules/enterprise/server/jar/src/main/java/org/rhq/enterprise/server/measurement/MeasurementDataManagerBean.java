@@ -102,6 +102,7 @@ import org.rhq.enterprise.server.core.AgentManagerLocal;
 import org.rhq.enterprise.server.measurement.instrumentation.MeasurementMonitor;
 import org.rhq.enterprise.server.measurement.util.MeasurementDataManagerUtility;
 import org.rhq.enterprise.server.resource.group.ResourceGroupManagerLocal;
+import org.rhq.enterprise.server.resource.group.definition.DynaGroupChangeTracker;
 import org.rhq.enterprise.server.rest.ResourceHandlerBean;
 import org.rhq.enterprise.server.storage.StorageClientManager;
 import org.rhq.enterprise.server.util.CriteriaQueryGenerator;
@@ -291,6 +292,18 @@ public class MeasurementDataManagerBean implements MeasurementDataManagerLocal,
                 // It is expected that some of these batch updates didn't update anything as the previous value was the same
             }
 
+            if (DynaGroupChangeTracker.isEnabled()) {
+                // the statement only inserts a value that differs from the latest one
+                List<Integer> changedScheduleIds = new ArrayList<Integer>();
+                int i = 0;
+                for (MeasurementDataTrait aData : data) {
+                    if (res[i++] != 0) {
+                        changedScheduleIds.add(aData.getScheduleId());
+                    }
+                }
+                DynaGroupChangeTracker.traitsChanged(changedScheduleIds);
+            }
+
             notifyAlertConditionCacheManager("mergeMeasurementReport", data.toArray(new MeasurementData[data.size()]));
         } catch (SQLException e) {
             log.warn("Failure saving measurement trait data:\n" + ThrowableUtil.getAllMessages(e));
@@ -709,7 +722,8 @@ public class MeasurementDataManagerBean implements MeasurementDataManagerLocal,
             criteria);
 
         MetricsServer metricsServer = storageClientManager.getMetricsServer();
-        AggregateNumericMetric summary = metricsServer.getSummaryAggregate(map(schedules), startTime, endTime);
+        AggregateNumericMetric summary = metricsServer.getSummaryAggregate(groupId, definitionId, map(schedules),
+            startTime, endTime);
 
         return new MeasurementAggregate(summary.getMin(), summary.getAvg(), summary.getMax());
     }
@@ -817,8 +831,8 @@ public class MeasurementDataManagerBean implements MeasurementDataManagerLocal,
                 new ArrayList<List<MeasurementDataNumericHighLowComposite>>();
 
             List<MeasurementDataNumericHighLowComposite> tempList = new ArrayList<MeasurementDataNumericHighLowComposite>();
-            for (MeasurementDataNumericHighLowComposite object : metricsServer.findDataForGroup(map(schedules),
-                beginTime, endTime,numDataPoints)) {
+            for (MeasurementDataNumericHighLowComposite object : metricsServer.findDataForGroup(
+                context.getGroupId(), definitionId, map(schedules), beginTime, endTime, numDataPoints)) {
                 tempList.add(object);
             }
             data.add(tempList);
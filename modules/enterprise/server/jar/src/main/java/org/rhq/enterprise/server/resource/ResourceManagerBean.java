@@ -148,6 +148,7 @@ import org.rhq.enterprise.server.resource.disambiguation.DisambiguationUpdateStr
 import org.rhq.enterprise.server.resource.disambiguation.Disambiguator;
 import org.rhq.enterprise.server.resource.group.ResourceGroupDeleteException;
 import org.rhq.enterprise.server.resource.group.ResourceGroupManagerLocal;
+import org.rhq.enterprise.server.resource.group.definition.DynaGroupChangeTracker;
 import org.rhq.enterprise.server.rest.ResourceHandlerBean;
 import org.rhq.enterprise.server.util.CriteriaQueryGenerator;
 import org.rhq.enterprise.server.util.CriteriaQueryRunner;
@@ -273,6 +274,7 @@ public class ResourceManagerBean implements ResourceManagerLocal, ResourceManage
         if (!persistedResource.getName().equals(resource.getName())) {
             persistedResource.setName(resource.getName());
             updateAncestry(persistedResource);
+            DynaGroupChangeTracker.inventoryChanged(persistedResource.getId());
         }
         persistedResource.setLocation(resource.getLocation());
         persistedResource.setDescription(resource.getDescription());
@@ -1005,6 +1007,7 @@ public class ResourceManagerBean implements ResourceManagerLocal, ResourceManage
         resource.setInventoryStatus(newStatus);
         resource.setItime(now);
         resource.setAgentSynchronizationNeeded();
+        DynaGroupChangeTracker.inventoryChanged(resource.getId());
     }
 
     @Override
@@ -2866,14 +2869,16 @@ public class ResourceManagerBean implements ResourceManagerLocal, ResourceManage
             generator, entityManager, false); // don't auto-init bags, we're returning composites not entities
         PageList<ResourceComposite> results = queryRunner.execute();
 
+        List<Resource> resources = new ArrayList<Resource>(results.size());
         for (ResourceComposite nextComposite : results) {
             Resource nextResource = nextComposite.getResource();
             ResourceType nextResourceType = nextResource.getResourceType();
             ResourceFacets facets = typeManager.getResourceFacets(nextResourceType.getId());
 
-            queryRunner.initFetchFields(nextResource); // manual field fetch for composite-wrapped entity
+            resources.add(nextResource);
             nextComposite.setResourceFacets(facets);
         }
+        queryRunner.initFetchFields(resources); // manual field fetch for composite-wrapped entities
 
         return results;
     }
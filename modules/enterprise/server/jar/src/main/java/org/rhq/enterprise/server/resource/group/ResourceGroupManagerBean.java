@@ -46,6 +46,9 @@ import javax.persistence.PersistenceContext;
 import javax.persistence.PersistenceException;
 import javax.persistence.Query;
 import javax.sql.DataSource;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -91,6 +94,7 @@ import org.rhq.enterprise.server.authz.RequiredPermission;
 import org.rhq.enterprise.server.operation.OperationManagerLocal;
 import org.rhq.enterprise.server.resource.ResourceManagerLocal;
 import org.rhq.enterprise.server.resource.ResourceTypeManagerLocal;
+import org.rhq.enterprise.server.storage.StorageClientManager;
 import org.rhq.enterprise.server.util.CriteriaQueryGenerator;
 import org.rhq.enterprise.server.util.CriteriaQueryRunner;
 import org.rhq.enterprise.server.util.QueryUtility;
@@ -126,10 +130,15 @@ public class ResourceGroupManagerBean implements ResourceGroupManagerLocal, Reso
     private ResourceGroupManagerLocal resourceGroupManager;
     @EJB
     private GroupAlertDefinitionManagerLocal groupAlertDefinitionManager;
+    @EJB
+    StorageClientManager storageClientManager;
 
     @javax.annotation.Resource(name = "RHQ_DS", mappedName = RHQConstants.DATASOURCE_JNDI_NAME)
     private DataSource rhqDs;
 
+    @javax.annotation.Resource
+    TransactionSynchronizationRegistry transactionSynchronizationRegistry;
+
     private DatabaseType dbType;
 
     @PostConstruct
@@ -458,6 +467,7 @@ public class ResourceGroupManagerBean implements ResourceGroupManagerLocal, Reso
             addResourcesToGroupImplicit(subject, groupId, batchIds, true, isRecursive);
             addResourcesToGroupExplicit(subject, groupId, batchIds, isRecursive);
         }
+        invalidateGroupRollups(groupId);
 
         if (setType) {
             try {
@@ -607,6 +617,7 @@ public class ResourceGroupManagerBean implements ResourceGroupManagerLocal, Reso
 
             removeResourcesFromGroup_helper(subject, groupId, batchIdArray, isRecursive);
         }
+        invalidateGroupRollups(groupId);
 
         if (setType) {
             try {
@@ -708,6 +719,8 @@ public class ResourceGroupManagerBean implements ResourceGroupManagerLocal, Reso
 
             explicitStatement.executeUpdate();
             implicitStatement.executeUpdate();
+
+            invalidateGroupRollups(groupId);
         } catch (SQLException sqle) {
             log.error("Error removing group resources", sqle);
             throw new ResourceGroupDeleteException("Error removing group resources: " + sqle.getMessage());
@@ -718,6 +731,60 @@ public class ResourceGroupManagerBean implements ResourceGroupManagerLocal, Reso
         }
     }
 
+    /**
+     * The metric rollups of a group are computed for a fixed set of members. Removing them makes sure that group
+     * metric data is read from the member schedules until the rollups have been rebuilt for the new members. This is
+     * best effort; a rollup whose members do not match the group is also detected when the group data is queried.
+     * <p/>
+     * The rollups are removed once the membership change is committed. Removing them earlier would let a concurrent
+     * query register them again with the old members, which it still sees until then.
+     */
+    @SuppressWarnings("unchecked")
+    void invalidateGroupRollups(int groupId) {
+        if (transactionSynchronizationRegistry.getTransactionKey() == null) {
+            invalidateGroupRollupsNow(groupId);
+            return;
+        }
+
+        Set<Integer> groupIds = (Set<Integer>) transactionSynchronizationRegistry
+            .getResource(GroupRollupInvalidation.class);
+        if (groupIds == null) {
+            GroupRollupInvalidation invalidation = new GroupRollupInvalidation();
+            groupIds = invalidation.groupIds;
+            transactionSynchronizationRegistry.putResource(GroupRollupInvalidation.class, groupIds);
+            transactionSynchronizationRegistry.registerInterposedSynchronization(invalidation);
+        }
+        groupIds.add(groupId);
+    }
+
+    /**
+     * Invalidates the rollups of the groups whose membership changed in a transaction once it has been committed.
+     */
+    private class GroupRollupInvalidation implements Synchronization {
+        private final Set<Integer> groupIds = new HashSet<Integer>();
+
+        public void beforeCompletion() {
+        }
+
+        public void afterCompletion(int status) {
+            if (status == Status.STATUS_COMMITTED) {
+                for (Integer groupId : groupIds) {
+                    invalidateGroupRollupsNow(groupId);
+                }
+            }
+        }
+    }
+
+    private void invalidateGroupRollupsNow(int groupId) {
+        try {
+            if (storageClientManager.isClusterAvailable()) {
+                storageClientManager.getMetricsServer().invalidateGroupRollups(groupId);
+            }
+        } catch (Exception e) {
+            log.warn("Failed to invalidate the metric rollups of group[id=" + groupId + "]: " + e.getMessage());
+        }
+    }
+
     @RequiredPermission(Permission.MANAGE_SECURITY)
     @SuppressWarnings("unchecked")
     public PageList<ResourceGroup> findAvailableResourceGroupsForRole(Subject subject, int roleId, int[] excludeIds,
@@ -0,0 +1,233 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2014 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.rhq.enterprise.server.resource.group.definition;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.rhq.enterprise.server.util.LookupUtil;
+
+/**
+ * Collects the changes to resources that can change the membership of DynaGroups: changes to their inventory status,
+ * name or version, to their traits and to their plugin configuration. They are picked up by
+ * {@link GroupDefinitionManagerLocal#recalculateDynaGroups(org.rhq.core.domain.auth.Subject)}, which re-evaluates
+ * only the changed resources, against only the group definitions that can match them.
+ * <p>
+ * Changes are only recorded once the transaction making them has been committed, so that the recalculation sees
+ * them; the changes of a transaction that is rolled back are dropped. Changes are tracked by the server they are made
+ * on. Whatever is not picked up incrementally, like changes made on another server of a cluster or changes dropped
+ * because too many were pending, is picked up by the full recalculation of each group definition at its
+ * recalculation interval.
+ * </p>
+ * Incremental recalculation, and with it the recording of changes, is disabled unless the
+ * {@value #INCREMENTAL_RECALCULATION_SYSPROP} system property is set to true.
+ */
+public class DynaGroupChangeTracker {
+    private static final Log LOG = LogFactory.getLog(DynaGroupChangeTracker.class);
+
+    public static final String INCREMENTAL_RECALCULATION_SYSPROP = "rhq.server.dynagroup.incremental-recalculation";
+
+    private static final int MAX_PENDING_CHANGES = 100000;
+
+    private static final boolean enabled = Boolean.getBoolean(INCREMENTAL_RECALCULATION_SYSPROP);
+
+    // the committed changes, guarded by the class
+    private static final Set<Integer> inventoryChanges = new HashSet<Integer>();
+    private static final Set<Integer> pluginConfigurationChanges = new HashSet<Integer>();
+    private static final Set<Integer> traitChanges = new HashSet<Integer>();
+    private static boolean changesDropped;
+
+    private static volatile TransactionSynchronizationRegistry transactionSynchronizationRegistry;
+
+    private DynaGroupChangeTracker() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Records a change to the inventory status, name or version of a resource.
+     */
+    public static void inventoryChanged(int resourceId) {
+        if (enabled) {
+            TransactionChanges transactionChanges = getTransactionChanges();
+            if (transactionChanges != null) {
+                transactionChanges.inventoryResourceIds.add(resourceId);
+            } else {
+                record(Collections.singleton(resourceId), Collections.<Integer> emptySet(),
+                    Collections.<Integer> emptySet());
+            }
+        }
+    }
+
+    /**
+     * Records a change to the plugin configuration of a resource.
+     */
+    public static void pluginConfigurationChanged(int resourceId) {
+        if (enabled) {
+            TransactionChanges transactionChanges = getTransactionChanges();
+            if (transactionChanges != null) {
+                transactionChanges.pluginConfigurationResourceIds.add(resourceId);
+            } else {
+                record(Collections.<Integer> emptySet(), Collections.singleton(resourceId),
+                    Collections.<Integer> emptySet());
+            }
+        }
+    }
+
+    /**
+     * Records a change to the value of traits.
+     *
+     * @param scheduleIds the ids of the schedules of the changed traits
+     */
+    public static void traitsChanged(Collection<Integer> scheduleIds) {
+        if (enabled && !scheduleIds.isEmpty()) {
+            TransactionChanges transactionChanges = getTransactionChanges();
+            if (transactionChanges != null) {
+                transactionChanges.traitScheduleIds.addAll(scheduleIds);
+            } else {
+                record(Collections.<Integer> emptySet(), Collections.<Integer> emptySet(), scheduleIds);
+            }
+        }
+    }
+
+    /**
+     * @return the changes of the current transaction, which are recorded once it has been committed, or null if
+     * there is no transaction and changes are to be recorded right away
+     */
+    private static TransactionChanges getTransactionChanges() {
+        TransactionSynchronizationRegistry registry = transactionSynchronizationRegistry;
+        if (registry == null) {
+            registry = LookupUtil.getTransactionSynchronizationRegistry();
+            transactionSynchronizationRegistry = registry;
+        }
+        if (registry.getTransactionKey() == null) {
+            return null;
+        }
+
+        TransactionChanges transactionChanges = (TransactionChanges) registry.getResource(TransactionChanges.class);
+        if (transactionChanges == null) {
+            transactionChanges = new TransactionChanges();
+            registry.putResource(TransactionChanges.class, transactionChanges);
+            registry.registerInterposedSynchronization(transactionChanges);
+        }
+        return transactionChanges;
+    }
+
+    private static synchronized void record(Collection<Integer> inventoryResourceIds,
+        Collection<Integer> pluginConfigurationResourceIds, Collection<Integer> traitScheduleIds) {
+        record(inventoryChanges, inventoryResourceIds);
+        record(pluginConfigurationChanges, pluginConfigurationResourceIds);
+        record(traitChanges, traitScheduleIds);
+    }
+
+    private static void record(Set<Integer> changes, Collection<Integer> ids) {
+        for (Integer id : ids) {
+            if (!changes.contains(id) && changes.size() >= MAX_PENDING_CHANGES) {
+                if (!changesDropped) {
+                    LOG.warn("Too many resource changes pending for incremental DynaGroup recalculation, further "
+                        + "changes are left to the full recalculation of the group definitions");
+                    changesDropped = true;
+                }
+                return;
+            }
+            changes.add(id);
+        }
+    }
+
+    /**
+     * Hands out the committed changes and forgets about them.
+     */
+    public static synchronized Changes removeChanges() {
+        Changes result = new Changes(new HashSet<Integer>(inventoryChanges), new HashSet<Integer>(
+            pluginConfigurationChanges), new HashSet<Integer>(traitChanges));
+        inventoryChanges.clear();
+        pluginConfigurationChanges.clear();
+        traitChanges.clear();
+        changesDropped = false;
+        return result;
+    }
+
+    /**
+     * Records the changes made in a transaction once it has been committed.
+     */
+    private static class TransactionChanges implements Synchronization {
+        private final Set<Integer> inventoryResourceIds = new HashSet<Integer>();
+        private final Set<Integer> pluginConfigurationResourceIds = new HashSet<Integer>();
+        private final Set<Integer> traitScheduleIds = new HashSet<Integer>();
+
+        public void beforeCompletion() {
+        }
+
+        public void afterCompletion(int status) {
+            if (status == Status.STATUS_COMMITTED) {
+                record(inventoryResourceIds, pluginConfigurationResourceIds, traitScheduleIds);
+            }
+        }
+    }
+
+    public static class Changes {
+        private final Set<Integer> inventoryResourceIds;
+        private final Set<Integer> pluginConfigurationResourceIds;
+        private final Set<Integer> traitScheduleIds;
+
+        Changes(Set<Integer> inventoryResourceIds, Set<Integer> pluginConfigurationResourceIds,
+            Set<Integer> traitScheduleIds) {
+            this.inventoryResourceIds = inventoryResourceIds;
+            this.pluginConfigurationResourceIds = pluginConfigurationResourceIds;
+            this.traitScheduleIds = traitScheduleIds;
+        }
+
+        /**
+         * @return the resources whose inventory status, name or version changed
+         */
+        public Set<Integer> getInventoryResourceIds() {
+            return inventoryResourceIds;
+        }
+
+        /**
+         * @return the resources whose plugin configuration changed
+         */
+        public Set<Integer> getPluginConfigurationResourceIds() {
+            return pluginConfigurationResourceIds;
+        }
+
+        /**
+         * @return the schedules of the traits whose value changed
+         */
+        public Set<Integer> getTraitScheduleIds() {
+            return traitScheduleIds;
+        }
+
+        public boolean isEmpty() {
+            return inventoryResourceIds.isEmpty() && pluginConfigurationResourceIds.isEmpty()
+                && traitScheduleIds.isEmpty();
+        }
+    }
+}
@@ -43,6 +43,7 @@ import org.apache.commons.logging.LogFactory;
 import org.rhq.core.domain.auth.Subject;
 import org.rhq.core.domain.authz.Permission;
 import org.rhq.core.domain.criteria.ResourceGroupDefinitionCriteria;
+import org.rhq.core.domain.measurement.MeasurementSchedule;
 import org.rhq.core.domain.plugin.CannedGroupExpression;
 import org.rhq.core.domain.resource.group.GroupDefinition;
 import org.rhq.core.domain.resource.group.InvalidExpressionException;
@@ -71,6 +72,7 @@ import org.rhq.enterprise.server.resource.group.definition.exception.GroupDefini
 import org.rhq.enterprise.server.resource.group.definition.framework.ExpressionEvaluator;
 import org.rhq.enterprise.server.resource.group.definition.mbean.GroupDefinitionRecalculationThreadMonitor;
 import org.rhq.enterprise.server.resource.group.definition.mbean.GroupDefinitionRecalculationThreadMonitorMBean;
+import org.rhq.enterprise.server.util.BatchIterator;
 import org.rhq.enterprise.server.util.CriteriaQueryGenerator;
 import org.rhq.enterprise.server.util.CriteriaQueryRunner;
 
@@ -104,6 +106,15 @@ public class GroupDefinitionManagerBean implements GroupDefinitionManagerLocal,
         recalculationFinderQuery.setParameter("now", System.currentTimeMillis());
         List<Integer> groupDefinitionIdsToRecalculate = recalculationFinderQuery.getResultList();
 
+        if (DynaGroupChangeTracker.isEnabled()) {
+            // the group definitions due for a full recalculation pick up the changes anyway
+            try {
+                recalculateDynaGroupsIncrementally(subject, groupDefinitionIdsToRecalculate);
+            } catch (Throwable t) {
+                log.error("Error recalculating DynaGroups incrementally", t);
+            }
+        }
+
         if (groupDefinitionIdsToRecalculate.size() == 0) {
             return; // this will skip the info logging, so we only log when this method does something meaningful
         }
@@ -139,6 +150,99 @@ public class GroupDefinitionManagerBean implements GroupDefinitionManagerLocal,
         monitor.updateAutoRecalculationThreadTime(totalEnd - totalStart);
     }
 
+    /*
+     * re-evaluates the resources that changed since the last run against the group definitions they can affect. only
+     * definitions whose expressions are resource local are handled here, whether a resource matches the others can
+     * change with any of its relatives, so they are left to their full recalculation.
+     */
+    @SuppressWarnings("unchecked")
+    private void recalculateDynaGroupsIncrementally(Subject subject, Collection<Integer> skippedGroupDefinitionIds) {
+        DynaGroupChangeTracker.Changes changes = DynaGroupChangeTracker.removeChanges();
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+
+        // the resources whose traits changed, by the (lower case) names of the changed traits
+        Map<String, Set<Integer>> resourceIdsByTraitName = new HashMap<String, Set<Integer>>();
+        BatchIterator<Integer> scheduleIdBatches = new BatchIterator<Integer>(new ArrayList<Integer>(
+            changes.getTraitScheduleIds()));
+        for (List<Integer> scheduleIds : scheduleIdBatches) {
+            Query query = entityManager
+                .createNamedQuery(MeasurementSchedule.FIND_RESOURCE_IDS_AND_DEFINITION_NAMES_BY_IDS);
+            query.setParameter("ids", scheduleIds);
+            for (Object[] row : (List<Object[]>) query.getResultList()) {
+                String traitName = ((String) row[1]).toLowerCase();
+                Set<Integer> resourceIds = resourceIdsByTraitName.get(traitName);
+                if (resourceIds == null) {
+                    resourceIds = new HashSet<Integer>();
+                    resourceIdsByTraitName.put(traitName, resourceIds);
+                }
+                resourceIds.add((Integer) row[0]);
+            }
+        }
+
+        Query query = entityManager.createNamedQuery(GroupDefinition.QUERY_FIND_ALL_RECALCULATING);
+        List<GroupDefinition> groupDefinitions = query.getResultList();
+
+        int recalculated = 0;
+        for (GroupDefinition groupDefinition : groupDefinitions) {
+            if (skippedGroupDefinitionIds.contains(groupDefinition.getId())) {
+                continue;
+            }
+
+            ExpressionEvaluator evaluator = new ExpressionEvaluator();
+            try {
+                for (String expression : groupDefinition.getExpressionAsList()) {
+                    evaluator.addExpression(expression);
+                }
+            } catch (InvalidExpressionException e) {
+                continue; // the full recalculation reports it
+            }
+            if (!evaluator.isResourceLocal()) {
+                continue;
+            }
+
+            // every expression depends on the inventory status, the rest only on what the expressions refer to
+            Set<Integer> resourceIds = new HashSet<Integer>(changes.getInventoryResourceIds());
+            if (evaluator.isPluginConfigurationDependent()) {
+                resourceIds.addAll(changes.getPluginConfigurationResourceIds());
+            }
+            for (String traitName : evaluator.getTraitNames()) {
+                for (Map.Entry<String, Set<Integer>> traitChange : resourceIdsByTraitName.entrySet()) {
+                    if (traitChange.getKey().contains(traitName.toLowerCase())) {
+                        resourceIds.addAll(traitChange.getValue());
+                    }
+                }
+            }
+            if (resourceIds.isEmpty()) {
+                continue;
+            }
+
+            try {
+                BatchIterator<Integer> resourceIdBatches = new BatchIterator<Integer>(new ArrayList<Integer>(
+                    resourceIds));
+                for (List<Integer> resourceIdBatch : resourceIdBatches) {
+                    groupDefinitionManager.calculateGroupMembershipIncrementally(subject, groupDefinition.getId(),
+                        resourceIdBatch);
+                }
+                recalculated++;
+            } catch (Throwable t) {
+                log.error("Error recalculating DynaGroups incrementally for GroupDefinition[id="
+                    + groupDefinition.getId() + "]", t);
+            }
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Recalculated [" + recalculated + "] group definitions incrementally for ["
+                + changes.getInventoryResourceIds().size() + "] inventory, ["
+                + changes.getPluginConfigurationResourceIds().size() + "] plugin configuration and ["
+                + changes.getTraitScheduleIds().size() + "] trait changes in ["
+                + (System.currentTimeMillis() - start) + "]ms");
+        }
+    }
+
     public GroupDefinition getById(int groupDefinitionId) throws GroupDefinitionNotFoundException {
         GroupDefinition groupDefinition = entityManager.find(GroupDefinition.class, groupDefinitionId);
         if (groupDefinition == null) {
@@ -319,31 +423,7 @@ public class GroupDefinitionManagerBean implements GroupDefinitionManagerLocal,
             doomedResourceGroupIds.add(managedGroupId);
         }
 
-        // BZ 1187680 : In a rare case a groupBy expression can generates multiple groupByClause strings differing
-        // only in case. Group names are [correctly] case insensitive and groupBy [correctly] is not. For example
-        // 'groupby resource.name' can cause this issue with two resources with the same name, ignoring case, like
-        // 'CPU' and 'cpu'.  In this situation we need to consolidate results into one dyna-group, otherwise
-        // we'll get naming conflicts in the generated groups. So, merge results where the groupByClause is equal,
-        // ignoring case.
-        Map<String, ExpressionEvaluator.Result> resultMap = new HashMap<String, ExpressionEvaluator.Result>();
-        for (ExpressionEvaluator.Result result : evaluator) {
-            String groupByClause = result.getGroupByClause();
-            String equivalentGroupByClauseKey = null;
-            for (String key : resultMap.keySet()) {
-                if (key.equalsIgnoreCase(groupByClause)) {
-                    equivalentGroupByClauseKey = key;
-                    break;
-                }
-            }
-            if (null != equivalentGroupByClauseKey) {
-                ExpressionEvaluator.Result sameResult = resultMap.get(equivalentGroupByClauseKey);
-                sameResult.getData().addAll(result.getData());
-            } else {
-                resultMap.put(result.getGroupByClause(), result);
-            }
-        }
-
-        for (ExpressionEvaluator.Result result : resultMap.values()) {
+        for (ExpressionEvaluator.Result result : mergeEquivalentResults(evaluator)) {
             if (result == null) {
                 /*
                  * skip null result elements, which represent queries that returned some null element -- this could be
@@ -396,11 +476,98 @@ public class GroupDefinitionManagerBean implements GroupDefinitionManagerLocal,
         log.debug("calculateGroupMembership took " + (endTime - startTime) + " millis");
     }
 
+    private Collection<ExpressionEvaluator.Result> mergeEquivalentResults(ExpressionEvaluator evaluator) {
+        // BZ 1187680 : In a rare case a groupBy expression can generates multiple groupByClause strings differing
+        // only in case. Group names are [correctly] case insensitive and groupBy [correctly] is not. For example
+        // 'groupby resource.name' can cause this issue with two resources with the same name, ignoring case, like
+        // 'CPU' and 'cpu'.  In this situation we need to consolidate results into one dyna-group, otherwise
+        // we'll get naming conflicts in the generated groups. So, merge results where the groupByClause is equal,
+        // ignoring case.
+        Map<String, ExpressionEvaluator.Result> resultMap = new HashMap<String, ExpressionEvaluator.Result>();
+        for (ExpressionEvaluator.Result result : evaluator) {
+            String groupByClause = result.getGroupByClause();
+            String equivalentGroupByClauseKey = null;
+            for (String key : resultMap.keySet()) {
+                if (key.equalsIgnoreCase(groupByClause)) {
+                    equivalentGroupByClauseKey = key;
+                    break;
+                }
+            }
+            if (null != equivalentGroupByClauseKey) {
+                ExpressionEvaluator.Result sameResult = resultMap.get(equivalentGroupByClauseKey);
+                sameResult.getData().addAll(result.getData());
+            } else {
+                resultMap.put(result.getGroupByClause(), result);
+            }
+        }
+
+        return resultMap.values();
+    }
+
+    @RequiredPermission(Permission.MANAGE_INVENTORY)
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public void calculateGroupMembershipIncrementally(Subject subject, int groupDefinitionId,
+        Collection<Integer> resourceIds) throws GroupDefinitionNotFoundException, InvalidExpressionException,
+        ResourceGroupDeleteException {
+        long startTime = System.currentTimeMillis();
+
+        GroupDefinition groupDefinition = getById(groupDefinitionId);
+
+        ExpressionEvaluator evaluator = new ExpressionEvaluator();
+        for (String expression : groupDefinition.getExpressionAsList()) {
+            evaluator.addExpression(expression);
+        }
+        evaluator.setResourceIdFilter(resourceIds);
+
+        // the managed groups the given resources are members of, with those members
+        Map<Integer, Set<Integer>> membersByGroupId = getManagedResourceGroupMembers(groupDefinitionId, resourceIds);
+
+        for (ExpressionEvaluator.Result result : mergeEquivalentResults(evaluator)) {
+            if (result == null) {
+                continue; // see calculateGroupMembership
+            }
+
+            Collection<Integer> existingResourceIds = Collections.emptySet();
+            ResourceGroup resourceGroup = resourceGroupManager.getByGroupDefinitionAndGroupByClause(
+                groupDefinitionId, result.getGroupByClause());
+            if (resourceGroup != null && membersByGroupId.containsKey(resourceGroup.getId())) {
+                existingResourceIds = membersByGroupId.remove(resourceGroup.getId());
+            }
+
+            Integer resourceGroupId = groupDefinitionManager.calculateGroupMembership_helper(subject,
+                groupDefinitionId, result, existingResourceIds);
+            resourceGroupManager.setResourceTypeInNewTx(resourceGroupId);
+        }
+
+        /*
+         * the given resources no longer match the groups left over. unlike the full recalculation this does not
+         * remove the groups that end up empty, the full recalculation takes care of them
+         */
+        for (Map.Entry<Integer, Set<Integer>> doomedMembers : membersByGroupId.entrySet()) {
+            groupDefinitionManager.removeManagedResourceGroupMembers_helper(subject, doomedMembers.getKey(),
+                doomedMembers.getValue());
+            resourceGroupManager.setResourceTypeInNewTx(doomedMembers.getKey());
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("calculateGroupMembershipIncrementally took " + (System.currentTimeMillis() - startTime)
+                + " millis");
+        }
+    }
+
     @RequiredPermission(Permission.MANAGE_INVENTORY)
     @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
     public Integer calculateGroupMembership_helper(Subject overlord, int groupDefinitionId,
         ExpressionEvaluator.Result result) throws ResourceGroupDeleteException, GroupDefinitionNotFoundException,
         GroupDefinitionNotFoundException {
+        return calculateGroupMembership_helper(overlord, groupDefinitionId, result, null);
+    }
+
+    @RequiredPermission(Permission.MANAGE_INVENTORY)
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public Integer calculateGroupMembership_helper(Subject overlord, int groupDefinitionId,
+        ExpressionEvaluator.Result result, Collection<Integer> existingResourceIds)
+        throws ResourceGroupDeleteException, GroupDefinitionNotFoundException {
         long startTime = System.currentTimeMillis();
 
         GroupDefinition groupDefinition = getById(groupDefinitionId);
@@ -449,9 +616,14 @@ public class GroupDefinitionManagerBean implements GroupDefinitionManagerLocal,
          *
          * use resourceManager.getExplicitResourceIdsByResourceGroup instead of resourceGroup.getExplicitResources to keep
          * the data we need to pull across the line from the database as small as possible
+         *
+         * when the result only covers some resources, the caller passes the members among them
          */
-        Collection<Integer> existingResourceIds = isNewGroup ? Collections.EMPTY_LIST : //
-            resourceManager.findExplicitResourceIdsByResourceGroup(resourceGroup.getId());
+        if (isNewGroup) {
+            existingResourceIds = Collections.EMPTY_LIST;
+        } else if (existingResourceIds == null) {
+            existingResourceIds = resourceManager.findExplicitResourceIdsByResourceGroup(resourceGroup.getId());
+        }
 
         Set<Integer> idsToAdd = new HashSet<Integer>(result.getData());
         idsToAdd.removeAll(existingResourceIds);
@@ -570,6 +742,34 @@ public class GroupDefinitionManagerBean implements GroupDefinitionManagerLocal,
         }
     }
 
+    @RequiredPermission(Permission.MANAGE_INVENTORY)
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public void removeManagedResourceGroupMembers_helper(Subject subject, int resourceGroupId,
+        Collection<Integer> doomedResourceIds) {
+        resourceGroupManager.removeResourcesFromGroup(subject, resourceGroupId,
+            ArrayUtils.unwrapCollection(doomedResourceIds));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<Integer, Set<Integer>> getManagedResourceGroupMembers(int groupDefinitionId,
+        Collection<Integer> resourceIds) {
+        Query query = entityManager
+            .createNamedQuery(GroupDefinition.QUERY_FIND_MANAGED_RESOURCE_GROUP_MEMBERS_BY_RESOURCE_IDS_ADMIN);
+        query.setParameter("groupDefinitionId", groupDefinitionId);
+        query.setParameter("resourceIds", resourceIds);
+
+        Map<Integer, Set<Integer>> results = new HashMap<Integer, Set<Integer>>();
+        for (Object[] row : (List<Object[]>) query.getResultList()) {
+            Set<Integer> members = results.get(row[0]);
+            if (members == null) {
+                members = new HashSet<Integer>();
+                results.put((Integer) row[0], members);
+            }
+            members.add((Integer) row[1]);
+        }
+        return results;
+    }
+
     @SuppressWarnings("unchecked")
     private List<Integer> getManagedResourceGroupIdsForGroupDefinition(int groupDefinitionId) {
         Query query = entityManager.createNamedQuery(GroupDefinition.QUERY_FIND_MANAGED_RESOURCE_GROUP_IDS_ADMIN);
@@ -18,6 +18,7 @@
  */
 package org.rhq.enterprise.server.resource.group.definition;
 
+import java.util.Collection;
 import java.util.List;
 
 import javax.ejb.Local;
@@ -25,6 +26,7 @@ import javax.ejb.Local;
 import org.rhq.core.domain.auth.Subject;
 import org.rhq.core.domain.plugin.CannedGroupExpression;
 import org.rhq.core.domain.resource.group.GroupDefinition;
+import org.rhq.core.domain.resource.group.InvalidExpressionException;
 import org.rhq.core.domain.util.PageControl;
 import org.rhq.core.domain.util.PageList;
 import org.rhq.enterprise.server.resource.group.ResourceGroupDeleteException;
@@ -42,6 +44,28 @@ public interface GroupDefinitionManagerLocal extends GroupDefinitionManagerRemot
     Integer calculateGroupMembership_helper(Subject subject, int groupDefinitionId, ExpressionEvaluator.Result result)
         throws ResourceGroupDeleteException, GroupDefinitionNotFoundException, GroupDefinitionNotFoundException;
 
+    /**
+     * Like {@link #calculateGroupMembership_helper(Subject, int, ExpressionEvaluator.Result)}, for a result that only
+     * covers some resources, leaving the membership of the others alone.
+     *
+     * @param existingResourceIds the members of the group among the resources the result covers, null if the result
+     *                            covers all resources
+     */
+    Integer calculateGroupMembership_helper(Subject subject, int groupDefinitionId, ExpressionEvaluator.Result result,
+        Collection<Integer> existingResourceIds) throws ResourceGroupDeleteException, GroupDefinitionNotFoundException;
+
+    /**
+     * Re-evaluates the given resources against a group definition and updates their membership in its DynaGroups,
+     * leaving the membership of all other resources alone.
+     *
+     * @param resourceIds the resources to re-evaluate, no more than 1000 of them
+     */
+    void calculateGroupMembershipIncrementally(Subject subject, int groupDefinitionId, Collection<Integer> resourceIds)
+        throws GroupDefinitionNotFoundException, InvalidExpressionException, ResourceGroupDeleteException;
+
+    void removeManagedResourceGroupMembers_helper(Subject subject, int resourceGroupId,
+        Collection<Integer> doomedResourceIds);
+
     PageList<GroupDefinition> getGroupDefinitions(Subject subject, PageControl pc);
 
     int getGroupDefinitionCount(Subject subject);
@@ -20,8 +20,10 @@ package org.rhq.enterprise.server.resource.group.definition.framework;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
@@ -56,6 +58,7 @@ public class ExpressionEvaluator implements Iterable<ExpressionEvaluator.Result>
     private static final String PROP_SIMPLE_DEF_ALIAS = "simpleDef";
     private static final String TRAIT_ALIAS = "trait";
     private static final String METRIC_DEF_ALIAS = "def";
+    private static final String RESOURCE_IDS_ARGUMENT = "resourceIds";
 
     private enum JoinCondition {
         RESOURCE_CONFIGURATION(".resourceConfiguration", "conf"), //
@@ -97,6 +100,15 @@ public class ExpressionEvaluator implements Iterable<ExpressionEvaluator.Result>
 
     private EntityManagerFacadeLocal entityManagerFacade;
 
+    /*
+     * what the expressions depend on, so that they only need to be re-evaluated when one of these changed
+     */
+    private boolean isResourceLocal;
+    private Set<String> traitNames;
+    private boolean isPluginConfigurationDependent;
+
+    private Collection<Integer> resourceIdFilter;
+
     private Map<String, String> resourceExpressions = new TreeMap<String, String>();
 
     public ExpressionEvaluator() {
@@ -128,6 +140,10 @@ public class ExpressionEvaluator implements Iterable<ExpressionEvaluator.Result>
         computedJPQLStatement = "";
         computedJPQLGroupStatement = "";
 
+        isResourceLocal = true;
+        traitNames = new HashSet<String>();
+        isPluginConfigurationDependent = false;
+
         entityManagerFacade = LookupUtil.getEntityManagerFacade();
 
         /*
@@ -265,6 +281,44 @@ public class ExpressionEvaluator implements Iterable<ExpressionEvaluator.Result>
         return this;
     }
 
+    /**
+     * Narrows the evaluation down to the given resources, for instance the ones that changed since the last evaluation.
+     * Must be called before the results are computed.
+     *
+     * @param resourceIds the ids of the resources to evaluate the expressions for, no more than 1000 of them
+     */
+    public void setResourceIdFilter(Collection<Integer> resourceIds) {
+        if (resultsComputed) {
+            throw new IllegalStateException("The filter must be set before the results are computed");
+        }
+
+        resourceIdFilter = resourceIds;
+        whereStatics.add("res.id IN ( :" + RESOURCE_IDS_ARGUMENT + " )");
+    }
+
+    /**
+     * @return true if the expressions only refer to the properties of the resource being evaluated, so a change to
+     *         one resource can't change whether another one matches; false if they refer to its parent, ancestors,
+     *         children or group membership
+     */
+    public boolean isResourceLocal() {
+        return isResourceLocal;
+    }
+
+    /**
+     * @return the names of the traits the expressions refer to; a trait matches if its name contains one of these
+     */
+    public Set<String> getTraitNames() {
+        return traitNames;
+    }
+
+    /**
+     * @return true if the expressions refer to plugin configuration properties
+     */
+    public boolean isPluginConfigurationDependent() {
+        return isPluginConfigurationDependent;
+    }
+
     /**
      * @return the JPQL statement that will be sent to the database, assuming test mode is false (the default): -- if no
      *         groupBy expressions are present, it will query for the target object -- if at least one groupBy
@@ -604,6 +658,7 @@ public class ExpressionEvaluator implements Iterable<ExpressionEvaluator.Result>
                 // WHERE def.name = :arg1 AND trait.value = :arg2 AND trait.schedule = sched AND trait.id.timestamp =
                 // (SELECT max(mdt.id.timestamp) FROM MeasurementDataTrait mdt WHERE sched.id = mdt.schedule.id)
                 String traitName = parseTraitName(originalTokens);
+                traitNames.add(traitName);
                 addJoinCondition(JoinCondition.SCHEDULES);
                 populatePredicateCollections(METRIC_DEF_ALIAS + ".name", "%" + traitName + "%", false, false);
                 populatePredicateCollections(TRAIT_ALIAS + ".value", value);
@@ -617,6 +672,7 @@ public class ExpressionEvaluator implements Iterable<ExpressionEvaluator.Result>
                 JoinCondition definitionJoinCondition;
 
                 if (subcontext == ParseSubContext.PluginConfiguration) {
+                    isPluginConfigurationDependent = true;
                     prefix = "pluginconfiguration";
                     joinCondition = JoinCondition.PLUGIN_CONFIGURATION;
                     definitionJoinCondition = JoinCondition.PLUGIN_CONFIGURATION_DEFINITION;
@@ -686,6 +742,10 @@ public class ExpressionEvaluator implements Iterable<ExpressionEvaluator.Result>
         if (context.isExpressionTerminator() == false) {
             throw new InvalidExpressionException("Unexpected termination of expression");
         }
+
+        if (isMemberOf || (deepestResourceContext != null && deepestResourceContext != ParseContext.Resource)) {
+            isResourceLocal = false;
+        }
     }
 
     private enum ResourceRelativeContext {
@@ -1059,6 +1119,9 @@ public class ExpressionEvaluator implements Iterable<ExpressionEvaluator.Result>
                     + " having value " + bindValue);
             }
         }
+        if (resourceIdFilter != null) {
+            query.setParameter(RESOURCE_IDS_ARGUMENT, resourceIdFilter);
+        }
 
         return query.getResultList();
     }
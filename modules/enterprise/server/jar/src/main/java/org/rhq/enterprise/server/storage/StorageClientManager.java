@@ -600,6 +600,11 @@ public class StorageClientManager implements StorageClientManagerMBean{
         DateTimeService dateTimeService = new DateTimeService();
         dateTimeService.setConfiguration(metricsConfiguration);
         metricsServer.setDateTimeService(dateTimeService);
+
+        String dataDir = System.getProperty("jboss.server.data.dir");
+        if (System.getProperty(MetricsConstants.SPILL_DIRECTORY) == null && dataDir != null) {
+            metricsServer.setSpillDirectory(new File(dataDir, "metrics-spill"));
+        }
         metricsServer.init();
     }
 
@@ -648,6 +653,56 @@ public class StorageClientManager implements StorageClientManagerMBean{
         return metricsServer.getQueueAvailableCapacity();
     }
 
+    @Override
+    public int getQueueSize() {
+        return metricsServer.getQueueSize();
+    }
+
+    @Override
+    public long getRawDataInserted() {
+        return metricsServer.getRawDataInsertedCount();
+    }
+
+    @Override
+    public long getRawDataFailed() {
+        return metricsServer.getRawDataFailedCount();
+    }
+
+    @Override
+    public long getRawDataDropped() {
+        return metricsServer.getRawDataDroppedCount();
+    }
+
+    @Override
+    public long getRawBatchesInserted() {
+        return metricsServer.getRawBatchesInsertedCount();
+    }
+
+    @Override
+    public long getRawIndexUpdates() {
+        return metricsServer.getRawIndexUpdatesCount();
+    }
+
+    @Override
+    public long getRawDataSpilled() {
+        return metricsServer.getRawDataSpilledCount();
+    }
+
+    @Override
+    public long getRawDataReplayed() {
+        return metricsServer.getRawDataReplayedCount();
+    }
+
+    @Override
+    public long getRawDataSpillPending() {
+        return metricsServer.getRawDataSpillPending();
+    }
+
+    @Override
+    public int getAggregationConcurrencyLimit() {
+        return metricsServer.getAggregationManager().getConcurrencyLimit();
+    }
+
     /**
      * A thread that checks for liveness of the given session.
      */
@@ -66,4 +66,21 @@ public interface StorageClientManagerMBean {
     // Queue
 
     int getQueueAvailableCapacity();
+
+    int getQueueSize();
+
+    // Raw data ingestion
+
+    long getRawDataInserted();
+    long getRawDataFailed();
+    long getRawDataDropped();
+    long getRawBatchesInserted();
+    long getRawIndexUpdates();
+    long getRawDataSpilled();
+    long getRawDataReplayed();
+    long getRawDataSpillPending();
+
+    // Aggregation
+
+    int getAggregationConcurrencyLimit();
 }
@@ -24,9 +24,12 @@ package org.rhq.enterprise.server.util;
 
 import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EnumType;
@@ -92,6 +95,16 @@ public final class CriteriaQueryGenerator {
 
     private static String NL = System.getProperty("line.separator");
 
+    /*
+     * the subject is bound rather than inlined in the authorization fragments, so the JPQL only depends on the shape
+     * of the criteria and Hibernate can reuse its compiled query plan across subjects
+     */
+    private static final String AUTHORIZATION_SUBJECT_ID_PARAMETER = "authorizationSubjectId";
+
+    // the fields of each type of each criteria class, looked up and made accessible once
+    private static final ConcurrentMap<Class<?>, Map<Criteria.Type, CriteriaField[]>> CRITERIA_FIELDS = //
+        new ConcurrentHashMap<Class<?>, Map<Criteria.Type, CriteriaField[]>>();
+
     private static List<String> EXPRESSION_START_KEYWORDS;
 
     private List<Field> persistentBagFields = new ArrayList<Field>();
@@ -191,10 +204,10 @@ public final class CriteriaQueryGenerator {
     public void setAuthorizationResourceFragment(AuthorizationTokenType type, String fragment, int subjectId) {
         this.authorizationSubjectId = subjectId;
         if (type == AuthorizationTokenType.RESOURCE) {
-            setAuthorizationCustomConditionFragment(getEnhancedResourceAuthorizationWhereFragment(fragment, subjectId));
+            setAuthorizationCustomConditionFragment(getEnhancedResourceAuthorizationWhereFragment(fragment));
         } else if (type == AuthorizationTokenType.GROUP) {
             // support for: 1) role-based for groups, 2) role-based for containing cluster groups, 3) private groups
-            setAuthorizationCustomConditionFragment(getEnhancedGroupAuthorizationWhereFragment(fragment, subjectId));
+            setAuthorizationCustomConditionFragment(getEnhancedGroupAuthorizationWhereFragment(fragment));
         } else {
             throw new IllegalArgumentException(this.getClass().getSimpleName()
                 + " does not yet support generating queries for '" + type + "' token types");
@@ -212,12 +225,12 @@ public final class CriteriaQueryGenerator {
                 + "   FROM Subject innerSubject" + NL //
                 + "   JOIN innerSubject.roles r" + NL //
                 + "   JOIN r.permissions p" + NL //
-                + "   WHERE innerSubject.id = " + this.authorizationSubjectId + NL //
+                + "   WHERE innerSubject.id = :" + AUTHORIZATION_SUBJECT_ID_PARAMETER + NL //
                 + "   AND p IN ( :requiredPerms ) ) = :requiredPermsSize" + NL;
         }
     }
 
-    private String getEnhancedResourceAuthorizationWhereFragment(String fragment, int subjectId) {
+    private String getEnhancedResourceAuthorizationWhereFragment(String fragment) {
         String customAuthzFragment = "" //
             + "( %aliasWithFragment%.id IN ( SELECT %innerAlias%.id " + NL //
             + "                    FROM %alias% innerAlias " + NL //
@@ -228,11 +241,11 @@ public final class CriteriaQueryGenerator {
         customAuthzFragment = customAuthzFragment.replace("%alias%", criteria.getAlias());
         customAuthzFragment = customAuthzFragment.replace("%aliasWithFragment%", aliasReplacement);
         customAuthzFragment = customAuthzFragment.replace("%innerAlias%", innerAliasReplacement);
-        customAuthzFragment = customAuthzFragment.replace("%subjectId%", String.valueOf(subjectId));
+        customAuthzFragment = customAuthzFragment.replace("%subjectId%", ":" + AUTHORIZATION_SUBJECT_ID_PARAMETER);
         return customAuthzFragment;
     }
 
-    private String getEnhancedGroupAuthorizationWhereFragment(String fragment, int subjectId) {
+    private String getEnhancedGroupAuthorizationWhereFragment(String fragment) {
         String customAuthzFragment = "" //
             + "( %aliasWithFragment%.id IN ( SELECT %innerAlias%.id " + NL //
             + "                    FROM %alias% innerAlias " + NL //
@@ -253,7 +266,7 @@ public final class CriteriaQueryGenerator {
         customAuthzFragment = customAuthzFragment.replace("%alias%", criteria.getAlias());
         customAuthzFragment = customAuthzFragment.replace("%aliasWithFragment%", aliasReplacement);
         customAuthzFragment = customAuthzFragment.replace("%innerAlias%", innerAliasReplacement);
-        customAuthzFragment = customAuthzFragment.replace("%subjectId%", String.valueOf(subjectId));
+        customAuthzFragment = customAuthzFragment.replace("%subjectId%", ":" + AUTHORIZATION_SUBJECT_ID_PARAMETER);
         return customAuthzFragment;
     }
 
@@ -292,7 +305,7 @@ public final class CriteriaQueryGenerator {
         customAuthzFragment = customAuthzFragment.replace("%alias%", criteria.getAlias());
         customAuthzFragment = customAuthzFragment.replace("%aliasWithFragment%", aliasReplacement);
         customAuthzFragment = customAuthzFragment.replace("%innerAlias%", innerAliasReplacement);
-        customAuthzFragment = customAuthzFragment.replace("%subjectId%", String.valueOf(subjectId));
+        customAuthzFragment = customAuthzFragment.replace("%subjectId%", ":" + AUTHORIZATION_SUBJECT_ID_PARAMETER);
         this.authorizationCustomConditionFragment = customAuthzFragment;
 
         // If the query results are narrowed by requiredPerms generate the fragment now. It's done
@@ -307,7 +320,7 @@ public final class CriteriaQueryGenerator {
                 + "   FROM Subject innerSubject" + NL //
                 + "   JOIN innerSubject.roles r" + NL //
                 + "   JOIN r.permissions p" + NL //
-                + "   WHERE innerSubject.id = " + this.authorizationSubjectId + NL //
+                + "   WHERE innerSubject.id = :" + AUTHORIZATION_SUBJECT_ID_PARAMETER + NL //
                 + "   AND p IN ( :requiredPerms ) ) = :requiredPermsSize" + NL;
         }
     }
@@ -325,7 +338,7 @@ public final class CriteriaQueryGenerator {
         customAuthzFragment = customAuthzFragment.replace("%alias%", criteria.getAlias());
         customAuthzFragment = customAuthzFragment.replace("%aliasWithFragment%", aliasReplacement);
         customAuthzFragment = customAuthzFragment.replace("%innerAlias%", innerAliasReplacement);
-        customAuthzFragment = customAuthzFragment.replace("%subjectId%", String.valueOf(subjectId));
+        customAuthzFragment = customAuthzFragment.replace("%subjectId%", ":" + AUTHORIZATION_SUBJECT_ID_PARAMETER);
         this.authorizationCustomConditionFragment = customAuthzFragment;
 
         // If the query results are narrowed by requiredPerms generate the fragment now. It's done
@@ -340,7 +353,7 @@ public final class CriteriaQueryGenerator {
                 + "   FROM Subject innerSubject" + NL //
                 + "   JOIN innerSubject.roles r" + NL //
                 + "   JOIN r.permissions p" + NL //
-                + "   WHERE innerSubject.id = " + this.authorizationSubjectId + NL //
+                + "   WHERE innerSubject.id = :" + AUTHORIZATION_SUBJECT_ID_PARAMETER + NL //
                 + "   AND p IN ( :requiredPerms ) ) = :requiredPermsSize" + NL;
         }
     }
@@ -372,6 +385,7 @@ public final class CriteriaQueryGenerator {
             query = query.replace(":requiredPerms", perms.subSequence(1, perms.length() - 1)); // remove first/last characters
             query = query.replace(":requiredPermsSize", String.valueOf(requiredPerms.size()));
         }
+        query = query.replace(":" + AUTHORIZATION_SUBJECT_ID_PARAMETER, String.valueOf(this.authorizationSubjectId));
 
         return query;
     }
@@ -463,6 +477,10 @@ public final class CriteriaQueryGenerator {
         }
 
         if (!countQuery) {
+            // generating the data query again must not add the fields again
+            persistentBagFields.clear();
+            joinFetchFields.clear();
+
             /*
              * don't fetch in the count query to avoid: "query specified join fetching,
              * but the owner of the fetched association was not present in the select list"
@@ -699,18 +717,12 @@ public final class CriteriaQueryGenerator {
 
     public List<String> getFetchFields(Criteria criteria) {
         List<String> results = new ArrayList<String>();
-        for (Field fetchField : CriteriaUtil.getFields(criteria, Criteria.Type.FETCH)) {
-            Object fetchFieldValue;
-            try {
-                fetchField.setAccessible(true);
-                fetchFieldValue = fetchField.get(criteria);
-            } catch (IllegalAccessException iae) {
-                throw new RuntimeException(iae);
-            }
+        for (CriteriaField fetchField : getCriteriaFields(criteria, Criteria.Type.FETCH)) {
+            Object fetchFieldValue = fetchField.get(criteria);
             if (fetchFieldValue != null) {
                 boolean shouldFetch = ((Boolean) fetchFieldValue).booleanValue();
                 if (shouldFetch) {
-                    results.add(getCleansedFieldName(fetchField, 5));
+                    results.add(fetchField.name);
                 }
             }
         }
@@ -728,19 +740,51 @@ public final class CriteriaQueryGenerator {
 
     public Map<String, Object> getFilterFields(Criteria criteria) {
         Map<String, Object> results = new HashMap<String, Object>();
-        for (Field filterField : CriteriaUtil.getFields(criteria, Criteria.Type.FILTER)) {
-            Object filterFieldValue;
+        for (CriteriaField filterField : getCriteriaFields(criteria, Criteria.Type.FILTER)) {
+            Object filterFieldValue = filterField.get(criteria);
+            if (filterFieldValue != null) {
+                results.put(filterField.name, filterFieldValue);
+            }
+        }
+        return results;
+    }
+
+    private static CriteriaField[] getCriteriaFields(Criteria criteria, Criteria.Type type) {
+        Map<Criteria.Type, CriteriaField[]> fields = CRITERIA_FIELDS.get(criteria.getClass());
+        if (fields == null) {
+            fields = new EnumMap<Criteria.Type, CriteriaField[]>(Criteria.Type.class);
+            for (Criteria.Type nextType : Criteria.Type.values()) {
+                List<Field> typeFields = CriteriaUtil.getFields(criteria, nextType);
+                CriteriaField[] criteriaFields = new CriteriaField[typeFields.size()];
+                for (int i = 0; i < criteriaFields.length; i++) {
+                    criteriaFields[i] = new CriteriaField(typeFields.get(i), nextType);
+                }
+                fields.put(nextType, criteriaFields);
+            }
+            CRITERIA_FIELDS.putIfAbsent(criteria.getClass(), fields);
+        }
+        return fields.get(type);
+    }
+
+    private static class CriteriaField {
+        final Field field;
+        // the name of the field without the prefix of its type, i.e. the name of the entity field it applies to
+        final String name;
+
+        CriteriaField(Field field, Criteria.Type type) {
+            field.setAccessible(true);
+            this.field = field;
+            int prefixLength = type.name().length();
+            this.name = (field.getName().length() > prefixLength) ? getCleansedFieldName(field, prefixLength) : null;
+        }
+
+        Object get(Criteria criteria) {
             try {
-                filterField.setAccessible(true);
-                filterFieldValue = filterField.get(criteria);
+                return field.get(criteria);
             } catch (IllegalAccessException iae) {
                 throw new RuntimeException(iae);
             }
-            if (filterFieldValue != null) {
-                results.put(getCleansedFieldName(filterField, 6), filterFieldValue);
-            }
         }
-        return results;
     }
 
     private void initializeJPQLFragmentFromSearchExpression() {
@@ -927,7 +971,7 @@ public final class CriteriaQueryGenerator {
     public Query getQuery(EntityManager em) {
         String queryString = getQueryString(false);
         Query query = em.createQuery(queryString);
-        setBindValues(query);
+        setBindValues(query, queryString);
         PersistenceUtility.setDataPage(query, getPageControl(criteria));
         return query;
     }
@@ -935,11 +979,11 @@ public final class CriteriaQueryGenerator {
     public Query getCountQuery(EntityManager em) {
         String countQueryString = getQueryString(true);
         Query query = em.createQuery(countQueryString);
-        setBindValues(query);
+        setBindValues(query, countQueryString);
         return query;
     }
 
-    private void setBindValues(Query query) {
+    private void setBindValues(Query query, String queryString) {
         for (Map.Entry<String, Object> critField : getFilterFields(criteria).entrySet()) {
             Object value = critField.getValue();
 
@@ -964,6 +1008,10 @@ public final class CriteriaQueryGenerator {
             query.setParameter("requiredPerms", requiredPerms);
             query.setParameter("requiredPermsSize", (long) requiredPerms.size());
         }
+        // the authorization fragments can be replaced by custom ones, which need not refer to the subject
+        if (queryString.contains(":" + AUTHORIZATION_SUBJECT_ID_PARAMETER)) {
+            query.setParameter(AUTHORIZATION_SUBJECT_ID_PARAMETER, this.authorizationSubjectId);
+        }
     }
 
     private String prepareStringBindValue(String filter, String value) {
@@ -1096,20 +1144,14 @@ public final class CriteriaQueryGenerator {
             }
 
             for (String fieldName : criteria.getOrderingFieldNames()) {
-                for (Field sortField : CriteriaUtil.getFields(criteria, Criteria.Type.SORT)) {
-                    if (!sortField.getName().equals(fieldName)) {
+                for (CriteriaField sortField : getCriteriaFields(criteria, Criteria.Type.SORT)) {
+                    if (!sortField.field.getName().equals(fieldName)) {
                         continue;
                     }
-                    Object sortFieldValue;
-                    try {
-                        sortField.setAccessible(true);
-                        sortFieldValue = sortField.get(criteria);
-                    } catch (IllegalAccessException iae) {
-                        throw new RuntimeException(iae);
-                    }
+                    Object sortFieldValue = sortField.get(criteria);
                     if (sortFieldValue != null) {
                         PageOrdering pageOrdering = (PageOrdering) sortFieldValue;
-                        pc.addDefaultOrderingField(getCleansedFieldName(sortField, 4), pageOrdering);
+                        pc.addDefaultOrderingField(sortField.name, pageOrdering);
                     }
                 }
             }
@@ -23,10 +23,17 @@
 
 package org.rhq.enterprise.server.util;
 
+import java.io.Serializable;
 import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityNotFoundException;
@@ -35,6 +42,11 @@ import javax.persistence.Query;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hibernate.Hibernate;
+import org.hibernate.Session;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.proxy.LazyInitializer;
+import org.hibernate.type.Type;
 
 import org.rhq.core.domain.criteria.Criteria;
 import org.rhq.core.domain.criteria.Criteria.Restriction;
@@ -50,6 +62,11 @@ public class CriteriaQueryRunner<T> {
     private EntityManager entityManager;
     private boolean automaticFetching;
 
+    // the number of queries issued by this runner, for the debug logging
+    private int queryCount;
+    private int batchFetchQueryCount;
+    private int lazyLoadCount;
+
     private static final QueryUtility.PagedDataFetchSettings DATA_FETCH_SETTINGS;
     static {
         DATA_FETCH_SETTINGS = new QueryUtility.PagedDataFetchSettings();
@@ -75,6 +92,7 @@ public class CriteriaQueryRunner<T> {
 
         Restriction criteriaRestriction = criteria.getRestriction();
         if (criteriaRestriction == null) {
+            queryCount += 2; // at least, the data and count queries are repeated on inconsistent results
             try {
                 results = QueryUtility.fetchPagedDataAndCount(queryGenerator.getQuery(entityManager),
                     queryGenerator.getCountQuery(entityManager), pageControl, DATA_FETCH_SETTINGS);
@@ -96,19 +114,20 @@ public class CriteriaQueryRunner<T> {
             finalizeCollection(results);
             if (LOG.isDebugEnabled()) {
                 LOG.debug("restriction=" + criteriaRestriction + ", resultSize=" + results.size() + ", resultCount="
-                    + results.getTotalSize());
+                    + results.getTotalSize() + getQueryCounts());
             }
 
         } else if (criteriaRestriction == Restriction.COUNT_ONLY) {
             results = new PageList<T>(getCount(), pageControl);
             if (LOG.isDebugEnabled()) {
-                LOG.debug("restriction=" + criteriaRestriction + ", resultCount=" + results.getTotalSize());
+                LOG.debug("restriction=" + criteriaRestriction + ", resultCount=" + results.getTotalSize()
+                    + getQueryCounts());
             }
 
         } else if (criteriaRestriction == Restriction.COLLECTION_ONLY) {
             results = new PageList<T>(getCollection(), pageControl);
             if (LOG.isDebugEnabled()) {
-                LOG.debug("restriction=" + criteriaRestriction + ", resultSize=" + results.size());
+                LOG.debug("restriction=" + criteriaRestriction + ", resultSize=" + results.size() + getQueryCounts());
             }
 
         } else {
@@ -124,6 +143,7 @@ public class CriteriaQueryRunner<T> {
     private Collection<? extends T> getCollection() {
         Query query = queryGenerator.getQuery(entityManager);
         List<T> results = query.getResultList();
+        queryCount++;
 
         finalizeCollection(results);
 
@@ -137,22 +157,19 @@ public class CriteriaQueryRunner<T> {
          * this method must, as necessary, perform the fetch manually.
          */
         if (automaticFetching) {
-            if (!queryGenerator.getPersistentBagFields().isEmpty()) {
-                for (Object entity : results) {
-                    initPersistentBags(entity);
-                }
-            }
-            if (!queryGenerator.getJoinFetchFields().isEmpty()) {
-                for (Object entity : results) {
-                    initJoinFetchFields(entity);
-                }
-            }
+            initFetchFields(results);
         }
     }
 
+    private String getQueryCounts() {
+        return ", queries=" + (queryCount + batchFetchQueryCount + lazyLoadCount) + " (batchFetchQueries="
+            + batchFetchQueryCount + ", lazyLoads=" + lazyLoadCount + ")";
+    }
+
     private int getCount() {
         Query countQuery = queryGenerator.getCountQuery(entityManager);
         long count = (Long) countQuery.getSingleResult();
+        queryCount++;
 
         return (int) count;
     }
@@ -162,6 +179,130 @@ public class CriteriaQueryRunner<T> {
         initJoinFetchFields(entity);
     }
 
+    /**
+     * Like {@link #initFetchFields(Object)} for each of the entities, but loads each fetch field of all of them with
+     * one query per batch of entities, instead of one query per entity.
+     *
+     * @param entities managed entities of the persistent class of the criteria
+     */
+    public void initFetchFields(List<?> entities) {
+        if (entities.isEmpty()) {
+            return;
+        }
+        if (!queryGenerator.getPersistentBagFields().isEmpty()) {
+            fetchInBatches(entities, queryGenerator.getPersistentBagFields());
+            for (Object entity : entities) {
+                initPersistentBags(entity);
+            }
+        }
+        if (!queryGenerator.getJoinFetchFields().isEmpty()) {
+            fetchInBatches(entities, queryGenerator.getJoinFetchFields());
+            for (Object entity : entities) {
+                initJoinFetchFields(entity);
+            }
+        }
+    }
+
+    /*
+     * loads the given fields of the entities into the persistence context with a query per field and batch of
+     * entities, so that the per entity initialization that follows finds them loaded. only fields that are mapped
+     * associations of an entity with a simple id are loaded here, anything else is left to be loaded lazily by that
+     * initialization. the queries are built from the mapping, so a failing query is a real error and is not
+     * swallowed, it would have marked the surrounding transaction for rollback anyway.
+     */
+    private void fetchInBatches(List<?> entities, List<Field> fields) {
+        Session session = (Session) entityManager.getDelegate();
+        ClassMetadata metadata = getFetchableMetadata(session, criteria.getPersistentClass().getName());
+        if (metadata == null) {
+            return;
+        }
+        List<String> propertyNames = Arrays.asList(metadata.getPropertyNames());
+        for (Field field : fields) {
+            if (!propertyNames.contains(field.getName())) {
+                continue;
+            }
+            Type propertyType = metadata.getPropertyType(field.getName());
+            field.setAccessible(true);
+            try {
+                if (propertyType.isCollectionType()) {
+                    fetchCollectionsInBatches(session, metadata, entities, field);
+                } else if (propertyType.isEntityType()) {
+                    fetchProxiesInBatches(session, entities, field);
+                }
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException("Could not read " + field + " to fetch it in batches", e);
+            }
+        }
+    }
+
+    /*
+     * the metadata of the entity if it can be fetched by id with an IN (...) query, null otherwise
+     */
+    private ClassMetadata getFetchableMetadata(Session session, String entityName) {
+        ClassMetadata metadata = session.getSessionFactory().getClassMetadata(entityName);
+        if (metadata == null || !metadata.hasIdentifierProperty() || metadata.getIdentifierType().isComponentType()) {
+            return null;
+        }
+        return metadata;
+    }
+
+    private void fetchCollectionsInBatches(Session session, ClassMetadata metadata, List<?> entities, Field field)
+        throws IllegalAccessException {
+        Set<Serializable> ids = new LinkedHashSet<Serializable>();
+        for (Object entity : entities) {
+            Object collection = field.get(entity);
+            if (collection != null && !Hibernate.isInitialized(collection) && session.contains(entity)) {
+                ids.add(session.getIdentifier(entity));
+            }
+        }
+
+        // fetching a collection of entities already in the persistence context initializes their collections. the
+        // results are not used, so the duplicate rows of the join are not removed with a DISTINCT the database would
+        // have to sort for
+        fetchInBatches("SELECT e FROM " + metadata.getEntityName() + " e LEFT JOIN FETCH e."
+            + field.getName() + " WHERE e." + metadata.getIdentifierPropertyName() + " IN ( :ids )", ids);
+    }
+
+    private void fetchProxiesInBatches(Session session, List<?> entities, Field field) throws IllegalAccessException {
+        Map<String, Set<Serializable>> idsByEntityName = new HashMap<String, Set<Serializable>>();
+        for (Object entity : entities) {
+            Object proxy = field.get(entity);
+            if (!(proxy instanceof HibernateProxy)) {
+                continue;
+            }
+            LazyInitializer lazyInitializer = ((HibernateProxy) proxy).getHibernateLazyInitializer();
+            if (lazyInitializer.isUninitialized()) {
+                Set<Serializable> ids = idsByEntityName.get(lazyInitializer.getEntityName());
+                if (ids == null) {
+                    ids = new LinkedHashSet<Serializable>();
+                    idsByEntityName.put(lazyInitializer.getEntityName(), ids);
+                }
+                ids.add(lazyInitializer.getIdentifier());
+            }
+        }
+
+        // initializing a proxy of an entity already in the persistence context does not hit the database
+        for (Map.Entry<String, Set<Serializable>> ids : idsByEntityName.entrySet()) {
+            ClassMetadata metadata = getFetchableMetadata(session, ids.getKey());
+            if (metadata != null) {
+                fetchInBatches("SELECT e FROM " + metadata.getEntityName() + " e WHERE e."
+                    + metadata.getIdentifierPropertyName() + " IN ( :ids )", ids.getValue());
+            }
+        }
+    }
+
+    private void fetchInBatches(String queryString, Set<Serializable> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        Query query = entityManager.createQuery(queryString);
+        for (List<Serializable> batch : new BatchIterator<Serializable>(new ArrayList<Serializable>(ids))) {
+            query.setParameter("ids", batch);
+            query.getResultList();
+            batchFetchQueryCount++;
+        }
+    }
+
     private void initPersistentBags(Object entity) {
         for (Field persistentBagField : queryGenerator.getPersistentBagFields()) {
             initialize(entity, persistentBagField);
@@ -187,6 +328,9 @@ public class CriteriaQueryRunner<T> {
 
             Object instance = field.get(entity);
 
+            if (instance != null && !Hibernate.isInitialized(instance)) {
+                lazyLoadCount++;
+            }
             Hibernate.initialize(instance);
 
             if (instance instanceof Iterable) {
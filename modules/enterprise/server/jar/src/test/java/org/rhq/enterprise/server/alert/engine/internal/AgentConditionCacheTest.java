@@ -0,0 +1,278 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2014 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package org.rhq.enterprise.server.alert.engine.internal;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyList;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.testng.PowerMockObjectFactory;
+import org.testng.IObjectFactory;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.ObjectFactory;
+import org.testng.annotations.Test;
+
+import org.rhq.core.domain.alert.AlertConditionCategory;
+import org.rhq.core.domain.alert.composite.AlertConditionScheduleCategoryComposite;
+import org.rhq.core.domain.auth.Subject;
+import org.rhq.core.domain.measurement.DataType;
+import org.rhq.core.domain.measurement.MeasurementDataNumeric;
+import org.rhq.core.domain.util.PageControl;
+import org.rhq.core.domain.util.PageList;
+import org.rhq.enterprise.server.alert.AlertConditionManagerLocal;
+import org.rhq.enterprise.server.alert.engine.internal.AlertConditionCacheCoordinator.Cache;
+import org.rhq.enterprise.server.alert.engine.jms.CachedConditionProducerLocal;
+import org.rhq.enterprise.server.auth.SubjectManagerLocal;
+import org.rhq.enterprise.server.cloud.StatusManagerLocal;
+import org.rhq.enterprise.server.core.AgentManagerLocal;
+import org.rhq.enterprise.server.measurement.MeasurementDataManagerLocal;
+import org.rhq.enterprise.server.util.LookupUtil;
+
+/**
+ * Verifies that reloading the alert definitions of some resources only replaces the conditions of those resources,
+ * and leaves the conditions of all other resources, and of all other agents, intact. Also checks that the conditions
+ * of an agent cache are activated and deactivated as the values cross their thresholds.
+ */
+@PrepareForTest(LookupUtil.class)
+public class AgentConditionCacheTest {
+
+    private static final int AGENT_1 = 1;
+    private static final int AGENT_2 = 2;
+
+    // resource id -> { agent id, schedule id }
+    private static final int[][] RESOURCES = { { 11, AGENT_1, 101 }, { 12, AGENT_1, 102 }, { 21, AGENT_2, 201 } };
+
+    // resource id -> threshold conditions of the resource
+    private Map<Integer, List<AlertConditionScheduleCategoryComposite>> conditions;
+
+    private AlertConditionManagerLocal alertConditionManager;
+
+    private CachedConditionProducerLocal cachedConditionProducer;
+
+    @ObjectFactory
+    public IObjectFactory getObjectFactory() {
+        return new PowerMockObjectFactory();
+    }
+
+    @BeforeMethod
+    public void setUp() {
+        conditions = new HashMap<Integer, List<AlertConditionScheduleCategoryComposite>>();
+        setCondition(11, 1, ">", 10.0);
+        setCondition(12, 2, ">", 10.0);
+        setCondition(21, 3, ">", 10.0);
+
+        alertConditionManager = mock(AlertConditionManagerLocal.class);
+        doAnswer(new Answer<PageList<AlertConditionScheduleCategoryComposite>>() {
+            public PageList<AlertConditionScheduleCategoryComposite> answer(InvocationOnMock invocation) {
+                Object[] args = invocation.getArguments();
+                return findConditions((Integer) args[1], (Integer) args[2], (AlertConditionCategory) args[3],
+                    (PageControl) args[4]);
+            }
+        }).when(alertConditionManager).getAlertConditionComposites(any(Subject.class), any(Integer.class),
+            any(Integer.class), any(AlertConditionCategory.class), any(PageControl.class));
+        doReturn(new PageList<AlertConditionScheduleCategoryComposite>()).when(alertConditionManager)
+            .getAlertConditionComposites(any(Subject.class), any(Integer.class), any(AlertConditionCategory.class),
+                any(PageControl.class));
+        doAnswer(new Answer<List<Integer>>() {
+            public List<Integer> answer(InvocationOnMock invocation) {
+                List<Integer> scheduleIds = new ArrayList<Integer>();
+                for (Object resourceId : (List<?>) invocation.getArguments()[1]) {
+                    scheduleIds.add(getResource((Integer) resourceId)[2]);
+                }
+                return scheduleIds;
+            }
+        }).when(alertConditionManager).getScheduleIdsForResources(any(Subject.class), anyList());
+
+        SubjectManagerLocal subjectManager = mock(SubjectManagerLocal.class);
+        when(subjectManager.getOverlord()).thenReturn(new Subject());
+
+        AgentManagerLocal agentManager = mock(AgentManagerLocal.class);
+        for (int[] resource : RESOURCES) {
+            when(agentManager.getAgentIdByScheduleId(resource[2])).thenReturn(resource[1]);
+        }
+
+        cachedConditionProducer = mock(CachedConditionProducerLocal.class);
+
+        PowerMockito.mockStatic(LookupUtil.class);
+        when(LookupUtil.getAlertConditionManager()).thenReturn(alertConditionManager);
+        when(LookupUtil.getSubjectManager()).thenReturn(subjectManager);
+        when(LookupUtil.getAgentManager()).thenReturn(agentManager);
+        when(LookupUtil.getMeasurementDataManager()).thenReturn(mock(MeasurementDataManagerLocal.class));
+        when(LookupUtil.getCachedConditionProducerLocal()).thenReturn(cachedConditionProducer);
+        when(LookupUtil.getStatusManager()).thenReturn(mock(StatusManagerLocal.class));
+    }
+
+    @Test
+    public void testCopyReloadsOnlyTheGivenResources() {
+        AgentConditionCache original = new AgentConditionCache(AGENT_1);
+        assert original.getCacheSize(Cache.MeasurementDataCache) == 2;
+
+        // resource 11 now alerts on low values instead of high ones
+        setCondition(11, 4, "<", 5.0);
+        AgentConditionCache copy = new AgentConditionCache(original, Arrays.asList(11), 42L);
+
+        assert copy.getAgentId() == AGENT_1;
+        assert copy.getLoadTime() == 42L;
+        assert copy.getCacheSize(Cache.MeasurementDataCache) == 2;
+
+        assertMatches(copy, 101, 20.0, 0);
+        assertMatches(copy, 101, 1.0, 1);
+        assertMatches(copy, 102, 20.0, 1);
+
+        // the original cache keeps being used until the copy replaces it, so it must not see the change
+        assertMatches(original, 101, 20.0, 1);
+        assertMatches(original, 101, 1.0, 0);
+        assertMatches(original, 102, 20.0, 1);
+    }
+
+    @Test
+    public void testCopyDropsTheConditionsOfResourcesWithoutDefinitions() {
+        AgentConditionCache original = new AgentConditionCache(AGENT_1);
+
+        conditions.remove(11);
+        AgentConditionCache copy = new AgentConditionCache(original, Arrays.asList(11), 42L);
+
+        assert copy.getCacheSize(Cache.MeasurementDataCache) == 1;
+        assertMatches(copy, 101, 20.0, 0);
+        assertMatches(copy, 102, 20.0, 1);
+    }
+
+    @Test
+    public void testReloadAlertDefinitionsForAgentLeavesOtherAgentsIntact() {
+        AlertConditionCacheCoordinator coordinator = AlertConditionCacheCoordinator.getInstance();
+        coordinator.reloadCachesForAgent(AGENT_1);
+        coordinator.reloadCachesForAgent(AGENT_2);
+        assert coordinator.getCacheSize(Cache.MeasurementDataCache) == 3;
+
+        setCondition(11, 4, "<", 5.0);
+        setCondition(21, 5, "<", 5.0); // not reported as modified, so it must not be picked up by the patch
+        when(alertConditionManager.getResourceIdsWithModifiedAlertDefinitions(any(Subject.class), eq(AGENT_1),
+            anyLong())).thenReturn(Arrays.asList(11));
+
+        coordinator.reloadAlertDefinitionsForAgent(AGENT_1);
+
+        assert coordinator.getCacheSize(Cache.MeasurementDataCache) == 3;
+        assert coordinator.checkConditions(numeric(101, 20.0)).matched == 0;
+        assert coordinator.checkConditions(numeric(101, 1.0)).matched == 1;
+        assert coordinator.checkConditions(numeric(102, 20.0)).matched == 1;
+        assert coordinator.checkConditions(numeric(201, 20.0)).matched == 1 : "agent 2 conditions were reloaded";
+        assert coordinator.checkConditions(numeric(201, 1.0)).matched == 0 : "agent 2 conditions were reloaded";
+        verify(alertConditionManager, never()).getAlertConditionComposites(any(Subject.class), eq(AGENT_2),
+            eq(21), any(AlertConditionCategory.class), any(PageControl.class));
+
+        // an agent without a cache is fully loaded without asking for modified definitions
+        coordinator.reloadAlertDefinitionsForAgent(3);
+        verify(alertConditionManager, never()).getResourceIdsWithModifiedAlertDefinitions(any(Subject.class),
+            eq(3), anyLong());
+    }
+
+    @Test
+    public void testThresholdConditionsDeactivateOnce() throws Exception {
+        setCondition(11, 1, ">", 10.0);
+        addCondition(11, 6, "<", 5.0);
+        AgentConditionCache cache = new AgentConditionCache(AGENT_1);
+
+        assertMatches(cache, 101, 20.0, 1);
+        verify(cachedConditionProducer, never()).sendDeactivateAlertConditionMessage(anyInt(), anyLong());
+
+        // no longer above the threshold, so the active condition is deactivated, but only the first time
+        assertMatches(cache, 101, 7.0, 0);
+        assertMatches(cache, 101, 8.0, 0);
+        verify(cachedConditionProducer, times(1)).sendDeactivateAlertConditionMessage(eq(1), anyLong());
+
+        assertMatches(cache, 101, 1.0, 1);
+        assertMatches(cache, 101, 7.0, 0);
+        verify(cachedConditionProducer, times(1)).sendDeactivateAlertConditionMessage(eq(6), anyLong());
+
+        // invalid values never match, but still deactivate
+        assertMatches(cache, 101, 20.0, 1);
+        assertMatches(cache, 101, Double.NaN, 0);
+        verify(cachedConditionProducer, times(2)).sendDeactivateAlertConditionMessage(eq(1), anyLong());
+        verify(cachedConditionProducer, times(3)).sendDeactivateAlertConditionMessage(anyInt(), anyLong());
+    }
+
+    private void assertMatches(AgentConditionCache cache, int scheduleId, double value, int expectedMatches) {
+        int matched = cache.checkConditions(numeric(scheduleId, value)).matched;
+        assert matched == expectedMatches : "Value " + value + " of schedule " + scheduleId + " should have matched "
+            + expectedMatches + " conditions but matched " + matched;
+    }
+
+    private MeasurementDataNumeric numeric(int scheduleId, double value) {
+        return new MeasurementDataNumeric(System.currentTimeMillis(), scheduleId, value);
+    }
+
+    private void setCondition(int resourceId, int conditionId, String comparator, double threshold) {
+        conditions.remove(resourceId);
+        addCondition(resourceId, conditionId, comparator, threshold);
+    }
+
+    private void addCondition(int resourceId, int conditionId, String comparator, double threshold) {
+        List<AlertConditionScheduleCategoryComposite> resourceConditions = conditions.get(resourceId);
+        if (resourceConditions == null) {
+            resourceConditions = new ArrayList<AlertConditionScheduleCategoryComposite>();
+            conditions.put(resourceId, resourceConditions);
+        }
+        resourceConditions.add(new AlertConditionScheduleCategoryComposite(conditionId,
+            AlertConditionCategory.THRESHOLD, "metric", comparator, threshold, null, null, getResource(resourceId)[2],
+            DataType.MEASUREMENT));
+    }
+
+    private PageList<AlertConditionScheduleCategoryComposite> findConditions(Integer agentId, Integer resourceId,
+        AlertConditionCategory category, PageControl pc) {
+        List<AlertConditionScheduleCategoryComposite> result = new ArrayList<AlertConditionScheduleCategoryComposite>();
+        if (category == AlertConditionCategory.THRESHOLD) {
+            for (int[] resource : RESOURCES) {
+                if (resource[1] == agentId && (resourceId == null || resource[0] == resourceId)
+                    && conditions.containsKey(resource[0])) {
+                    result.addAll(conditions.get(resource[0]));
+                }
+            }
+        }
+        return new PageList<AlertConditionScheduleCategoryComposite>(result, result.size(), pc);
+    }
+
+    private static int[] getResource(int resourceId) {
+        for (int[] resource : RESOURCES) {
+            if (resource[0] == resourceId) {
+                return resource;
+            }
+        }
+        throw new IllegalArgumentException("Unknown resource " + resourceId);
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2014 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package org.rhq.enterprise.server.alert.engine.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.testng.annotations.Test;
+
+import org.rhq.core.domain.alert.AlertConditionOperator;
+import org.rhq.enterprise.server.alert.engine.model.MeasurementNumericCacheElement;
+import org.rhq.enterprise.server.alert.engine.model.MeasurementRangeNumericCacheElement;
+import org.rhq.enterprise.server.alert.engine.model.NumericDoubleCacheElement;
+
+/**
+ * Verifies that the threshold conditions found through the binary searches of a {@link NumericConditionIndex} are
+ * exactly the ones that match when each condition is evaluated on its own.
+ */
+@Test
+public class NumericConditionIndexTest {
+
+    private final Log log = LogFactory.getLog(NumericConditionIndexTest.class);
+
+    public void testThresholdMatches() {
+        List<NumericDoubleCacheElement> elements = new ArrayList<NumericDoubleCacheElement>();
+        elements.add(threshold(AlertConditionOperator.GREATER_THAN, 10.0, 1));
+        elements.add(threshold(AlertConditionOperator.GREATER_THAN, 5.0, 2));
+        elements.add(threshold(AlertConditionOperator.GREATER_THAN, 10.0, 3));
+        elements.add(threshold(AlertConditionOperator.LESS_THAN, 1.0, 4));
+        elements.add(threshold(AlertConditionOperator.LESS_THAN, 5.0, 5));
+        elements.add(threshold(AlertConditionOperator.EQUALS, 5.0, 6));
+        elements.add(new MeasurementRangeNumericCacheElement(AlertConditionOperator.LESS_THAN, 1.0, 2.0, 7));
+
+        NumericConditionIndex index = new NumericConditionIndex(elements);
+
+        assert index.size() == 7;
+        assert index.greaterThanElements.length == 3;
+        assert index.lessThanElements.length == 2;
+        assert index.otherElements.size() == 2;
+
+        assertMatches(index, 0.0, 4, 5);
+        assertMatches(index, 1.0, 5);
+        assertMatches(index, 5.0);
+        assertMatches(index, 7.5, 2);
+        assertMatches(index, 10.0, 2);
+        assertMatches(index, 10.5, 1, 2, 3);
+    }
+
+    public void testEmptyIndex() {
+        NumericConditionIndex index = new NumericConditionIndex(new ArrayList<NumericDoubleCacheElement>());
+
+        assert index.size() == 0;
+        assert index.greaterThanMatchEnd(42.0) == 0;
+        assert index.lessThanMatchStart(42.0) == 0;
+    }
+
+    public void testMatchesAgreeWithLinearScan() {
+        int schedules = 10000;
+        int conditions = 50000;
+        int datapoints = 100000;
+
+        Random random = new Random(42L);
+        Map<Integer, List<NumericDoubleCacheElement>> elementsBySchedule = new HashMap<Integer, List<NumericDoubleCacheElement>>();
+        for (int conditionId = 0; conditionId < conditions; conditionId++) {
+            int scheduleId = random.nextInt(schedules);
+            AlertConditionOperator operator = random.nextBoolean() ? AlertConditionOperator.GREATER_THAN
+                : AlertConditionOperator.LESS_THAN;
+            List<NumericDoubleCacheElement> elements = elementsBySchedule.get(scheduleId);
+            if (elements == null) {
+                elements = new ArrayList<NumericDoubleCacheElement>();
+                elementsBySchedule.put(scheduleId, elements);
+            }
+            elements.add(threshold(operator, (double) random.nextInt(100), conditionId));
+        }
+
+        IntObjectMap<NumericConditionIndex> indexes = new IntObjectMap<NumericConditionIndex>(schedules);
+        for (Map.Entry<Integer, List<NumericDoubleCacheElement>> entry : elementsBySchedule.entrySet()) {
+            indexes.put(entry.getKey(), new NumericConditionIndex(entry.getValue()));
+        }
+        assert indexes.size() == elementsBySchedule.size();
+
+        int[] scheduleIds = new int[datapoints];
+        double[] values = new double[datapoints];
+        for (int i = 0; i < datapoints; i++) {
+            scheduleIds[i] = random.nextInt(schedules);
+            values[i] = random.nextInt(100);
+        }
+
+        long start = System.nanoTime();
+        long indexedMatches = 0;
+        for (int i = 0; i < datapoints; i++) {
+            NumericConditionIndex index = indexes.get(scheduleIds[i]);
+            if (index != null) {
+                indexedMatches += index.greaterThanMatchEnd(values[i]);
+                indexedMatches += index.lessThanElements.length - index.lessThanMatchStart(values[i]);
+            }
+        }
+        long indexedNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        long scannedMatches = 0;
+        for (int i = 0; i < datapoints; i++) {
+            List<NumericDoubleCacheElement> elements = elementsBySchedule.get(scheduleIds[i]);
+            if (elements != null) {
+                for (NumericDoubleCacheElement element : elements) {
+                    if (element.matches(values[i])) {
+                        scannedMatches++;
+                    }
+                }
+            }
+        }
+        long scannedNanos = System.nanoTime() - start;
+
+        log.info("Checked " + datapoints + " datapoints against " + conditions + " conditions: indexed took "
+            + (indexedNanos / 1000000) + "ms, linear scan took " + (scannedNanos / 1000000) + "ms");
+
+        assert indexedMatches == scannedMatches : "Expected " + scannedMatches + " matches but found "
+            + indexedMatches;
+    }
+
+    private void assertMatches(NumericConditionIndex index, double value, int... expectedConditionIds) {
+        Set<Integer> expected = new HashSet<Integer>();
+        for (int conditionId : expectedConditionIds) {
+            expected.add(conditionId);
+        }
+
+        Set<Integer> actual = new HashSet<Integer>();
+        for (int i = 0; i < index.greaterThanMatchEnd(value); i++) {
+            actual.add(index.greaterThanElements[i].getAlertConditionTriggerId());
+        }
+        for (int i = index.lessThanMatchStart(value); i < index.lessThanElements.length; i++) {
+            actual.add(index.lessThanElements[i].getAlertConditionTriggerId());
+        }
+
+        assert expected.equals(actual) : "Value " + value + " should have matched " + expected + " but matched "
+            + actual;
+    }
+
+    private NumericDoubleCacheElement threshold(AlertConditionOperator operator, double value, int conditionId) {
+        return new MeasurementNumericCacheElement(operator, value, conditionId);
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2014 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package org.rhq.enterprise.server.cloud.instance;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+import org.rhq.core.domain.resource.Agent;
+import org.rhq.enterprise.server.alert.engine.AlertConditionCacheManagerLocal;
+
+/**
+ * Verifies that only agents whose sole status is {@link Agent.Status#ALERT_DEFINITION} get their alert definitions
+ * patched, and that any other status still reloads the whole agent cache.
+ */
+public class CacheConsistencyManagerBeanTest {
+
+    @Test
+    public void testAgentStatusSelectsTheReload() {
+        Map<Integer, Integer> agentStatuses = new HashMap<Integer, Integer>();
+        agentStatuses.put(1, Agent.Status.ALERT_DEFINITION.mask);
+        agentStatuses.put(2, -1);
+        agentStatuses.put(3, Agent.Status.ALERT_DEFINITION.mask | Agent.Status.RESOURCE_HIERARCHY_UPDATED.mask);
+
+        CacheConsistencyManagerBean bean = new CacheConsistencyManagerBean();
+        bean.serverManager = mock(ServerManagerLocal.class);
+        bean.cacheManager = mock(AlertConditionCacheManagerLocal.class);
+        when(bean.serverManager.getAndClearServerStatus()).thenReturn(false);
+        when(bean.serverManager.getAndClearAgentStatuses()).thenReturn(agentStatuses);
+
+        bean.reloadServerCacheIfNeededNSTx();
+
+        verify(bean.cacheManager).reloadAlertDefinitionsForAgent(1);
+        verify(bean.cacheManager, never()).reloadCachesForAgent(1);
+        verify(bean.cacheManager).reloadCachesForAgent(2);
+        verify(bean.cacheManager, never()).reloadAlertDefinitionsForAgent(2);
+        verify(bean.cacheManager).reloadCachesForAgent(3);
+        verify(bean.cacheManager, never()).reloadAlertDefinitionsForAgent(3);
+        verify(bean.cacheManager, never()).reloadGlobalCache();
+    }
+}
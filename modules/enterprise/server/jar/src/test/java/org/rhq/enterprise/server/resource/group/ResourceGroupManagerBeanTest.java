@@ -0,0 +1,160 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2014 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package org.rhq.enterprise.server.resource.group;
+
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.rhq.enterprise.server.storage.StorageClientManager;
+import org.rhq.server.metrics.MetricsServer;
+
+/**
+ * Verifies that the metric rollups of a group are only invalidated once its membership change has been committed.
+ */
+@Test
+public class ResourceGroupManagerBeanTest {
+
+    private ResourceGroupManagerBean bean;
+
+    private MetricsServer metricsServer;
+
+    private TransactionRegistryStub transactionRegistry;
+
+    @BeforeMethod
+    public void initBean() {
+        metricsServer = mock(MetricsServer.class);
+        transactionRegistry = new TransactionRegistryStub();
+
+        bean = new ResourceGroupManagerBean();
+        bean.storageClientManager = mock(StorageClientManager.class);
+        bean.transactionSynchronizationRegistry = transactionRegistry;
+        when(bean.storageClientManager.isClusterAvailable()).thenReturn(true);
+        when(bean.storageClientManager.getMetricsServer()).thenReturn(metricsServer);
+    }
+
+    public void invalidateRollupsRightAwayOutsideOfATransaction() {
+        bean.invalidateGroupRollups(1);
+
+        verify(metricsServer).invalidateGroupRollups(1);
+        assert transactionRegistry.synchronizations.isEmpty() : "No synchronization should have been registered";
+    }
+
+    public void invalidateRollupsOnceTheTransactionCommits() {
+        transactionRegistry.transactionKey = new Object();
+
+        bean.invalidateGroupRollups(1);
+        bean.invalidateGroupRollups(2);
+        bean.invalidateGroupRollups(1);
+
+        verify(metricsServer, never()).invalidateGroupRollups(anyInt());
+        assert transactionRegistry.synchronizations.size() == 1 : "Expected a single synchronization per transaction "
+            + "but got " + transactionRegistry.synchronizations;
+
+        transactionRegistry.complete(Status.STATUS_COMMITTED);
+
+        verify(metricsServer).invalidateGroupRollups(1);
+        verify(metricsServer).invalidateGroupRollups(2);
+    }
+
+    public void keepRollupsWhenTheTransactionRollsBack() {
+        transactionRegistry.transactionKey = new Object();
+
+        bean.invalidateGroupRollups(1);
+        transactionRegistry.complete(Status.STATUS_ROLLEDBACK);
+
+        verify(metricsServer, never()).invalidateGroupRollups(anyInt());
+    }
+
+    public void ignoreTheStorageClusterWhileItIsUnavailable() {
+        when(bean.storageClientManager.isClusterAvailable()).thenReturn(false);
+
+        bean.invalidateGroupRollups(1);
+
+        verify(metricsServer, never()).invalidateGroupRollups(anyInt());
+    }
+
+    /**
+     * Keeps the resources and synchronizations of a single transaction.
+     */
+    private static class TransactionRegistryStub implements TransactionSynchronizationRegistry {
+        private Object transactionKey;
+        private final Map<Object, Object> resources = new HashMap<Object, Object>();
+        private final List<Synchronization> synchronizations = new ArrayList<Synchronization>();
+
+        void complete(int status) {
+            for (Synchronization synchronization : synchronizations) {
+                synchronization.beforeCompletion();
+            }
+            for (Synchronization synchronization : synchronizations) {
+                synchronization.afterCompletion(status);
+            }
+        }
+
+        @Override
+        public Object getTransactionKey() {
+            return transactionKey;
+        }
+
+        @Override
+        public void putResource(Object key, Object value) {
+            resources.put(key, value);
+        }
+
+        @Override
+        public Object getResource(Object key) {
+            return resources.get(key);
+        }
+
+        @Override
+        public void registerInterposedSynchronization(Synchronization sync) {
+            synchronizations.add(sync);
+        }
+
+        @Override
+        public int getTransactionStatus() {
+            return transactionKey == null ? Status.STATUS_NO_TRANSACTION : Status.STATUS_ACTIVE;
+        }
+
+        @Override
+        public void setRollbackOnly() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean getRollbackOnly() {
+            return false;
+        }
+    }
+}
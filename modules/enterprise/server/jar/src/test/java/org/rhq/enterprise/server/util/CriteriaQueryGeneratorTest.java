@@ -0,0 +1,96 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2014 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package org.rhq.enterprise.server.util;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.testng.annotations.Test;
+
+import org.rhq.core.domain.auth.Subject;
+import org.rhq.core.domain.criteria.ResourceCriteria;
+import org.rhq.core.domain.util.PageOrdering;
+import org.rhq.enterprise.server.util.CriteriaQueryGenerator.AuthorizationTokenType;
+
+@Test
+public class CriteriaQueryGeneratorTest {
+
+    public void queryDoesNotDependOnTheSubject() {
+        String query = getAuthorizedQuery(42);
+
+        assertEquals(getAuthorizedQuery(43), query, "Query should be the same for all subjects");
+        assertFalse(query.contains("42"), "Subject should be bound, not inlined: " + query);
+        assertTrue(query.contains(":authorizationSubjectId"), query);
+    }
+
+    public void parameterReplacedQueryInlinesTheSubject() {
+        CriteriaQueryGenerator generator = new CriteriaQueryGenerator(new Subject(), createCriteria());
+        generator.setAuthorizationResourceFragment(AuthorizationTokenType.RESOURCE, null, 42);
+
+        String query = generator.getParameterReplacedQuery(false);
+
+        assertFalse(query.contains(":authorizationSubjectId"), query);
+        assertTrue(query.contains("s.id = 42"), query);
+    }
+
+    public void generatingTheQueryAgainDoesNotAddFetchFieldsAgain() {
+        CriteriaQueryGenerator generator = new CriteriaQueryGenerator(new Subject(), createCriteria());
+
+        generator.getQueryString(false);
+        generator.getQueryString(true);
+        generator.getQueryString(false);
+
+        assertEquals(generator.getJoinFetchFields().size(), 1, "Unexpected fetch fields: "
+            + generator.getJoinFetchFields());
+        assertEquals(generator.getJoinFetchFields().get(0).getName(), "agent");
+    }
+
+    public void filterAndFetchFieldsAreReadFromTheCriteria() {
+        ResourceCriteria criteria = createCriteria();
+        CriteriaQueryGenerator generator = new CriteriaQueryGenerator(new Subject(), criteria);
+
+        assertEquals(generator.getFilterFields(criteria).get("id"), 1);
+        assertEquals(generator.getFetchFields(criteria), Arrays.asList("agent"));
+
+        criteria.addFilterId(2);
+        criteria.fetchAgent(false);
+
+        assertEquals(generator.getFilterFields(criteria).get("id"), 2);
+        assertTrue(generator.getFetchFields(criteria).isEmpty());
+    }
+
+    private String getAuthorizedQuery(int subjectId) {
+        CriteriaQueryGenerator generator = new CriteriaQueryGenerator(new Subject(), createCriteria());
+        generator.setAuthorizationResourceFragment(AuthorizationTokenType.RESOURCE, null, subjectId);
+        return generator.getQueryString(false);
+    }
+
+    private ResourceCriteria createCriteria() {
+        ResourceCriteria criteria = new ResourceCriteria();
+        criteria.addFilterId(1);
+        criteria.fetchAgent(true);
+        criteria.addSortId(PageOrdering.ASC);
+        criteria.setPaging(0, 10);
+        return criteria;
+    }
+}
@@ -25,15 +25,23 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
@@ -51,6 +59,9 @@ import org.hibernate.proxy.HibernateProxy;
  * Essentially this utility scrubs the object of all Hibernate proxies, cleaning it such that it
  * can be serialized over the wire successfully.
  *
+ * The object graph is walked with an explicit work stack rather than by recursion, and the fields to scrub are looked
+ * up once per class, so that large results, like a PageList of resources, can be scrubbed quickly.
+ *
  * @author Greg Hinkle
  * @author Jay Shaughnessy
  * @author John Mazzitelli
@@ -64,25 +75,14 @@ public class HibernateDetachUtility {
         SERIALIZATION, JAXB
     }
 
-    /*
-     * This is the type of object that will be used to generate identity
-     * hashcodes for objects that are being scanned during the detach.
-     * During production runtime, the hashCodeGenerator will use the
-     * java.lang.System mechanism, but since this is package scoped,
-     * tests can override this since. (See BZ 732089).
+    /**
+     * Objects of these types have nothing to scrub.
      */
-    static interface HashCodeGenerator {
-        Integer getHashCode(Object value);
-    }
+    private static final Set<Class<?>> IMMUTABLE_TYPES = new HashSet<Class<?>>(Arrays.<Class<?>> asList(String.class,
+        Boolean.class, Character.class, Byte.class, Short.class, Integer.class, Long.class, Float.class, Double.class,
+        BigInteger.class, BigDecimal.class, Class.class));
 
-    static class SystemHashCodeGenerator implements HashCodeGenerator {
-        @Override
-        public Integer getHashCode(Object value) {
-            return System.identityHashCode(value);
-        }
-    }
-
-    static HashCodeGenerator hashCodeGenerator = new SystemHashCodeGenerator();
+    private static final ConcurrentMap<Class<?>, ClassInfo> classInfos = new ConcurrentHashMap<Class<?>, ClassInfo>();
 
     // be able to configure the deepest recursion this utility will be allowed to go (see BZ 702109 that precipitated this need)
     private static final String DEPTH_ALLOWED_SYSPROP = "rhq.server.hibernate-detach-utility.depth-allowed";
@@ -142,13 +142,12 @@ public class HibernateDetachUtility {
 
     public static void nullOutUninitializedFields(Object value, SerializationType serializationType) throws Exception {
         long start = System.currentTimeMillis();
-        Map<Integer, Object> checkedObjectMap = new HashMap<Integer, Object>();
-        Map<Integer, List<Object>> checkedObjectCollisionMap = new HashMap<Integer, List<Object>>();
-        nullOutUninitializedFields(value, checkedObjectMap, checkedObjectCollisionMap, 0, serializationType);
+        Traversal traversal = new Traversal(serializationType);
+        traversal.run(value);
         long duration = System.currentTimeMillis() - start;
 
         if (dumpStackOnThresholdLimit) {
-            int numObjectsProcessed = checkedObjectMap.size();
+            int numObjectsProcessed = traversal.checkedObjects.size();
             if (duration > millisThresholdLimit || numObjectsProcessed > sizeThresholdLimit) {
                 String rootObjectString = (value != null) ? value.getClass().toString() : "null";
                 LOG.warn("Detached [" + numObjectsProcessed + "] objects in [" + duration + "]ms from root object ["
@@ -157,363 +156,392 @@ public class HibernateDetachUtility {
         } else {
             // 10s is really long, log SOMETHING
             if (duration > 10000L && LOG.isDebugEnabled()) {
-                LOG.debug("Detached [" + checkedObjectMap.size() + "] objects in [" + duration + "]ms");
+                LOG.debug("Detached [" + traversal.checkedObjects.size() + "] objects in [" + duration + "]ms");
             }
         }
-
-        // help the garbage collector be clearing these before we leave
-        checkedObjectMap.clear();
-        checkedObjectCollisionMap.clear();
     }
 
     /**
-     * @param value the object needing to be detached/scrubbed.
-     * @param checkedObjectMap This maps identityHashCodes to Objects we've already detached. In that way we can
-     * quickly determine if we've already done the work for the incoming value and avoid taversing it again. This
-     * works well almost all of the time, but it is possible that two different objects can have the same identity hash
-     * (conflicts are always possible with a hash). In that case we utilize the checkedObjectCollisionMap (see below).
-     * @param checkedObjectCollisionMap checkedObjectMap maps the identityhash to the *first* object with that hash. In
-     * most cases there will only be mapping for one hash, but it is possible to encounter the same hash for multiple
-     * objects, especially on 32bit or IBM JVMs. It is important to know if an object has already been detached
-     * because if it is somehow self-referencing, we have to stop the recursion. This map holds the 2nd..Nth mapping
-     * for a single hash and is used to ensure we never try to detach an object already processed.
-     * @param depth used to stop infinite recursion, defaults to a depth we don't expectto see, but it is configurable.
-     * @param serializationType
-     * @throws Exception if a problem occurs
-     * @throws IllegalStateException if the recursion depth limit is reached
+     * A single scrub of an object graph. Rather than recursing into the objects referenced by the object being
+     * scrubbed, they are pushed on a work stack, along with any work that has to wait until they are scrubbed. The
+     * objects are still scrubbed depth first, in the order they are referenced.
      */
-    private static void nullOutUninitializedFields(Object value, Map<Integer, Object> checkedObjectMap,
-        Map<Integer, List<Object>> checkedObjectCollisionMap, int depth, SerializationType serializationType)
-        throws Exception {
-        if (depth > depthAllowed) {
-            String warningMessage = "Recursed too deep [" + depth + " > " + depthAllowed
-                + "], will not attempt to detach object of type ["
-                + ((value != null) ? value.getClass().getName() : "N/A")
-                + "]. This may cause serialization errors later. "
-                + "You can try to work around this by setting the system property [" + DEPTH_ALLOWED_SYSPROP
-                + "] to a value higher than [" + depth + "] or you can set the system property ["
-                + THROW_EXCEPTION_ON_DEPTH_LIMIT_SYSPROP + "] to 'false'";
-            LOG.warn(warningMessage);
-            if (throwExceptionOnDepthLimit) {
-                throw new IllegalStateException(warningMessage);
-            }
-            return;
-        }
+    private static class Traversal {
+        private final SerializationType serializationType;
 
-        if (null == value) {
-            return;
-        }
-
-        // System.identityHashCode is a hash code, and therefore not guaranteed to be unique. And we've seen this
-        // be the case.  So, we use it to try and avoid duplicating work, but handle the case when two objects may
-        // have an identity crisis.
-        Integer valueIdentity = hashCodeGenerator.getHashCode(value);
-        Object checkedObject = checkedObjectMap.get(valueIdentity);
-
-        if (null == checkedObject) {
-            // if we have not yet encountered an object with this hash, store it in our map and start scrubbing
-            checkedObjectMap.put(valueIdentity, value);
-
-        } else if (value == checkedObject) {
-            // if we have scrubbed this already, no more work to be done
-            return;
+        // the objects we've already detached. In that way we can quickly determine if we've already done the work for
+        // an object and avoid traversing it again, which also stops us on self-referencing objects.
+        private final Map<Object, Object> checkedObjects = new IdentityHashMap<Object, Object>();
 
-        } else {
-            // we have a situation where multiple objects have the same identity hashcode, work with our
-            // collision map to decide whether it needs to be scrubbed and add if necessary.
-            // Note that this code block is infrequently hit, it is by design that we've pushed the extra
-            // work, map, etc, involved for this infrequent case into its own block. The standard cases must
-            // be as fast and lean as possible.
+        private final Deque<Task> stack = new ArrayDeque<Task>();
 
-            boolean alreadyDetached = false;
-            List<Object> collisionObjects = checkedObjectCollisionMap.get(valueIdentity);
+        // the work queued while scrubbing the current object, pushed on the stack once the object is done
+        private final List<Task> pending = new ArrayList<Task>();
 
-            if (null == collisionObjects) {
-                // if this is the 2nd occurrence for this hash, create a new map entry
-                collisionObjects = new ArrayList<Object>(1);
-                checkedObjectCollisionMap.put(valueIdentity, collisionObjects);
+        Traversal(SerializationType serializationType) {
+            this.serializationType = serializationType;
+        }
 
-            } else {
-                // if we have scrubbed this already, no more work to be done
-                for (Object collisionObject : collisionObjects) {
-                    if (value == collisionObject) {
-                        alreadyDetached = true;
-                        break;
-                    }
-                }
+        void run(Object value) throws Exception {
+            detachLater(value, 0);
+            pushPending();
+            while (!stack.isEmpty()) {
+                stack.pop().run();
+                pushPending();
             }
+        }
 
-            if (LOG.isDebugEnabled()) {
-                StringBuilder message = new StringBuilder("\n\tIDENTITY HASHCODE COLLISION [hash=");
-                message.append(valueIdentity);
-                message.append(", alreadyDetached=");
-                message.append(alreadyDetached);
-                message.append("]");
-                message.append("\n\tCurrent  : ");
-                message.append(value.getClass().getName());
-                message.append("\n\t    ");
-                message.append(value);
-                message.append("\n\tPrevious : ");
-                message.append(checkedObject.getClass().getName());
-                message.append("\n\t    ");
-                message.append(checkedObject);
-                for (Object collisionObject : collisionObjects) {
-                    message.append("\n\tPrevious : ");
-                    message.append(collisionObject.getClass().getName());
-                    message.append("\n\t    ");
-                    message.append(collisionObject);
-                }
-
-                LOG.debug(message);
+        private void pushPending() {
+            for (int i = pending.size() - 1; i >= 0; --i) {
+                stack.push(pending.get(i));
             }
+            pending.clear();
+        }
 
-            // now that we've done our logging, if already detached we're done. Otherwise add to the list of collision
-            // objects for this hash, and start scrubbing
-            if (alreadyDetached) {
+        /**
+         * Scrubs the value once the object currently being scrubbed is done.
+         */
+        private void detachLater(final Object value, final int depth) {
+            if ((null == value) || (value instanceof Enum) || IMMUTABLE_TYPES.contains(value.getClass())) {
                 return;
             }
+            pending.add(new Task() {
+                @Override
+                void run() throws Exception {
+                    detach(value, depth);
+                }
+            });
+        }
 
-            collisionObjects.add(value);
+        /**
+         * Runs the task once the objects queued so far for the object currently being scrubbed are done.
+         */
+        private void runLater(Task task) {
+            pending.add(task);
         }
 
-        // Perform the detaching
-        if (value instanceof Object[]) {
-            Object[] objArray = (Object[]) value;
-            for (int i = 0; i < objArray.length; i++) {
-                Object listEntry = objArray[i];
-                Object replaceEntry = replaceObject(listEntry);
-                if (replaceEntry != null) {
-                    objArray[i] = replaceEntry;
+        /**
+         * @param value the object needing to be detached/scrubbed.
+         * @param depth used to stop infinite traversal, defaults to a depth we don't expect to see, but it is
+         * configurable.
+         * @throws Exception if a problem occurs
+         * @throws IllegalStateException if the depth limit is reached
+         */
+        private void detach(Object value, int depth) throws Exception {
+            if (depth > depthAllowed) {
+                String warningMessage = "Recursed too deep [" + depth + " > " + depthAllowed
+                    + "], will not attempt to detach object of type ["
+                    + ((value != null) ? value.getClass().getName() : "N/A")
+                    + "]. This may cause serialization errors later. "
+                    + "You can try to work around this by setting the system property [" + DEPTH_ALLOWED_SYSPROP
+                    + "] to a value higher than [" + depth + "] or you can set the system property ["
+                    + THROW_EXCEPTION_ON_DEPTH_LIMIT_SYSPROP + "] to 'false'";
+                LOG.warn(warningMessage);
+                if (throwExceptionOnDepthLimit) {
+                    throw new IllegalStateException(warningMessage);
                 }
-                nullOutUninitializedFields(objArray[i], checkedObjectMap, checkedObjectCollisionMap, depth + 1,
-                    serializationType);
+                return;
             }
-        } else if (value instanceof List) {
-            // Null out any entries in initialized collections
-            ListIterator i = ((List) value).listIterator();
-            while (i.hasNext()) {
-                Object val = i.next();
-                Object replace = replaceObject(val);
-                if (replace != null) {
-                    val = replace;
-                    i.set(replace);
-                }
-                nullOutUninitializedFields(val, checkedObjectMap, checkedObjectCollisionMap, depth + 1,
-                    serializationType);
+
+            if (checkedObjects.put(value, value) != null) {
+                // if we have scrubbed this already, no more work to be done
+                return;
             }
 
-        } else if (value instanceof Collection) {
-            Collection collection = (Collection) value;
-            Collection itemsToBeReplaced = new ArrayList();
-            Collection replacementItems = new ArrayList();
-            for (Object item : collection) {
-                Object replacementItem = replaceObject(item);
-                if (replacementItem != null) {
-                    itemsToBeReplaced.add(item);
-                    replacementItems.add(replacementItem);
-                    item = replacementItem;
+            // Perform the detaching
+            if (value instanceof Object[]) {
+                Object[] objArray = (Object[]) value;
+                for (int i = 0; i < objArray.length; i++) {
+                    Object listEntry = objArray[i];
+                    Object replaceEntry = replaceObject(listEntry);
+                    if (replaceEntry != null) {
+                        objArray[i] = replaceEntry;
+                    }
+                    detachLater(objArray[i], depth + 1);
                 }
-                nullOutUninitializedFields(item, checkedObjectMap, checkedObjectCollisionMap, depth + 1,
-                    serializationType);
-            }
-            collection.removeAll(itemsToBeReplaced);
-            collection.addAll(replacementItems); // watch out! if this collection is a Set, HashMap$MapSet doesn't support addAll. See BZ 688000
-        } else if (value instanceof Map) {
-            Map originalMap = (Map) value;
-            HashMap<Object, Object> replaceMap = new HashMap<Object, Object>();
-            for (Iterator i = originalMap.keySet().iterator(); i.hasNext();) {
-                // get original key and value - these might be hibernate proxies
-                Object originalKey = i.next();
-                Object originalKeyValue = originalMap.get(originalKey);
-
-                // replace with non-hibernate classes, if appropriate (will be null otherwise)
-                Object replaceKey = replaceObject(originalKey);
-                Object replaceValue = replaceObject(originalKeyValue);
-
-                // if either original key or original value was a hibernate proxy object, we have to
-                // remove it from the original map, and remember the replacement objects for later
-                if (replaceKey != null || replaceValue != null) {
-                    Object newKey = (replaceKey != null) ? replaceKey : originalKey;
-                    Object newValue = (replaceValue != null) ? replaceValue : originalKeyValue;
-                    replaceMap.put(newKey, newValue);
-                    i.remove();
+            } else if (value instanceof List) {
+                // Null out any entries in initialized collections
+                ListIterator i = ((List) value).listIterator();
+                while (i.hasNext()) {
+                    Object val = i.next();
+                    Object replace = replaceObject(val);
+                    if (replace != null) {
+                        val = replace;
+                        i.set(replace);
+                    }
+                    detachLater(val, depth + 1);
                 }
-            }
 
-            // all hibernate proxies have been removed, we need to replace them with their
-            // non-proxy object representations that we got from replaceObject() calls
-            originalMap.putAll(replaceMap);
+            } else if (value instanceof Collection) {
+                final Collection collection = (Collection) value;
+                final Collection itemsToBeReplaced = new ArrayList();
+                final Collection replacementItems = new ArrayList();
+                for (Object item : collection) {
+                    Object replacementItem = replaceObject(item);
+                    if (replacementItem != null) {
+                        itemsToBeReplaced.add(item);
+                        replacementItems.add(replacementItem);
+                        item = replacementItem;
+                    }
+                    detachLater(item, depth + 1);
+                }
+                if (!itemsToBeReplaced.isEmpty()) {
+                    runLater(new Task() {
+                        @Override
+                        void run() {
+                            collection.removeAll(itemsToBeReplaced);
+                            collection.addAll(replacementItems); // watch out! if this collection is a Set, HashMap$MapSet doesn't support addAll. See BZ 688000
+                        }
+                    });
+                }
+            } else if (value instanceof Map) {
+                Map originalMap = (Map) value;
+                HashMap<Object, Object> replaceMap = new HashMap<Object, Object>();
+                for (Iterator i = originalMap.keySet().iterator(); i.hasNext();) {
+                    // get original key and value - these might be hibernate proxies
+                    Object originalKey = i.next();
+                    Object originalKeyValue = originalMap.get(originalKey);
+
+                    // replace with non-hibernate classes, if appropriate (will be null otherwise)
+                    Object replaceKey = replaceObject(originalKey);
+                    Object replaceValue = replaceObject(originalKeyValue);
+
+                    // if either original key or original value was a hibernate proxy object, we have to
+                    // remove it from the original map, and remember the replacement objects for later
+                    if (replaceKey != null || replaceValue != null) {
+                        Object newKey = (replaceKey != null) ? replaceKey : originalKey;
+                        Object newValue = (replaceValue != null) ? replaceValue : originalKeyValue;
+                        replaceMap.put(newKey, newValue);
+                        i.remove();
+                    }
+                }
 
-            // now go through each item in the map and null out their internal fields
-            for (Object key : originalMap.keySet()) {
-                nullOutUninitializedFields(originalMap.get(key), checkedObjectMap, checkedObjectCollisionMap,
-                    depth + 1, serializationType);
-                nullOutUninitializedFields(key, checkedObjectMap, checkedObjectCollisionMap, depth + 1,
-                    serializationType);
-            }
-        } else if (value instanceof Enum) {
-            // don't need to detach enums, treat them as special objects
-            return;
-        }
+                // all hibernate proxies have been removed, we need to replace them with their
+                // non-proxy object representations that we got from replaceObject() calls
+                originalMap.putAll(replaceMap);
 
-        if (serializationType == SerializationType.JAXB) {
-            XmlAccessorType at = value.getClass().getAnnotation(XmlAccessorType.class);
-            if (at != null && at.value() == XmlAccessType.FIELD) {
-                nullOutFieldsByFieldAccess(value, checkedObjectMap, checkedObjectCollisionMap, depth, serializationType);
-            } else {
-                nullOutFieldsByAccessors(value, checkedObjectMap, checkedObjectCollisionMap, depth, serializationType);
+                // now go through each item in the map and null out their internal fields
+                for (Object key : originalMap.keySet()) {
+                    detachLater(originalMap.get(key), depth + 1);
+                    detachLater(key, depth + 1);
+                }
+            } else if (value instanceof Enum) {
+                // don't need to detach enums, treat them as special objects
+                return;
             }
-        } else if (serializationType == SerializationType.SERIALIZATION) {
-            nullOutFieldsByFieldAccess(value, checkedObjectMap, checkedObjectCollisionMap, depth, serializationType);
-        }
 
-    }
-
-    private static void nullOutFieldsByFieldAccess(Object object, Map<Integer, Object> checkedObjects,
-        Map<Integer, List<Object>> checkedObjectCollisionMap, int depth, SerializationType serializationType)
-        throws Exception {
-
-        Class tmpClass = object.getClass();
-        List<Field> fieldsToClean = new ArrayList<Field>();
-        while (tmpClass != null && tmpClass != Object.class) {
-            Field[] declaredFields = tmpClass.getDeclaredFields();
-            for (Field declaredField : declaredFields) {
-                // do not process static final or transient fields since they won't be serialized anyway
-                int modifiers = declaredField.getModifiers();
-                if (!((Modifier.isFinal(modifiers) && Modifier.isStatic(modifiers)) || Modifier.isTransient(modifiers))) {
-                    fieldsToClean.add(declaredField);
+            if (serializationType == SerializationType.JAXB) {
+                if (getClassInfo(value.getClass()).xmlFieldAccess) {
+                    nullOutFieldsByFieldAccess(value, depth);
+                } else {
+                    nullOutFieldsByAccessors(value, depth);
                 }
+            } else if (serializationType == SerializationType.SERIALIZATION) {
+                nullOutFieldsByFieldAccess(value, depth);
             }
-            tmpClass = tmpClass.getSuperclass();
         }
 
-        nullOutFieldsByFieldAccess(object, fieldsToClean, checkedObjects, checkedObjectCollisionMap, depth,
-            serializationType);
-    }
+        private void nullOutFieldsByFieldAccess(final Object object, int depth) throws Exception {
+            for (final Field field : getClassInfo(object.getClass()).fields) {
+                Object fieldValue = field.get(object);
 
-    private static void nullOutFieldsByFieldAccess(Object object, List<Field> classFields,
-        Map<Integer, Object> checkedObjects, Map<Integer, List<Object>> checkedObjectCollisionMap, int depth,
-        SerializationType serializationType) throws Exception {
+                if (fieldValue instanceof HibernateProxy) {
 
-        boolean accessModifierFlag = false;
-        for (Field field : classFields) {
-            accessModifierFlag = false;
-            if (!field.isAccessible()) {
-                field.setAccessible(true);
-                accessModifierFlag = true;
-            }
+                    Object replacement = null;
+                    String assistClassName = fieldValue.getClass().getName();
+                    if (assistClassName.contains("jvst") || assistClassName.contains("EnhancerByCGLIB")) {
 
-            Object fieldValue = field.get(object);
+                        Class assistClass = fieldValue.getClass();
+                        try {
+                            Method m = assistClass.getMethod("writeReplace");
+                            replacement = m.invoke(fieldValue);
 
-            if (fieldValue instanceof HibernateProxy) {
+                            String assistNameDelimiter = assistClassName.contains("jvst") ? "_$$_" : "$$";
 
-                Object replacement = null;
-                String assistClassName = fieldValue.getClass().getName();
-                if (assistClassName.contains("jvst") || assistClassName.contains("EnhancerByCGLIB")) {
+                            assistClassName = assistClassName.substring(0,
+                                assistClassName.indexOf(assistNameDelimiter));
+                            if (replacement != null && !replacement.getClass().getName().contains("hibernate")) {
+                                detachLater(replacement, depth + 1);
 
-                    Class assistClass = fieldValue.getClass();
-                    try {
-                        Method m = assistClass.getMethod("writeReplace");
-                        replacement = m.invoke(fieldValue);
+                                field.set(object, replacement);
+                            } else {
+                                replacement = null;
+                            }
+                        } catch (Exception e) {
+                            LOG.error("Unable to write replace object " + fieldValue.getClass(), e);
+                        }
+                    }
 
-                        String assistNameDelimiter = assistClassName.contains("jvst") ? "_$$_" : "$$";
+                    if (replacement == null) {
 
-                        assistClassName = assistClassName.substring(0, assistClassName.indexOf(assistNameDelimiter));
-                        if (replacement != null && !replacement.getClass().getName().contains("hibernate")) {
-                            nullOutUninitializedFields(replacement, checkedObjects, checkedObjectCollisionMap,
-                                depth + 1, serializationType);
+                        String className = ((HibernateProxy) fieldValue).getHibernateLazyInitializer()
+                            .getEntityName();
 
-                            field.set(object, replacement);
-                        } else {
-                            replacement = null;
-                        }
-                    } catch (Exception e) {
-                        LOG.error("Unable to write replace object " + fieldValue.getClass(), e);
-                    }
-                }
+                        //see if there is a context classloader we should use instead of the current one.
+                        ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
 
-                if (replacement == null) {
+                        Class clazz = contextClassLoader == null ? Class.forName(className) : Class.forName(
+                            className, true, contextClassLoader);
+                        Class[] constArgs = { Integer.class };
+                        Constructor construct = null;
 
-                    String className = ((HibernateProxy) fieldValue).getHibernateLazyInitializer().getEntityName();
+                        try {
+                            construct = clazz.getConstructor(constArgs);
+                            replacement = construct.newInstance((Integer) ((HibernateProxy) fieldValue)
+                                .getHibernateLazyInitializer().getIdentifier());
+                            field.set(object, replacement);
+                        } catch (NoSuchMethodException nsme) {
+
+                            try {
+                                Field idField = clazz.getDeclaredField("id");
+                                Constructor ct = clazz.getDeclaredConstructor();
+                                ct.setAccessible(true);
+                                replacement = ct.newInstance();
+                                if (!idField.isAccessible()) {
+                                    idField.setAccessible(true);
+                                }
+                                idField.set(replacement, ((HibernateProxy) fieldValue)
+                                    .getHibernateLazyInitializer().getIdentifier());
+                            } catch (Exception e) {
+                                e.printStackTrace();
+                                LOG.error("No id constructor and unable to set field id for base bean " + className,
+                                    e);
+                            }
 
-                    //see if there is a context classloader we should use instead of the current one.
-                    ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+                            field.set(object, replacement);
+                        }
+                    }
 
-                    Class clazz = contextClassLoader == null ? Class.forName(className) : Class.forName(className,
-                        true, contextClassLoader);
-                    Class[] constArgs = { Integer.class };
-                    Constructor construct = null;
+                } else {
+                    if (fieldValue instanceof org.hibernate.collection.spi.PersistentCollection) {
+                        // Replace hibernate specific collection types
 
-                    try {
-                        construct = clazz.getConstructor(constArgs);
-                        replacement = construct.newInstance((Integer) ((HibernateProxy) fieldValue)
-                            .getHibernateLazyInitializer().getIdentifier());
-                        field.set(object, replacement);
-                    } catch (NoSuchMethodException nsme) {
+                        if (!((org.hibernate.collection.spi.PersistentCollection) fieldValue).wasInitialized()) {
+                            field.set(object, null);
+                        } else {
 
-                        try {
-                            Field idField = clazz.getDeclaredField("id");
-                            Constructor ct = clazz.getDeclaredConstructor();
-                            ct.setAccessible(true);
-                            replacement = ct.newInstance();
-                            if (!idField.isAccessible()) {
-                                idField.setAccessible(true);
+                            Object replacement = null;
+                            if (fieldValue instanceof Map) {
+                                replacement = new HashMap((Map) fieldValue);
+                            } else if (fieldValue instanceof List) {
+                                replacement = new ArrayList((List) fieldValue);
+                            } else if (fieldValue instanceof Set) {
+                                final ArrayList l = new ArrayList((Set) fieldValue); // cannot traverse Sets, see BZ 688000
+                                detachLater(l, depth + 1);
+                                // convert it back to a Set since that's the type of the real collection, once its
+                                // items are detached, see BZ 688000
+                                runLater(new Task() {
+                                    @Override
+                                    void run() throws Exception {
+                                        field.set(object, new HashSet(l));
+                                    }
+                                });
+                                continue;
+                            } else if (fieldValue instanceof Collection) {
+                                replacement = new ArrayList((Collection) fieldValue);
                             }
-                            idField.set(replacement, ((HibernateProxy) fieldValue)
-                                .getHibernateLazyInitializer().getIdentifier());
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                            LOG.error("No id constructor and unable to set field id for base bean " + className, e);
+                            field.set(object, replacement);
+                            detachLater(replacement, depth + 1);
                         }
 
-                        field.set(object, replacement);
+                    } else {
+                        if (fieldValue != null
+                            && (fieldValue.getClass().getName().contains("org.rhq") || fieldValue instanceof Collection
+                                || fieldValue instanceof Object[] || fieldValue instanceof Map))
+                            detachLater(fieldValue, depth + 1);
                     }
                 }
+            }
 
-            } else {
-                if (fieldValue instanceof org.hibernate.collection.spi.PersistentCollection) {
-                    // Replace hibernate specific collection types
+        }
 
-                    if (!((org.hibernate.collection.spi.PersistentCollection) fieldValue).wasInitialized()) {
-                        field.set(object, null);
-                    } else {
+        private void nullOutFieldsByAccessors(Object value, int depth) throws Exception {
+            // Null out any collections that aren't loaded
+            BeanInfo bi = Introspector.getBeanInfo(value.getClass(), Object.class);
 
-                        Object replacement = null;
-                        boolean needToNullOutFields = true; // needed for BZ 688000
-                        if (fieldValue instanceof Map) {
-                            replacement = new HashMap((Map) fieldValue);
-                        } else if (fieldValue instanceof List) {
-                            replacement = new ArrayList((List) fieldValue);
-                        } else if (fieldValue instanceof Set) {
-                            ArrayList l = new ArrayList((Set) fieldValue); // cannot recurse Sets, see BZ 688000
-                            nullOutUninitializedFields(l, checkedObjects, checkedObjectCollisionMap, depth + 1,
-                                serializationType);
-                            replacement = new HashSet(l); // convert it back to a Set since that's the type of the real collection, see BZ 688000
-                            needToNullOutFields = false;
-                        } else if (fieldValue instanceof Collection) {
-                            replacement = new ArrayList((Collection) fieldValue);
+            PropertyDescriptor[] pds = bi.getPropertyDescriptors();
+            for (PropertyDescriptor pd : pds) {
+                Object propertyValue = null;
+                try {
+                    propertyValue = pd.getReadMethod().invoke(value);
+                } catch (Throwable lie) {
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Couldn't load: " + pd.getName() + " off of " + value.getClass().getSimpleName(),
+                            lie);
+                    }
+                }
+
+                if (!Hibernate.isInitialized(propertyValue)) {
+                    try {
+                        if (LOG.isDebugEnabled()) {
+                            LOG.debug("Nulling out: " + pd.getName() + " off of " + value.getClass().getSimpleName());
                         }
-                        setField(object, field.getName(), replacement);
 
-                        if (needToNullOutFields) {
-                            nullOutUninitializedFields(replacement, checkedObjects, checkedObjectCollisionMap,
-                                depth + 1, serializationType);
+                        Method writeMethod = pd.getWriteMethod();
+                        if ((writeMethod != null) && (writeMethod.getAnnotation(XmlTransient.class) == null)) {
+                            pd.getWriteMethod().invoke(value, new Object[] { null });
+                        } else {
+                            nullOutField(value, pd.getName());
                         }
+                    } catch (Exception lie) {
+                        LOG.debug("Couldn't null out: " + pd.getName() + " off of " + value.getClass().getSimpleName()
+                            + " trying field access", lie);
+                        nullOutField(value, pd.getName());
                     }
-
                 } else {
-                    if (fieldValue != null
-                        && (fieldValue.getClass().getName().contains("org.rhq") || fieldValue instanceof Collection
-                            || fieldValue instanceof Object[] || fieldValue instanceof Map))
-                        nullOutUninitializedFields((fieldValue), checkedObjects, checkedObjectCollisionMap, depth + 1,
-                            serializationType);
+                    if ((propertyValue instanceof Collection)
+                        || ((propertyValue != null) && propertyValue.getClass().getName()
+                            .startsWith("org.rhq.core.domain"))) {
+                        detachLater(propertyValue, depth + 1);
+                    }
                 }
             }
-            if (accessModifierFlag) {
-                field.setAccessible(false);
+        }
+    }
+
+    private static abstract class Task {
+        abstract void run() throws Exception;
+    }
+
+    /**
+     * What there is to know about a class to scrub its objects, looked up once per class.
+     */
+    private static class ClassInfo {
+        // the fields of the class and its superclasses, except for static final or transient fields since they won't
+        // be serialized anyway
+        final Field[] fields;
+        final boolean xmlFieldAccess;
+
+        ClassInfo(Class<?> clazz) {
+            List<Field> fieldsToClean = new ArrayList<Field>();
+            Class tmpClass = clazz;
+            while (tmpClass != null && tmpClass != Object.class) {
+                Field[] declaredFields = tmpClass.getDeclaredFields();
+                for (Field declaredField : declaredFields) {
+                    int modifiers = declaredField.getModifiers();
+                    if (!((Modifier.isFinal(modifiers) && Modifier.isStatic(modifiers)) || Modifier
+                        .isTransient(modifiers))) {
+                        // these Field objects are our own copies, they can be left accessible
+                        declaredField.setAccessible(true);
+                        fieldsToClean.add(declaredField);
+                    }
+                }
+                tmpClass = tmpClass.getSuperclass();
             }
+            fields = fieldsToClean.toArray(new Field[fieldsToClean.size()]);
+
+            XmlAccessorType at = clazz.getAnnotation(XmlAccessorType.class);
+            xmlFieldAccess = (at != null && at.value() == XmlAccessType.FIELD);
         }
+    }
 
+    private static ClassInfo getClassInfo(Class<?> clazz) {
+        ClassInfo classInfo = classInfos.get(clazz);
+        if (null == classInfo) {
+            classInfo = new ClassInfo(clazz);
+            classInfos.putIfAbsent(clazz, classInfo);
+        }
+        return classInfo;
     }
 
     private static Object replaceObject(Object object) {
@@ -534,65 +562,6 @@ public class HibernateDetachUtility {
         return replacement;
     }
 
-    private static void nullOutFieldsByAccessors(Object value, Map<Integer, Object> checkedObjects,
-        Map<Integer, List<Object>> checkedObjectCollisionMap, int depth, SerializationType serializationType)
-        throws Exception {
-        // Null out any collections that aren't loaded
-        BeanInfo bi = Introspector.getBeanInfo(value.getClass(), Object.class);
-
-        PropertyDescriptor[] pds = bi.getPropertyDescriptors();
-        for (PropertyDescriptor pd : pds) {
-            Object propertyValue = null;
-            try {
-                propertyValue = pd.getReadMethod().invoke(value);
-            } catch (Throwable lie) {
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("Couldn't load: " + pd.getName() + " off of " + value.getClass().getSimpleName(), lie);
-                }
-            }
-
-            if (!Hibernate.isInitialized(propertyValue)) {
-                try {
-                    if (LOG.isDebugEnabled()) {
-                        LOG.debug("Nulling out: " + pd.getName() + " off of " + value.getClass().getSimpleName());
-                    }
-
-                    Method writeMethod = pd.getWriteMethod();
-                    if ((writeMethod != null) && (writeMethod.getAnnotation(XmlTransient.class) == null)) {
-                        pd.getWriteMethod().invoke(value, new Object[] { null });
-                    } else {
-                        nullOutField(value, pd.getName());
-                    }
-                } catch (Exception lie) {
-                    LOG.debug("Couldn't null out: " + pd.getName() + " off of " + value.getClass().getSimpleName()
-                        + " trying field access", lie);
-                    nullOutField(value, pd.getName());
-                }
-            } else {
-                if ((propertyValue instanceof Collection)
-                    || ((propertyValue != null) && propertyValue.getClass().getName().startsWith("org.rhq.core.domain"))) {
-                    nullOutUninitializedFields(propertyValue, checkedObjects, checkedObjectCollisionMap, depth + 1,
-                        serializationType);
-                }
-            }
-        }
-    }
-
-    private static void setField(Object object, String fieldName, Object newValue) {
-        try {
-            Field f = object.getClass().getDeclaredField(fieldName);
-            if (f != null) {
-                // try to set the field this way
-                f.setAccessible(true);
-                f.set(object, newValue);
-            }
-        } catch (NoSuchFieldException e) {
-            // ignore this
-        } catch (IllegalAccessException e) {
-            // ignore this
-        }
-    }
-
     private static void nullOutField(Object value, String fieldName) {
         try {
             Field f = value.getClass().getDeclaredField(fieldName);
@@ -26,6 +26,7 @@ package org.rhq.enterprise.server.safeinvoker;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import org.testng.annotations.Test;
 
@@ -35,12 +36,11 @@ import org.rhq.enterprise.server.safeinvoker.HibernateDetachUtility.Serializatio
 @Test
 public class HibernateDetachUtilityTest {
     /**
-     * This tests the rare, but very possible, condition where two objects
-     * have the same identity hashcode (System.identityHashCode(A) == System.identityHashCode(B))
-     * but are not identical objects (A != B). We have seen this as a valid condition
-     * on both SUN and IBM JRE implementations. 
+     * This tests that circular and self-referencing objects are detached once and left intact. Objects used to be
+     * tracked by their identity hashcode, which two objects can share (we have seen this on both SUN and IBM JRE
+     * implementations), they are now tracked by identity.
      */
-    public void testIdenticalHashCodesNonIdenticalObjects() throws Exception {
+    public void testCircularAndSelfReferencingObjects() throws Exception {
         class ArrayObject implements Serializable {
             private static final long serialVersionUID = 1L;
             long id;
@@ -64,18 +64,6 @@ public class HibernateDetachUtilityTest {
 
         }
 
-        class DuplicateHashCodeGenerator implements HibernateDetachUtility.HashCodeGenerator {
-            public Integer getHashCode(Object value) {
-                if (value instanceof Integer && ((Integer) value).intValue() >= 2) {
-                    return 11111;
-                } else if (value instanceof ArrayObject) {
-                    return 22222;
-                } else {
-                    return System.identityHashCode(value);
-                }
-            }
-        }
-
         ArrayObject array1 = new ArrayObject(1, null, 1, 2, 3);
         ArrayObject array2 = new ArrayObject(2, array1, 2, 3);
         array1.object = array2; // now 1 references 2 and 2 reference 1, circular dependency
@@ -101,8 +89,6 @@ public class HibernateDetachUtilityTest {
         // make sure array3 still self-references
         assertObjectEquals(array.get(2).object, array.get(2));
 
-        // simulate rare condition
-        HibernateDetachUtility.hashCodeGenerator = new DuplicateHashCodeGenerator();
         HibernateDetachUtility.nullOutUninitializedFields(array, SerializationType.SERIALIZATION);
         assert array.get(0).array[0] == Integer.valueOf(1);
         assert array.get(0).array[1] == Integer.valueOf(2);
@@ -117,23 +103,59 @@ public class HibernateDetachUtilityTest {
 
         // make sure array3 still self-references
         assertObjectEquals(array.get(2).object, array.get(2));
+    }
 
-        // put it back the way it was
-        HibernateDetachUtility.hashCodeGenerator = new HibernateDetachUtility.SystemHashCodeGenerator();
-        HibernateDetachUtility.nullOutUninitializedFields(array, SerializationType.SERIALIZATION);
-        assert array.get(0).array[0] == Integer.valueOf(1);
-        assert array.get(0).array[1] == Integer.valueOf(2);
-        assert array.get(0).array[2] == Integer.valueOf(3);
-        assert array.get(1).array[0] == Integer.valueOf(2);
-        assert array.get(1).array[1] == Integer.valueOf(3);
-        assert array.get(2).array[0] == Integer.valueOf(3);
+    /**
+     * Detaches a large graph of objects that share references to each other, which must neither overflow the stack
+     * nor break the references.
+     */
+    public void testLargeObjectGraph() throws Exception {
+        class Node implements Serializable {
+            private static final long serialVersionUID = 1L;
+            String name;
+            Node group;
+            Node shared;
+            List<Node> members = new ArrayList<Node>();
+            Object[] values;
+
+            Node(String name, Node group, Node shared) {
+                this.name = name;
+                this.group = group;
+                this.shared = shared;
+                this.values = new Object[] { name, Integer.valueOf(name.length()), this };
+            }
+        }
 
-        // make sure array1 still references array2 and vice versa
-        assertObjectEquals(array.get(0).object, array.get(1));
-        assertObjectEquals(array.get(1).object, array.get(0));
+        int groupCount = 2000;
+        int memberCount = 20;
+        Node shared = new Node("shared", null, null);
+        List<Node> groups = new ArrayList<Node>(groupCount + 1);
+        groups.add(shared);
+        for (int i = 0; i < groupCount; i++) {
+            Node group = new Node("group" + i, null, shared);
+            for (int j = 0; j < memberCount; j++) {
+                group.members.add(new Node("member" + i + "." + j, group, shared));
+            }
+            shared.members.add(group);
+            groups.add(group);
+        }
 
-        // make sure array3 still self-references
-        assertObjectEquals(array.get(2).object, array.get(2));
+        HibernateDetachUtility.nullOutUninitializedFields(groups, SerializationType.SERIALIZATION);
+
+        assert groups.size() == groupCount + 1;
+        assert shared.members.size() == groupCount;
+        for (int i = 1; i <= groupCount; i++) {
+            Node group = groups.get(i);
+            assertObjectEquals(group.shared, shared);
+            assertObjectEquals(group.values[2], group);
+            assert group.members.size() == memberCount;
+            for (Node member : group.members) {
+                assertObjectEquals(member.group, group);
+                assertObjectEquals(member.shared, shared);
+                assertObjectEquals(member.values[2], member);
+                assert member.values[0] == member.name;
+            }
+        }
     }
 
     private void assertObjectEquals(Object o1, Object o2) {
@@ -103,6 +103,8 @@ public class Buckets {
 
     private long interval;
 
+    private long beginTime;
+
     public Buckets(DateTime beginTime, DateTime endTime) {
         this(beginTime.getMillis(), endTime.getMillis());
     }
@@ -112,6 +114,7 @@ public class Buckets {
             throw new IllegalArgumentException("Number of buckets must be > 0");
         }
         numDataPoints = numberOfDataPoints;
+        this.beginTime = beginTime;
         buckets = new Bucket[numDataPoints];
         interval = (endTime - beginTime) / numDataPoints;
         for (int i = 1; i <= numDataPoints; ++i) {
@@ -136,6 +139,16 @@ public class Buckets {
     }
 
     public void insert(long timestamp, double value, double min, double max) {
+        if (interval > 0) {
+            // the buckets are contiguous and all have the same width, so we can compute the index directly
+            if (timestamp >= beginTime) {
+                long index = (timestamp - beginTime) / interval;
+                if (index < numDataPoints) {
+                    buckets[(int) index].insert(value, min, max);
+                }
+            }
+            return;
+        }
         for (Bucket bucket : buckets) {
             if (timestamp >= bucket.getStartTime() && timestamp < bucket.getEndTime()) {
                 bucket.insert(value, min, max);
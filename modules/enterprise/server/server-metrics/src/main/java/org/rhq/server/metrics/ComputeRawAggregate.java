@@ -24,6 +24,15 @@ public class ComputeRawAggregate implements Function<ResultSet, AggregateNumeric
         mapper = new RawNumericMetricMapper();
     }
 
+    /**
+     * @param beginTime The start of the queried time range, which is also the timestamp of the aggregate
+     * @param endTime The end of the queried time range. Raw data blocks can hold data beyond either end of it.
+     */
+    public ComputeRawAggregate(long beginTime, long endTime) {
+        this.timestamp = beginTime;
+        mapper = new RawNumericMetricMapper(beginTime, endTime);
+    }
+
     @Override
     public AggregateNumericMetric apply(ResultSet resultSet) {
         List<RawNumericMetric> rawMetrics = mapper.mapAll(resultSet);
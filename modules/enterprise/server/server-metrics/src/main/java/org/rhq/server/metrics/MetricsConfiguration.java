@@ -61,6 +61,8 @@ public class MetricsConfiguration {
     // TODO make this configurable
     private int indexPartitions = 10;
 
+    private boolean rawBlockStorage = Boolean.getBoolean(MetricsConstants.RAW_BLOCK_STORAGE);
+
     public int getRawTTL() {
         return rawTTL;
     }
@@ -176,4 +178,17 @@ public class MetricsConfiguration {
         this.indexPartitions = indexPartitions;
         return this;
     }
+
+    /**
+     * @return true if raw data is stored as compressed blocks, one per schedule and raw time slice, in
+     * {@link org.rhq.server.metrics.domain.MetricsTable#RAW_BLOCKS} rather than as one cell per data point
+     */
+    public boolean isRawBlockStorage() {
+        return rawBlockStorage;
+    }
+
+    public MetricsConfiguration setRawBlockStorage(boolean rawBlockStorage) {
+        this.rawBlockStorage = rawBlockStorage;
+        return this;
+    }
 }
@@ -11,8 +11,26 @@ public class MetricsConstants {
 
     public static final String AGGREGATION_PARALLELISM = "rhq.metrics.aggregation.parallelism";
 
+    public static final String AGGREGATION_MAX_CONCURRENCY = "rhq.metrics.aggregation.max-concurrency";
+
     public static final String RAW_DATA_AGE_LIMIT = "rhq.metrics.data.age-limit";
 
+    public static final String INGESTION_CONSUMERS = "rhq.metrics.ingestion.consumers";
+
+    public static final String INGESTION_BATCH_SIZE = "rhq.metrics.ingestion.batch-size";
+
+    public static final String GROUP_QUERY_CONCURRENCY = "rhq.metrics.group-query.concurrency";
+
+    public static final String GROUP_ROLLUPS_MIN_MEMBERS = "rhq.metrics.group-rollups.min-members";
+
+    public static final String SPILL_DIRECTORY = "rhq.metrics.spill.directory";
+
+    public static final String SPILL_MAX_SIZE_MB = "rhq.metrics.spill.max-size-mb";
+
+    public static final String RAW_BLOCK_STORAGE = "rhq.metrics.raw.block-storage";
+
+    public static final String RAW_BLOCK_FLUSH_INTERVAL = "rhq.metrics.raw.block-flush-interval";
+
     private MetricsConstants() {
     }
 }
@@ -26,14 +26,22 @@
 package org.rhq.server.metrics;
 
 
+import static com.datastax.driver.core.querybuilder.QueryBuilder.ttl;
+
+import java.nio.ByteBuffer;
 import java.util.Date;
 import java.util.List;
+import java.util.Set;
 
 import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.exceptions.NoHostAvailableException;
 import com.datastax.driver.core.exceptions.QueryTimeoutException;
+import com.datastax.driver.core.querybuilder.Batch;
+import com.datastax.driver.core.querybuilder.QueryBuilder;
+import com.google.common.base.Function;
+import com.google.common.collect.Iterables;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -74,6 +82,18 @@ public class MetricsDAO {
     private PreparedStatement findIndexEntriesAfterScheduleId;
     private PreparedStatement deleteIndexEntry;
     private PreparedStatement deleteAggregate;
+    private PreparedStatement insertGroupOneHourData;
+    private PreparedStatement insertGroupSixHourData;
+    private PreparedStatement insertGroupTwentyFourHourData;
+    private PreparedStatement findGroupAggregateMetricsByDateRange;
+    private PreparedStatement findGroupRollup;
+    private PreparedStatement findGroupRollups;
+    private PreparedStatement insertGroupRollup;
+    private PreparedStatement deleteGroupRollups;
+    private PreparedStatement insertRawBlock;
+    private PreparedStatement rawBlocksQuery;
+    private PreparedStatement findRawBlock;
+    private PreparedStatement findLatestRawBlock;
 
     private PreparedStatement aliveCheck;
 
@@ -152,6 +172,51 @@ public class MetricsDAO {
             "DELETE FROM " + MetricsTable.AGGREGATE + " " +
             "WHERE schedule_id = ? AND bucket = ? AND time = ?");
 
+        insertGroupOneHourData = prepareInsertGroupAggregate(Bucket.ONE_HOUR, configuration.getOneHourTTL());
+        insertGroupSixHourData = prepareInsertGroupAggregate(Bucket.SIX_HOUR, configuration.getSixHourTTL());
+        insertGroupTwentyFourHourData = prepareInsertGroupAggregate(Bucket.TWENTY_FOUR_HOUR,
+            configuration.getTwentyFourHourTTL());
+
+        // the columns are in the same order as those of findAggregateMetricsByDateRange so that rows from either
+        // query can be read the same way
+        findGroupAggregateMetricsByDateRange = storageSession.prepare(
+            "SELECT group_id, bucket, time, avg, max, min " +
+            "FROM " + MetricsTable.GROUP_AGGREGATE + " " +
+            "WHERE group_id = ? AND definition_id = ? AND bucket = ? AND time >= ? AND time < ?");
+
+        findGroupRollup = storageSession.prepare(
+            "SELECT schedule_ids, valid_since " +
+            "FROM " + MetricsTable.GROUP_ROLLUPS + " " +
+            "WHERE group_id = ? AND definition_id = ?");
+
+        findGroupRollups = storageSession.prepare(
+            "SELECT group_id, definition_id, schedule_ids FROM " + MetricsTable.GROUP_ROLLUPS);
+
+        insertGroupRollup = storageSession.prepare(
+            "INSERT INTO " + MetricsTable.GROUP_ROLLUPS + " (group_id, definition_id, schedule_ids, valid_since) " +
+            "VALUES (?, ?, ?, ?)");
+
+        deleteGroupRollups = storageSession.prepare(
+            "DELETE FROM " + MetricsTable.GROUP_ROLLUPS + " WHERE group_id = ?");
+
+        insertRawBlock = storageSession.prepare(
+            "INSERT INTO " + MetricsTable.RAW_BLOCKS + " (schedule_id, time_slice, data) VALUES (?, ?, ?) " +
+            "USING TTL " + configuration.getRawTTL());
+
+        // A block holds the data of its time slice so the first block that can hold data in a time range is the one
+        // that starts less than a time slice before it.
+        rawBlocksQuery = storageSession.prepare(
+            "SELECT schedule_id, time_slice, data FROM " + MetricsTable.RAW_BLOCKS + " " +
+            "WHERE schedule_id = ? AND time_slice > ? AND time_slice < ? ORDER BY time_slice");
+
+        findRawBlock = storageSession.prepare(
+            "SELECT schedule_id, time_slice, data FROM " + MetricsTable.RAW_BLOCKS + " " +
+            "WHERE schedule_id = ? AND time_slice = ?");
+
+        findLatestRawBlock = storageSession.prepare(
+            "SELECT schedule_id, time_slice, data FROM " + MetricsTable.RAW_BLOCKS + " " +
+            "WHERE schedule_id = ? ORDER BY time_slice DESC LIMIT 1");
+
         aliveCheck = storageSession.prepare(
                 "SELECT columnfamily_name FROM System.schema_columnfamilies WHERE keyspace_name = ?");
 
@@ -159,6 +224,13 @@ public class MetricsDAO {
         log.info("Finished initializing prepared statements in " + (endTime - startTime) + " ms");
     }
 
+    private PreparedStatement prepareInsertGroupAggregate(Bucket bucket, int ttl) {
+        return storageSession.prepare(
+            "INSERT INTO " + MetricsTable.GROUP_AGGREGATE + "(group_id, definition_id, bucket, time, avg, max, min) " +
+            "VALUES (?, ?, '" + bucket + "', ?, ?, ?, ?) " +
+            "USING TTL " + ttl);
+    }
+
     public StorageSession getStorageSession() {
         return storageSession;
     }
@@ -169,6 +241,29 @@ public class MetricsDAO {
         return storageSession.executeAsync(statement);
     }
 
+    /**
+     * Inserts raw data for a single schedule. Since all of the data belongs to the same partition, multiple values
+     * are sent as a single unlogged batch which is applied by the storage node as one mutation.
+     *
+     * @param scheduleId The schedule id, i.e., the partition key, of all of the data
+     * @param data The raw data to insert. Every element must have the given schedule id.
+     * @return A future that completes when the whole batch has been written
+     */
+    public StorageResultSetFuture insertRawData(int scheduleId, List<MeasurementDataNumeric> data) {
+        if (data.size() == 1) {
+            return insertRawData(data.get(0));
+        }
+        Batch batch = QueryBuilder.unloggedBatch();
+        for (MeasurementDataNumeric datum : data) {
+            batch.add(QueryBuilder.insertInto(MetricsTable.RAW.toString())
+                .value("schedule_id", scheduleId)
+                .value("time", new Date(datum.getTimestamp()))
+                .value("value", datum.getValue())
+                .using(ttl(configuration.getRawTTL())));
+        }
+        return storageSession.executeAsync(batch);
+    }
+
     public StorageResultSetFuture insert1HourData(AggregateNumericMetric metric) {
         BoundStatement statement = insertOneHourData.bind(metric.getScheduleId(), new Date(metric.getTimestamp()),
             metric.getAvg(), metric.getMax(), metric.getMin());
@@ -187,33 +282,76 @@ public class MetricsDAO {
         return storageSession.executeAsync(statement);
     }
 
+    /**
+     * Writes, or overwrites, the raw data block of a schedule and time slice.
+     *
+     * @param data The block, encoded with {@link org.rhq.server.metrics.domain.RawDataBlock}
+     */
+    public StorageResultSetFuture insertRawBlock(int scheduleId, long timeSlice, ByteBuffer data) {
+        BoundStatement statement = insertRawBlock.bind(scheduleId, new Date(timeSlice), data);
+        return storageSession.executeAsync(statement);
+    }
+
+    /**
+     * The result set has the columns schedule_id, time_slice, and data. It is empty if there is no block for the time
+     * slice.
+     */
+    public StorageResultSetFuture findRawBlockAsync(int scheduleId, long timeSlice) {
+        BoundStatement statement = findRawBlock.bind(scheduleId, new Date(timeSlice));
+        return storageSession.executeAsync(statement);
+    }
+
     public List<RawNumericMetric> findRawMetrics(int scheduleId, long startTime, long endTime) {
-        RawNumericMetricMapper mapper = new RawNumericMetricMapper();
-        BoundStatement boundStatement = rawMetricsQuery.bind(scheduleId, new Date(startTime), new Date(endTime));
-        ResultSet resultSet = storageSession.execute(boundStatement);
+        RawNumericMetricMapper mapper = new RawNumericMetricMapper(startTime, endTime);
+        ResultSet resultSet = storageSession.execute(bindRawMetricsQuery(scheduleId, startTime, endTime));
 
         return mapper.mapAll(resultSet);
     }
 
+    /**
+     * With {@link MetricsConfiguration#isRawBlockStorage() block storage} the rows are raw data blocks. Blocks at
+     * either end of the time range can hold data outside of it, so the result set should be mapped with a
+     * {@link RawNumericMetricMapper#RawNumericMetricMapper(long, long) mapper} for the same time range.
+     */
     public ResultSet findRawMetricsSync(int scheduleId, long startTime, long endTime) {
-        BoundStatement boundStatement = rawMetricsQuery.bind(scheduleId, new Date(startTime), new Date(endTime));
-        return storageSession.execute(boundStatement);
+        return storageSession.execute(bindRawMetricsQuery(scheduleId, startTime, endTime));
     }
 
+    /**
+     * @see #findRawMetricsSync(int, long, long)
+     */
     public StorageResultSetFuture findRawMetricsAsync(int scheduleId, long startTime, long endTime) {
-        BoundStatement boundStatement = rawMetricsQuery.bind(scheduleId, new Date(startTime), new Date(endTime));
-        return storageSession.executeAsync(boundStatement);
+        return storageSession.executeAsync(bindRawMetricsQuery(scheduleId, startTime, endTime));
+    }
+
+    private BoundStatement bindRawMetricsQuery(int scheduleId, long startTime, long endTime) {
+        if (configuration.isRawBlockStorage()) {
+            long firstTimeSlice = startTime - configuration.getRawTimeSliceDuration().getMillis();
+            return rawBlocksQuery.bind(scheduleId, new Date(firstTimeSlice), new Date(endTime));
+        }
+        return rawMetricsQuery.bind(scheduleId, new Date(startTime), new Date(endTime));
     }
 
     public RawNumericMetric findLatestRawMetric(int scheduleId) {
         RawNumericMetricMapper mapper = new RawNumericMetricMapper();
-        BoundStatement boundStatement = findLatestRawMetric.bind(scheduleId);
+        PreparedStatement query = configuration.isRawBlockStorage() ? findLatestRawBlock : findLatestRawMetric;
+        BoundStatement boundStatement = query.bind(scheduleId);
         ResultSet resultSet = storageSession.execute(boundStatement);
 
         return mapper.mapOne(resultSet);
     }
 
-    public Iterable<RawNumericMetric> findRawMetrics(List<Integer> scheduleIds, long startTime, long endTime) {
+    public Iterable<RawNumericMetric> findRawMetrics(List<Integer> scheduleIds, final long startTime,
+        final long endTime) {
+        if (configuration.isRawBlockStorage()) {
+            // like the statement used by ListPagedResult, the end of the time range is inclusive
+            return Iterables.concat(Iterables.transform(scheduleIds, new Function<Integer, List<RawNumericMetric>>() {
+                @Override
+                public List<RawNumericMetric> apply(Integer scheduleId) {
+                    return findRawMetrics(scheduleId, startTime, endTime + 1);
+                }
+            }));
+        }
         return new ListPagedResult<RawNumericMetric>(findRawMetrics, scheduleIds, startTime, endTime,
             new RawNumericMetricMapper(), storageSession);
     }
@@ -263,6 +401,57 @@ public class MetricsDAO {
         storageSession.execute(statement);
     }
 
+    /**
+     * Stores the aggregate of a group rollup. The bucket and timestamp are taken from the given metric; its schedule
+     * id is ignored.
+     */
+    public StorageResultSetFuture insertGroupAggregate(int groupId, int definitionId, AggregateNumericMetric metric) {
+        PreparedStatement insert;
+        switch (metric.getBucket()) {
+        case ONE_HOUR:
+            insert = insertGroupOneHourData;
+            break;
+        case SIX_HOUR:
+            insert = insertGroupSixHourData;
+            break;
+        default:
+            insert = insertGroupTwentyFourHourData;
+        }
+        BoundStatement statement = insert.bind(groupId, definitionId, new Date(metric.getTimestamp()),
+            metric.getAvg(), metric.getMax(), metric.getMin());
+        return storageSession.executeAsync(statement);
+    }
+
+    public ResultSet findGroupAggregateMetrics(int groupId, int definitionId, Bucket bucket, long startTime,
+        long endTime) {
+        BoundStatement statement = findGroupAggregateMetricsByDateRange.bind(groupId, definitionId,
+            bucket.toString(), new Date(startTime), new Date(endTime));
+        return storageSession.execute(statement);
+    }
+
+    /**
+     * @return A result set with at most one row holding the member schedule ids and the valid since time of the
+     * rollup
+     */
+    public ResultSet findGroupRollup(int groupId, int definitionId) {
+        return storageSession.execute(findGroupRollup.bind(groupId, definitionId));
+    }
+
+    /**
+     * @return A result set with the group id, definition id, and member schedule ids of every group rollup
+     */
+    public ResultSet findGroupRollups() {
+        return storageSession.execute(findGroupRollups.bind());
+    }
+
+    public void insertGroupRollup(int groupId, int definitionId, Set<Integer> scheduleIds, long validSince) {
+        storageSession.execute(insertGroupRollup.bind(groupId, definitionId, scheduleIds, new Date(validSince)));
+    }
+
+    public void deleteGroupRollups(int groupId) {
+        storageSession.execute(deleteGroupRollups.bind(groupId));
+    }
+
     public ResultSet checkLiveness(String keyspace) throws QueryTimeoutException, NoHostAvailableException {
         BoundStatement statement = aliveCheck.bind(keyspace);
         return storageSession.executeDirect(statement);
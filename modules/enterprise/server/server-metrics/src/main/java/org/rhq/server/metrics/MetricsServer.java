@@ -25,17 +25,28 @@
 
 package org.rhq.server.metrics;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
 import com.google.common.base.Stopwatch;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
@@ -53,7 +64,6 @@ import org.rhq.core.domain.measurement.composite.MeasurementDataNumericHighLowCo
 import org.rhq.core.util.exception.ThrowableUtil;
 import org.rhq.server.metrics.aggregation.AggregationManager;
 import org.rhq.server.metrics.domain.AggregateNumericMetric;
-import org.rhq.server.metrics.domain.AggregateNumericMetricMapper;
 import org.rhq.server.metrics.domain.Bucket;
 import org.rhq.server.metrics.domain.IndexBucket;
 import org.rhq.server.metrics.domain.RawNumericMetric;
@@ -69,6 +79,14 @@ public class MetricsServer {
     private static final int RAW_DATA_AGE_LIMIT_MAX = 5;
     private static final int QUEUE_SIZE = 200000;
 
+    private static final int SPILL_SEGMENT_RECORDS = 128 * 1024;
+
+    private static final long SPILL_REPLAY_INTERVAL = 30;
+
+    private static final int SPILL_REPLAY_CONCURRENCY = 4;
+
+    private static final int RAW_BLOCK_FLUSH_CONCURRENCY = 50;
+
     private DateTimeService dateTimeService = new DateTimeService();
 
     private MetricsDAO dao;
@@ -82,9 +100,51 @@ public class MetricsServer {
 
     private AggregationManager aggregationManager;
 
-    private volatile BlockingQueue<MeasurementDataNumeric> numericQueue;
+    private int numConsumers = Math.max(1, Integer.parseInt(System.getProperty(
+        MetricsConstants.INGESTION_CONSUMERS, "4")));
+
+    private volatile int ingestionBatchSize = Math.max(1, Integer.parseInt(System.getProperty(
+        MetricsConstants.INGESTION_BATCH_SIZE, "500")));
+
+    private volatile NumericQueueConsumer[] numericQueueConsumers;
+
+    private volatile int groupQueryConcurrency = Math.max(1, Integer.parseInt(System.getProperty(
+        MetricsConstants.GROUP_QUERY_CONCURRENCY, "20")));
+
+    private volatile int groupRollupMinMembers = Integer.parseInt(System.getProperty(
+        MetricsConstants.GROUP_ROLLUPS_MIN_MEMBERS, "0"));
+
+    private final AtomicLong rawDataReceived = new AtomicLong();
+
+    private final AtomicLong rawDataInserted = new AtomicLong();
+
+    private final AtomicLong rawDataFailed = new AtomicLong();
+
+    private final AtomicLong rawDataDropped = new AtomicLong();
+
+    private final AtomicLong rawBatchesInserted = new AtomicLong();
+
+    private final AtomicLong indexUpdates = new AtomicLong();
+
+    private final AtomicLong rawDataSpilled = new AtomicLong();
+
+    private final AtomicLong rawDataReplayed = new AtomicLong();
+
+    private File spillDirectory = System.getProperty(MetricsConstants.SPILL_DIRECTORY) == null ? null :
+        new File(System.getProperty(MetricsConstants.SPILL_DIRECTORY));
+
+    private int spillMaxSizeMB = Integer.parseInt(System.getProperty(MetricsConstants.SPILL_MAX_SIZE_MB, "512"));
+
+    private volatile RawDataSpillLog spillLog;
 
-    private NumericQueueConsumer numericQueueConsumer;
+    private ScheduledExecutorService spillReplayer;
+
+    private long rawBlockFlushInterval = Long.parseLong(System.getProperty(MetricsConstants.RAW_BLOCK_FLUSH_INTERVAL,
+        "30"));
+
+    private volatile RawBlockBuffer rawBlocks;
+
+    private ScheduledExecutorService rawBlockFlusher;
 
     private Days rawDataAgeLimit = Days.days(Math.min(3, Integer.parseInt(
         System.getProperty("rhq.metrics.data.age-limit", "3"))));
@@ -121,10 +181,75 @@ public class MetricsServer {
         aggregationManager = new AggregationManager(dao, dateTimeService, configuration);
         invalidMetricsManager = new InvalidMetricsManager(dateTimeService, dao);
 
-        numericQueue = new ArrayBlockingQueue<MeasurementDataNumeric>(QUEUE_SIZE);
-        numericQueueConsumer = new NumericQueueConsumer();
-        numericQueueConsumer.setName("MetricsServer numericQueueConsumer");
-        numericQueueConsumer.start();
+        log.info("Starting " + numConsumers + " raw data consumers with a batch size of " + ingestionBatchSize);
+        NumericQueueConsumer[] consumers = new NumericQueueConsumer[numConsumers];
+        for (int i = 0; i < numConsumers; ++i) {
+            consumers[i] = new NumericQueueConsumer(new ArrayBlockingQueue<MeasurementDataNumeric>(
+                QUEUE_SIZE / numConsumers));
+            consumers[i].setName("MetricsServer numericQueueConsumer-" + i);
+            consumers[i].start();
+        }
+        numericQueueConsumers = consumers;
+
+        if (configuration.isRawBlockStorage()) {
+            initRawBlocks();
+        }
+        if (spillDirectory != null) {
+            initSpillLog();
+        }
+    }
+
+    private void initRawBlocks() {
+        log.info("Raw data is stored as compressed blocks, which are written every " + rawBlockFlushInterval +
+            " seconds");
+        rawBlocks = new RawBlockBuffer(dao, dateTimeService, configuration.getRawTimeSliceDuration(),
+            RAW_BLOCK_FLUSH_CONCURRENCY);
+        rawBlockFlusher = Executors.newSingleThreadScheduledExecutor(new StorageClientThreadFactory(
+            "RawBlockFlush"));
+        rawBlockFlusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    rawBlocks.flush();
+                } catch (Throwable t) {
+                    log.warn("Failed to write raw data blocks: " + ThrowableUtil.getRootMessage(t));
+                }
+            }
+        }, rawBlockFlushInterval, rawBlockFlushInterval, TimeUnit.SECONDS);
+    }
+
+    private void initSpillLog() {
+        try {
+            long segmentSize = (long) SPILL_SEGMENT_RECORDS * RawDataSpillLog.RECORD_SIZE;
+            int maxSegments = (int) Math.max(2, spillMaxSizeMB * 1024L * 1024L / segmentSize);
+            spillLog = new RawDataSpillLog(spillDirectory, SPILL_SEGMENT_RECORDS, maxSegments);
+        } catch (IOException e) {
+            log.error("Failed to open the raw data spill log in " + spillDirectory + ". Raw data that cannot be " +
+                "written to storage will only be kept in memory.", e);
+            return;
+        }
+        log.info("Raw data that cannot be written to storage will be spilled to " + spillDirectory);
+        spillReplayer = Executors.newSingleThreadScheduledExecutor(new StorageClientThreadFactory(
+            "RawDataSpillReplay"));
+        spillReplayer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    replaySpilledData();
+                } catch (Throwable t) {
+                    log.warn("Failed to replay spilled raw data: " + ThrowableUtil.getRootMessage(t));
+                }
+            }
+        }, SPILL_REPLAY_INTERVAL, SPILL_REPLAY_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param spillDirectory The directory of the local log to which raw data is spilled when it cannot be written to
+     * storage. Must be set before {@link #init()}; when null, which is the default unless the
+     * {@link MetricsConstants#SPILL_DIRECTORY} system property is set, data is only retried from memory.
+     */
+    public void setSpillDirectory(File spillDirectory) {
+        this.spillDirectory = spillDirectory;
     }
 
     /**
@@ -138,19 +263,69 @@ public class MetricsServer {
         return aggregationManager;
     }
 
+    public void setIngestionConsumers(int numConsumers) {
+        if (numericQueueConsumers != null) {
+            throw new IllegalStateException("The number of consumers cannot be changed after the server is started");
+        }
+        this.numConsumers = Math.max(1, numConsumers);
+    }
+
+    /**
+     * @param groupQueryConcurrency The maximum number of per schedule queries that a single group query keeps in
+     * flight against the storage cluster
+     */
+    public void setGroupQueryConcurrency(int groupQueryConcurrency) {
+        if (groupQueryConcurrency < 1) {
+            throw new IllegalArgumentException("The group query concurrency must be at least 1");
+        }
+        this.groupQueryConcurrency = groupQueryConcurrency;
+    }
+
+    /**
+     * @param groupRollupMinMembers The minimum number of member schedules a group must have for its data to be read
+     * from pre-computed group rollups. Zero or less disables group rollups.
+     */
+    public void setGroupRollupMinMembers(int groupRollupMinMembers) {
+        this.groupRollupMinMembers = groupRollupMinMembers;
+    }
+
+    public void setIngestionBatchSize(int ingestionBatchSize) {
+        this.ingestionBatchSize = Math.max(1, ingestionBatchSize);
+    }
+
     public void shutdown() {
-        numericQueueConsumer.shutdown();
-        try {
-            numericQueueConsumer.join(); // Lets wait for it to finish before we continue..
-        } catch (InterruptedException e) {
-            log.warn("Potential data loss while waiting for the queue to empty, ", e);
+        for (NumericQueueConsumer consumer : numericQueueConsumers) {
+            consumer.shutdown();
+        }
+        for (NumericQueueConsumer consumer : numericQueueConsumers) {
+            try {
+                consumer.join(); // Lets wait for it to finish before we continue..
+            } catch (InterruptedException e) {
+                log.warn("Potential data loss while waiting for the queue to empty, ", e);
+            }
+        }
+        if (rawBlockFlusher != null) {
+            rawBlockFlusher.shutdownNow();
+            flushRawBlocks();
         }
         aggregationManager.shutdown();
         invalidMetricsManager.shutdown();
+        if (spillReplayer != null) {
+            spillReplayer.shutdownNow();
+        }
+        if (spillLog != null) {
+            spillLog.close();
+        }
     }
 
     public RawNumericMetric findLatestValueForResource(int scheduleId) {
         log.debug("Querying for most recent raw metrics for [scheduleId: " + scheduleId + "]");
+        if (rawBlocks != null) {
+            RawNumericMetric latest = rawBlocks.findLatest(scheduleId);
+            if (latest != null) {
+                return latest;
+            }
+        }
         return dao.findLatestRawMetric(scheduleId);
     }
 
@@ -201,9 +376,53 @@ public class MetricsServer {
             return createRawComposites(metrics, beginTime, endTime, numberOfBuckets);
         }
         Bucket bucket = getBucket(begin);
-        List<AggregateNumericMetric> metrics = loadMetrics(scheduleIds, beginTime, endTime, bucket);
+        final Buckets buckets = new Buckets(beginTime, endTime, numberOfBuckets);
+        boolean loaded = foldAggregateMetrics(scheduleIds, beginTime, endTime, bucket, new AggregateMetricHandler() {
+            @Override
+            public void add(long timestamp, double avg, double min, double max) {
+                buckets.insert(timestamp, avg, min, max);
+            }
+        });
 
-        return createComposites(metrics, beginTime, endTime, numberOfBuckets);
+        if (!loaded) {
+            return createComposites(new Buckets(beginTime, endTime, numberOfBuckets));
+        }
+        return createComposites(buckets);
+    }
+
+    /**
+     * Same as {@link #findDataForGroup(List, long, long, int)} except that the data of a sufficiently large group
+     * is read from its pre-computed rollup when one covers the requested range.
+     * <p>
+     * This is not a read-only call. Group rollups are registered by the queries themselves: the first query of a
+     * group with at least {@link #setGroupRollupMinMembers(int) groupRollupMinMembers} members, and the first query
+     * after its membership changed, stores a new rollup for the group and definition in the storage cluster. That
+     * query, and every query until the rollup covers the requested range, reads the member schedules instead. A
+     * failure to look up or register the rollup is logged and the member schedules are read.
+     * </p>
+     *
+     * @see #setGroupRollupMinMembers(int)
+     */
+    public List<MeasurementDataNumericHighLowComposite> findDataForGroup(int groupId, int definitionId,
+        List<Integer> scheduleIds, long beginTime, long endTime, int numberOfBuckets) {
+        DateTime begin = new DateTime(beginTime);
+        if (!dateTimeService.isInRawDataRange(begin)) {
+            Bucket bucket = getBucket(begin);
+            if (useGroupRollup(groupId, definitionId, scheduleIds, beginTime, bucket)) {
+                final Buckets buckets = new Buckets(beginTime, endTime, numberOfBuckets);
+                boolean loaded = foldGroupRollup(groupId, definitionId, beginTime, endTime, bucket,
+                    new AggregateMetricHandler() {
+                        @Override
+                        public void add(long timestamp, double avg, double min, double max) {
+                            buckets.insert(timestamp, avg, min, max);
+                        }
+                    });
+                if (loaded) {
+                    return createComposites(buckets);
+                }
+            }
+        }
+        return findDataForGroup(scheduleIds, beginTime, endTime, numberOfBuckets);
     }
 
     public AggregateNumericMetric getSummaryAggregate(int scheduleId, long beginTime, long endTime) {
@@ -242,7 +461,7 @@ public class MetricsServer {
 
             if (dateTimeService.isInRawDataRange(begin)) {
                 queryFuture = dao.findRawMetricsAsync(scheduleId, beginTime, endTime);
-                return Futures.transform(queryFuture, new ComputeRawAggregate(beginTime));
+                return Futures.transform(queryFuture, new ComputeRawAggregate(beginTime, endTime));
             }
             Bucket bucket = getBucket(begin);
             queryFuture = dao.findAggregateMetricsAsync(scheduleId, bucket, beginTime, endTime);
@@ -266,9 +485,12 @@ public class MetricsServer {
                 return calculateAggregatedRaw(metrics, beginTime);
             }
             Bucket bucket = getBucket(begin);
-            List<AggregateNumericMetric> metrics = loadMetrics(scheduleIds, beginTime, endTime, bucket);
+            SummaryAggregateHandler summary = new SummaryAggregateHandler();
+            if (!foldAggregateMetrics(scheduleIds, beginTime, endTime, bucket, summary)) {
+                summary = new SummaryAggregateHandler();
+            }
 
-            return calculateAggregate(metrics, beginTime, bucket);
+            return summary.toAggregate(beginTime, bucket);
         } finally {
             stopwatch.stop();
             if (log.isDebugEnabled()) {
@@ -279,24 +501,223 @@ public class MetricsServer {
         }
     }
 
-    private List<AggregateNumericMetric> loadMetrics(List<Integer> scheduleIds, long begin, long end, Bucket bucket) {
-        List<StorageResultSetFuture> futures = new ArrayList<StorageResultSetFuture>(scheduleIds.size());
-        for (Integer scheduleId : scheduleIds) {
-            futures.add(dao.findAggregateMetricsAsync(scheduleId, bucket, begin, end));
+    /**
+     * Same as {@link #getSummaryAggregate(List, long, long)} except that the data of a sufficiently large group is
+     * read from its pre-computed rollup when one covers the requested range.
+     * <p>
+     * This is not a read-only call. Group rollups are registered by the queries themselves: the first query of a
+     * group with at least {@link #setGroupRollupMinMembers(int) groupRollupMinMembers} members, and the first query
+     * after its membership changed, stores a new rollup for the group and definition in the storage cluster. That
+     * query, and every query until the rollup covers the requested range, reads the member schedules instead. A
+     * failure to look up or register the rollup is logged and the member schedules are read.
+     * </p>
+     *
+     * @see #setGroupRollupMinMembers(int)
+     */
+    public AggregateNumericMetric getSummaryAggregate(int groupId, int definitionId, List<Integer> scheduleIds,
+        long beginTime, long endTime) {
+        DateTime begin = new DateTime(beginTime);
+        if (!dateTimeService.isInRawDataRange(begin)) {
+            Bucket bucket = getBucket(begin);
+            if (useGroupRollup(groupId, definitionId, scheduleIds, beginTime, bucket)) {
+                SummaryAggregateHandler summary = new SummaryAggregateHandler();
+                if (foldGroupRollup(groupId, definitionId, beginTime, endTime, bucket, summary)) {
+                    return summary.toAggregate(beginTime, bucket);
+                }
+            }
+        }
+        return getSummaryAggregate(scheduleIds, beginTime, endTime);
+    }
+
+    /**
+     * Removes the rollups of the group so that its data is read from the member schedules until the rollups have been
+     * rebuilt. This needs to be called whenever the group membership changes.
+     */
+    public void invalidateGroupRollups(int groupId) {
+        dao.deleteGroupRollups(groupId);
+    }
+
+    /**
+     * A group rollup is registered the first time a large enough group is queried, and it is only maintained for the
+     * time slices aggregated after that. If the registered members no longer match the current ones, the rollup is
+     * registered again which discards everything computed so far.
+     */
+    private boolean useGroupRollup(int groupId, int definitionId, List<Integer> scheduleIds, long beginTime,
+        Bucket bucket) {
+        int minMembers = groupRollupMinMembers;
+        if (minMembers < 1 || scheduleIds.size() < minMembers) {
+            return false;
         }
-        ListenableFuture<List<ResultSet>> resultSetsFuture = Futures.successfulAsList(futures);
         try {
-            List<ResultSet> resultSets = resultSetsFuture.get();
-            AggregateNumericMetricMapper mapper = new AggregateNumericMetricMapper();
-            List<AggregateNumericMetric> metrics = new ArrayList<AggregateNumericMetric>();
-            for (ResultSet resultSet : resultSets) {
-                metrics.addAll(mapper.mapAll(resultSet));
+            Set<Integer> members = new HashSet<Integer>(scheduleIds);
+            Row rollup = dao.findGroupRollup(groupId, definitionId).one();
+            if (rollup == null || !members.equals(rollup.getSet(0, Integer.class))) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Registering rollup for [groupId: " + groupId + ", definitionId: " + definitionId +
+                        "] with " + members.size() + " members");
+                }
+                dao.insertGroupRollup(groupId, definitionId, members, dateTimeService.nowInMillis());
+                return false;
             }
-            return metrics;
+            return beginTime >= getTimeSlice(rollup.getDate(1).getTime(), bucket);
         } catch (Exception e) {
+            log.warn("Failed to look up rollup for [groupId: " + groupId + ", definitionId: " + definitionId +
+                "]: " + ThrowableUtil.getRootMessage(e));
+            return false;
+        }
+    }
+
+    private long getTimeSlice(long timestamp, Bucket bucket) {
+        switch (bucket) {
+        case ONE_HOUR:
+            return dateTimeService.get1HourTimeSlice(new DateTime(timestamp)).getMillis();
+        case SIX_HOUR:
+            return dateTimeService.get6HourTimeSlice(timestamp).getMillis();
+        default:
+            return dateTimeService.get24HourTimeSlice(timestamp).getMillis();
+        }
+    }
+
+    private boolean foldGroupRollup(int groupId, int definitionId, long begin, long end, Bucket bucket,
+        AggregateMetricHandler handler) {
+        try {
+            foldResultSet(dao.findGroupAggregateMetrics(groupId, definitionId, bucket, begin, end), bucket, handler,
+                false);
+            return true;
+        } catch (Exception e) {
+            log.warn("There was an error while fetching " + bucket + " rollup data for [groupId: " + groupId +
+                ", definitionId: " + definitionId + "]: " + ThrowableUtil.getRootMessage(e));
+            return false;
+        }
+    }
+
+    /**
+     * Queries the aggregate metrics of each schedule and passes them to the handler as the result sets come back,
+     * without first collecting the rows of all schedules. At most {@link #setGroupQueryConcurrency(int)} queries are in
+     * flight at any time, which bounds both the load put on the storage cluster and the number of result sets held in
+     * memory. The handler is invoked by one thread at a time. Invalid metrics are excluded and submitted for
+     * recomputation.
+     *
+     * @return false if any of the queries failed, in which case the handler has only seen part of the data
+     */
+    private boolean foldAggregateMetrics(List<Integer> scheduleIds, long begin, long end, final Bucket bucket,
+        final AggregateMetricHandler handler) {
+        final int concurrency = groupQueryConcurrency;
+        final Semaphore permits = new Semaphore(concurrency);
+        final AtomicBoolean failed = new AtomicBoolean();
+
+        try {
+            for (final Integer scheduleId : scheduleIds) {
+                permits.acquire();
+                if (failed.get()) {
+                    // no point in issuing more queries, the results will be discarded
+                    permits.release();
+                    break;
+                }
+                StorageResultSetFuture queryFuture = dao.findAggregateMetricsAsync(scheduleId, bucket, begin, end);
+                Futures.addCallback(queryFuture, new FutureCallback<ResultSet>() {
+                    @Override
+                    public void onSuccess(ResultSet resultSet) {
+                        try {
+                            foldResultSet(resultSet, bucket, handler, true);
+                        } catch (Throwable t) {
+                            failed.set(true);
+                            log.warn("Failed to process " + bucket + " data for [scheduleId: " + scheduleId + "]", t);
+                        } finally {
+                            permits.release();
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        failed.set(true);
+                        permits.release();
+                        log.warn("There was an error while fetching " + bucket + " data for [scheduleId: " +
+                            scheduleId + "]: " + ThrowableUtil.getRootMessage(t));
+                    }
+                });
+            }
+            // wait for the queries that are still in flight
+            permits.acquire(concurrency);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted while fetching " + bucket + " data for {scheduleIds: " + scheduleIds +
+                ", beginTime: " + begin + ", endTime: " + end + "}");
+            return false;
+        }
+
+        if (failed.get()) {
             log.warn("There was an error while fetching " + bucket + " data for {scheduleIds: " + scheduleIds +
-                ", beginTime: " + begin + ", endTime: " + end + "}", e);
-            return Collections.emptyList();
+                ", beginTime: " + begin + ", endTime: " + end + "}");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param recompute Whether invalid metrics should be submitted for recomputation. Group rollups cannot be
+     * recomputed that way, their invalid metrics are only excluded.
+     */
+    private void foldResultSet(ResultSet resultSet, Bucket bucket, AggregateMetricHandler handler,
+        boolean recompute) {
+        // columns are schedule_id (or group_id), bucket, time, avg, max, min
+        synchronized (handler) {
+            for (Row row : resultSet) {
+                long timestamp = row.getDate(2).getTime();
+                double avg = row.getDouble(3);
+                double max = row.getDouble(4);
+                double min = row.getDouble(5);
+
+                if (invalidMetricsManager.isInvalidMetric(avg, min, max)) {
+                    if (!recompute) {
+                        continue;
+                    }
+                    AggregateNumericMetric metric = new AggregateNumericMetric(row.getInt(0), bucket, avg, min, max,
+                        timestamp);
+                    log.warn("The " + bucket + " metric " + metric + " is invalid. It will be excluded from " +
+                        "the results sent to the client and we will attempt to recompute the metric.");
+                    invalidMetricsManager.submit(metric);
+                } else {
+                    handler.add(timestamp, avg, min, max);
+                }
+            }
+        }
+    }
+
+    /**
+     * Receives the aggregate metrics read by {@link #foldAggregateMetrics(List, long, long, Bucket,
+     * AggregateMetricHandler)}.
+     */
+    private interface AggregateMetricHandler {
+        void add(long timestamp, double avg, double min, double max);
+    }
+
+    private static class SummaryAggregateHandler implements AggregateMetricHandler {
+        private double min = Double.NaN;
+        private double max = min;
+        private int count = 0;
+        private ArithmeticMeanCalculator mean = new ArithmeticMeanCalculator();
+
+        @Override
+        public void add(long timestamp, double avg, double min, double max) {
+            if (count == 0) {
+                this.min = min;
+                this.max = max;
+            }
+            if (min < this.min) {
+                this.min = min;
+            }
+            if (max > this.max) {
+                this.max = max;
+            }
+            mean.add(avg);
+            ++count;
+        }
+
+        AggregateNumericMetric toAggregate(long timestamp, Bucket bucket) {
+            // We let the caller handle setting the schedule id because in some cases we do
+            // not care about it.
+            return new AggregateNumericMetric(0, bucket, mean.getArithmeticMean(), min, max, timestamp);
         }
     }
 
@@ -344,6 +765,10 @@ public class MetricsServer {
             }
         }
 
+        return createComposites(buckets);
+    }
+
+    private List<MeasurementDataNumericHighLowComposite> createComposites(Buckets buckets) {
         List<MeasurementDataNumericHighLowComposite> data = new ArrayList<MeasurementDataNumericHighLowComposite>();
         for (int i = 0; i < buckets.getNumDataPoints(); ++i) {
             Buckets.Bucket bucket = buckets.get(i);
@@ -351,27 +776,47 @@ public class MetricsServer {
                 bucket.getMax(), bucket.getMin()));
         }
         return data;
-
     }
 
     public synchronized void addNumericData(final Set<MeasurementDataNumeric> dataSet, final FutureCallback<Void> callback) {
-        if(numericQueue.remainingCapacity() > dataSet.size()) {
-            for(final MeasurementDataNumeric data : dataSet) {
-                try {
-                    if(data != null) {
-                        numericQueue.offer(data, 1, TimeUnit.SECONDS);
-                    }
-                } catch (InterruptedException e) {
-                    // Modify the exception to include sane message telling us even the buffer is full..
-                    // and actually do something with it in MeasurementDataManagerBean ..
-                    callback.onFailure(new RuntimeException("The queue insert timed out after one second, can't finish the queue loading.", e));
-                    return;
+        NumericQueueConsumer[] consumers = numericQueueConsumers;
+        int[] required = new int[consumers.length];
+        for (MeasurementDataNumeric data : dataSet) {
+            if (data != null) {
+                ++required[partition(data.getScheduleId(), consumers.length)];
+            }
+        }
+        for (int i = 0; i < consumers.length; ++i) {
+            if (required[i] > 0 && consumers[i].queue.remainingCapacity() <= required[i]) {
+                int spilled = spill(dataSet);
+                if (spilled >= 0) {
+                    rawDataReceived.addAndGet(spilled);
+                    callback.onSuccess(null);
+                } else {
+                    callback.onFailure(new RuntimeException("The server is overloaded, queue is full."));
                 }
+                return;
             }
-            callback.onSuccess(null);
-        } else {
-            callback.onFailure(new RuntimeException("The server is overloaded, queue is full."));
         }
+        for(final MeasurementDataNumeric data : dataSet) {
+            try {
+                if(data != null) {
+                    consumers[partition(data.getScheduleId(), consumers.length)].queue.offer(data, 1,
+                        TimeUnit.SECONDS);
+                    rawDataReceived.incrementAndGet();
+                }
+            } catch (InterruptedException e) {
+                // Modify the exception to include sane message telling us even the buffer is full..
+                // and actually do something with it in MeasurementDataManagerBean ..
+                callback.onFailure(new RuntimeException("The queue insert timed out after one second, can't finish the queue loading.", e));
+                return;
+            }
+        }
+        callback.onSuccess(null);
+    }
+
+    static int partition(int scheduleId, int numPartitions) {
+        return (scheduleId & Integer.MAX_VALUE) % numPartitions;
     }
 
     /**
@@ -383,9 +828,26 @@ public class MetricsServer {
      * for subsequently computing baselines.
      */
     public Iterable<AggregateNumericMetric> calculateAggregates() {
+        if (rawBlocks != null) {
+            // the raw data of the time slices to aggregate has to be in storage
+            flushRawBlocks();
+        }
         return aggregationManager.run();
     }
 
+    /**
+     * @return false if some of the buffered raw data blocks could not be written
+     */
+    private boolean flushRawBlocks() {
+        try {
+            return rawBlocks.flush();
+        } catch (InterruptedException e) {
+            log.warn("Interrupted while writing raw data blocks");
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
     private AggregateNumericMetric calculateAggregatedRaw(Iterable<RawNumericMetric> rawMetrics, long timestamp) {
         double min = Double.NaN;
         double max = min;
@@ -441,25 +903,304 @@ public class MetricsServer {
     }
 
     public int getQueueAvailableCapacity() {
-        return this.numericQueue.remainingCapacity();
+        int capacity = 0;
+        for (NumericQueueConsumer consumer : numericQueueConsumers) {
+            capacity += consumer.queue.remainingCapacity();
+        }
+        return capacity;
+    }
+
+    public int getQueueSize() {
+        int size = 0;
+        for (NumericQueueConsumer consumer : numericQueueConsumers) {
+            size += consumer.queue.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return The number of raw data points accepted into the queues since the server was started
+     */
+    public long getRawDataReceivedCount() {
+        return rawDataReceived.get();
+    }
+
+    /**
+     * @return The number of raw data points successfully written to the storage cluster
+     */
+    public long getRawDataInsertedCount() {
+        if (rawBlocks != null) {
+            return rawDataInserted.get() + rawBlocks.getDataWritten();
+        }
+        return rawDataInserted.get();
     }
 
+    /**
+     * @return The number of raw data points whose writes failed. Failed data is spilled, or put back on the queue when
+     * there is no spill log, so this does not necessarily mean the data is lost.
+     */
+    public long getRawDataFailedCount() {
+        return rawDataFailed.get();
+    }
+
+    /**
+     * @return The number of raw data points that were discarded because they failed to be written and could neither be
+     * spilled nor put back on the queue
+     */
+    public long getRawDataDroppedCount() {
+        return rawDataDropped.get();
+    }
+
+    public long getRawBatchesInsertedCount() {
+        return rawBatchesInserted.get();
+    }
+
+    public long getRawIndexUpdatesCount() {
+        return indexUpdates.get();
+    }
+
+    /**
+     * @return The number of raw data points appended to the spill log because they could not be written to storage
+     * or queued
+     */
+    public long getRawDataSpilledCount() {
+        return rawDataSpilled.get();
+    }
+
+    /**
+     * @return The number of spilled raw data points that have been written to storage
+     */
+    public long getRawDataReplayedCount() {
+        return rawDataReplayed.get();
+    }
+
+    /**
+     * @return The number of spilled raw data points that still need to be written to storage
+     */
+    public long getRawDataSpillPending() {
+        RawDataSpillLog spillLog = this.spillLog;
+        return spillLog == null ? 0 : spillLog.getPendingRecords();
+    }
+
+    /**
+     * Appends the data to the spill log.
+     *
+     * @return the number of data points spilled, which leaves out nulls and data without a value, or -1 if there is no
+     * spill log, it could not be written to or it is full, in which case the caller still has to deal with all of the
+     * data. Data that was appended before the spill log filled up is written again when the caller retries it, which
+     * is harmless since raw data inserts are idempotent.
+     */
+    private int spill(Collection<MeasurementDataNumeric> data) {
+        RawDataSpillLog spillLog = this.spillLog;
+        if (spillLog == null) {
+            return -1;
+        }
+        List<MeasurementDataNumeric> spilled = new ArrayList<MeasurementDataNumeric>(data.size());
+        for (MeasurementDataNumeric datum : data) {
+            if (datum != null && datum.getValue() != null) {
+                spilled.add(datum);
+            }
+        }
+        try {
+            int appended = spillLog.append(spilled);
+            rawDataSpilled.addAndGet(appended);
+            if (appended < spilled.size()) {
+                log.warn("The raw data spill log is full. " + (spilled.size() - appended) + " of " + spilled.size() +
+                    " data points could not be spilled.");
+                return -1;
+            }
+            return appended;
+        } catch (IOException e) {
+            log.warn("Failed to spill raw data: " + ThrowableUtil.getRootMessage(e));
+            return -1;
+        }
+    }
+
+    /**
+     * Writes the spilled data back to storage, oldest segment first. Each segment is deleted only after all of its
+     * data has been written. The replay stops at the first failure, which most likely means that storage is still
+     * not available, and is tried again later. It also holds back while the ingestion queues are more than half full
+     * so that it does not compete with live data.
+     */
+    private void replaySpilledData() throws IOException, InterruptedException {
+        if (spillLog.getPendingRecords() == 0) {
+            spillLog.force();
+            return;
+        }
+        for (File segment : spillLog.seal()) {
+            List<MeasurementDataNumeric> data = spillLog.read(segment);
+            Stopwatch stopwatch = Stopwatch.createStarted();
+            if (!replay(data) || (rawBlocks != null && !flushRawBlocks())) {
+                log.info("Failed to replay spilled raw data from " + segment + ". It will be retried in " +
+                    SPILL_REPLAY_INTERVAL + " seconds.");
+                return;
+            }
+            spillLog.replayed(segment, data.size());
+            log.info("Replayed " + data.size() + " spilled raw data points from " + segment + " in " +
+                stopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms");
+        }
+    }
+
+    private boolean replay(List<MeasurementDataNumeric> data) throws InterruptedException {
+        Map<Integer, List<MeasurementDataNumeric>> dataBySchedule =
+            new LinkedHashMap<Integer, List<MeasurementDataNumeric>>();
+        for (MeasurementDataNumeric datum : data) {
+            DateTime timeSlice = dateTimeService.getTimeSlice(new DateTime(datum.getTimestamp()),
+                configuration.getRawTimeSliceDuration());
+            if (Days.daysBetween(timeSlice, dateTimeService.now()).isGreaterThan(rawDataAgeLimit)) {
+                continue;
+            }
+            List<MeasurementDataNumeric> scheduleData = dataBySchedule.get(datum.getScheduleId());
+            if (scheduleData == null) {
+                scheduleData = new ArrayList<MeasurementDataNumeric>();
+                dataBySchedule.put(datum.getScheduleId(), scheduleData);
+            }
+            scheduleData.add(datum);
+        }
+
+        final Semaphore permits = new Semaphore(SPILL_REPLAY_CONCURRENCY);
+        final AtomicBoolean failed = new AtomicBoolean();
+        int batchSize = ingestionBatchSize;
+        for (Map.Entry<Integer, List<MeasurementDataNumeric>> entry : dataBySchedule.entrySet()) {
+            int scheduleId = entry.getKey();
+            List<MeasurementDataNumeric> scheduleData = entry.getValue();
+            for (int i = 0; i < scheduleData.size(); i += batchSize) {
+                final List<MeasurementDataNumeric> batch = scheduleData.subList(i,
+                    Math.min(scheduleData.size(), i + batchSize));
+                waitForIngestionCapacity();
+                permits.acquire();
+                if (failed.get()) {
+                    permits.release();
+                    break;
+                }
+                Set<Long> timeSlices = new HashSet<Long>();
+                for (MeasurementDataNumeric datum : batch) {
+                    timeSlices.add(dateTimeService.getTimeSlice(new DateTime(datum.getTimestamp()),
+                        configuration.getRawTimeSliceDuration()).getMillis());
+                }
+                List<StorageResultSetFuture> futures = new ArrayList<StorageResultSetFuture>(timeSlices.size() + 1);
+                if (rawBlocks != null) {
+                    rawBlocks.add(scheduleId, batch);
+                } else {
+                    futures.add(dao.insertRawData(scheduleId, batch));
+                }
+                for (Long timeSlice : timeSlices) {
+                    futures.add(dao.updateIndex(IndexBucket.RAW, timeSlice, scheduleId));
+                }
+                Futures.addCallback(Futures.allAsList(futures), new FutureCallback<List<ResultSet>>() {
+                    @Override
+                    public void onSuccess(List<ResultSet> result) {
+                        rawDataReplayed.addAndGet(batch.size());
+                        permits.release();
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        failed.set(true);
+                        permits.release();
+                        if (log.isDebugEnabled()) {
+                            log.debug("An error occurred while replaying spilled raw data", t);
+                        }
+                    }
+                }, tasks);
+            }
+            if (failed.get()) {
+                break;
+            }
+        }
+        permits.acquire(SPILL_REPLAY_CONCURRENCY);
+        return !failed.get();
+    }
+
+    private void waitForIngestionCapacity() throws InterruptedException {
+        int halfCapacity = QUEUE_SIZE / numericQueueConsumers.length / 2;
+        while (true) {
+            boolean busy = false;
+            for (NumericQueueConsumer consumer : numericQueueConsumers) {
+                if (consumer.queue.remainingCapacity() < halfCapacity) {
+                    busy = true;
+                    break;
+                }
+            }
+            if (!busy) {
+                return;
+            }
+            Thread.sleep(1000);
+        }
+    }
+
+    /**
+     * Drains its own partition of the incoming raw data in batches. Data is partitioned by schedule id so that all of
+     * the data for a schedule is always handled by the same consumer. Each batch is grouped by schedule id, i.e., the
+     * raw_metrics partition key, and written with one request per schedule. The raw index is updated only once per
+     * schedule and time slice.
+     */
     private class NumericQueueConsumer extends Thread {
         private final MeasurementDataNumeric KILL_SIGNAL = new MeasurementDataNumeric(Long.MIN_VALUE, Integer.MIN_VALUE, Double.valueOf(Double.MIN_VALUE));
 
+        private final BlockingQueue<MeasurementDataNumeric> queue;
+
+        /**
+         * Schedule ids for which the index has already been updated, keyed by time slice. Only the current time
+         * slice is cached. Index entries of earlier time slices can be deleted by aggregation at any time, so late
+         * data always updates the index.
+         */
+        private final Map<Long, Set<Integer>> indexedSchedules = new ConcurrentHashMap<Long, Set<Integer>>();
+
+        public NumericQueueConsumer(BlockingQueue<MeasurementDataNumeric> queue) {
+            this.queue = queue;
+        }
+
         @Override
         public void run() {
+            List<MeasurementDataNumeric> batch = new ArrayList<MeasurementDataNumeric>(ingestionBatchSize);
             while(true) {
-                final MeasurementDataNumeric data;
+                boolean killed = false;
                 try {
-                    data = numericQueue.take();
-                    if(data == KILL_SIGNAL) {
-                        return;
-                    }
+                    batch.add(queue.take());
+                    queue.drainTo(batch, ingestionBatchSize - 1);
                 } catch (InterruptedException e) {
                     // We still keep getting interrupted.. we really need to die
                     return;
                 }
+                for (int i = 0; i < batch.size(); ++i) {
+                    if (batch.get(i) == KILL_SIGNAL) {
+                        batch = batch.subList(0, i);
+                        killed = true;
+                        break;
+                    }
+                }
+                try {
+                    insertBatch(batch);
+                } catch (Exception e) {
+                    log.error("Failed to submit raw data inserts for " + batch.size() + " data points", e);
+                }
+                if (killed) {
+                    return;
+                }
+                batch = new ArrayList<MeasurementDataNumeric>(ingestionBatchSize);
+            }
+        }
+
+        private void insertBatch(List<MeasurementDataNumeric> batch) {
+            long currentTimeSlice = dateTimeService.getTimeSlice(dateTimeService.now(),
+                configuration.getRawTimeSliceDuration()).getMillis();
+            for (Long timeSlice : indexedSchedules.keySet()) {
+                if (timeSlice != currentTimeSlice) {
+                    indexedSchedules.remove(timeSlice);
+                }
+            }
+            Set<Integer> indexed = indexedSchedules.get(currentTimeSlice);
+            if (indexed == null) {
+                indexed = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+                indexedSchedules.put(currentTimeSlice, indexed);
+            }
+
+            Map<Integer, List<MeasurementDataNumeric>> dataBySchedule =
+                new LinkedHashMap<Integer, List<MeasurementDataNumeric>>();
+            Map<Integer, Set<Long>> timeSlicesBySchedule = new LinkedHashMap<Integer, Set<Long>>();
+
+            for (MeasurementDataNumeric data : batch) {
                 DateTime collectionTimeSlice = dateTimeService.getTimeSlice(new DateTime(data.getTimestamp()),
                         configuration.getRawTimeSliceDuration());
                 Days days = Days.daysBetween(collectionTimeSlice, dateTimeService.now());
@@ -467,31 +1208,77 @@ public class MetricsServer {
                 if (days.isGreaterThan(rawDataAgeLimit)) {
                     log.info(data + " is older than the raw data age limit of " + rawDataAgeLimit.getDays() +
                             " days. It will not be stored.");
-                } else {
-                    StorageResultSetFuture rawFuture = dao.insertRawData(data);
-                    StorageResultSetFuture indexFuture = dao.updateIndex(IndexBucket.RAW, collectionTimeSlice.getMillis(),
-                            data.getScheduleId());
-                    ListenableFuture<List<ResultSet>> insertsFuture = Futures.successfulAsList(rawFuture, indexFuture);
-                    Futures.addCallback(insertsFuture, new FutureCallback<List<ResultSet>>() {
-                        @Override
-                        public void onSuccess(List<ResultSet> result) {
-                        }
+                    continue;
+                }
+                List<MeasurementDataNumeric> scheduleData = dataBySchedule.get(data.getScheduleId());
+                if (scheduleData == null) {
+                    scheduleData = new ArrayList<MeasurementDataNumeric>();
+                    dataBySchedule.put(data.getScheduleId(), scheduleData);
+                    timeSlicesBySchedule.put(data.getScheduleId(), new HashSet<Long>());
+                }
+                scheduleData.add(data);
+                long timeSlice = collectionTimeSlice.getMillis();
+                if (timeSlice != currentTimeSlice || !indexed.contains(data.getScheduleId())) {
+                    timeSlicesBySchedule.get(data.getScheduleId()).add(timeSlice);
+                }
+            }
 
-                        @Override
-                        public void onFailure(Throwable t) {
-                            boolean offerSuccess = numericQueue.offer(data);
-                            if(!offerSuccess) {
-                                if (log.isDebugEnabled()) {
-                                    log.debug("An error occurred while inserting raw data", ThrowableUtil.getRootCause(t));
-                                } else {
-                                    log.warn("An error occurred while inserting raw data: " + ThrowableUtil.getRootMessage(t)
-                                    + ", data was: " + data);
-                                }
+            for (Map.Entry<Integer, List<MeasurementDataNumeric>> entry : dataBySchedule.entrySet()) {
+                insertScheduleData(entry.getKey(), entry.getValue(), timeSlicesBySchedule.get(entry.getKey()),
+                    currentTimeSlice, indexed);
+            }
+        }
+
+        private void insertScheduleData(final int scheduleId, final List<MeasurementDataNumeric> data,
+            final Set<Long> timeSlices, final long currentTimeSlice, final Set<Integer> indexed) {
+            List<StorageResultSetFuture> futures = new ArrayList<StorageResultSetFuture>(timeSlices.size() + 1);
+            if (rawBlocks != null) {
+                // the data is written with its block and counted as inserted then
+                rawBlocks.add(scheduleId, data);
+            } else {
+                futures.add(dao.insertRawData(scheduleId, data));
+            }
+            for (Long timeSlice : timeSlices) {
+                futures.add(dao.updateIndex(IndexBucket.RAW, timeSlice, scheduleId));
+            }
+            ListenableFuture<List<ResultSet>> insertsFuture = Futures.allAsList(futures);
+            Futures.addCallback(insertsFuture, new FutureCallback<List<ResultSet>>() {
+                @Override
+                public void onSuccess(List<ResultSet> result) {
+                    if (timeSlices.contains(currentTimeSlice)) {
+                        indexed.add(scheduleId);
+                    }
+                    if (rawBlocks == null) {
+                        rawDataInserted.addAndGet(data.size());
+                    }
+                    rawBatchesInserted.incrementAndGet();
+                    indexUpdates.addAndGet(timeSlices.size());
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    rawDataFailed.addAndGet(data.size());
+                    if (spill(data) >= 0) {
+                        if (log.isDebugEnabled()) {
+                            log.debug("An error occurred while inserting raw data. It has been spilled.",
+                                ThrowableUtil.getRootCause(t));
+                        }
+                        return;
+                    }
+                    for (MeasurementDataNumeric datum : data) {
+                        boolean offerSuccess = queue.offer(datum);
+                        if(!offerSuccess) {
+                            rawDataDropped.incrementAndGet();
+                            if (log.isDebugEnabled()) {
+                                log.debug("An error occurred while inserting raw data", ThrowableUtil.getRootCause(t));
+                            } else {
+                                log.warn("An error occurred while inserting raw data: " + ThrowableUtil.getRootMessage(t)
+                                + ", data was: " + datum);
                             }
                         }
-                    }, tasks);
+                    }
                 }
-            }
+            }, tasks);
         }
 
         /**
@@ -499,7 +1286,7 @@ public class MetricsServer {
          */
         public void shutdown() {
             try {
-                numericQueue.put(KILL_SIGNAL);
+                queue.put(KILL_SIGNAL);
             } catch (InterruptedException e) {
                 log.warn("Could not push kill signal to the numericQueue. Possible data loss.");
                 Thread.currentThread().interrupt();
@@ -0,0 +1,359 @@
+package org.rhq.server.metrics;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.datastax.driver.core.ResultSet;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.joda.time.Duration;
+
+import org.rhq.core.domain.measurement.MeasurementDataNumeric;
+import org.rhq.core.util.exception.ThrowableUtil;
+import org.rhq.server.metrics.domain.RawDataBlock;
+import org.rhq.server.metrics.domain.RawNumericMetric;
+import org.rhq.server.metrics.domain.RawNumericMetricMapper;
+
+/**
+ * Builds the {@link RawDataBlock raw data blocks} of the current time slices in memory. Blocks are written as a whole
+ * by {@link #flush()}, which overwrites the block stored for the same schedule and time slice. The first time a block
+ * is written, it is merged with the stored block, if any. That takes care of late data for time slices that are no
+ * longer held in memory as well as of data written before a restart of the server.
+ * <p>
+ * A block is held in memory until it has been written and its time slice ended more than {@link #EVICTION_DELAY}
+ * ago, so data that arrives shortly after the end of its time slice does not cause another read of the block.
+ * </p>
+ */
+class RawBlockBuffer {
+
+    private static final Log log = LogFactory.getLog(RawBlockBuffer.class);
+
+    private static final long EVICTION_DELAY = TimeUnit.MINUTES.toMillis(10);
+
+    private final MetricsDAO dao;
+
+    private final DateTimeService dateTimeService;
+
+    private final Duration timeSliceDuration;
+
+    private final int concurrency;
+
+    private final ConcurrentMap<BlockKey, Block> blocks = new ConcurrentHashMap<BlockKey, Block>();
+
+    private final AtomicLong dataWritten = new AtomicLong();
+
+    /**
+     * @param concurrency The maximum number of block reads and writes a flush keeps in flight
+     */
+    public RawBlockBuffer(MetricsDAO dao, DateTimeService dateTimeService, Duration timeSliceDuration,
+        int concurrency) {
+        this.dao = dao;
+        this.dateTimeService = dateTimeService;
+        this.timeSliceDuration = timeSliceDuration;
+        this.concurrency = Math.max(1, concurrency);
+    }
+
+    /**
+     * Adds the data of a schedule to the blocks of its time slices. A value replaces the one buffered for the same
+     * timestamp, if any.
+     */
+    public void add(int scheduleId, Collection<MeasurementDataNumeric> data) {
+        for (MeasurementDataNumeric datum : data) {
+            if (datum.getValue() == null) {
+                continue;
+            }
+            long timeSlice = dateTimeService.getTimeSlice(datum.getTimestamp(), timeSliceDuration).getMillis();
+            BlockKey key = new BlockKey(scheduleId, timeSlice);
+            Block block = getBlock(key);
+            while (!block.add(datum.getTimestamp(), datum.getValue())) {
+                // the block was evicted in the meantime
+                blocks.remove(key, block);
+                block = getBlock(key);
+            }
+        }
+    }
+
+    /**
+     * @return The latest data point buffered for the schedule in the current or the previous time slice, or null if
+     * there is none
+     */
+    public RawNumericMetric findLatest(int scheduleId) {
+        long currentTimeSlice = dateTimeService.getTimeSlice(dateTimeService.nowInMillis(), timeSliceDuration)
+            .getMillis();
+        Block block = blocks.get(new BlockKey(scheduleId, currentTimeSlice));
+        RawNumericMetric latest = block == null ? null : block.latest();
+        if (latest == null) {
+            block = blocks.get(new BlockKey(scheduleId, currentTimeSlice - timeSliceDuration.getMillis()));
+            latest = block == null ? null : block.latest();
+        }
+        return latest;
+    }
+
+    /**
+     * @return The number of blocks held in memory
+     */
+    public int size() {
+        return blocks.size();
+    }
+
+    /**
+     * @return The number of data points that have been written to storage, not counting rewrites
+     */
+    public long getDataWritten() {
+        return dataWritten.get();
+    }
+
+    /**
+     * Writes the blocks that have changed since they were last written and evicts the ones that are no longer needed.
+     * Blocks that cannot be written stay in memory and are written by the next flush. This method blocks until all
+     * of the writes have completed. Only one flush runs at a time.
+     *
+     * @return true if all of the data added before this call has been written
+     */
+    public synchronized boolean flush() throws InterruptedException {
+        long evictBefore = dateTimeService.nowInMillis() - timeSliceDuration.getMillis() - EVICTION_DELAY;
+        Flush flush = new Flush();
+        for (Block block : blocks.values()) {
+            if (!block.isDirty()) {
+                if (block.timeSlice < evictBefore && block.evict()) {
+                    blocks.remove(new BlockKey(block.scheduleId, block.timeSlice), block);
+                }
+                continue;
+            }
+            flush.permits.acquire();
+            if (block.isLoaded()) {
+                flush.write(block);
+            } else {
+                flush.load(block);
+            }
+        }
+        flush.permits.acquire(concurrency);
+
+        if (flush.failures.get() > 0) {
+            log.warn("Failed to write " + flush.failures.get() + " raw data blocks. They will be written again by " +
+                "the next flush.");
+            return false;
+        }
+        return true;
+    }
+
+    private Block getBlock(BlockKey key) {
+        Block block = blocks.get(key);
+        if (block == null) {
+            Block newBlock = new Block(key.scheduleId, key.timeSlice);
+            block = blocks.putIfAbsent(key, newBlock);
+            if (block == null) {
+                block = newBlock;
+            }
+        }
+        return block;
+    }
+
+    private class Flush {
+        final Semaphore permits = new Semaphore(concurrency);
+        final AtomicInteger failures = new AtomicInteger();
+
+        void load(final Block block) {
+            StorageResultSetFuture queryFuture = dao.findRawBlockAsync(block.scheduleId, block.timeSlice);
+            Futures.addCallback(queryFuture, new FutureCallback<ResultSet>() {
+                @Override
+                public void onSuccess(ResultSet resultSet) {
+                    try {
+                        block.merge(new RawNumericMetricMapper().mapAll(resultSet));
+                    } catch (Throwable t) {
+                        onFailure(t);
+                        return;
+                    }
+                    write(block);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    failed(block, t);
+                }
+            });
+        }
+
+        void write(final Block block) {
+            final Block.Snapshot snapshot;
+            try {
+                snapshot = block.snapshot();
+            } catch (Throwable t) {
+                failed(block, t);
+                return;
+            }
+            StorageResultSetFuture insertFuture = dao.insertRawBlock(block.scheduleId, block.timeSlice,
+                snapshot.data);
+            Futures.addCallback(insertFuture, new FutureCallback<ResultSet>() {
+                @Override
+                public void onSuccess(ResultSet resultSet) {
+                    block.written(snapshot);
+                    dataWritten.addAndGet(snapshot.unwritten);
+                    permits.release();
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    failed(block, t);
+                }
+            });
+        }
+
+        void failed(Block block, Throwable t) {
+            failures.incrementAndGet();
+            permits.release();
+            if (log.isDebugEnabled()) {
+                log.debug("Failed to write the raw data block of [scheduleId: " + block.scheduleId + ", timeSlice: " +
+                    block.timeSlice + "]: " + ThrowableUtil.getRootMessage(t));
+            }
+        }
+    }
+
+    private static class BlockKey {
+        final int scheduleId;
+        final long timeSlice;
+
+        BlockKey(int scheduleId, long timeSlice) {
+            this.scheduleId = scheduleId;
+            this.timeSlice = timeSlice;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            BlockKey that = (BlockKey) o;
+
+            return scheduleId == that.scheduleId && timeSlice == that.timeSlice;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * scheduleId + (int) (timeSlice ^ (timeSlice >>> 32));
+        }
+    }
+
+    /**
+     * The data points of a block, kept in ascending order of their timestamps.
+     */
+    private static class Block {
+        final int scheduleId;
+        final long timeSlice;
+
+        private long[] timestamps = new long[8];
+        private double[] values = new double[8];
+        private int size;
+
+        /** Incremented on every change, so that a write only cleans the block if nothing was added meanwhile */
+        private int version;
+        private int writtenVersion;
+        private int unwritten;
+
+        /** Whether the block stored for the same time slice has been merged in */
+        private boolean loaded;
+        private boolean evicted;
+
+        Block(int scheduleId, long timeSlice) {
+            this.scheduleId = scheduleId;
+            this.timeSlice = timeSlice;
+        }
+
+        /**
+         * @return false if the block has been evicted and can no longer be added to
+         */
+        synchronized boolean add(long timestamp, double value) {
+            if (evicted) {
+                return false;
+            }
+            put(timestamp, value, true);
+            ++version;
+            ++unwritten;
+            return true;
+        }
+
+        /**
+         * Adds the stored data points, the buffered ones take precedence.
+         */
+        synchronized void merge(List<RawNumericMetric> stored) {
+            for (RawNumericMetric metric : stored) {
+                put(metric.getTimestamp(), metric.getValue(), false);
+            }
+            loaded = true;
+        }
+
+        private void put(long timestamp, double value, boolean replace) {
+            int index = size > 0 && timestamp > timestamps[size - 1] ? -(size + 1) :
+                Arrays.binarySearch(timestamps, 0, size, timestamp);
+            if (index >= 0) {
+                if (replace) {
+                    values[index] = value;
+                }
+                return;
+            }
+            index = -(index + 1);
+            if (size == timestamps.length) {
+                timestamps = Arrays.copyOf(timestamps, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            System.arraycopy(timestamps, index, timestamps, index + 1, size - index);
+            System.arraycopy(values, index, values, index + 1, size - index);
+            timestamps[index] = timestamp;
+            values[index] = value;
+            ++size;
+        }
+
+        synchronized boolean isDirty() {
+            return version != writtenVersion;
+        }
+
+        synchronized boolean isLoaded() {
+            return loaded;
+        }
+
+        synchronized Snapshot snapshot() {
+            return new Snapshot(RawDataBlock.encode(timestamps, values, size), version, unwritten);
+        }
+
+        synchronized void written(Snapshot snapshot) {
+            writtenVersion = snapshot.version;
+            unwritten -= snapshot.unwritten;
+        }
+
+        synchronized boolean evict() {
+            if (isDirty()) {
+                return false;
+            }
+            evicted = true;
+            return true;
+        }
+
+        synchronized RawNumericMetric latest() {
+            return size == 0 ? null : new RawNumericMetric(scheduleId, timestamps[size - 1], values[size - 1]);
+        }
+
+        static class Snapshot {
+            final ByteBuffer data;
+            final int version;
+            final int unwritten;
+
+            Snapshot(ByteBuffer data, int version, int unwritten) {
+                this.data = data;
+                this.version = version;
+                this.unwritten = unwritten;
+            }
+        }
+    }
+
+}
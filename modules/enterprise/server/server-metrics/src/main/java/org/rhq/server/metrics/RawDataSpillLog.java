@@ -0,0 +1,328 @@
+package org.rhq.server.metrics;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.rhq.core.domain.measurement.MeasurementDataNumeric;
+
+/**
+ * A local, append-only log of raw data that could not be written to the storage cluster. The data is kept in
+ * fixed size segment files. The segment being appended to is memory-mapped, so an append is a plain memory write that
+ * survives a restart of the server process. Once sealed, a segment is never modified again; it is replayed as a whole
+ * and deleted after all of its data has been written to storage.
+ * <p>
+ * Each record holds the schedule id, timestamp, and value followed by a CRC32 of those. A zeroed or corrupt record
+ * marks the end of a segment, which takes care of segments that were being written when the server went down.
+ * Replaying a segment more than once is harmless since rewriting the same raw data is idempotent.
+ * </p>
+ */
+class RawDataSpillLog {
+
+    private static final Log log = LogFactory.getLog(RawDataSpillLog.class);
+
+    private static final int MAGIC = 0x52485153;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 16;
+
+    static final int RECORD_SIZE = 24;
+
+    private static final String SEGMENT_PREFIX = "raw-spill-";
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final File directory;
+
+    private final int segmentRecords;
+
+    private final int maxSegments;
+
+    private final CRC32 crc = new CRC32();
+
+    private final byte[] recordBytes = new byte[RECORD_SIZE - 4];
+
+    private final ByteBuffer recordBuffer = ByteBuffer.wrap(recordBytes);
+
+    private final List<File> sealedSegments = new ArrayList<File>();
+
+    /**
+     * Segments that have been replayed but could not be deleted, e.g., because the platform does not allow deleting a
+     * file that is still mapped. They are not handed out for replay again.
+     */
+    private final Set<File> replayedSegments = new HashSet<File>();
+
+    private long nextSequence;
+
+    private File activeSegment;
+
+    private RandomAccessFile activeFile;
+
+    private MappedByteBuffer activeBuffer;
+
+    private int activeRecords;
+
+    private long pendingRecords;
+
+    /**
+     * Opens the spill log in the given directory. Segments left over from a previous run are sealed and become
+     * available for replay.
+     *
+     * @param directory The directory holding the segment files, created if needed
+     * @param segmentRecords The number of records per segment
+     * @param maxSegments The maximum number of segments, including the active one. Appends fail once that many
+     * segments are full.
+     */
+    public RawDataSpillLog(File directory, int segmentRecords, int maxSegments) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create the raw data spill directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentRecords = segmentRecords;
+        this.maxSegments = Math.max(2, maxSegments);
+
+        File[] segments = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && sequenceOf(file) >= 0;
+            }
+        });
+        Arrays.sort(segments, new Comparator<File>() {
+            @Override
+            public int compare(File left, File right) {
+                long leftSequence = sequenceOf(left);
+                long rightSequence = sequenceOf(right);
+                return leftSequence < rightSequence ? -1 : (leftSequence == rightSequence ? 0 : 1);
+            }
+        });
+        for (File segment : segments) {
+            int records = countRecords(segment);
+            if (records == 0) {
+                delete(segment);
+            } else {
+                sealedSegments.add(segment);
+                pendingRecords += records;
+            }
+            nextSequence = Math.max(nextSequence, sequenceOf(segment) + 1);
+        }
+        if (pendingRecords > 0) {
+            log.info("Found " + pendingRecords + " spilled raw data points in " + sealedSegments.size() +
+                " segments in " + directory + ". They will be replayed.");
+        }
+    }
+
+    /**
+     * @return The number of records appended, which is less than the number of data points when the log is full
+     */
+    public synchronized int append(Collection<MeasurementDataNumeric> data) throws IOException {
+        int appended = 0;
+        for (MeasurementDataNumeric datum : data) {
+            if (datum.getValue() == null) {
+                continue;
+            }
+            if (activeBuffer == null || activeRecords == segmentRecords) {
+                if (!roll()) {
+                    break;
+                }
+            }
+            int scheduleId = datum.getScheduleId();
+            long timestamp = datum.getTimestamp();
+            double value = datum.getValue();
+
+            recordBuffer.clear();
+            recordBuffer.putInt(scheduleId).putLong(timestamp).putDouble(value);
+            crc.reset();
+            crc.update(recordBytes, 0, recordBytes.length);
+
+            activeBuffer.putInt(scheduleId).putLong(timestamp).putDouble(value).putInt((int) crc.getValue());
+            ++activeRecords;
+            ++pendingRecords;
+            ++appended;
+        }
+        return appended;
+    }
+
+    /**
+     * Seals the active segment, if it holds any data, so that all of the data appended so far can be replayed.
+     *
+     * @return The sealed segments in the order in which they were written
+     */
+    public synchronized List<File> seal() throws IOException {
+        if (activeRecords > 0) {
+            closeActiveSegment();
+        }
+        List<File> segments = new ArrayList<File>(sealedSegments);
+        segments.removeAll(replayedSegments);
+        return segments;
+    }
+
+    /**
+     * Flushes the active segment to disk.
+     */
+    public synchronized void force() {
+        if (activeBuffer != null) {
+            activeBuffer.force();
+        }
+    }
+
+    /**
+     * Reads back the data of a sealed segment.
+     */
+    public List<MeasurementDataNumeric> read(File segment) throws IOException {
+        List<MeasurementDataNumeric> data = new ArrayList<MeasurementDataNumeric>();
+        ByteBuffer buffer = readSegment(segment);
+        if (buffer == null) {
+            return data;
+        }
+        CRC32 checksum = new CRC32();
+        while (buffer.remaining() >= RECORD_SIZE) {
+            int start = buffer.position();
+            int scheduleId = buffer.getInt();
+            long timestamp = buffer.getLong();
+            double value = buffer.getDouble();
+            int expected = buffer.getInt();
+
+            checksum.reset();
+            checksum.update(buffer.array(), start, RECORD_SIZE - 4);
+            if ((int) checksum.getValue() != expected) {
+                // the end of the data, or a record that was being written when the server went down
+                break;
+            }
+            data.add(new MeasurementDataNumeric(timestamp, scheduleId, value));
+        }
+        return data;
+    }
+
+    /**
+     * Removes a segment once all of its data has been written to storage.
+     *
+     * @param records The number of records the segment held
+     */
+    public synchronized void replayed(File segment, int records) {
+        if (!sealedSegments.remove(segment)) {
+            return;
+        }
+        pendingRecords -= records;
+        if (!delete(segment)) {
+            sealedSegments.add(segment);
+            replayedSegments.add(segment);
+        }
+    }
+
+    /**
+     * @return The number of data points appended but not yet replayed
+     */
+    public synchronized long getPendingRecords() {
+        return pendingRecords;
+    }
+
+    public synchronized void close() {
+        if (activeBuffer != null) {
+            try {
+                closeActiveSegment();
+            } catch (IOException e) {
+                log.warn("Failed to close the active raw data spill segment " + activeSegment, e);
+            }
+        }
+    }
+
+    private boolean roll() throws IOException {
+        if (activeBuffer != null) {
+            closeActiveSegment();
+        }
+        if (sealedSegments.size() + 1 > maxSegments) {
+            return false;
+        }
+        activeSegment = new File(directory, SEGMENT_PREFIX + (nextSequence++) + SEGMENT_SUFFIX);
+        activeFile = new RandomAccessFile(activeSegment, "rw");
+        long size = HEADER_SIZE + (long) segmentRecords * RECORD_SIZE;
+        activeFile.setLength(size);
+        activeBuffer = activeFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        activeBuffer.putInt(MAGIC).putInt(VERSION).putLong(0L);
+        activeRecords = 0;
+        return true;
+    }
+
+    private void closeActiveSegment() throws IOException {
+        try {
+            activeBuffer.force();
+            if (activeRecords > 0) {
+                sealedSegments.add(activeSegment);
+            } else {
+                activeFile.close();
+                activeFile = null;
+                delete(activeSegment);
+            }
+        } finally {
+            if (activeFile != null) {
+                activeFile.close();
+            }
+            activeFile = null;
+            activeBuffer = null;
+            activeSegment = null;
+            activeRecords = 0;
+        }
+    }
+
+    private ByteBuffer readSegment(File segment) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segment, "r");
+        try {
+            if (file.length() < HEADER_SIZE) {
+                return null;
+            }
+            byte[] bytes = new byte[(int) file.length()];
+            file.readFully(bytes);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                log.warn(segment + " is not a raw data spill segment. It will be ignored.");
+                return null;
+            }
+            buffer.getLong();
+            return buffer;
+        } finally {
+            file.close();
+        }
+    }
+
+    private int countRecords(File segment) throws IOException {
+        return read(segment).size();
+    }
+
+    private static boolean delete(File segment) {
+        if (segment.delete() || !segment.exists()) {
+            return true;
+        }
+        log.warn("Failed to delete raw data spill segment " + segment + ". It will be deleted on exit.");
+        segment.deleteOnExit();
+        return false;
+    }
+
+    private static long sequenceOf(File file) {
+        String name = file.getName();
+        if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+}
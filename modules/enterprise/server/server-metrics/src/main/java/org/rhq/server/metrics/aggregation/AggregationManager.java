@@ -4,9 +4,13 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
@@ -22,6 +26,7 @@ import org.joda.time.DateTime;
 import org.rhq.server.metrics.AbortedException;
 import org.rhq.server.metrics.DateTimeService;
 import org.rhq.server.metrics.MetricsConfiguration;
+import org.rhq.server.metrics.MetricsConstants;
 import org.rhq.server.metrics.MetricsDAO;
 import org.rhq.server.metrics.StorageClientThreadFactory;
 import org.rhq.server.metrics.domain.AggregateNumericMetric;
@@ -51,6 +56,8 @@ public class AggregationManager {
         }
     };
 
+    private static final int MIN_CONCURRENCY_LIMIT = 2;
+
     private final Log log = LogFactory.getLog(AggregationManager.class);
 
     private MetricsDAO dao;
@@ -69,6 +76,20 @@ public class AggregationManager {
 
     private ThreadPoolExecutor threadPool;
 
+    /**
+     * Runs the consumers of the aggregation pipeline, see {@link #run()}. They only schedule tasks on
+     * {@link #aggregationTasks}, so they must not run on the same pool.
+     */
+    private ExecutorService pipelineTasks;
+
+    /**
+     * The number of aggregation tasks allowed in flight at the start of the next run. It is adapted to the observed
+     * latency during each run, and carried over to the next one.
+     */
+    private volatile int concurrencyLimit;
+
+    private int maxConcurrency;
+
     public AggregationManager(MetricsDAO dao, DateTimeService dtService, MetricsConfiguration configuration) {
 
         this.dao = dao;
@@ -76,6 +97,9 @@ public class AggregationManager {
         this.configuration = configuration;
         batchSize = Integer.parseInt(System.getProperty("rhq.metrics.aggregation.batch-size", "5"));
         parallelism = Integer.parseInt(System.getProperty("rhq.metrics.aggregation.parallelism", "3"));
+        concurrencyLimit = batchSize * parallelism;
+        maxConcurrency = Integer.parseInt(System.getProperty(MetricsConstants.AGGREGATION_MAX_CONCURRENCY,
+            Integer.toString(concurrencyLimit * 4)));
 
         int numWorkers = Integer.parseInt(System.getProperty("rhq.metrics.aggregation.workers", "4"));
         // We have to have more than 1 thread, otherwise we can deadlock during aggregation task scheduling.
@@ -86,9 +110,11 @@ public class AggregationManager {
         threadPool = new ThreadPoolExecutor(numWorkers, numWorkers, 30, TimeUnit.SECONDS,
             new LinkedBlockingQueue<Runnable>(), new StorageClientThreadFactory("AggregationTasks"));
         aggregationTasks = MoreExecutors.listeningDecorator(threadPool);
+        pipelineTasks = Executors.newCachedThreadPool(new StorageClientThreadFactory("AggregationPipeline"));
     }
 
     public void shutdown() {
+        pipelineTasks.shutdownNow();
         aggregationTasks.shutdownNow();
     }
 
@@ -98,6 +124,7 @@ public class AggregationManager {
 
     public void setBatchSize(int batchSize) {
         this.batchSize = batchSize;
+        concurrencyLimit = batchSize * parallelism;
     }
 
     public int getParallelism() {
@@ -106,6 +133,22 @@ public class AggregationManager {
 
     public void setParallelism(int parallelism) {
         this.parallelism = parallelism;
+        concurrencyLimit = batchSize * parallelism;
+    }
+
+    /**
+     * @return The number of aggregation tasks that will be allowed in flight at the start of the next run
+     */
+    public int getConcurrencyLimit() {
+        return concurrencyLimit;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public void setMaxConcurrency(int maxConcurrency) {
+        this.maxConcurrency = maxConcurrency;
     }
 
     public int getNumWorkers() {
@@ -126,16 +169,25 @@ public class AggregationManager {
         return totalAggregationTime.get();
     }
 
+    /**
+     * Aggregates the raw, one hour, and six hour data. The levels are pipelined: as soon as the one hour aggregates of
+     * a schedule for a finished six hour time slice have been stored, the six hour aggregate is computed while the raw
+     * data of other schedules is still being aggregated, and likewise for the 24 hour aggregates. Whatever could not
+     * be pipelined, e.g., index entries left over from a previous run, is picked up by a regular pass of each level
+     * once the pipeline has drained.
+     */
     public Set<AggregateNumericMetric> run() {
         log.info("Starting metrics data aggregation");
         Stopwatch stopwatch = Stopwatch.createStarted();
-        Semaphore permits = new Semaphore(batchSize * parallelism);
+        ConcurrencyLimiter permits = new ConcurrencyLimiter(concurrencyLimit, MIN_CONCURRENCY_LIMIT,
+            Math.max(MIN_CONCURRENCY_LIMIT, maxConcurrency));
 
         log.debug("Allocating " + permits.availablePermits() + " permits");
 
         int num1Hour = 0;
         int num6Hour = 0;
         int num24Hour = 0;
+        int numGroups = 0;
         try {
             PersistFunctions persistFunctions = new PersistFunctions(dao, dtService);
             final Set<AggregateNumericMetric> oneHourData = new ConcurrentSkipListSet<AggregateNumericMetric>(
@@ -147,22 +199,60 @@ public class AggregationManager {
             // 7 days, then we could end up in a situation where data has expired and
             // aggregate metric get overwritten with partial data.
             DateTime start = end.minus(configuration.getRawRetention().toPeriod().minusHours(1));
+            DateTime sixHourEnd = dtService.get6HourTimeSlice(endTime);
+            DateTime twentyFourHourEnd = dtService.get24HourTimeSlice(endTime);
+
+            final GroupRollupAggregator groupRollupAggregator = new GroupRollupAggregator(dao,
+                batchSize * parallelism);
+            groupRollupAggregator.loadRollups();
+
             DataAggregator rawAggregator = createRawAggregator(persistFunctions, permits);
             rawAggregator.setBatchFinishedListener(new DataAggregator.BatchFinishedListener() {
                 @Override
                 public void onFinish(List<AggregateNumericMetric> metrics) {
                     oneHourData.addAll(metrics);
+                    groupRollupAggregator.onFinish(metrics);
                 }
             });
-            num1Hour = rawAggregator.execute(start, end);
+            final DataAggregator pipelined1HourAggregator = create1HourAggregator(persistFunctions, permits);
+            pipelined1HourAggregator.setBatchFinishedListener(groupRollupAggregator);
+            final DataAggregator pipelined6HourAggregator = create6HourAggregator(persistFunctions, permits);
+            pipelined6HourAggregator.setBatchFinishedListener(groupRollupAggregator);
 
-            end = dtService.get6HourTimeSlice(endTime);
-            start = dtService.get6HourTimeSlice(endTime).minus(configuration.getRawRetention());
-            num6Hour = create1HourAggregator(persistFunctions, permits).execute(start, end);
+            rawAggregator.setNextAggregator(pipelined1HourAggregator, sixHourEnd);
+            pipelined1HourAggregator.setNextAggregator(pipelined6HourAggregator, twentyFourHourEnd);
 
-            end = dtService.get24HourTimeSlice(endTime);
-            start = dtService.get24HourTimeSlice(endTime).minus(configuration.getRawRetention());
-            num24Hour = create6HourAggregator(persistFunctions, permits).execute(start, end);
+            Future<Integer> pipelined6Hour = pipelineTasks.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return pipelined1HourAggregator.executePipelined();
+                }
+            });
+            Future<Integer> pipelined24Hour = pipelineTasks.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return pipelined6HourAggregator.executePipelined();
+                }
+            });
+
+            num1Hour = rawAggregator.execute(start, end);
+            num6Hour = getPipelineResult(pipelined6Hour);
+            num24Hour = getPipelineResult(pipelined24Hour);
+            numGroups += groupRollupAggregator.execute();
+
+            end = sixHourEnd;
+            start = sixHourEnd.minus(configuration.getRawRetention());
+            DataAggregator oneHourAggregator = create1HourAggregator(persistFunctions, permits);
+            oneHourAggregator.setBatchFinishedListener(groupRollupAggregator);
+            num6Hour += oneHourAggregator.execute(start, end);
+            numGroups += groupRollupAggregator.execute();
+
+            end = twentyFourHourEnd;
+            start = twentyFourHourEnd.minus(configuration.getRawRetention());
+            DataAggregator sixHourAggregator = create6HourAggregator(persistFunctions, permits);
+            sixHourAggregator.setBatchFinishedListener(groupRollupAggregator);
+            num24Hour += sixHourAggregator.execute(start, end);
+            numGroups += groupRollupAggregator.execute();
 
             return oneHourData;
         } catch (InterruptedException e) {
@@ -173,14 +263,31 @@ public class AggregationManager {
             log.warn("Aggregation has been aborted: " + e.getMessage());
             return Collections.emptySet();
         } finally {
+            concurrencyLimit = permits.getLimit();
             stopwatch.stop();
             totalAggregationTime.addAndGet(stopwatch.elapsed(TimeUnit.MILLISECONDS));
             log.info("Finished aggregation of {\"raw schedules\": " + num1Hour + ", \"1 hour schedules\": " + num6Hour +
-                ", \"6 hour schedules\": " + num24Hour + "} in " + stopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms");
+                ", \"6 hour schedules\": " + num24Hour + ", \"group rollups\": " + numGroups + "} in " +
+                stopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms with a final concurrency limit of " +
+                concurrencyLimit);
+        }
+    }
+
+    private int getPipelineResult(Future<Integer> pipeline) throws InterruptedException, AbortedException {
+        try {
+            return pipeline.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof AbortedException) {
+                throw (AbortedException) e.getCause();
+            }
+            if (e.getCause() instanceof InterruptedException) {
+                throw (InterruptedException) e.getCause();
+            }
+            throw new AbortedException("Pipelined aggregation failed", e.getCause());
         }
     }
 
-    private DataAggregator createRawAggregator(PersistFunctions persistFunctions, Semaphore permits) {
+    private DataAggregator createRawAggregator(PersistFunctions persistFunctions, ConcurrencyLimiter permits) {
         DataAggregator aggregator = new DataAggregator();
         aggregator.setAggregationTasks(aggregationTasks);
         aggregator.setBucket(IndexBucket.RAW);
@@ -195,7 +302,7 @@ public class AggregationManager {
         return aggregator;
     }
 
-    private DataAggregator create1HourAggregator(PersistFunctions persistFunctions, Semaphore permits) {
+    private DataAggregator create1HourAggregator(PersistFunctions persistFunctions, ConcurrencyLimiter permits) {
         DataAggregator aggregator = new DataAggregator();
         aggregator.setAggregationTasks(aggregationTasks);
         aggregator.setBucket(IndexBucket.ONE_HOUR);
@@ -210,7 +317,7 @@ public class AggregationManager {
         return aggregator;
     }
 
-    private DataAggregator create6HourAggregator(PersistFunctions persistFunctions, Semaphore permits) {
+    private DataAggregator create6HourAggregator(PersistFunctions persistFunctions, ConcurrencyLimiter permits) {
         DataAggregator aggregator = new DataAggregator();
         aggregator.setAggregationTasks(aggregationTasks);
         aggregator.setBucket(IndexBucket.SIX_HOUR);
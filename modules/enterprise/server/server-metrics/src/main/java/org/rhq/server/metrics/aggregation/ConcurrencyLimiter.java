@@ -0,0 +1,166 @@
+package org.rhq.server.metrics.aggregation;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Limits the number of aggregation tasks in flight, and adapts that limit to the latency observed for the tasks.
+ * Each task is a round of reads and writes against the storage cluster so its latency tracks how loaded the cluster
+ * is.
+ * <p>
+ * Latencies are averaged over windows of as many samples as the current limit. The lowest window average seen so far
+ * is the baseline. As long as a window stays within {@link #LATENCY_TOLERANCE} times the baseline the limit is
+ * increased by one, otherwise it is reduced by a quarter. A failed task counts as an overloaded window. The baseline
+ * slowly drifts upwards so that a single unusually fast window does not pin the limit down for the rest of the run.
+ * </p>
+ */
+class ConcurrencyLimiter {
+
+    private static final double LATENCY_TOLERANCE = 2.0;
+
+    private static final double DECREASE_FACTOR = 0.75;
+
+    private static final double BASELINE_DRIFT = 1.05;
+
+    private final Log log = LogFactory.getLog(ConcurrencyLimiter.class);
+
+    private final Semaphore permits;
+
+    /**
+     * The number of permits that tasks in flight still have to give up when they complete, because the limit was
+     * reduced below the number of tasks in flight
+     */
+    private int permitsOwed;
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private int limit;
+
+    private double baselineLatency = Double.NaN;
+
+    private long windowLatency;
+
+    private int windowSamples;
+
+    /**
+     * @param initialLimit The number of tasks allowed in flight before any latency has been observed
+     * @param minLimit The lower bound of the limit, must be at least 1
+     * @param maxLimit The upper bound of the limit
+     */
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Invalid bounds [" + minLimit + ", " + maxLimit + "]");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        permits = new Semaphore(limit);
+    }
+
+    public void acquire() throws InterruptedException {
+        permits.acquire();
+    }
+
+    /**
+     * Releases the permit of a task that completed, and records its latency.
+     *
+     * @param latency The time it took the task to complete in nanoseconds
+     */
+    public void release(long latency) {
+        try {
+            onSample(latency);
+        } finally {
+            releasePermit();
+        }
+    }
+
+    /**
+     * Releases the permit of a task that failed.
+     */
+    public void releaseFailed() {
+        try {
+            onFailure();
+        } finally {
+            releasePermit();
+        }
+    }
+
+    public int availablePermits() {
+        return permits.availablePermits();
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    private synchronized void onSample(long latency) {
+        windowLatency += latency;
+        if (++windowSamples < limit) {
+            return;
+        }
+        double average = (double) windowLatency / windowSamples;
+        windowLatency = 0;
+        windowSamples = 0;
+
+        if (Double.isNaN(baselineLatency) || average < baselineLatency) {
+            baselineLatency = average;
+        } else {
+            baselineLatency *= BASELINE_DRIFT;
+        }
+
+        if (average <= baselineLatency * LATENCY_TOLERANCE) {
+            setLimit(limit + 1);
+        } else {
+            setLimit((int) (limit * DECREASE_FACTOR));
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Average task latency was " + TimeUnit.NANOSECONDS.toMillis((long) average) + " ms with a " +
+                "baseline of " + TimeUnit.NANOSECONDS.toMillis((long) baselineLatency) + " ms, the concurrency " +
+                "limit is now " + limit);
+        }
+    }
+
+    private synchronized void onFailure() {
+        windowLatency = 0;
+        windowSamples = 0;
+        setLimit((int) (limit * DECREASE_FACTOR));
+        if (log.isDebugEnabled()) {
+            log.debug("An aggregation task failed, the concurrency limit is now " + limit);
+        }
+    }
+
+    private synchronized void releasePermit() {
+        if (permitsOwed > 0) {
+            --permitsOwed;
+        } else {
+            permits.release();
+        }
+    }
+
+    /**
+     * Only takes away permits that are available. Tasks already in flight keep theirs and give them up when they
+     * complete, so the available permits never become negative.
+     */
+    private void setLimit(int newLimit) {
+        newLimit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+        if (newLimit > limit) {
+            int increase = newLimit - limit;
+            int forgiven = Math.min(increase, permitsOwed);
+            permitsOwed -= forgiven;
+            permits.release(increase - forgiven);
+        } else if (newLimit < limit) {
+            int reduction = limit - newLimit;
+            while (reduction > 0 && permits.tryAcquire()) {
+                --reduction;
+            }
+            permitsOwed += reduction;
+        }
+        limit = newLimit;
+    }
+
+}
@@ -3,8 +3,13 @@ package org.rhq.server.metrics.aggregation;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.Semaphore;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -43,6 +48,8 @@ import org.rhq.server.metrics.domain.ResultSetMapper;
  */
 class DataAggregator<T extends NumericMetric> {
 
+    private static final long PIPELINE_POLL_INTERVAL = 100;
+
     private final Log log = LogFactory.getLog(getClass());
 
     /**
@@ -59,7 +66,7 @@ class DataAggregator<T extends NumericMetric> {
 
     private AsyncFunction<List<AggregateNumericMetric>, List<ResultSet>> persistMetrics;
 
-    private Semaphore permits;
+    private ConcurrencyLimiter permits;
 
     private ListeningExecutorService aggregationTasks;
 
@@ -79,6 +86,28 @@ class DataAggregator<T extends NumericMetric> {
 
     private int batchSize;
 
+    /**
+     * The aggregator of the next level to which schedules are handed over as soon as their aggregates for a finished
+     * time slice of that level are complete. See {@link #setNextAggregator(DataAggregator, DateTime)}.
+     */
+    private DataAggregator<AggregateNumericMetric> nextAggregator;
+
+    private DateTime nextEndTime;
+
+    /**
+     * The number of index entries of each schedule for which aggregation has been scheduled but not yet finished.
+     * This is only tracked when there is a next aggregator.
+     */
+    private final ConcurrentMap<Integer, AtomicInteger> pendingSchedules =
+        new ConcurrentHashMap<Integer, AtomicInteger>();
+
+    /**
+     * The batches handed over by the previous level, consumed by {@link #executePipelined()}
+     */
+    private final BlockingQueue<Batch> pipelinedBatches = new LinkedBlockingQueue<Batch>();
+
+    private volatile boolean previousLevelFinished;
+
     void setDao(MetricsDAO dao) {
         this.dao = dao;
     }
@@ -96,7 +125,7 @@ class DataAggregator<T extends NumericMetric> {
         this.persistMetrics = persistMetrics;
     }
 
-    void setPermits(Semaphore permits) {
+    void setPermits(ConcurrencyLimiter permits) {
         this.permits = permits;
     }
 
@@ -124,11 +153,27 @@ class DataAggregator<T extends NumericMetric> {
         this.batchSize = batchSize;
     }
 
+    /**
+     * Pipelines this aggregator with the one of the next level. When the aggregate of the last time slice that makes
+     * up a time slice of the next level has been stored for a schedule, and this aggregator has no other work pending
+     * for that schedule, the schedule is handed over to the next aggregator right away instead of waiting for this
+     * whole level to finish. The next aggregator consumes those in {@link #executePipelined()}. Schedules that cannot
+     * be handed over keep their index entry and are picked up by a regular pass of the next level.
+     *
+     * @param nextAggregator The aggregator of the next level
+     * @param nextEndTime Only time slices of the next level that end at or before this time are handed over
+     */
+    void setNextAggregator(DataAggregator<AggregateNumericMetric> nextAggregator, DateTime nextEndTime) {
+        this.nextAggregator = nextAggregator;
+        this.nextEndTime = nextEndTime;
+    }
+
     @SuppressWarnings("unchecked")
-    protected void aggregationTaskFinished(ListenableFuture<List<AggregateNumericMetric>> metricsFuture,
+    protected void aggregationTaskFinished(final Batch batch, long startTime,
+        ListenableFuture<List<AggregateNumericMetric>> metricsFuture,
         ListenableFuture<List<ResultSet>> deletedIndexEntriesFuture) {
         final ListenableFuture<List<List<?>>> argsFuture = Futures.allAsList(metricsFuture, deletedIndexEntriesFuture);
-        Futures.addCallback(argsFuture, new AggregationTaskFinishedCallback<List<List<?>>>() {
+        Futures.addCallback(argsFuture, new AggregationTaskFinishedCallback<List<List<?>>>(batch, startTime) {
             @Override
             protected void onFinish(List<List<?>> args) {
                 List<AggregateNumericMetric> metrics = (List<AggregateNumericMetric>) args.get(0);
@@ -136,10 +181,53 @@ class DataAggregator<T extends NumericMetric> {
                     batchFinishedListener.onFinish(metrics);
                 }
                 schedulesCount.addAndGet(metrics.size());
+                handOver(batch, metrics);
             }
         }, aggregationTasks);
     }
 
+    private void handOver(Batch batch, List<AggregateNumericMetric> metrics) {
+        if (nextAggregator == null) {
+            return;
+        }
+        for (IndexEntry indexEntry : batch) {
+            pendingSchedules.get(indexEntry.getScheduleId()).decrementAndGet();
+        }
+        if (metrics == null) {
+            return;
+        }
+
+        Duration nextDuration = nextAggregator.timeSliceDuration;
+        Map<Long, Batch> nextBatches = new LinkedHashMap<Long, Batch>();
+        for (AggregateNumericMetric metric : metrics) {
+            DateTime nextTimeSlice = dateTimeService.getTimeSlice(metric.getTimestamp(), nextDuration);
+            DateTime nextTimeSliceEnd = nextTimeSlice.plus(nextDuration);
+            boolean lastTimeSlice = metric.getTimestamp() + timeSliceDuration.getMillis() ==
+                nextTimeSliceEnd.getMillis();
+            if (!lastTimeSlice || nextTimeSliceEnd.isAfter(nextEndTime)
+                || pendingSchedules.get(metric.getScheduleId()).get() != 0) {
+                continue;
+            }
+            Batch nextBatch = nextBatches.get(nextTimeSlice.getMillis());
+            if (nextBatch == null || nextBatch.size() == batchSize) {
+                if (nextBatch != null) {
+                    nextAggregator.pipelinedBatches.offer(nextBatch);
+                }
+                nextBatch = new Batch().setStartTime(nextTimeSlice.getMillis()).setEndTime(nextTimeSliceEnd);
+                nextBatches.put(nextTimeSlice.getMillis(), nextBatch);
+            }
+            nextBatch.add(new IndexEntry(nextAggregator.bucket, metric.getScheduleId() %
+                configuration.getIndexPartitions(), nextTimeSlice, metric.getScheduleId()));
+        }
+        for (Batch nextBatch : nextBatches.values()) {
+            nextAggregator.pipelinedBatches.offer(nextBatch);
+        }
+    }
+
+    private void previousLevelFinished() {
+        previousLevelFinished = true;
+    }
+
     public int execute(DateTime start, DateTime end) throws InterruptedException,
         AbortedException {
 
@@ -181,6 +269,9 @@ class DataAggregator<T extends NumericMetric> {
             log.warn("There was an unexpected error scheduling aggregation tasks", e);
             taskTracker.abort("There was an unexpected error scheduling aggregation tasks: " + e.getMessage());
         } finally {
+            if (nextAggregator != null) {
+                nextAggregator.previousLevelFinished();
+            }
             stopwatch.stop();
             log.info("Finished " + schedulesCount + " " + bucket + " data aggregations in " +
                 stopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms");
@@ -188,11 +279,65 @@ class DataAggregator<T extends NumericMetric> {
         return schedulesCount.get();
     }
 
+    /**
+     * Aggregates the schedules handed over by the aggregator of the previous level until that one has finished. This
+     * method is meant to run concurrently with {@link #execute(DateTime, DateTime)} of the previous level.
+     *
+     * @return The number of schedules aggregated
+     */
+    public int executePipelined() throws InterruptedException, AbortedException {
+        log.info("Starting pipelined " + bucket + " data aggregation");
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        try {
+            while (true) {
+                // read the flag before polling so that no batch queued before the previous level finished is missed
+                boolean finished = previousLevelFinished;
+                Batch batch = pipelinedBatches.poll(PIPELINE_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (batch != null) {
+                    submitAggregationTask(batch);
+                } else if (finished) {
+                    break;
+                }
+            }
+            taskTracker.finishedSchedulingTasks();
+            taskTracker.waitForTasksToFinish(1, TimeUnit.DAYS);
+        } catch (InterruptedException e) {
+            log.warn("There was an interrupt while scheduling pipelined aggregation tasks.", e);
+            taskTracker.abort("There was an interrupt while scheduling pipelined aggregation tasks.");
+        } catch (Exception e) {
+            log.warn("There was an unexpected error scheduling pipelined aggregation tasks", e);
+            taskTracker.abort("There was an unexpected error scheduling pipelined aggregation tasks: " +
+                e.getMessage());
+        } finally {
+            if (nextAggregator != null) {
+                nextAggregator.previousLevelFinished();
+            }
+            stopwatch.stop();
+            log.info("Finished " + schedulesCount + " pipelined " + bucket + " data aggregations in " +
+                stopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms");
+        }
+        return schedulesCount.get();
+    }
+
     protected void submitAggregationTask(Batch batch) throws InterruptedException {
         if (log.isDebugEnabled()) {
             log.debug("Scheduling " + bucket + " aggregation task for " + batch);
         }
         permits.acquire();
+        if (nextAggregator != null) {
+            for (IndexEntry indexEntry : batch) {
+                AtomicInteger pending = pendingSchedules.get(indexEntry.getScheduleId());
+                if (pending == null) {
+                    AtomicInteger newPending = new AtomicInteger();
+                    pending = pendingSchedules.putIfAbsent(indexEntry.getScheduleId(), newPending);
+                    if (pending == null) {
+                        pending = newPending;
+                    }
+                }
+                pending.incrementAndGet();
+            }
+        }
+        final long startTime = System.nanoTime();
         aggregationTasks.submit(new AggregationTask(batch) {
             @Override
             void run(Batch batch) {
@@ -212,10 +357,10 @@ class DataAggregator<T extends NumericMetric> {
                         processBatchBucket = Bucket.TWENTY_FOUR_HOUR;
                     }
                 } catch (RuntimeException exception) {
-                    permits.release();
+                    permits.releaseFailed();
                     throw exception;
                 }
-                processBatch(batch, processBatchBucket);
+                processBatch(batch, processBatchBucket, startTime);
 
             }
         });
@@ -240,7 +385,7 @@ class DataAggregator<T extends NumericMetric> {
         batch.setQueriesFuture(Futures.allAsList(queryFutures));
     }
 
-    protected void processBatch(Batch batch, Bucket bucket) {
+    protected void processBatch(Batch batch, Bucket bucket, long startTime) {
         ListenableFuture<List<AggregateNumericMetric>> metricsFuture;
         ListenableFuture<List<ResultSet>> deleteIndexEntriesFuture;
         try {
@@ -256,10 +401,10 @@ class DataAggregator<T extends NumericMetric> {
             deleteIndexEntriesFuture = Futures.transform(insertsFuture,
                 deleteIndexEntries(batch), aggregationTasks);
         } catch (RuntimeException exception) {
-            permits.release();
+            permits.releaseFailed();
             throw exception;
         }
-        aggregationTaskFinished(metricsFuture, deleteIndexEntriesFuture);
+        aggregationTaskFinished(batch, startTime, metricsFuture, deleteIndexEntriesFuture);
     }
 
     protected Function<List<ResultSet>, Iterable<List<T>>> toIterable() {
@@ -376,12 +521,22 @@ class DataAggregator<T extends NumericMetric> {
     }
 
     protected class AggregationTaskFinishedCallback<R> implements FutureCallback<R> {
+
+        private Batch batch;
+
+        private long startTime;
+
+        public AggregationTaskFinishedCallback(Batch batch, long startTime) {
+            this.batch = batch;
+            this.startTime = startTime;
+        }
+
         @Override
         public void onSuccess(R args) {
             try {
                 onFinish(args);
             } finally {
-                permits.release();
+                permits.release(System.nanoTime() - startTime);
                 taskTracker.finishedTask();
                 if (log.isDebugEnabled()) {
                     log.debug("There are " + taskTracker.getRemainingTasks() + " remaining " + bucket +
@@ -396,7 +551,11 @@ class DataAggregator<T extends NumericMetric> {
         @Override
         public void onFailure(Throwable t) {
             log.warn("There was an error aggregating data", t);
-            permits.release();
+            try {
+                handOver(batch, null);
+            } finally {
+                permits.releaseFailed();
+            }
             taskTracker.finishedTask();
             if (log.isDebugEnabled()) {
                 log.debug("There are " + taskTracker.getRemainingTasks() + " remaining tasks and " +
@@ -0,0 +1,320 @@
+/*
+ *
+ * RHQ Management Platform
+ * Copyright (C) 2005-2014 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License, version 2, as
+ * published by the Free Software Foundation, and/or the GNU Lesser
+ * General Public License, version 2.1, also as published by the Free
+ * Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License and the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * and the GNU Lesser General Public License along with this program;
+ * if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ */
+
+package org.rhq.server.metrics.aggregation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.rhq.core.util.exception.ThrowableUtil;
+import org.rhq.server.metrics.ArithmeticMeanCalculator;
+import org.rhq.server.metrics.MetricsDAO;
+import org.rhq.server.metrics.StorageResultSetFuture;
+import org.rhq.server.metrics.domain.AggregateNumericMetric;
+import org.rhq.server.metrics.domain.Bucket;
+
+/**
+ * Maintains the group rollups registered by {@link org.rhq.server.metrics.MetricsServer}. It listens for the
+ * aggregates computed by the {@link DataAggregator}s and records the group time slices they affect. Once a
+ * {@link DataAggregator} has finished, {@link #execute()} recomputes each of those slices from the aggregates of all
+ * the group members, so late data for a single member does not produce a partial group aggregate.
+ * <p>
+ * The group aggregate of a time slice is the mean of the member averages along with the smallest minimum and the
+ * largest maximum.
+ * </p>
+ */
+class GroupRollupAggregator implements DataAggregator.BatchFinishedListener {
+
+    private final Log log = LogFactory.getLog(GroupRollupAggregator.class);
+
+    private MetricsDAO dao;
+
+    private int concurrency;
+
+    private Map<Integer, List<GroupRollup>> rollupsBySchedule = Collections.emptyMap();
+
+    private Set<TimeSlice> timeSlices = Collections.newSetFromMap(new ConcurrentHashMap<TimeSlice, Boolean>());
+
+    public GroupRollupAggregator(MetricsDAO dao, int concurrency) {
+        this.dao = dao;
+        this.concurrency = Math.max(1, concurrency);
+    }
+
+    /**
+     * Loads the registered group rollups. If they cannot be loaded, no group rollups are maintained during this
+     * aggregation run. They will be registered again when the groups are queried.
+     */
+    public void loadRollups() {
+        Map<Integer, List<GroupRollup>> rollups = new HashMap<Integer, List<GroupRollup>>();
+        try {
+            for (Row row : dao.findGroupRollups()) {
+                Set<Integer> scheduleIds = row.getSet(2, Integer.class);
+                GroupRollup rollup = new GroupRollup(row.getInt(0), row.getInt(1), new ArrayList<Integer>(
+                    scheduleIds));
+                for (Integer scheduleId : scheduleIds) {
+                    List<GroupRollup> scheduleRollups = rollups.get(scheduleId);
+                    if (scheduleRollups == null) {
+                        scheduleRollups = new ArrayList<GroupRollup>(1);
+                        rollups.put(scheduleId, scheduleRollups);
+                    }
+                    scheduleRollups.add(rollup);
+                }
+            }
+        } catch (Exception e) {
+            log.warn("Failed to load group rollups. They will not be updated during this aggregation run: " +
+                ThrowableUtil.getRootMessage(e));
+            rollups.clear();
+        }
+        rollupsBySchedule = rollups;
+    }
+
+    @Override
+    public void onFinish(List<AggregateNumericMetric> metrics) {
+        if (rollupsBySchedule.isEmpty()) {
+            return;
+        }
+        for (AggregateNumericMetric metric : metrics) {
+            List<GroupRollup> rollups = rollupsBySchedule.get(metric.getScheduleId());
+            if (rollups != null) {
+                for (GroupRollup rollup : rollups) {
+                    timeSlices.add(new TimeSlice(rollup, metric.getBucket(), metric.getTimestamp()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes and stores the group aggregates of the time slices recorded since the last call. This method blocks
+     * until all of the member aggregates have been read. The group aggregates are written asynchronously.
+     *
+     * @return The number of group aggregates computed
+     */
+    public int execute() throws InterruptedException {
+        List<TimeSlice> pending = new ArrayList<TimeSlice>(timeSlices);
+        timeSlices.clear();
+        if (pending.isEmpty()) {
+            return 0;
+        }
+
+        Semaphore permits = new Semaphore(concurrency);
+        for (TimeSlice timeSlice : pending) {
+            aggregate(timeSlice, permits);
+        }
+        // wait for the queries that are still in flight
+        permits.acquire(concurrency);
+        return pending.size();
+    }
+
+    private void aggregate(final TimeSlice timeSlice, final Semaphore permits) throws InterruptedException {
+        final GroupAggregate aggregate = new GroupAggregate(timeSlice.rollup.scheduleIds.size());
+        long end = timeSlice.timestamp + 1;
+        for (final Integer scheduleId : timeSlice.rollup.scheduleIds) {
+            permits.acquire();
+            StorageResultSetFuture queryFuture = dao.findAggregateMetricsAsync(scheduleId, timeSlice.bucket,
+                timeSlice.timestamp, end);
+            Futures.addCallback(queryFuture, new FutureCallback<ResultSet>() {
+                @Override
+                public void onSuccess(ResultSet resultSet) {
+                    try {
+                        // columns are schedule_id, bucket, time, avg, max, min
+                        for (Row row : resultSet) {
+                            aggregate.add(row.getDouble(3), row.getDouble(5), row.getDouble(4));
+                        }
+                        if (aggregate.memberFinished()) {
+                            persist(timeSlice, aggregate);
+                        }
+                    } catch (Throwable t) {
+                        memberFailed(t);
+                    } finally {
+                        permits.release();
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    try {
+                        memberFailed(t);
+                    } finally {
+                        permits.release();
+                    }
+                }
+
+                // does not release the permit, each query releases it exactly once
+                private void memberFailed(Throwable t) {
+                    if (aggregate.failed()) {
+                        log.warn("Failed to compute " + timeSlice + ". The rollup will be removed and group " +
+                            "data will be read from the member schedules: " + ThrowableUtil.getRootMessage(t));
+                        invalidate(timeSlice.rollup);
+                    }
+                }
+            });
+        }
+    }
+
+    private void persist(final TimeSlice timeSlice, GroupAggregate aggregate) {
+        AggregateNumericMetric metric = aggregate.toMetric(timeSlice.bucket, timeSlice.timestamp);
+        if (metric == null) {
+            return;
+        }
+        StorageResultSetFuture insertFuture = dao.insertGroupAggregate(timeSlice.rollup.groupId,
+            timeSlice.rollup.definitionId, metric);
+        Futures.addCallback(insertFuture, new FutureCallback<ResultSet>() {
+            @Override
+            public void onSuccess(ResultSet resultSet) {
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                log.warn("Failed to store " + timeSlice + ". The rollup will be removed and group data will be " +
+                    "read from the member schedules: " + ThrowableUtil.getRootMessage(t));
+                invalidate(timeSlice.rollup);
+            }
+        });
+    }
+
+    /**
+     * A rollup with a missing time slice would silently return wrong results. Removing it means that it will be
+     * registered again, and only be used for the time slices aggregated from that point on.
+     */
+    private void invalidate(GroupRollup rollup) {
+        try {
+            dao.deleteGroupRollups(rollup.groupId);
+        } catch (Exception e) {
+            log.error("Failed to remove the rollups of group " + rollup.groupId + ". Its data may be incomplete " +
+                "until its membership changes: " + ThrowableUtil.getRootMessage(e));
+        }
+    }
+
+    private static class GroupRollup {
+        final int groupId;
+        final int definitionId;
+        final List<Integer> scheduleIds;
+
+        GroupRollup(int groupId, int definitionId, List<Integer> scheduleIds) {
+            this.groupId = groupId;
+            this.definitionId = definitionId;
+            this.scheduleIds = scheduleIds;
+        }
+    }
+
+    private static class TimeSlice {
+        final GroupRollup rollup;
+        final Bucket bucket;
+        final long timestamp;
+
+        TimeSlice(GroupRollup rollup, Bucket bucket, long timestamp) {
+            this.rollup = rollup;
+            this.bucket = bucket;
+            this.timestamp = timestamp;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            TimeSlice that = (TimeSlice) o;
+
+            return rollup.groupId == that.rollup.groupId && rollup.definitionId == that.rollup.definitionId &&
+                timestamp == that.timestamp && bucket == that.bucket;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = rollup.groupId;
+            result = 31 * result + rollup.definitionId;
+            result = 31 * result + bucket.hashCode();
+            result = 31 * result + (int) (timestamp ^ (timestamp >>> 32));
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return "group rollup [groupId: " + rollup.groupId + ", definitionId: " + rollup.definitionId +
+                ", bucket: " + bucket + ", timestamp: " + timestamp + "]";
+        }
+    }
+
+    private static class GroupAggregate {
+        private final AtomicInteger remainingMembers;
+        private final AtomicInteger failures = new AtomicInteger();
+        private final ArithmeticMeanCalculator mean = new ArithmeticMeanCalculator();
+        private double min = Double.NaN;
+        private double max = Double.NaN;
+        private int count;
+
+        GroupAggregate(int members) {
+            remainingMembers = new AtomicInteger(members);
+        }
+
+        synchronized void add(double avg, double min, double max) {
+            if (count == 0 || min < this.min) {
+                this.min = min;
+            }
+            if (count == 0 || max > this.max) {
+                this.max = max;
+            }
+            mean.add(avg);
+            ++count;
+        }
+
+        /**
+         * @return true if this was the last member and no member failed
+         */
+        boolean memberFinished() {
+            return remainingMembers.decrementAndGet() == 0 && failures.get() == 0;
+        }
+
+        /**
+         * @return true for the first failure only
+         */
+        boolean failed() {
+            return failures.getAndIncrement() == 0;
+        }
+
+        synchronized AggregateNumericMetric toMetric(Bucket bucket, long timestamp) {
+            if (count == 0) {
+                return null;
+            }
+            return new AggregateNumericMetric(0, bucket, mean.getArithmeticMean(), min, max, timestamp);
+        }
+    }
+
+}
@@ -29,7 +29,10 @@ public enum MetricsTable {
 
     INDEX("metrics_idx"),
     RAW("raw_metrics"),
-    AGGREGATE("aggregate_metrics");
+    AGGREGATE("aggregate_metrics"),
+    GROUP_ROLLUPS("group_rollups"),
+    GROUP_AGGREGATE("group_aggregate_metrics"),
+    RAW_BLOCKS("raw_metric_blocks");
 
     private final String tableName;
 
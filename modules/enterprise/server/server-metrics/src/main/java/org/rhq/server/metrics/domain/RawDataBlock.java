@@ -0,0 +1,280 @@
+/*
+ *
+ * RHQ Management Platform
+ * Copyright (C) 2005-2014 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License, version 2, as
+ * published by the Free Software Foundation, and/or the GNU Lesser
+ * General Public License, version 2.1, also as published by the Free
+ * Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License and the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * and the GNU Lesser General Public License along with this program;
+ * if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ */
+
+package org.rhq.server.metrics.domain;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encodes and decodes the raw data of one schedule and time slice as a single compressed block, the layout of the
+ * {@link MetricsTable#RAW_BLOCKS} table. The encoding follows the Gorilla time series format:
+ * <ul>
+ *     <li>The first timestamp and value are stored as is.</li>
+ *     <li>Every following timestamp is stored as the difference between its delta and the previous delta. Raw data
+ *     is collected at fixed intervals so that difference is usually zero, which takes a single bit.</li>
+ *     <li>Every following value is XORed with the previous one and only the meaningful bits of the result are
+ *     stored. A value that does not change takes a single bit.</li>
+ * </ul>
+ * The block starts with a version byte and the number of data points. Timestamps must be in ascending order and
+ * distinct.
+ */
+public final class RawDataBlock {
+
+    private static final byte VERSION = 1;
+
+    private static final int HEADER_SIZE = 5;
+
+    private RawDataBlock() {
+    }
+
+    /**
+     * @param timestamps The timestamps in ascending order
+     * @param values The values, in the same order as the timestamps
+     * @param count The number of data points to encode
+     * @return The encoded block, ready to be read
+     */
+    public static ByteBuffer encode(long[] timestamps, double[] values, int count) {
+        BitWriter writer = new BitWriter(HEADER_SIZE + 2 * count + 16);
+        writer.writeBits(VERSION, 8);
+        writer.writeBits(count, 32);
+        if (count == 0) {
+            return writer.toByteBuffer();
+        }
+
+        writer.writeBits(timestamps[0], 64);
+        long previousBits = Double.doubleToRawLongBits(values[0]);
+        writer.writeBits(previousBits, 64);
+
+        long previousTimestamp = timestamps[0];
+        long previousDelta = 0;
+        int previousLeading = -1;
+        int previousTrailing = 0;
+
+        for (int i = 1; i < count; ++i) {
+            long delta = timestamps[i] - previousTimestamp;
+            writeDeltaOfDelta(writer, delta - previousDelta);
+            previousTimestamp = timestamps[i];
+            previousDelta = delta;
+
+            long bits = Double.doubleToRawLongBits(values[i]);
+            long xor = bits ^ previousBits;
+            previousBits = bits;
+            if (xor == 0) {
+                writer.writeBits(0, 1);
+                continue;
+            }
+            writer.writeBits(1, 1);
+            int leading = Math.min(31, Long.numberOfLeadingZeros(xor));
+            int trailing = Long.numberOfTrailingZeros(xor);
+            if (previousLeading >= 0 && leading >= previousLeading && trailing >= previousTrailing) {
+                // the meaningful bits fit in the window of the previous value
+                writer.writeBits(0, 1);
+                writer.writeBits(xor >>> previousTrailing, 64 - previousLeading - previousTrailing);
+            } else {
+                int meaningful = 64 - leading - trailing;
+                writer.writeBits(1, 1);
+                writer.writeBits(leading, 5);
+                writer.writeBits(meaningful - 1, 6);
+                writer.writeBits(xor >>> trailing, meaningful);
+                previousLeading = leading;
+                previousTrailing = trailing;
+            }
+        }
+        return writer.toByteBuffer();
+    }
+
+    /**
+     * @return The number of data points in the block
+     */
+    public static int size(ByteBuffer block) {
+        checkVersion(block);
+        return block.getInt(block.position() + 1);
+    }
+
+    /**
+     * Decodes the data points of a block that fall in the time range [startTime, endTime).
+     *
+     * @param scheduleId The schedule id of the block, which is not part of the encoded data
+     * @param block The encoded block. Its position is not modified.
+     * @param startTime The start of the time range, inclusive
+     * @param endTime The end of the time range, exclusive
+     * @return The data points in ascending order of their timestamps
+     */
+    public static List<RawNumericMetric> decode(int scheduleId, ByteBuffer block, long startTime, long endTime) {
+        int count = size(block);
+        List<RawNumericMetric> metrics = new ArrayList<RawNumericMetric>(count);
+        if (count == 0) {
+            return metrics;
+        }
+
+        BitReader reader = new BitReader(block);
+        reader.readBits(8 + 32);
+
+        long timestamp = reader.readBits(64);
+        long bits = reader.readBits(64);
+        addIfInRange(metrics, scheduleId, timestamp, bits, startTime, endTime);
+
+        long delta = 0;
+        int leading = 0;
+        int trailing = 0;
+
+        for (int i = 1; i < count && timestamp < endTime; ++i) {
+            delta += readDeltaOfDelta(reader);
+            timestamp += delta;
+
+            if (reader.readBits(1) != 0) {
+                if (reader.readBits(1) != 0) {
+                    leading = (int) reader.readBits(5);
+                    int meaningful = (int) reader.readBits(6) + 1;
+                    trailing = 64 - leading - meaningful;
+                }
+                bits ^= reader.readBits(64 - leading - trailing) << trailing;
+            }
+            addIfInRange(metrics, scheduleId, timestamp, bits, startTime, endTime);
+        }
+        return metrics;
+    }
+
+    private static void addIfInRange(List<RawNumericMetric> metrics, int scheduleId, long timestamp, long bits,
+        long startTime, long endTime) {
+        if (timestamp >= startTime && timestamp < endTime) {
+            metrics.add(new RawNumericMetric(scheduleId, timestamp, Double.longBitsToDouble(bits)));
+        }
+    }
+
+    private static void writeDeltaOfDelta(BitWriter writer, long deltaOfDelta) {
+        if (deltaOfDelta == 0) {
+            writer.writeBits(0, 1);
+        } else if (fits(deltaOfDelta, 7)) {
+            writer.writeBits(0x2, 2);
+            writer.writeBits(deltaOfDelta, 7);
+        } else if (fits(deltaOfDelta, 12)) {
+            writer.writeBits(0x6, 3);
+            writer.writeBits(deltaOfDelta, 12);
+        } else if (fits(deltaOfDelta, 20)) {
+            writer.writeBits(0xE, 4);
+            writer.writeBits(deltaOfDelta, 20);
+        } else {
+            writer.writeBits(0xF, 4);
+            writer.writeBits(deltaOfDelta, 64);
+        }
+    }
+
+    private static long readDeltaOfDelta(BitReader reader) {
+        if (reader.readBits(1) == 0) {
+            return 0;
+        }
+        if (reader.readBits(1) == 0) {
+            return signExtend(reader.readBits(7), 7);
+        }
+        if (reader.readBits(1) == 0) {
+            return signExtend(reader.readBits(12), 12);
+        }
+        if (reader.readBits(1) == 0) {
+            return signExtend(reader.readBits(20), 20);
+        }
+        return reader.readBits(64);
+    }
+
+    private static boolean fits(long value, int bits) {
+        long limit = 1L << (bits - 1);
+        return value >= -limit && value < limit;
+    }
+
+    private static long signExtend(long value, int bits) {
+        return (value << (64 - bits)) >> (64 - bits);
+    }
+
+    private static void checkVersion(ByteBuffer block) {
+        if (block.remaining() < HEADER_SIZE || block.get(block.position()) != VERSION) {
+            throw new IllegalArgumentException("Unsupported raw data block");
+        }
+    }
+
+    private static class BitWriter {
+        private byte[] bytes;
+        private int position;
+
+        BitWriter(int initialSize) {
+            bytes = new byte[initialSize];
+        }
+
+        /**
+         * Writes the lowest bits of the value, most significant bit first.
+         */
+        void writeBits(long value, int bits) {
+            while (bits > 0) {
+                int index = position >>> 3;
+                if (index == bytes.length) {
+                    byte[] grown = new byte[bytes.length * 2];
+                    System.arraycopy(bytes, 0, grown, 0, bytes.length);
+                    bytes = grown;
+                }
+                int free = 8 - (position & 7);
+                int n = Math.min(free, bits);
+                int chunk = (int) (value >>> (bits - n)) & ((1 << n) - 1);
+                bytes[index] |= chunk << (free - n);
+                position += n;
+                bits -= n;
+            }
+        }
+
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(bytes, 0, (position + 7) >>> 3).slice();
+        }
+    }
+
+    private static class BitReader {
+        private final ByteBuffer buffer;
+        private final int start;
+        private final int limit;
+        private int position;
+
+        BitReader(ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.start = buffer.position();
+            this.limit = (buffer.limit() - start) * 8;
+        }
+
+        long readBits(int bits) {
+            if (position + bits > limit) {
+                throw new IllegalArgumentException("Truncated raw data block");
+            }
+            long value = 0;
+            while (bits > 0) {
+                int current = buffer.get(start + (position >>> 3)) & 0xFF;
+                int available = 8 - (position & 7);
+                int n = Math.min(available, bits);
+                value = (value << n) | ((current >>> (available - n)) & ((1 << n) - 1));
+                position += n;
+                bits -= n;
+            }
+            return value;
+        }
+    }
+
+}
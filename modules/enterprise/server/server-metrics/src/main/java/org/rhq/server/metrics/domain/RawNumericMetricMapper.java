@@ -25,6 +25,7 @@
 
 package org.rhq.server.metrics.domain;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -32,13 +33,42 @@ import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.Row;
 
 /**
+ * Maps rows of either raw data layout, a {@link MetricsTable#RAW} row per data point or a
+ * {@link MetricsTable#RAW_BLOCKS} row per {@link RawDataBlock}. Only the data points of a block that fall in the
+ * time range given to the constructor are mapped.
+ *
  * @author John Sanda
  */
 public class RawNumericMetricMapper implements ResultSetMapper<RawNumericMetric> {
 
+    private static final String BLOCK_COLUMN = "data";
+
+    private final long startTime;
+
+    private final long endTime;
+
+    public RawNumericMetricMapper() {
+        this(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param startTime The start of the time range of the block data points to map, inclusive
+     * @param endTime The end of the time range of the block data points to map, exclusive
+     */
+    public RawNumericMetricMapper(long startTime, long endTime) {
+        this.startTime = startTime;
+        this.endTime = endTime;
+    }
+
     @Override
     public List<RawNumericMetric> mapAll(ResultSet resultSet) {
         List<RawNumericMetric> metrics = new ArrayList<RawNumericMetric>();
+        if (isBlock(resultSet)) {
+            for (Row row : resultSet) {
+                metrics.addAll(decode(row));
+            }
+            return metrics;
+        }
         for (Row row : resultSet) {
             metrics.add(this.map(row));
         }
@@ -46,11 +76,23 @@ public class RawNumericMetricMapper implements ResultSetMapper<RawNumericMetric>
         return metrics;
     }
 
+    /**
+     * For blocks, this is the latest data point of the first block that has any in the time range.
+     */
     @Override
     public RawNumericMetric mapOne(ResultSet resultSet) {
         if (resultSet.isExhausted()) {
             return null;
         }
+        if (isBlock(resultSet)) {
+            for (Row row : resultSet) {
+                List<RawNumericMetric> metrics = decode(row);
+                if (!metrics.isEmpty()) {
+                    return metrics.get(metrics.size() - 1);
+                }
+            }
+            return null;
+        }
         return this.map(resultSet.one());
     }
 
@@ -58,14 +100,38 @@ public class RawNumericMetricMapper implements ResultSetMapper<RawNumericMetric>
     public List<RawNumericMetric> map(Row... row) {
         List<RawNumericMetric> metrics = new ArrayList<RawNumericMetric>();
         for (Row singleRow : row) {
-            metrics.add(this.map(singleRow));
+            if (isBlock(singleRow)) {
+                metrics.addAll(decode(singleRow));
+            } else {
+                metrics.add(this.map(singleRow));
+            }
         }
 
         return metrics;
     }
 
+    /**
+     * For a block, this is its latest data point in the time range or null if there is none.
+     */
     @Override
     public RawNumericMetric map(Row row) {
+        if (isBlock(row)) {
+            List<RawNumericMetric> metrics = decode(row);
+            return metrics.isEmpty() ? null : metrics.get(metrics.size() - 1);
+        }
         return new RawNumericMetric(row.getInt(0), row.getDate(1).getTime(), row.getDouble(2));
     }
+
+    private List<RawNumericMetric> decode(Row row) {
+        ByteBuffer block = row.getBytes(2);
+        return RawDataBlock.decode(row.getInt(0), block, startTime, endTime);
+    }
+
+    private static boolean isBlock(ResultSet resultSet) {
+        return resultSet.getColumnDefinitions().contains(BLOCK_COLUMN);
+    }
+
+    private static boolean isBlock(Row row) {
+        return row.getColumnDefinitions().contains(BLOCK_COLUMN);
+    }
 }
@@ -28,11 +28,16 @@ package org.rhq.server.metrics;
 import static java.util.Arrays.asList;
 import static org.rhq.test.AssertUtils.assertPropertiesMatch;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
+import com.datastax.driver.core.Row;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 
@@ -53,6 +58,12 @@ public class MetricsServerTest extends MetricsTest {
 
     private static final double TEST_PRECISION = Math.pow(10, -9);
 
+    private static final int GROUP_ID = 7;
+
+    private static final int DEFINITION_ID = 8;
+
+    private static final List<Integer> GROUP_MEMBERS = asList(123, 456);
+
     private MetricsServer metricsServer;
 
     @DataProvider(name="testDates")
@@ -71,6 +82,10 @@ public class MetricsServerTest extends MetricsTest {
     }
 
     public void initServer(DateTime testNow) throws Exception {
+        initServer(testNow, 4, 500);
+    }
+
+    private void initServer(DateTime testNow, int consumers, int batchSize) throws Exception {
         dateTimeServiceStub.setNow(testNow);
 
         metricsServer = new MetricsServer();
@@ -79,6 +94,8 @@ public class MetricsServerTest extends MetricsTest {
         metricsServer.setDateTimeService(dateTimeService);
 
         metricsServer.setDAO(dao);
+        metricsServer.setIngestionConsumers(consumers);
+        metricsServer.setIngestionBatchSize(batchSize);
         metricsServer.init();
 
         purgeDB();
@@ -153,6 +170,104 @@ public class MetricsServerTest extends MetricsTest {
         assertRawIndexEquals(hour(5), asList(scheduleId2, scheduleId3, scheduleId1, scheduleId4));
     }
 
+    @Test(dataProvider = "testDates")
+    public void insertRawDataForOneScheduleAsOneBatch(DateTime testNow) throws Exception {
+        initServer(testNow);
+
+        int scheduleId = 123;
+        List<MeasurementDataNumeric> data = new ArrayList<MeasurementDataNumeric>();
+        List<RawNumericMetric> expected = new ArrayList<RawNumericMetric>();
+        for (int i = 0; i < 10; ++i) {
+            data.add(new MeasurementDataNumeric(hour(4).plusMinutes(i).getMillis(), scheduleId, (double) i));
+            expected.add(new RawNumericMetric(scheduleId, hour(4).plusMinutes(i).getMillis(), (double) i));
+        }
+
+        dao.insertRawData(scheduleId, data).get();
+
+        assertRawDataEquals(scheduleId, hour(4), hour(5), expected);
+    }
+
+    @Test(dataProvider = "testDates")
+    public void insertRawDataForManySchedulesWithPartitionedConsumers(DateTime testNow) throws Exception {
+        initServer(testNow, 3, 4);
+
+        Set<MeasurementDataNumeric> data = new HashSet<MeasurementDataNumeric>();
+        List<Integer> scheduleIds = new ArrayList<Integer>();
+        for (int scheduleId = 100; scheduleId < 110; ++scheduleId) {
+            scheduleIds.add(scheduleId);
+            for (int i = 0; i < 5; ++i) {
+                data.add(new MeasurementDataNumeric(hour(5).plusMinutes(i).getMillis(), scheduleId, (double) i));
+            }
+        }
+
+        dateTimeServiceStub.setNow(hour(5).plusMinutes(30));
+        metricsServer.addNumericData(data, new WaitForRawInserts(1));
+        waitForRawDataInserted(data.size());
+
+        for (int scheduleId : scheduleIds) {
+            List<RawNumericMetric> expected = new ArrayList<RawNumericMetric>();
+            for (int i = 0; i < 5; ++i) {
+                expected.add(new RawNumericMetric(scheduleId, hour(5).plusMinutes(i).getMillis(), (double) i));
+            }
+            assertRawDataEquals(scheduleId, hour(5), hour(6), expected);
+        }
+        assertRawIndexEquals(hour(5), inIndexOrder(scheduleIds));
+        assertEquals(metricsServer.getRawDataReceivedCount(), data.size());
+        assertEquals(metricsServer.getQueueSize(), 0);
+    }
+
+    @Test(dataProvider = "testDates")
+    public void updateRawIndexOncePerScheduleAndTimeSlice(DateTime testNow) throws Exception {
+        initServer(testNow, 1, 500);
+
+        int scheduleId = 123;
+        dateTimeServiceStub.setNow(hour(5).plusMinutes(30));
+
+        metricsServer.addNumericData(ImmutableSet.of(
+            new MeasurementDataNumeric(hour(5).plusMinutes(1).getMillis(), scheduleId, 1.0),
+            new MeasurementDataNumeric(hour(5).plusMinutes(2).getMillis(), scheduleId, 2.0)),
+            new WaitForRawInserts(1));
+        waitForRawDataInserted(2);
+        assertEquals(metricsServer.getRawIndexUpdatesCount(), 1, "Expected one index update for the time slice");
+
+        metricsServer.addNumericData(ImmutableSet.of(
+            new MeasurementDataNumeric(hour(5).plusMinutes(3).getMillis(), scheduleId, 3.0)),
+            new WaitForRawInserts(1));
+        waitForRawDataInserted(3);
+        assertEquals(metricsServer.getRawIndexUpdatesCount(), 1,
+            "The index should not be updated again for a schedule already indexed in the current time slice");
+
+        // late data always updates the index since aggregation may already have removed the entry
+        metricsServer.addNumericData(ImmutableSet.of(
+            new MeasurementDataNumeric(hour(4).plusMinutes(50).getMillis(), scheduleId, 4.0)),
+            new WaitForRawInserts(1));
+        waitForRawDataInserted(4);
+        assertEquals(metricsServer.getRawIndexUpdatesCount(), 2, "Expected the index to be updated for late data");
+
+        assertRawIndexEquals(hour(4), asList(scheduleId));
+        assertRawIndexEquals(hour(5), asList(scheduleId));
+        assertRawDataEquals(scheduleId, hour(5), hour(6),
+            new RawNumericMetric(scheduleId, hour(5).plusMinutes(1).getMillis(), 1.0),
+            new RawNumericMetric(scheduleId, hour(5).plusMinutes(2).getMillis(), 2.0),
+            new RawNumericMetric(scheduleId, hour(5).plusMinutes(3).getMillis(), 3.0));
+    }
+
+    @Test
+    public void partitionRawDataBySchedule() {
+        int[] counts = new int[4];
+        for (int scheduleId = 0; scheduleId < 1000; ++scheduleId) {
+            int partition = MetricsServer.partition(scheduleId, counts.length);
+            assertEquals(MetricsServer.partition(scheduleId, counts.length), partition,
+                "The data of a schedule must always go to the same consumer");
+            ++counts[partition];
+        }
+        for (int count : counts) {
+            assertEquals(count, 250, "Schedules should be spread evenly across the consumers");
+        }
+        int partition = MetricsServer.partition(Integer.MIN_VALUE + 1, counts.length);
+        assertTrue(partition >= 0 && partition < counts.length, "Unexpected partition " + partition);
+    }
+
     @Test(dataProvider = "testDates")
     public void insertLateData(DateTime testNow) throws Exception {
         initServer(testNow);
@@ -853,6 +968,42 @@ public class MetricsServerTest extends MetricsTest {
             actual.get(59));
     }
 
+    @Test(dataProvider = "testDates")
+    public void find1HourDataCompositesForGroupOneQueryAtATime(DateTime testNow) throws Exception {
+        initServer(testNow);
+        metricsServer.setGroupQueryConcurrency(1);
+
+        DateTime beginTime = testNow.minusDays(11);
+        DateTime endTime = testNow;
+
+        Buckets buckets = new Buckets(beginTime, endTime);
+        DateTime bucket0Time = new DateTime(buckets.get(0).getStartTime());
+
+        int scheduleId1 = 123;
+        int scheduleId2 = 456;
+        int scheduleId3 = 789;
+
+        List<AggregateNumericMetric> metrics = asList(
+            new AggregateNumericMetric(scheduleId1, Bucket.ONE_HOUR, 1.1, 1.0, 1.2, bucket0Time.getMillis()),
+            new AggregateNumericMetric(scheduleId2, Bucket.ONE_HOUR, 2.1, 2.0, 2.2, bucket0Time.getMillis()),
+            new AggregateNumericMetric(scheduleId3, Bucket.ONE_HOUR, 3.1, 3.0, 3.2, bucket0Time.plusHours(1).getMillis())
+        );
+        for (AggregateNumericMetric metric : metrics) {
+            dao.insert1HourData(metric).get();
+        }
+
+        List<MeasurementDataNumericHighLowComposite> actual = metricsServer.findDataForGroup(
+            asList(scheduleId1, scheduleId2, scheduleId3), beginTime.getMillis(), endTime.getMillis(), 60);
+
+        assertEquals(actual.size(), buckets.getNumDataPoints(), "Expected to get back " + buckets.getNumDataPoints() +
+            " data points.");
+
+        MeasurementDataNumericHighLowComposite expectedBucket0 = new MeasurementDataNumericHighLowComposite(
+            buckets.get(0).getStartTime(), divide(1.1 + 2.1 + 3.1, 3), 3.2, 1.0);
+        assertPropertiesMatch("The data for bucket 0 does not match the expected values.", expectedBucket0,
+            actual.get(0));
+    }
+
     @Test(dataProvider = "testDates")
     public void find6HourDataComposites(DateTime testNow) throws Exception {
         initServer(testNow);
@@ -937,6 +1088,157 @@ public class MetricsServerTest extends MetricsTest {
             actual.get(59), TEST_PRECISION);
     }
 
+    @Test(dataProvider = "testDates")
+    public void readGroupMembersWhileTheRollupIsRegistered(DateTime testNow) throws Exception {
+        initServer(testNow);
+        metricsServer.setGroupRollupMinMembers(2);
+
+        DateTime beginTime = testNow.minusDays(11);
+        long bucket0Time = insertGroupMemberData(beginTime, testNow);
+
+        List<MeasurementDataNumericHighLowComposite> actual = metricsServer.findDataForGroup(GROUP_ID,
+            DEFINITION_ID, GROUP_MEMBERS, beginTime.getMillis(), testNow.getMillis(), 60);
+
+        assertPropertiesMatch("The data for bucket 0 should have been read from the member schedules",
+            new MeasurementDataNumericHighLowComposite(bucket0Time, divide(1.1 + 2.1, 2), 2.2, 1.0), actual.get(0));
+        // the rollup only covers the time slices aggregated after it has been registered
+        assertGroupRollupEquals(GROUP_MEMBERS, testNow);
+    }
+
+    @Test(dataProvider = "testDates")
+    public void doNotRegisterRollupForSmallGroups(DateTime testNow) throws Exception {
+        initServer(testNow);
+        metricsServer.setGroupRollupMinMembers(3);
+
+        DateTime beginTime = testNow.minusDays(11);
+        long bucket0Time = insertGroupMemberData(beginTime, testNow);
+
+        List<MeasurementDataNumericHighLowComposite> actual = metricsServer.findDataForGroup(GROUP_ID,
+            DEFINITION_ID, GROUP_MEMBERS, beginTime.getMillis(), testNow.getMillis(), 60);
+
+        assertPropertiesMatch("The data for bucket 0 should have been read from the member schedules",
+            new MeasurementDataNumericHighLowComposite(bucket0Time, divide(1.1 + 2.1, 2), 2.2, 1.0), actual.get(0));
+        assertNull(dao.findGroupRollup(GROUP_ID, DEFINITION_ID).one(), "No rollup should be registered for a " +
+            "group with less than the minimum number of members");
+    }
+
+    @Test(dataProvider = "testDates")
+    public void readGroupRollupThatCoversTheRange(DateTime testNow) throws Exception {
+        initServer(testNow);
+        metricsServer.setGroupRollupMinMembers(2);
+
+        DateTime beginTime = testNow.minusDays(11);
+        long bucket0Time = insertGroupMemberData(beginTime, testNow);
+        insertGroupRollup(GROUP_MEMBERS, beginTime.minusDays(1), bucket0Time);
+
+        List<MeasurementDataNumericHighLowComposite> actual = metricsServer.findDataForGroup(GROUP_ID,
+            DEFINITION_ID, GROUP_MEMBERS, beginTime.getMillis(), testNow.getMillis(), 60);
+
+        assertPropertiesMatch("The data for bucket 0 should have been read from the group rollup",
+            new MeasurementDataNumericHighLowComposite(bucket0Time, 5.0, 6.0, 4.0), actual.get(0));
+
+        AggregateNumericMetric summary = metricsServer.getSummaryAggregate(GROUP_ID, DEFINITION_ID, GROUP_MEMBERS,
+            beginTime.getMillis(), testNow.getMillis());
+
+        assertPropertiesMatch("The group summary aggregate should have been read from the group rollup",
+            new AggregateNumericMetric(0, Bucket.ONE_HOUR, 5.0, 4.0, 6.0, beginTime.getMillis()), summary,
+            TEST_PRECISION);
+    }
+
+    @Test(dataProvider = "testDates")
+    public void registerGroupRollupAgainWhenTheMembersChange(DateTime testNow) throws Exception {
+        initServer(testNow);
+        metricsServer.setGroupRollupMinMembers(2);
+
+        DateTime beginTime = testNow.minusDays(11);
+        insertGroupMemberData(beginTime, testNow);
+        insertGroupRollup(asList(123, 789), beginTime.minusDays(1), new Buckets(beginTime, testNow).get(0)
+            .getStartTime());
+
+        AggregateNumericMetric summary = metricsServer.getSummaryAggregate(GROUP_ID, DEFINITION_ID, GROUP_MEMBERS,
+            beginTime.getMillis(), testNow.getMillis());
+
+        assertPropertiesMatch("The group summary aggregate should have been read from the member schedules",
+            new AggregateNumericMetric(0, Bucket.ONE_HOUR, divide(1.1 + 2.1, 2), 1.0, 2.2, beginTime.getMillis()),
+            summary, TEST_PRECISION);
+        assertGroupRollupEquals(GROUP_MEMBERS, testNow);
+    }
+
+    @Test(dataProvider = "testDates")
+    public void readGroupMembersAfterTheRollupIsInvalidated(DateTime testNow) throws Exception {
+        initServer(testNow);
+        metricsServer.setGroupRollupMinMembers(2);
+
+        DateTime beginTime = testNow.minusDays(11);
+        long bucket0Time = insertGroupMemberData(beginTime, testNow);
+        insertGroupRollup(GROUP_MEMBERS, beginTime.minusDays(1), bucket0Time);
+
+        metricsServer.invalidateGroupRollups(GROUP_ID);
+
+        assertNull(dao.findGroupRollup(GROUP_ID, DEFINITION_ID).one(), "The group rollup should have been removed");
+
+        List<MeasurementDataNumericHighLowComposite> actual = metricsServer.findDataForGroup(GROUP_ID,
+            DEFINITION_ID, GROUP_MEMBERS, beginTime.getMillis(), testNow.getMillis(), 60);
+
+        assertPropertiesMatch("The data for bucket 0 should have been read from the member schedules",
+            new MeasurementDataNumericHighLowComposite(bucket0Time, divide(1.1 + 2.1, 2), 2.2, 1.0), actual.get(0));
+        assertGroupRollupEquals(GROUP_MEMBERS, testNow);
+    }
+
+    /**
+     * Stores 1 hour data for the {@link #GROUP_MEMBERS} in the first bucket of the range.
+     *
+     * @return The start time of the first bucket
+     */
+    private long insertGroupMemberData(DateTime beginTime, DateTime endTime) throws Exception {
+        long bucket0Time = new Buckets(beginTime, endTime).get(0).getStartTime();
+        dao.insert1HourData(new AggregateNumericMetric(123, Bucket.ONE_HOUR, 1.1, 1.0, 1.2, bucket0Time)).get();
+        dao.insert1HourData(new AggregateNumericMetric(456, Bucket.ONE_HOUR, 2.1, 2.0, 2.2, bucket0Time)).get();
+        return bucket0Time;
+    }
+
+    /**
+     * Registers a group rollup with a group aggregate that differs from the member data, so that the tests can tell
+     * which of them was read.
+     */
+    private void insertGroupRollup(List<Integer> scheduleIds, DateTime validSince, long timestamp) throws Exception {
+        dao.insertGroupRollup(GROUP_ID, DEFINITION_ID, new HashSet<Integer>(scheduleIds), validSince.getMillis());
+        dao.insertGroupAggregate(GROUP_ID, DEFINITION_ID, new AggregateNumericMetric(0, Bucket.ONE_HOUR, 5.0, 4.0,
+            6.0, timestamp)).get();
+    }
+
+    private void assertGroupRollupEquals(List<Integer> scheduleIds, DateTime validSince) {
+        Row rollup = dao.findGroupRollup(GROUP_ID, DEFINITION_ID).one();
+        assertNotNull(rollup, "The group rollup should have been registered");
+        assertEquals(rollup.getSet(0, Integer.class), new HashSet<Integer>(scheduleIds),
+            "The group rollup has the wrong members");
+        assertEquals(rollup.getDate(1).getTime(), validSince.getMillis(),
+            "The group rollup should be valid since it was registered");
+    }
+
+    private void waitForRawDataInserted(long count) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + 5000;
+        while (metricsServer.getRawDataInsertedCount() < count && System.currentTimeMillis() < timeout) {
+            Thread.sleep(50);
+        }
+        assertEquals(metricsServer.getRawDataInsertedCount(), count, "Failed to insert raw data");
+    }
+
+    /**
+     * @return The schedule ids in the order in which they are stored in the index, i.e., by partition first
+     */
+    private List<Integer> inIndexOrder(List<Integer> scheduleIds) {
+        List<Integer> ordered = new ArrayList<Integer>(scheduleIds.size());
+        for (int partition = 0; partition < configuration.getIndexPartitions(); ++partition) {
+            for (Integer scheduleId : scheduleIds) {
+                if (scheduleId % configuration.getIndexPartitions() == partition) {
+                    ordered.add(scheduleId);
+                }
+            }
+        }
+        return ordered;
+    }
+
     private void insertRawData(MeasurementDataNumeric... data) throws Exception {
         WaitForRawInserts waitForRawInserts = new WaitForRawInserts(data.length * 3);
         metricsServer.addNumericData(ImmutableSet.copyOf(data), waitForRawInserts);
@@ -0,0 +1,208 @@
+/*
+ *
+ *  * RHQ Management Platform
+ *  * Copyright (C) 2005-2014 Red Hat, Inc.
+ *  * All rights reserved.
+ *  *
+ *  * This program is free software; you can redistribute it and/or modify
+ *  * it under the terms of the GNU General Public License, version 2, as
+ *  * published by the Free Software Foundation, and/or the GNU Lesser
+ *  * General Public License, version 2.1, also as published by the Free
+ *  * Software Foundation.
+ *  *
+ *  * This program is distributed in the hope that it will be useful,
+ *  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  * GNU General Public License and the GNU Lesser General Public License
+ *  * for more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License
+ *  * and the GNU Lesser General Public License along with this program;
+ *  * if not, write to the Free Software Foundation, Inc.,
+ *  * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ */
+
+package org.rhq.server.metrics;
+
+import static java.util.Arrays.asList;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import com.datastax.driver.core.ResultSet;
+
+import org.joda.time.DateTime;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.rhq.core.domain.measurement.MeasurementDataNumeric;
+import org.rhq.server.metrics.domain.RawDataBlock;
+import org.rhq.server.metrics.domain.RawNumericMetric;
+import org.rhq.server.metrics.domain.RawNumericMetricMapper;
+
+/**
+ * Verifies that the buffered raw data blocks are written, merged with the stored blocks, evicted, and written again
+ * after a failed write.
+ */
+public class RawBlockBufferTest extends MetricsTest {
+
+    private static final int SCHEDULE_ID = 100;
+
+    private FailingDAO failingDAO;
+
+    private RawBlockBuffer buffer;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        purgeDB();
+        dateTimeServiceStub.setNow(hour(5).plusMinutes(30));
+        failingDAO = new FailingDAO();
+        buffer = new RawBlockBuffer(failingDAO, dateTimeServiceStub, configuration.getRawTimeSliceDuration(), 2);
+    }
+
+    @Test
+    public void flushWritesChangedBlocksOnly() throws Exception {
+        buffer.add(SCHEDULE_ID, asList(data(hour(5).plusMinutes(1), 1.0), data(hour(5).plusMinutes(2), 2.0)));
+        buffer.add(SCHEDULE_ID + 1, asList(data(hour(4).plusMinutes(50), 3.0)));
+
+        assertTrue(buffer.flush(), "The flush should have succeeded");
+        assertBlockEquals(SCHEDULE_ID, hour(5), raw(hour(5).plusMinutes(1), 1.0), raw(hour(5).plusMinutes(2), 2.0));
+        assertBlockEquals(SCHEDULE_ID + 1, hour(4), raw(hour(4).plusMinutes(50), 3.0));
+        assertEquals(buffer.getDataWritten(), 3, "The data written count is wrong");
+
+        assertTrue(buffer.flush(), "The flush should have succeeded");
+        assertEquals(buffer.getDataWritten(), 3, "Blocks that did not change should not be written again");
+
+        // a value for the same timestamp replaces the buffered one
+        buffer.add(SCHEDULE_ID, asList(data(hour(5).plusMinutes(2), 2.5)));
+
+        assertTrue(buffer.flush(), "The flush should have succeeded");
+        assertBlockEquals(SCHEDULE_ID, hour(5), raw(hour(5).plusMinutes(1), 1.0), raw(hour(5).plusMinutes(2), 2.5));
+        assertEquals(buffer.getDataWritten(), 4, "The data written count is wrong");
+    }
+
+    @Test
+    public void mergeWithTheStoredBlock() throws Exception {
+        insertBlock(SCHEDULE_ID, hour(5), raw(hour(5).plusMinutes(1), 1.0), raw(hour(5).plusMinutes(3), 3.0));
+
+        buffer.add(SCHEDULE_ID, asList(data(hour(5).plusMinutes(1), 10.0), data(hour(5).plusMinutes(2), 2.0)));
+
+        assertTrue(buffer.flush(), "The flush should have succeeded");
+        // the buffered data takes precedence over the stored data
+        assertBlockEquals(SCHEDULE_ID, hour(5), raw(hour(5).plusMinutes(1), 10.0), raw(hour(5).plusMinutes(2), 2.0),
+            raw(hour(5).plusMinutes(3), 3.0));
+    }
+
+    @Test
+    public void evictWrittenBlocksOfPastTimeSlices() throws Exception {
+        buffer.add(SCHEDULE_ID, asList(data(hour(5).plusMinutes(1), 1.0)));
+        buffer.add(SCHEDULE_ID, asList(data(hour(3).plusMinutes(1), 2.0)));
+
+        assertTrue(buffer.flush(), "The flush should have succeeded");
+        assertEquals(buffer.size(), 2, "Blocks should not be evicted before they have been written");
+
+        assertTrue(buffer.flush(), "The flush should have succeeded");
+        assertEquals(buffer.size(), 1, "The block of the past time slice should have been evicted");
+
+        // late data for the evicted time slice is merged with the stored block
+        buffer.add(SCHEDULE_ID, asList(data(hour(3).plusMinutes(2), 3.0)));
+
+        assertTrue(buffer.flush(), "The flush should have succeeded");
+        assertBlockEquals(SCHEDULE_ID, hour(3), raw(hour(3).plusMinutes(1), 2.0), raw(hour(3).plusMinutes(2), 3.0));
+    }
+
+    @Test
+    public void writeDirtyBlocksAgainAfterAFailedWrite() throws Exception {
+        buffer.add(SCHEDULE_ID, asList(data(hour(3).plusMinutes(1), 1.0)));
+        failingDAO.failWrites = true;
+
+        assertFalse(buffer.flush(), "The flush should have failed");
+        assertFalse(buffer.flush(), "The flush should have failed");
+        assertEquals(buffer.size(), 1, "A block that has not been written should not be evicted");
+        assertEquals(buffer.getDataWritten(), 0, "No data should have been written");
+        assertBlockEquals(SCHEDULE_ID, hour(3));
+
+        failingDAO.failWrites = false;
+
+        assertTrue(buffer.flush(), "The flush should have succeeded");
+        assertBlockEquals(SCHEDULE_ID, hour(3), raw(hour(3).plusMinutes(1), 1.0));
+        assertEquals(buffer.getDataWritten(), 1, "The data written count is wrong");
+    }
+
+    private MeasurementDataNumeric data(DateTime timestamp, double value) {
+        return new MeasurementDataNumeric(timestamp.getMillis(), SCHEDULE_ID, value);
+    }
+
+    private RawNumericMetric raw(DateTime timestamp, double value) {
+        return new RawNumericMetric(SCHEDULE_ID, timestamp.getMillis(), value);
+    }
+
+    private void insertBlock(int scheduleId, DateTime timeSlice, RawNumericMetric... metrics) {
+        long[] timestamps = new long[metrics.length];
+        double[] values = new double[metrics.length];
+        for (int i = 0; i < metrics.length; ++i) {
+            timestamps[i] = metrics[i].getTimestamp();
+            values[i] = metrics[i].getValue();
+        }
+        dao.insertRawBlock(scheduleId, timeSlice.getMillis(), RawDataBlock.encode(timestamps, values,
+            metrics.length)).get();
+    }
+
+    private void assertBlockEquals(int scheduleId, DateTime timeSlice, RawNumericMetric... expected) {
+        List<RawNumericMetric> actual = new RawNumericMetricMapper().mapAll(dao.findRawBlockAsync(scheduleId,
+            timeSlice.getMillis()).get());
+        List<RawNumericMetric> expectedMetrics = expected.length == 0 ? Collections.<RawNumericMetric>emptyList() :
+            asList(expected);
+        assertEquals(actual, expectedMetrics, "The raw data block of [scheduleId: " + scheduleId + ", timeSlice: " +
+            timeSlice + "] does not match the expected values");
+    }
+
+    private class FailingDAO extends MetricsDAO {
+
+        volatile boolean failWrites;
+
+        FailingDAO() {
+            super(storageSession, configuration);
+        }
+
+        @Override
+        public StorageResultSetFuture insertRawBlock(int scheduleId, long timeSlice, ByteBuffer data) {
+            if (failWrites) {
+                return new FailedStorageResultSetFuture(new RuntimeException("Failed to write the raw data block"));
+            }
+            return super.insertRawBlock(scheduleId, timeSlice, data);
+        }
+    }
+
+    private static class FailedStorageResultSetFuture extends StorageResultSetFuture {
+
+        private final RuntimeException exception;
+
+        FailedStorageResultSetFuture(RuntimeException exception) {
+            super(null, null);
+            this.exception = exception;
+        }
+
+        @Override
+        public void addListener(Runnable listener, Executor executor) {
+            executor.execute(listener);
+        }
+
+        @Override
+        public boolean isDone() {
+            return true;
+        }
+
+        @Override
+        public ResultSet get() {
+            throw exception;
+        }
+    }
+
+}
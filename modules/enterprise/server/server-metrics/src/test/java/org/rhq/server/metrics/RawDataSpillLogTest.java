@@ -0,0 +1,133 @@
+/*
+ * RHQ Management Platform
+ * Copyright 2014, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package org.rhq.server.metrics;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.rhq.core.domain.measurement.MeasurementDataNumeric;
+import org.rhq.core.util.file.FileUtil;
+
+public class RawDataSpillLogTest {
+
+    private File directory;
+
+    @BeforeMethod
+    public void createDirectory() throws Exception {
+        directory = FileUtil.createTempDirectory("raw-spill", null, null);
+    }
+
+    @AfterMethod
+    public void deleteDirectory() {
+        FileUtil.purge(directory, true);
+    }
+
+    @Test
+    public void appendAndReplay() throws Exception {
+        RawDataSpillLog spillLog = new RawDataSpillLog(directory, 4, 10);
+        List<MeasurementDataNumeric> data = createData(10);
+
+        Assert.assertEquals(spillLog.append(data), 10);
+        Assert.assertEquals(spillLog.getPendingRecords(), 10);
+
+        List<File> segments = spillLog.seal();
+        Assert.assertEquals(segments.size(), 3);
+
+        List<MeasurementDataNumeric> replayed = new ArrayList<MeasurementDataNumeric>();
+        for (File segment : segments) {
+            List<MeasurementDataNumeric> segmentData = spillLog.read(segment);
+            replayed.addAll(segmentData);
+            spillLog.replayed(segment, segmentData.size());
+        }
+        assertDataEquals(replayed, data);
+        Assert.assertEquals(spillLog.getPendingRecords(), 0);
+        Assert.assertTrue(spillLog.seal().isEmpty());
+        spillLog.close();
+    }
+
+    @Test
+    public void recoverAfterRestart() throws Exception {
+        RawDataSpillLog spillLog = new RawDataSpillLog(directory, 8, 10);
+        List<MeasurementDataNumeric> data = createData(5);
+        spillLog.append(data);
+        // simulate a crash, the active segment is neither sealed nor closed
+        spillLog.force();
+
+        RawDataSpillLog recovered = new RawDataSpillLog(directory, 8, 10);
+        Assert.assertEquals(recovered.getPendingRecords(), 5);
+        List<File> segments = recovered.seal();
+        Assert.assertEquals(segments.size(), 1);
+        assertDataEquals(recovered.read(segments.get(0)), data);
+        recovered.close();
+    }
+
+    @Test
+    public void stopAtTornRecord() throws Exception {
+        RawDataSpillLog spillLog = new RawDataSpillLog(directory, 8, 10);
+        List<MeasurementDataNumeric> data = createData(3);
+        spillLog.append(data);
+        File segment = spillLog.seal().get(0);
+
+        // corrupt the value of the last record
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            file.seek(16 + 2 * RawDataSpillLog.RECORD_SIZE + 12);
+            file.writeDouble(-1.0);
+        } finally {
+            file.close();
+        }
+
+        assertDataEquals(spillLog.read(segment), data.subList(0, 2));
+    }
+
+    @Test
+    public void stopAppendingWhenFull() throws Exception {
+        RawDataSpillLog spillLog = new RawDataSpillLog(directory, 2, 2);
+
+        Assert.assertEquals(spillLog.append(createData(5)), 4);
+        Assert.assertEquals(spillLog.getPendingRecords(), 4);
+        spillLog.close();
+    }
+
+    private List<MeasurementDataNumeric> createData(int count) {
+        List<MeasurementDataNumeric> data = new ArrayList<MeasurementDataNumeric>(count);
+        for (int i = 0; i < count; ++i) {
+            data.add(new MeasurementDataNumeric(1000L * i, 100 + i, 3.14 * i));
+        }
+        return data;
+    }
+
+    private void assertDataEquals(List<MeasurementDataNumeric> actual, List<MeasurementDataNumeric> expected) {
+        Assert.assertEquals(actual.size(), expected.size());
+        for (int i = 0; i < expected.size(); ++i) {
+            Assert.assertEquals(actual.get(i).getScheduleId(), expected.get(i).getScheduleId());
+            Assert.assertEquals(actual.get(i).getTimestamp(), expected.get(i).getTimestamp());
+            Assert.assertEquals(actual.get(i).getValue(), expected.get(i).getValue());
+        }
+    }
+}
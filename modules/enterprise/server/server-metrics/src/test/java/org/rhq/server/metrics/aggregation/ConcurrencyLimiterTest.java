@@ -0,0 +1,126 @@
+/*
+ *
+ *  * RHQ Management Platform
+ *  * Copyright (C) 2005-2014 Red Hat, Inc.
+ *  * All rights reserved.
+ *  *
+ *  * This program is free software; you can redistribute it and/or modify
+ *  * it under the terms of the GNU General Public License, version 2, as
+ *  * published by the Free Software Foundation, and/or the GNU Lesser
+ *  * General Public License, version 2.1, also as published by the Free
+ *  * Software Foundation.
+ *  *
+ *  * This program is distributed in the hope that it will be useful,
+ *  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  * GNU General Public License and the GNU Lesser General Public License
+ *  * for more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License
+ *  * and the GNU Lesser General Public License along with this program;
+ *  * if not, write to the Free Software Foundation, Inc.,
+ *  * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ */
+
+package org.rhq.server.metrics.aggregation;
+
+import static org.testng.Assert.assertEquals;
+
+import org.testng.annotations.Test;
+
+/**
+ * Verifies how the aggregation concurrency limit follows the task latency, and that the available permits match it.
+ */
+public class ConcurrencyLimiterTest {
+
+    private static final long LATENCY = 100;
+
+    @Test
+    public void increaseLimitAfterAWindowWithinTheBaseline() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 1, 10);
+
+        runTasks(limiter, 1, LATENCY);
+        assertEquals(limiter.getLimit(), 2, "The limit should not change before the window is complete");
+
+        runTasks(limiter, 1, LATENCY);
+        assertEquals(limiter.getLimit(), 3, "The limit should increase by one after a window within the baseline");
+        assertEquals(limiter.availablePermits(), 3, "All permits should be available when no task is in flight");
+    }
+
+    @Test
+    public void decreaseLimitAfterAWindowAboveTheBaseline() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(4, 1, 10);
+        runTasks(limiter, 4, LATENCY);
+        assertEquals(limiter.getLimit(), 5, "The first window sets the baseline and increases the limit");
+
+        runTasks(limiter, 5, LATENCY * 10);
+
+        assertEquals(limiter.getLimit(), 3, "The limit should be reduced by a quarter");
+        assertEquals(limiter.availablePermits(), 3, "All permits should be available when no task is in flight");
+    }
+
+    @Test
+    public void decreaseLimitWhileTasksAreInFlight() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(4, 1, 10);
+        for (int i = 0; i < 4; ++i) {
+            limiter.acquire();
+        }
+
+        // each failed task reduces the limit, the tasks that are still in flight keep their permits
+        int[] expectedLimits = {3, 2, 1, 1};
+        int[] expectedPermits = {0, 0, 0, 1};
+        for (int i = 0; i < expectedLimits.length; ++i) {
+            limiter.releaseFailed();
+            assertEquals(limiter.getLimit(), expectedLimits[i], "The limit should be reduced after a failed task");
+            assertEquals(limiter.availablePermits(), expectedPermits[i],
+                "The available permits should never become negative");
+        }
+    }
+
+    @Test
+    public void increaseLimitAgainAfterAFailure() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(4, 1, 10);
+        for (int i = 0; i < 4; ++i) {
+            limiter.acquire();
+        }
+        limiter.releaseFailed();
+        assertEquals(limiter.getLimit(), 3, "The limit should be reduced after a failed task");
+        assertEquals(limiter.availablePermits(), 0, "The tasks in flight should hold all of the permits");
+
+        for (int i = 0; i < 3; ++i) {
+            limiter.release(LATENCY);
+        }
+
+        assertEquals(limiter.getLimit(), 4, "The limit should increase after a window within the baseline");
+        assertEquals(limiter.availablePermits(), 4, "All permits should be available when no task is in flight");
+    }
+
+    @Test
+    public void keepLimitWithinBounds() throws Exception {
+        assertEquals(new ConcurrencyLimiter(20, 2, 8).getLimit(), 8, "The initial limit should be capped");
+        assertEquals(new ConcurrencyLimiter(0, 2, 8).getLimit(), 2, "The initial limit should be raised");
+
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 2, 8);
+        limiter.acquire();
+        limiter.releaseFailed();
+        assertEquals(limiter.getLimit(), 2, "The limit should not go below the minimum");
+
+        runTasks(limiter, 100, LATENCY);
+        assertEquals(limiter.getLimit(), 8, "The limit should not go above the maximum");
+        assertEquals(limiter.availablePermits(), 8, "All permits should be available when no task is in flight");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void rejectMinimumLimitBelowOne() {
+        new ConcurrencyLimiter(1, 0, 8);
+    }
+
+    private void runTasks(ConcurrencyLimiter limiter, int count, long latency) throws InterruptedException {
+        for (int i = 0; i < count; ++i) {
+            limiter.acquire();
+            limiter.release(latency);
+        }
+    }
+
+}
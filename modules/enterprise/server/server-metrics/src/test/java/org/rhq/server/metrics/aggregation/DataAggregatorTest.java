@@ -0,0 +1,200 @@
+/*
+ *
+ *  * RHQ Management Platform
+ *  * Copyright (C) 2005-2014 Red Hat, Inc.
+ *  * All rights reserved.
+ *  *
+ *  * This program is free software; you can redistribute it and/or modify
+ *  * it under the terms of the GNU General Public License, version 2, as
+ *  * published by the Free Software Foundation, and/or the GNU Lesser
+ *  * General Public License, version 2.1, also as published by the Free
+ *  * Software Foundation.
+ *  *
+ *  * This program is distributed in the hope that it will be useful,
+ *  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  * GNU General Public License and the GNU Lesser General Public License
+ *  * for more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License
+ *  * and the GNU Lesser General Public License along with this program;
+ *  * if not, write to the Free Software Foundation, Inc.,
+ *  * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ */
+
+package org.rhq.server.metrics.aggregation;
+
+import static java.util.Arrays.asList;
+import static org.testng.Assert.assertEquals;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.datastax.driver.core.ResultSet;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.joda.time.DateTime;
+import org.joda.time.Duration;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.rhq.core.domain.measurement.MeasurementDataNumeric;
+import org.rhq.server.metrics.MetricsTest;
+import org.rhq.server.metrics.domain.AggregateNumericMetric;
+import org.rhq.server.metrics.domain.Bucket;
+import org.rhq.server.metrics.domain.IndexBucket;
+import org.rhq.server.metrics.domain.NumericMetric;
+import org.rhq.server.metrics.domain.RawNumericMetric;
+
+/**
+ * Verifies that the raw aggregator hands schedules over to a pipelined 1 hour aggregator once their last 1 hour time
+ * slice of a finished 6 hour time slice has been stored, and that everything else is left for a regular pass.
+ */
+public class DataAggregatorTest extends MetricsTest {
+
+    private ListeningExecutorService aggregationTasks;
+
+    private ExecutorService pipelineTasks;
+
+    private PersistFunctions persistFunctions;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        purgeDB();
+        aggregationTasks = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(4));
+        pipelineTasks = Executors.newSingleThreadExecutor();
+        persistFunctions = new PersistFunctions(dao, dateTimeService);
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        pipelineTasks.shutdownNow();
+        aggregationTasks.shutdownNow();
+    }
+
+    @Test
+    public void handOverTheLastTimeSliceOfAFinishedSixHourTimeSlice() throws Exception {
+        // the last 1 hour time slice of the 6 hour time slice starting at hour 0
+        insertRawData(hour(5), 100, 3.0, 5.0);
+        // not the last 1 hour time slice
+        insertRawData(hour(4), 101, 4.0);
+        // the 6 hour time slice ends after the end time of the pipeline
+        insertRawData(hour(11), 103, 6.0);
+
+        DataAggregator<RawNumericMetric> rawAggregator = createRawAggregator(persistFunctions.persist1HourMetrics());
+        DataAggregator<AggregateNumericMetric> pipelined1HourAggregator = create1HourAggregator();
+        rawAggregator.setNextAggregator(pipelined1HourAggregator, hour(6));
+        Future<Integer> pipelined = executePipelined(pipelined1HourAggregator);
+
+        assertEquals(rawAggregator.execute(hour(0), hour(12)), 3, "Expected raw data of three schedules");
+        assertEquals(pipelined.get(1, TimeUnit.MINUTES).intValue(), 1, "Expected one schedule to be handed over");
+
+        assert6HourDataEquals(100, new AggregateNumericMetric(100, Bucket.SIX_HOUR, 4.0, 3.0, 5.0,
+            hour(0).getMillis()));
+        assert6HourDataEmpty(101, 103);
+        assert6HourIndexEquals(hour(0), asList(100));
+        // the schedules that were not handed over are left for the regular pass
+        assert1HourIndexEquals(hour(0), asList(101));
+        assert1HourIndexEquals(hour(6), asList(103));
+    }
+
+    @Test
+    public void aggregateScheduleWithPendingWorkOnce() throws Exception {
+        // whether the schedule is handed over depends on which of its time slices finishes last, it must be
+        // aggregated exactly once either way
+        insertRawData(hour(4), 102, 2.0);
+        insertRawData(hour(5), 102, 4.0);
+
+        DataAggregator<RawNumericMetric> rawAggregator = createRawAggregator(persistFunctions.persist1HourMetrics());
+        DataAggregator<AggregateNumericMetric> pipelined1HourAggregator = create1HourAggregator();
+        rawAggregator.setNextAggregator(pipelined1HourAggregator, hour(6));
+        Future<Integer> pipelined = executePipelined(pipelined1HourAggregator);
+
+        assertEquals(rawAggregator.execute(hour(0), hour(6)), 2, "Expected two 1 hour aggregates");
+        int numPipelined = pipelined.get(1, TimeUnit.MINUTES);
+        int numRegular = create1HourAggregator().execute(hour(0), hour(6));
+
+        assertEquals(numPipelined + numRegular, 1, "The schedule should be aggregated once, but it was aggregated " +
+            numPipelined + " times by the pipeline and " + numRegular + " times by the regular pass");
+        assert6HourDataEquals(102, new AggregateNumericMetric(102, Bucket.SIX_HOUR, 3.0, 2.0, 4.0,
+            hour(0).getMillis()));
+        assert1HourIndexEmpty(hour(0));
+    }
+
+    @Test
+    public void handOverNothingWhenTheBatchFails() throws Exception {
+        insertRawData(hour(5), 100, 3.0);
+
+        DataAggregator<RawNumericMetric> rawAggregator = createRawAggregator(
+            new AsyncFunction<List<AggregateNumericMetric>, List<ResultSet>>() {
+                @Override
+                public ListenableFuture<List<ResultSet>> apply(List<AggregateNumericMetric> metrics) {
+                    return Futures.immediateFailedFuture(new RuntimeException("Failed to store " + metrics));
+                }
+            });
+        DataAggregator<AggregateNumericMetric> pipelined1HourAggregator = create1HourAggregator();
+        rawAggregator.setNextAggregator(pipelined1HourAggregator, hour(6));
+        Future<Integer> pipelined = executePipelined(pipelined1HourAggregator);
+
+        assertEquals(rawAggregator.execute(hour(0), hour(6)), 0, "The raw aggregation should have failed");
+        assertEquals(pipelined.get(1, TimeUnit.MINUTES).intValue(), 0, "Nothing should have been handed over");
+
+        assert6HourDataEmpty(100);
+        assertRawIndexEquals(hour(5), asList(100));
+    }
+
+    private Future<Integer> executePipelined(final DataAggregator<AggregateNumericMetric> aggregator) {
+        return pipelineTasks.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return aggregator.executePipelined();
+            }
+        });
+    }
+
+    private DataAggregator<RawNumericMetric> createRawAggregator(
+        AsyncFunction<List<AggregateNumericMetric>, List<ResultSet>> persistMetrics) {
+        DataAggregator<RawNumericMetric> aggregator = new DataAggregator<RawNumericMetric>();
+        init(aggregator, IndexBucket.RAW, configuration.getRawTimeSliceDuration(), persistMetrics);
+        return aggregator;
+    }
+
+    private DataAggregator<AggregateNumericMetric> create1HourAggregator() {
+        DataAggregator<AggregateNumericMetric> aggregator = new DataAggregator<AggregateNumericMetric>();
+        init(aggregator, IndexBucket.ONE_HOUR, configuration.getOneHourTimeSliceDuration(),
+            persistFunctions.persist6HourMetrics());
+        return aggregator;
+    }
+
+    private <T extends NumericMetric> void init(DataAggregator<T> aggregator, IndexBucket bucket,
+        Duration timeSliceDuration, AsyncFunction<List<AggregateNumericMetric>, List<ResultSet>> persistMetrics) {
+        aggregator.setAggregationTasks(aggregationTasks);
+        aggregator.setBucket(bucket);
+        aggregator.setTimeSliceDuration(timeSliceDuration);
+        aggregator.setDao(dao);
+        aggregator.setPermits(new ConcurrencyLimiter(4, 1, 4));
+        aggregator.setDateTimeService(dateTimeService);
+        aggregator.setPersistMetrics(persistMetrics);
+        aggregator.setConfiguration(configuration);
+        aggregator.setBatchSize(2);
+    }
+
+    private void insertRawData(DateTime hour, int scheduleId, double... values) throws Exception {
+        for (int i = 0; i < values.length; ++i) {
+            dao.insertRawData(new MeasurementDataNumeric(hour.plusMinutes(10 * (i + 1)).getMillis(), scheduleId,
+                values[i])).get();
+        }
+        dao.updateIndex(IndexBucket.RAW, hour.getMillis(), scheduleId).get();
+    }
+
+}
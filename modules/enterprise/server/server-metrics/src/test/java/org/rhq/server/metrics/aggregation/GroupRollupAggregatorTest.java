@@ -0,0 +1,302 @@
+/*
+ *
+ *  * RHQ Management Platform
+ *  * Copyright (C) 2005-2014 Red Hat, Inc.
+ *  * All rights reserved.
+ *  *
+ *  * This program is free software; you can redistribute it and/or modify
+ *  * it under the terms of the GNU General Public License, version 2, as
+ *  * published by the Free Software Foundation, and/or the GNU Lesser
+ *  * General Public License, version 2.1, also as published by the Free
+ *  * Software Foundation.
+ *  *
+ *  * This program is distributed in the hope that it will be useful,
+ *  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  * GNU General Public License and the GNU Lesser General Public License
+ *  * for more details.
+ *  *
+ *  * You should have received a copy of the GNU General Public License
+ *  * and the GNU Lesser General Public License along with this program;
+ *  * if not, write to the Free Software Foundation, Inc.,
+ *  * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ */
+
+package org.rhq.server.metrics.aggregation;
+
+import static java.util.Arrays.asList;
+import static org.rhq.test.AssertUtils.assertPropertiesMatch;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.rhq.core.domain.measurement.MeasurementDataNumeric;
+import org.rhq.server.metrics.MetricsDAO;
+import org.rhq.server.metrics.MetricsTest;
+import org.rhq.server.metrics.StorageResultSetFuture;
+import org.rhq.server.metrics.domain.AggregateNumericMetric;
+import org.rhq.server.metrics.domain.Bucket;
+
+/**
+ * Verifies that the group aggregates of the time slices touched by a batch of member aggregates are recomputed from
+ * all of the group members.
+ */
+public class GroupRollupAggregatorTest extends MetricsTest {
+
+    private static final double TEST_PRECISION = Math.pow(10, -9);
+
+    private static final int GROUP_ID = 1;
+
+    private static final int DEFINITION_ID = 10;
+
+    @BeforeMethod
+    public void resetDB() throws Exception {
+        purgeDB();
+    }
+
+    @Test
+    public void aggregateTheTimeSliceFromAllMembers() throws Exception {
+        dao.insertGroupRollup(GROUP_ID, DEFINITION_ID, ImmutableSet.of(100, 101, 102), hour(0).getMillis());
+        List<AggregateNumericMetric> metrics = asList(
+            new AggregateNumericMetric(100, Bucket.ONE_HOUR, 2.0, 1.0, 3.0, hour(4).getMillis()),
+            new AggregateNumericMetric(101, Bucket.ONE_HOUR, 4.0, 0.5, 5.0, hour(4).getMillis()),
+            new AggregateNumericMetric(102, Bucket.ONE_HOUR, 6.0, 6.0, 8.0, hour(4).getMillis())
+        );
+        for (AggregateNumericMetric metric : metrics) {
+            dao.insert1HourData(metric).get();
+        }
+
+        GroupRollupAggregator aggregator = new GroupRollupAggregator(dao, 2);
+        aggregator.loadRollups();
+        // only one of the members has new data, the others still have to be included in the group aggregate
+        aggregator.onFinish(asList(metrics.get(0)));
+
+        assertEquals(aggregator.execute(), 1, "Expected one group time slice to be aggregated");
+        assertGroupDataEquals(GROUP_ID, DEFINITION_ID, Bucket.ONE_HOUR, new AggregateNumericMetric(0,
+            Bucket.ONE_HOUR, avg(2.0, 4.0, 6.0), 0.5, 8.0, hour(4).getMillis()));
+        assertEquals(aggregator.execute(), 0, "The time slices should have been cleared after the aggregation");
+    }
+
+    @Test
+    public void aggregateEachTimeSliceOnce() throws Exception {
+        dao.insertGroupRollup(GROUP_ID, DEFINITION_ID, ImmutableSet.of(100, 101), hour(0).getMillis());
+        List<AggregateNumericMetric> oneHourMetrics = asList(
+            new AggregateNumericMetric(100, Bucket.ONE_HOUR, 2.0, 1.0, 3.0, hour(4).getMillis()),
+            new AggregateNumericMetric(101, Bucket.ONE_HOUR, 4.0, 3.0, 5.0, hour(4).getMillis()),
+            new AggregateNumericMetric(100, Bucket.ONE_HOUR, 6.0, 5.0, 7.0, hour(5).getMillis())
+        );
+        for (AggregateNumericMetric metric : oneHourMetrics) {
+            dao.insert1HourData(metric).get();
+        }
+        AggregateNumericMetric sixHourMetric = new AggregateNumericMetric(101, Bucket.SIX_HOUR, 3.0, 2.0, 4.0,
+            hour(0).getMillis());
+        dao.insert6HourData(sixHourMetric).get();
+
+        GroupRollupAggregator aggregator = new GroupRollupAggregator(dao, 1);
+        aggregator.loadRollups();
+        // the batches of the pipelined aggregators may report several members of the same time slice
+        aggregator.onFinish(oneHourMetrics.subList(0, 2));
+        aggregator.onFinish(oneHourMetrics.subList(1, 3));
+        aggregator.onFinish(asList(sixHourMetric));
+
+        assertEquals(aggregator.execute(), 3, "Expected two 1 hour and one 6 hour group time slices");
+        assertGroupDataEquals(GROUP_ID, DEFINITION_ID, Bucket.ONE_HOUR,
+            new AggregateNumericMetric(0, Bucket.ONE_HOUR, avg(2.0, 4.0), 1.0, 5.0, hour(4).getMillis()),
+            new AggregateNumericMetric(0, Bucket.ONE_HOUR, 6.0, 5.0, 7.0, hour(5).getMillis()));
+        assertGroupDataEquals(GROUP_ID, DEFINITION_ID, Bucket.SIX_HOUR,
+            new AggregateNumericMetric(0, Bucket.SIX_HOUR, 3.0, 2.0, 4.0, hour(0).getMillis()));
+    }
+
+    @Test
+    public void aggregateOnlyTheGroupsOfTheReportedSchedules() throws Exception {
+        int otherGroupId = 2;
+        dao.insertGroupRollup(GROUP_ID, DEFINITION_ID, ImmutableSet.of(100, 101), hour(0).getMillis());
+        dao.insertGroupRollup(otherGroupId, DEFINITION_ID, ImmutableSet.of(100, 102), hour(0).getMillis());
+        dao.insertGroupRollup(3, DEFINITION_ID, ImmutableSet.of(103, 104), hour(0).getMillis());
+        AggregateNumericMetric metric = new AggregateNumericMetric(100, Bucket.ONE_HOUR, 2.0, 1.0, 3.0,
+            hour(4).getMillis());
+        dao.insert1HourData(metric).get();
+        dao.insert1HourData(new AggregateNumericMetric(103, Bucket.ONE_HOUR, 4.0, 3.0, 5.0,
+            hour(4).getMillis())).get();
+
+        GroupRollupAggregator aggregator = new GroupRollupAggregator(dao, 2);
+        aggregator.loadRollups();
+        aggregator.onFinish(asList(metric, new AggregateNumericMetric(200, Bucket.ONE_HOUR, 1.0, 1.0, 1.0,
+            hour(4).getMillis())));
+
+        assertEquals(aggregator.execute(), 2, "Expected the time slices of the two groups that schedule 100 is in");
+        // a member without data in the time slice does not count towards the group aggregate
+        AggregateNumericMetric expected = new AggregateNumericMetric(0, Bucket.ONE_HOUR, 2.0, 1.0, 3.0,
+            hour(4).getMillis());
+        assertGroupDataEquals(GROUP_ID, DEFINITION_ID, Bucket.ONE_HOUR, expected);
+        assertGroupDataEquals(otherGroupId, DEFINITION_ID, Bucket.ONE_HOUR, expected);
+        assertTrue(findGroupData(3, DEFINITION_ID, Bucket.ONE_HOUR).isEmpty(),
+            "The group of the schedules that were not reported should not have been aggregated");
+    }
+
+    @Test
+    public void doNothingWithoutRollups() throws Exception {
+        AggregateNumericMetric metric = new AggregateNumericMetric(100, Bucket.ONE_HOUR, 2.0, 1.0, 3.0,
+            hour(4).getMillis());
+        dao.insert1HourData(metric).get();
+
+        GroupRollupAggregator aggregator = new GroupRollupAggregator(dao, 2);
+        aggregator.loadRollups();
+        aggregator.onFinish(asList(metric));
+
+        assertEquals(aggregator.execute(), 0, "There are no group rollups to aggregate");
+    }
+
+    @Test
+    public void waitForAllQueriesAfterAFailedRowRead() throws Exception {
+        dao.insertGroupRollup(GROUP_ID, DEFINITION_ID, ImmutableSet.of(100, 101, 102), hour(0).getMillis());
+        dao.insertRawData(new MeasurementDataNumeric(hour(4).getMillis(), 100, 1.0)).get();
+        dao.insertRawData(new MeasurementDataNumeric(hour(4).getMillis(), 101, 2.0)).get();
+        AggregateNumericMetric metric = new AggregateNumericMetric(102, Bucket.ONE_HOUR, 2.0, 1.0, 3.0,
+            hour(4).getMillis());
+        dao.insert1HourData(metric).get();
+
+        SlowMemberDAO slowMemberDAO = new SlowMemberDAO(ImmutableSet.of(100, 101), 102);
+        final GroupRollupAggregator aggregator = new GroupRollupAggregator(slowMemberDAO, 1);
+        aggregator.loadRollups();
+        aggregator.onFinish(asList(metric));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> executed = executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return aggregator.execute();
+                }
+            });
+
+            // each failed member must release its permit once only, or execute would not wait for the slow member
+            try {
+                executed.get(1, TimeUnit.SECONDS);
+                fail("The aggregation should not finish while the query of a member is still in flight");
+            } catch (TimeoutException e) {
+                // expected
+            }
+
+            slowMemberDAO.finishSlowQuery();
+            assertEquals(executed.get(1, TimeUnit.MINUTES).intValue(), 1, "Expected one group time slice");
+            assertTrue(findGroupData(GROUP_ID, DEFINITION_ID, Bucket.ONE_HOUR).isEmpty(),
+                "A group time slice with a failed member should not have been stored");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void assertGroupDataEquals(int groupId, int definitionId, Bucket bucket,
+        AggregateNumericMetric... expected) throws InterruptedException {
+        // the group aggregates are written asynchronously
+        long timeout = System.currentTimeMillis() + 5000;
+        List<AggregateNumericMetric> actual = findGroupData(groupId, definitionId, bucket);
+        while (actual.size() < expected.length && System.currentTimeMillis() < timeout) {
+            Thread.sleep(50);
+            actual = findGroupData(groupId, definitionId, bucket);
+        }
+        assertEquals(actual.size(), expected.length, "The " + bucket + " data of group " + groupId +
+            " does not match the expected values: " + actual);
+        for (int i = 0; i < expected.length; ++i) {
+            assertPropertiesMatch("The " + bucket + " data of group " + groupId + " does not match the expected " +
+                "values", expected[i], actual.get(i), TEST_PRECISION);
+        }
+    }
+
+    private List<AggregateNumericMetric> findGroupData(int groupId, int definitionId, Bucket bucket) {
+        List<AggregateNumericMetric> metrics = new ArrayList<AggregateNumericMetric>();
+        // columns are group_id, bucket, time, avg, max, min
+        for (Row row : dao.findGroupAggregateMetrics(groupId, definitionId, bucket, yesterday().getMillis(),
+            tomorrow().getMillis())) {
+            metrics.add(new AggregateNumericMetric(0, bucket, row.getDouble(3), row.getDouble(5), row.getDouble(4),
+                row.getDate(2).getTime()));
+        }
+        return metrics;
+    }
+
+    /**
+     * Answers the aggregate queries of the failing schedules with raw data, which does not have the columns of an
+     * aggregate so reading the rows fails, and holds the result of the slow schedule back until told otherwise.
+     */
+    private class SlowMemberDAO extends MetricsDAO {
+
+        private final Set<Integer> failingScheduleIds;
+
+        private final int slowScheduleId;
+
+        private final SettableFuture<ResultSet> slowQuery = SettableFuture.create();
+
+        private volatile StorageResultSetFuture slowResult;
+
+        SlowMemberDAO(Set<Integer> failingScheduleIds, int slowScheduleId) {
+            super(storageSession, configuration);
+            this.failingScheduleIds = failingScheduleIds;
+            this.slowScheduleId = slowScheduleId;
+        }
+
+        @Override
+        public StorageResultSetFuture findAggregateMetricsAsync(int scheduleId, Bucket bucket, long startTime,
+            long endTime) {
+            if (failingScheduleIds.contains(scheduleId)) {
+                return findRawMetricsAsync(scheduleId, startTime, endTime);
+            }
+            if (scheduleId == slowScheduleId) {
+                slowResult = super.findAggregateMetricsAsync(scheduleId, bucket, startTime, endTime);
+                return new DelayedStorageResultSetFuture(slowQuery);
+            }
+            return super.findAggregateMetricsAsync(scheduleId, bucket, startTime, endTime);
+        }
+
+        void finishSlowQuery() {
+            slowQuery.set(slowResult.get());
+        }
+    }
+
+    private static class DelayedStorageResultSetFuture extends StorageResultSetFuture {
+
+        private final SettableFuture<ResultSet> result;
+
+        DelayedStorageResultSetFuture(SettableFuture<ResultSet> result) {
+            super(null, null);
+            this.result = result;
+        }
+
+        @Override
+        public void addListener(Runnable listener, Executor executor) {
+            result.addListener(listener, executor);
+        }
+
+        @Override
+        public boolean isDone() {
+            return result.isDone();
+        }
+
+        @Override
+        public ResultSet get() {
+            return Futures.getUnchecked(result);
+        }
+    }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * RHQ Management Platform
+ * Copyright 2014, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package org.rhq.server.metrics.domain;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class RawDataBlockTest {
+
+    private static final int POINTS = 120;
+
+    private static final long START = 1388534400000L;
+
+    @Test
+    public void roundTripRegularData() {
+        long[] timestamps = new long[POINTS];
+        double[] values = new double[POINTS];
+        Random random = new Random(42L);
+        for (int i = 0; i < POINTS; ++i) {
+            // collection times jitter by a few milliseconds, values are a slowly changing gauge
+            timestamps[i] = START + i * 30000L + random.nextInt(20);
+            values[i] = i % 10 == 0 ? 1024.0 + i : values[Math.max(0, i - 1)];
+        }
+
+        ByteBuffer block = RawDataBlock.encode(timestamps, values, POINTS);
+        assertDecoded(RawDataBlock.decode(7, block, Long.MIN_VALUE, Long.MAX_VALUE), timestamps, values, 0, POINTS);
+
+        // one cell per data point takes at least a timestamp and a value
+        Assert.assertTrue(block.remaining() * 5 < POINTS * 16, "Expected at least a 5x reduction but the block " +
+            "takes " + block.remaining() + " bytes");
+    }
+
+    @Test
+    public void roundTripIrregularData() {
+        long[] timestamps = new long[POINTS];
+        double[] values = new double[POINTS];
+        Random random = new Random(7L);
+        long timestamp = START;
+        for (int i = 0; i < POINTS; ++i) {
+            timestamp += 1 + random.nextInt(i % 2 == 0 ? 100 : 10000000);
+            timestamps[i] = timestamp;
+            values[i] = i % 3 == 0 ? random.nextDouble() : (i % 3 == 1 ? -random.nextLong() : Double.NaN);
+        }
+        timestamps[POINTS - 1] = Long.MAX_VALUE - 1;
+        values[POINTS - 1] = Double.NEGATIVE_INFINITY;
+
+        ByteBuffer block = RawDataBlock.encode(timestamps, values, POINTS);
+        assertDecoded(RawDataBlock.decode(7, block, Long.MIN_VALUE, Long.MAX_VALUE), timestamps, values, 0, POINTS);
+    }
+
+    @Test
+    public void decodeTimeRange() {
+        long[] timestamps = new long[POINTS];
+        double[] values = new double[POINTS];
+        for (int i = 0; i < POINTS; ++i) {
+            timestamps[i] = START + i * 60000L;
+            values[i] = i * 0.5;
+        }
+        ByteBuffer block = RawDataBlock.encode(timestamps, values, POINTS);
+
+        assertDecoded(RawDataBlock.decode(7, block, timestamps[10], timestamps[20]), timestamps, values, 10, 20);
+        Assert.assertTrue(RawDataBlock.decode(7, block, 0, START).isEmpty());
+        Assert.assertEquals(block.position(), 0, "Decoding should not move the position of the block");
+    }
+
+    @Test
+    public void emptyAndSingletonBlocks() {
+        ByteBuffer empty = RawDataBlock.encode(new long[0], new double[0], 0);
+        Assert.assertEquals(RawDataBlock.size(empty), 0);
+        Assert.assertTrue(RawDataBlock.decode(7, empty, Long.MIN_VALUE, Long.MAX_VALUE).isEmpty());
+
+        long[] timestamps = { START };
+        double[] values = { 3.14 };
+        ByteBuffer singleton = RawDataBlock.encode(timestamps, values, 1);
+        assertDecoded(RawDataBlock.decode(7, singleton, Long.MIN_VALUE, Long.MAX_VALUE), timestamps, values, 0, 1);
+    }
+
+    private void assertDecoded(List<RawNumericMetric> actual, long[] timestamps, double[] values, int from, int to) {
+        Assert.assertEquals(actual.size(), to - from);
+        for (int i = from; i < to; ++i) {
+            RawNumericMetric metric = actual.get(i - from);
+            Assert.assertEquals(metric.getScheduleId(), 7);
+            Assert.assertEquals(metric.getTimestamp(), timestamps[i]);
+            Assert.assertEquals(Double.doubleToRawLongBits(metric.getValue()), Double.doubleToRawLongBits(values[i]),
+                "Value " + i + " does not match");
+        }
+    }
+}
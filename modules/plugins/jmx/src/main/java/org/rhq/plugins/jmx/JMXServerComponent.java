@@ -22,6 +22,8 @@
  */
 package org.rhq.plugins.jmx;
 
+import java.util.Set;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.mc4j.ems.connection.EmsConnection;
@@ -29,10 +31,15 @@ import org.mc4j.ems.connection.support.ConnectionProvider;
 
 import org.rhq.core.domain.configuration.Configuration;
 import org.rhq.core.domain.measurement.AvailabilityType;
+import org.rhq.core.domain.measurement.MeasurementDataNumeric;
+import org.rhq.core.domain.measurement.MeasurementReport;
+import org.rhq.core.domain.measurement.MeasurementScheduleRequest;
 import org.rhq.core.pluginapi.inventory.InvalidPluginConfigurationException;
 import org.rhq.core.pluginapi.inventory.ResourceComponent;
 import org.rhq.core.pluginapi.inventory.ResourceContext;
+import org.rhq.core.pluginapi.measurement.MeasurementFacet;
 import org.rhq.plugins.jmx.util.ConnectionProviderFactory;
+import org.rhq.plugins.jmx.util.MBeanAttributeReadCounter;
 
 /**
  * The generic JMX server component used to create and cache a connection to a local or
@@ -47,10 +54,13 @@ import org.rhq.plugins.jmx.util.ConnectionProviderFactory;
  * @author Greg Hinkle
  * @author John Mazzitelli
  */
-public class JMXServerComponent<T extends ResourceComponent<?>> implements JMXComponent<T> {
+public class JMXServerComponent<T extends ResourceComponent<?>> implements JMXComponent<T>, MeasurementFacet {
 
     private static final Log log = LogFactory.getLog(JMXServerComponent.class);
 
+    /** The number of remote calls made to read MBean attributes through this server's connection */
+    public static final String ATTRIBUTE_READ_CALLS_METRIC = "attributeReadCalls";
+
     private volatile EmsConnection connection;
     private volatile ConnectionProvider connectionProvider;
 
@@ -129,6 +139,15 @@ public class JMXServerComponent<T extends ResourceComponent<?>> implements JMXCo
             : AvailabilityType.DOWN;
     }
 
+    public void getValues(MeasurementReport report, Set<MeasurementScheduleRequest> requests) throws Exception {
+        for (MeasurementScheduleRequest request : requests) {
+            if (ATTRIBUTE_READ_CALLS_METRIC.equals(request.getName())) {
+                long calls = MBeanAttributeReadCounter.getAndReset(this.connection);
+                report.addData(new MeasurementDataNumeric(request, (double) calls));
+            }
+        }
+    }
+
     protected ResourceContext getResourceContext() {
         return this.context;
     }
@@ -30,6 +30,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -37,6 +38,8 @@ import java.util.SortedSet;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
 import javax.management.openmbean.CompositeData;
 
 import org.apache.commons.logging.Log;
@@ -67,6 +70,7 @@ import org.rhq.core.pluginapi.measurement.MeasurementFacet;
 import org.rhq.core.pluginapi.operation.OperationFacet;
 import org.rhq.core.pluginapi.operation.OperationResult;
 import org.rhq.core.util.exception.ThrowableUtil;
+import org.rhq.plugins.jmx.util.MBeanAttributeReadCounter;
 
 /**
  * A generic JMX MBean resource component that can be used to manage a JMX MBean. The resource's plugin configuration
@@ -90,6 +94,10 @@ public class MBeanResourceComponent<T extends JMXComponent<?>> implements Measur
     private static final Pattern TEMPLATE_PATTERN = Pattern.compile("%([^%]+)%");
 
     private static final String CALCULATED_METRIC_HEAP_USAGE_PERCENTAGE = "Calculated.HeapUsagePercentage";
+    private static final MeasurementScheduleRequest HEAP_USED_REQUEST = new MeasurementScheduleRequest(0,
+        "{HeapMemoryUsage.used}", 0L, true, DataType.MEASUREMENT);
+    private static final MeasurementScheduleRequest HEAP_COMMITTED_REQUEST = new MeasurementScheduleRequest(0,
+        "{HeapMemoryUsage.committed}", 0L, true, DataType.MEASUREMENT);
 
     // these two should be private - subclasses need to override the getter/setter/load methods to affect these
     /**
@@ -270,20 +278,34 @@ public class MBeanResourceComponent<T extends JMXComponent<?>> implements Measur
      * @param bean     the EmsBean on which to collect the metrics
      */
     protected void getValues(MeasurementReport report, Set<MeasurementScheduleRequest> requests, EmsBean bean) {
-        // First we split the requests into their respective beans, and handle calculated values
+        // First we split the requests into their respective beans, so that all attributes of a bean are read with one
+        // call, and handle calculated values
+        String defaultBeanName = bean.getBeanName().getCanonicalName();
         Set<MeasurementScheduleRequest> defaultBeanRequests = new HashSet<MeasurementScheduleRequest>();
+        Set<MeasurementScheduleRequest> calculatedRequests = new HashSet<MeasurementScheduleRequest>();
         Map<String, Set<MeasurementScheduleRequest>> beansMap = new HashMap<String, Set<MeasurementScheduleRequest>>();
+        Map<String, String> beanNames = new HashMap<String, String>();
         for (MeasurementScheduleRequest request : requests) {
-            if (getCalculatedProperty(report, request, bean)) {
+            if (CALCULATED_METRIC_HEAP_USAGE_PERCENTAGE.equals(request.getName())) {
+                calculatedRequests.add(request);
                 continue;
             }
             Matcher m = PROPERTY_PATTERN.matcher(request.getName());
             if (m.matches() && (m.group(1) != null)) {
-                // Custom bean
-                Set<MeasurementScheduleRequest> props = beansMap.get(m.group(1));
+                // Custom bean, several templates may resolve to the same bean
+                String beanName = beanNames.get(m.group(1));
+                if (beanName == null) {
+                    beanName = getCanonicalBeanName(transformBeanName(m.group(1)));
+                    beanNames.put(m.group(1), beanName);
+                }
+                if (beanName.equals(defaultBeanName)) {
+                    defaultBeanRequests.add(request);
+                    continue;
+                }
+                Set<MeasurementScheduleRequest> props = beansMap.get(beanName);
                 if (props == null) {
                     props = new HashSet<MeasurementScheduleRequest>();
-                    beansMap.put(m.group(1), props);
+                    beansMap.put(beanName, props);
                 }
 
                 props.add(request);
@@ -292,62 +314,73 @@ public class MBeanResourceComponent<T extends JMXComponent<?>> implements Measur
             }
         }
 
-        // First do the default properties against this component's main bean
-        getBeanProperties(report, bean, defaultBeanRequests);
+        // First do the default properties against this component's main bean, along with the attributes the
+        // calculated values are based on
+        if (calculatedRequests.isEmpty()) {
+            if (!defaultBeanRequests.isEmpty()) {
+                getBeanProperties(report, bean, defaultBeanRequests);
+            }
+        } else {
+            MeasurementReport defaultBeanReport = new MeasurementReport();
+            defaultBeanRequests.add(HEAP_USED_REQUEST);
+            defaultBeanRequests.add(HEAP_COMMITTED_REQUEST);
+            getBeanProperties(defaultBeanReport, bean, defaultBeanRequests);
+            addCalculatedProperties(report, defaultBeanReport, calculatedRequests);
+        }
 
-        for (String beanNameTemplate : beansMap.keySet()) {
-            String transformedbeanName = transformBeanName(beanNameTemplate);
-            EmsBean otherBean = getEmsConnection().getBean(transformedbeanName);
+        for (String beanName : beansMap.keySet()) {
+            EmsBean otherBean = getEmsConnection().getBean(beanName);
             if (otherBean == null) {
-                log.info("Unable to retrieve associated MBean: " + transformedbeanName);
+                log.info("Unable to retrieve associated MBean: " + beanName);
             } else {
-                getBeanProperties(report, otherBean, beansMap.get(beanNameTemplate));
+                getBeanProperties(report, otherBean, beansMap.get(beanName));
             }
         }
     }
 
-    private boolean getCalculatedProperty(MeasurementReport report, MeasurementScheduleRequest request, EmsBean bean) {
-        boolean result = false;
-        String metricName = request.getName();
-
-        if (CALCULATED_METRIC_HEAP_USAGE_PERCENTAGE.equals(request.getName())) {
-            result = true;
-
-            MeasurementReport calculationPropsReport = new MeasurementReport();
-            Set<MeasurementScheduleRequest> calculationPropsSchedules = new HashSet(2);
-
-            MeasurementScheduleRequest heapUsedRequest = new MeasurementScheduleRequest(0, "{HeapMemoryUsage.used}",
-                0L, true, DataType.MEASUREMENT);
-            MeasurementScheduleRequest heapComittedRequest = new MeasurementScheduleRequest(0,
-                "{HeapMemoryUsage.committed}", 0L, true, DataType.MEASUREMENT);
-            calculationPropsSchedules.add(heapUsedRequest);
-            calculationPropsSchedules.add(heapComittedRequest);
-
-            getBeanProperties(calculationPropsReport, bean, calculationPropsSchedules);
-            Set<MeasurementDataNumeric> values = calculationPropsReport.getNumericData();
-            Double heapUsed = Double.NaN;
-            Double heapCommitted = Double.NaN;
-            if (null != values && values.size() == 2) {
-                for (MeasurementDataNumeric v : values) {
-                    if (v.getName().equals("{HeapMemoryUsage.used}")) {
-                        heapUsed = v.getValue();
-                    } else {
-                        heapCommitted = v.getValue();
-                    }
-                }
+    /**
+     * Adds the calculated values, and everything else that was collected along with the values they are based on, to
+     * the report.
+     */
+    private void addCalculatedProperties(MeasurementReport report, MeasurementReport defaultBeanReport,
+        Set<MeasurementScheduleRequest> calculatedRequests) {
+        Double heapUsed = Double.NaN;
+        Double heapCommitted = Double.NaN;
+        for (MeasurementDataNumeric data : defaultBeanReport.getNumericData()) {
+            if (isDataFor(data, HEAP_USED_REQUEST)) {
+                heapUsed = data.getValue();
+            } else if (isDataFor(data, HEAP_COMMITTED_REQUEST)) {
+                heapCommitted = data.getValue();
+            } else {
+                report.addData(data);
             }
+        }
+        for (MeasurementDataTrait data : defaultBeanReport.getTraitData()) {
+            report.addData(data);
+        }
 
-            Double value = Double.NaN;
-            try {
-                value = heapUsed / heapCommitted;
-            } catch (Throwable t) {
-                // leave as NaN
-            }
+        Double value = Double.NaN;
+        try {
+            value = heapUsed / heapCommitted;
+        } catch (Throwable t) {
+            // leave as NaN
+        }
 
+        for (MeasurementScheduleRequest request : calculatedRequests) {
             report.addData(new MeasurementDataNumeric(request, value));
         }
+    }
+
+    private static boolean isDataFor(MeasurementDataNumeric data, MeasurementScheduleRequest request) {
+        return (data.getScheduleId() == request.getScheduleId()) && request.getName().equals(data.getName());
+    }
 
-        return result;
+    private static String getCanonicalBeanName(String beanName) {
+        try {
+            return new ObjectName(beanName).getCanonicalName();
+        } catch (MalformedObjectNameException e) {
+            return beanName;
+        }
     }
 
     protected String transformBeanName(String beanTemplate) {
@@ -367,7 +400,8 @@ public class MBeanResourceComponent<T extends JMXComponent<?>> implements Measur
 
     protected void getBeanProperties(MeasurementReport report, EmsBean thisBean,
         Set<MeasurementScheduleRequest> requests) {
-        List<String> props = new ArrayList<String>();
+        // several requests may be for properties of the same attribute, read every attribute once
+        Set<String> props = new LinkedHashSet<String>();
         for (MeasurementScheduleRequest request : requests) {
             Matcher m = PROPERTY_PATTERN.matcher(request.getName());
             if (m.matches()) {
@@ -379,7 +413,13 @@ public class MBeanResourceComponent<T extends JMXComponent<?>> implements Measur
             }
         }
 
-        List<EmsAttribute> refreshedAttributes = thisBean.refreshAttributes(props);
+        // all attributes are read with a single getAttributes call on the bean
+        MBeanAttributeReadCounter.increment(thisBean.getConnectionProvider().getExistingConnection());
+        List<EmsAttribute> refreshedAttributes = thisBean.refreshAttributes(new ArrayList<String>(props));
+        Map<String, EmsAttribute> attributesByName = new HashMap<String, EmsAttribute>();
+        for (EmsAttribute refreshedAttribute : refreshedAttributes) {
+            attributesByName.put(refreshedAttribute.getName(), refreshedAttribute);
+        }
 
         for (MeasurementScheduleRequest request : requests) {
             Matcher m = PROPERTY_PATTERN.matcher(request.getName());
@@ -393,12 +433,7 @@ public class MBeanResourceComponent<T extends JMXComponent<?>> implements Measur
                 attributeName = request.getName();
             }
 
-            EmsAttribute attribute = null;
-            for (EmsAttribute refreshedAttribute : refreshedAttributes) {
-                if (attributeName.equals(refreshedAttribute.getName())) {
-                    attribute = refreshedAttribute;
-                }
-            }
+            EmsAttribute attribute = attributesByName.get(attributeName);
 
             if (attribute == null) {
                 log.debug("Unable to collect measurement, attribute [" + request.getName() + "] not found on ["
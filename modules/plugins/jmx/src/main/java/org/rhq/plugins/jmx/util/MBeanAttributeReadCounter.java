@@ -0,0 +1,76 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2014 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License, version 2, as
+ * published by the Free Software Foundation, and/or the GNU Lesser
+ * General Public License, version 2.1, also as published by the Free
+ * Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License and the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * and the GNU Lesser General Public License along with this program;
+ * if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.rhq.plugins.jmx.util;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.mc4j.ems.connection.EmsConnection;
+
+/**
+ * Counts the remote calls made to read MBean attributes, per EMS connection. The count of a connection is reported,
+ * and reset, by the {@link org.rhq.plugins.jmx.JMXServerComponent} that owns the connection, so it is the number of
+ * calls made since the previous collection of that metric.
+ *
+ * @since 4.14
+ */
+public final class MBeanAttributeReadCounter {
+
+    // guarded by itself; the counts go away along with their connections
+    private static final Map<EmsConnection, long[]> COUNTS = new WeakHashMap<EmsConnection, long[]>();
+
+    private MBeanAttributeReadCounter() {
+    }
+
+    public static void increment(EmsConnection connection) {
+        if (connection == null) {
+            return;
+        }
+        synchronized (COUNTS) {
+            long[] count = COUNTS.get(connection);
+            if (count == null) {
+                count = new long[1];
+                COUNTS.put(connection, count);
+            }
+            count[0]++;
+        }
+    }
+
+    /**
+     * @return the number of calls counted for the given connection since the previous invocation of this method
+     */
+    public static long getAndReset(EmsConnection connection) {
+        if (connection == null) {
+            return 0L;
+        }
+        synchronized (COUNTS) {
+            long[] count = COUNTS.get(connection);
+            if (count == null) {
+                return 0L;
+            }
+            long calls = count[0];
+            count[0] = 0L;
+            return calls;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2014 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License, version 2, as
+ * published by the Free Software Foundation, and/or the GNU Lesser
+ * General Public License, version 2.1, also as published by the Free
+ * Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License and the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * and the GNU Lesser General Public License along with this program;
+ * if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.rhq.plugins.jmx.test;
+
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.ObjectName;
+
+import org.mc4j.ems.connection.EmsConnection;
+import org.mc4j.ems.connection.bean.EmsBean;
+import org.mc4j.ems.connection.bean.attribute.EmsAttribute;
+import org.mc4j.ems.connection.support.ConnectionProvider;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.Test;
+
+import org.rhq.core.domain.measurement.DataType;
+import org.rhq.core.domain.measurement.MeasurementDataNumeric;
+import org.rhq.core.domain.measurement.MeasurementReport;
+import org.rhq.core.domain.measurement.MeasurementScheduleRequest;
+import org.rhq.plugins.jmx.JMXComponent;
+import org.rhq.plugins.jmx.MBeanResourceComponent;
+import org.rhq.plugins.jmx.util.MBeanAttributeReadCounter;
+
+@Test
+public class MBeanResourceComponentTest {
+
+    public void readAllAttributesOfBeanInOneCall() throws Exception {
+        EmsConnection connection = mock(EmsConnection.class);
+        ConnectionProvider connectionProvider = mock(ConnectionProvider.class);
+        when(connectionProvider.getExistingConnection()).thenReturn(connection);
+
+        EmsBean bean = mock(EmsBean.class);
+        when(bean.getBeanName()).thenReturn(new ObjectName("java.lang:type=Memory"));
+        when(bean.getConnectionProvider()).thenReturn(connectionProvider);
+        List<EmsAttribute> attributes = new ArrayList<EmsAttribute>();
+        attributes.add(attribute("HeapMemoryUsage", new MemoryUsage(0L, 25L, 100L, 200L)));
+        attributes.add(attribute("ObjectPendingFinalizationCount", 3));
+        when(bean.refreshAttributes(anyListOf(String.class))).thenReturn(attributes);
+
+        Set<MeasurementScheduleRequest> requests = new HashSet<MeasurementScheduleRequest>();
+        requests.add(request(1, "{HeapMemoryUsage.used}"));
+        requests.add(request(2, "{HeapMemoryUsage.committed}"));
+        requests.add(request(3, "ObjectPendingFinalizationCount"));
+        requests.add(request(4, "Calculated.HeapUsagePercentage"));
+
+        MBeanAttributeReadCounter.getAndReset(connection);
+        MeasurementReport report = new MeasurementReport();
+        new TestComponent().getValues(report, requests, bean);
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        Class<List<String>> listClass = (Class) List.class;
+        ArgumentCaptor<List<String>> attributeNames = ArgumentCaptor.forClass(listClass);
+        verify(bean, times(1)).refreshAttributes(attributeNames.capture());
+        assertEquals(attributeNames.getValue().size(), 2, "Expected every attribute to be read once");
+        assertEquals(new HashSet<String>(attributeNames.getValue()),
+            new HashSet<String>(Arrays.asList("HeapMemoryUsage", "ObjectPendingFinalizationCount")));
+        assertEquals(MBeanAttributeReadCounter.getAndReset(connection), 1L);
+
+        Map<Integer, Double> values = new HashMap<Integer, Double>();
+        for (MeasurementDataNumeric data : report.getNumericData()) {
+            values.put(data.getScheduleId(), data.getValue());
+        }
+        assertEquals(values.size(), 4, "Expected the values of the calculation not to be reported: " + values);
+        assertEquals(values.get(1), 25.0);
+        assertEquals(values.get(2), 100.0);
+        assertEquals(values.get(3), 3.0);
+        assertEquals(values.get(4), 0.25);
+    }
+
+    private static EmsAttribute attribute(String name, Object value) {
+        EmsAttribute attribute = mock(EmsAttribute.class);
+        when(attribute.getName()).thenReturn(name);
+        when(attribute.getValue()).thenReturn(value);
+        return attribute;
+    }
+
+    private static MeasurementScheduleRequest request(int scheduleId, String name) {
+        return new MeasurementScheduleRequest(scheduleId, name, 60000L, true, DataType.MEASUREMENT);
+    }
+
+    private static class TestComponent extends MBeanResourceComponent<JMXComponent<?>> {
+        @Override
+        protected void getValues(MeasurementReport report, Set<MeasurementScheduleRequest> requests, EmsBean bean) {
+            super.getValues(report, requests, bean);
+        }
+    }
+}
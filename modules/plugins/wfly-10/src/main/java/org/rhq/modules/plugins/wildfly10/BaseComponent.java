@@ -21,10 +21,14 @@ package org.rhq.modules.plugins.wildfly10;
 
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.TimeoutException;
 
 import org.apache.commons.logging.Log;
@@ -65,6 +69,7 @@ import org.rhq.core.pluginapi.operation.OperationResult;
 import org.rhq.core.pluginapi.util.StartScriptConfiguration;
 import org.rhq.modules.plugins.wildfly10.helper.Deployer;
 import org.rhq.modules.plugins.wildfly10.json.Address;
+import org.rhq.modules.plugins.wildfly10.json.CompositeOperation;
 import org.rhq.modules.plugins.wildfly10.json.Operation;
 import org.rhq.modules.plugins.wildfly10.json.ReadAttribute;
 import org.rhq.modules.plugins.wildfly10.json.ReadChildrenNames;
@@ -96,6 +101,8 @@ public class BaseComponent<T extends ResourceComponent<?>> implements AS7Compone
     public static final String MANAGED_SERVER = "Managed Server";
 
     private static final String PROFILE_SUFFIX = " (Profile)";
+    // how long attributes are read one by one before they are tried in the composite operation again
+    private static final long UNBATCHED_ATTRIBUTES_RETRY_INTERVAL = 60L * 60L * 1000L;
 
     /**
      * @deprecated as of 4.10. Use your own logger or {@link #getLog()} method.
@@ -113,6 +120,10 @@ public class BaseComponent<T extends ResourceComponent<?>> implements AS7Compone
     boolean includeRuntime;
 
     private BaseServerComponent serverComponent;
+    // attributes that cannot be read in a composite operation with the other metric attributes
+    private final Set<String> unbatchedAttributes = new CopyOnWriteArraySet<String>();
+    // when the unbatched attributes are tried in the composite operation again
+    volatile long unbatchedAttributesRetryTime;
     protected ASConnection testConnection;
 
     /**
@@ -183,15 +194,115 @@ public class BaseComponent<T extends ResourceComponent<?>> implements AS7Compone
     }
 
     /**
-     * Gather measurement data
+     * Gather measurement data. The attributes of all requests are read with one management operation, see
+     * {@link #getMetricValues(MeasurementReport, Collection, Set)}.
      * @see org.rhq.core.pluginapi.measurement.MeasurementFacet#getValues(org.rhq.core.domain.measurement.MeasurementReport, java.util.Set)
      */
     @Override
     public void getValues(MeasurementReport report, Set<MeasurementScheduleRequest> metrics) throws Exception {
+        getMetricValues(report, metrics, null);
+    }
 
-        for (MeasurementScheduleRequest req : metrics) {
-            getMetricValue(report, req, null);
+    /**
+     * gets metric values for given requests. The attributes of all requests are read with a single composite
+     * operation, and the expressions to resolve with another one, instead of one operation per request. If the
+     * composite operation fails, e.g. because one of the attributes is unknown to this version of the server, the
+     * attributes are read one by one like {@link #getMetricValue(MeasurementReport, MeasurementScheduleRequest, Set)}
+     * does. The attributes that cannot be read while others can are left out of the composite operation for an hour.
+     * @param report
+     * @param requests
+     * @param explicitExpressions set of metric names that could be represented by expression instead of value on AS7 (can be null)
+     * @return ReadMetricResult of each request
+     */
+    protected Map<MeasurementScheduleRequest, ReadMetricResult> getMetricValues(MeasurementReport report,
+        Collection<MeasurementScheduleRequest> requests, Set<String> explicitExpressions) {
+        Map<MeasurementScheduleRequest, ReadMetricResult> results =
+            new HashMap<MeasurementScheduleRequest, ReadMetricResult>();
+        // the server may have been upgraded, or the attributes may have failed for a reason that has gone away
+        if (!unbatchedAttributes.isEmpty() && System.currentTimeMillis() >= unbatchedAttributesRetryTime) {
+            unbatchedAttributes.clear();
+        }
+        List<MetricRequest> batch = new ArrayList<MetricRequest>(requests.size());
+        for (MeasurementScheduleRequest req : requests) {
+            if (req.getName().startsWith(INTERNAL)) {
+                processPluginStats(req, report);
+                results.put(req, ReadMetricResult.Success);
+                continue;
+            }
+            MetricRequest metricRequest = new MetricRequest(req, explicitExpressions);
+            if (unbatchedAttributes.contains(metricRequest.attribute)) {
+                results.put(req, getMetricValue(report, metricRequest, null));
+            } else {
+                batch.add(metricRequest);
+            }
+        }
+        if (batch.size() == 1) {
+            results.put(batch.get(0).req, getMetricValue(report, batch.get(0), null));
+            return results;
+        } else if (batch.isEmpty()) {
+            return results;
+        }
+
+        // several requests may be for the same attribute, e.g. for different keys of a complex attribute
+        Map<String, Integer> steps = new HashMap<String, Integer>();
+        CompositeOperation readOperation = new CompositeOperation();
+        for (MetricRequest metricRequest : batch) {
+            if (!steps.containsKey(metricRequest.attribute)) {
+                steps.put(metricRequest.attribute, readOperation.numberOfSteps());
+                readOperation.addStep(new ReadAttribute(address, metricRequest.attribute));
+            }
+        }
+        List<Result> readResults = executeSteps(readOperation);
+        if (readResults == null) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Reading " + readOperation.numberOfSteps() + " metric attributes at [" + address
+                    + "] in one operation failed, reading them one by one");
+            }
+            Set<String> failedAttributes = new HashSet<String>();
+            boolean anyRead = false;
+            for (MetricRequest metricRequest : batch) {
+                ReadMetricResult result = getMetricValue(report, metricRequest, null);
+                if (result == ReadMetricResult.RequestFailed) {
+                    failedAttributes.add(metricRequest.attribute);
+                } else {
+                    anyRead = true;
+                }
+                results.put(metricRequest.req, result);
+            }
+            // if every attribute fails on its own too, e.g. because the server is not reachable, none of them is to
+            // blame for the failed composite operation
+            if (anyRead && !failedAttributes.isEmpty()) {
+                if (unbatchedAttributes.isEmpty()) {
+                    unbatchedAttributesRetryTime = System.currentTimeMillis() + UNBATCHED_ATTRIBUTES_RETRY_INTERVAL;
+                }
+                unbatchedAttributes.addAll(failedAttributes);
+            }
+            return results;
+        }
+
+        List<String> expressions = new ArrayList<String>();
+        CompositeOperation resolveOperation = new CompositeOperation();
+        for (MetricRequest metricRequest : batch) {
+            String expression = getExpression(metricRequest, readResults.get(steps.get(metricRequest.attribute)));
+            if (expression != null && !expressions.contains(expression)) {
+                expressions.add(expression);
+                resolveOperation.addStep(new ResolveExpression(expression));
+            }
+        }
+        Map<String, Result> resolvedExpressions = new HashMap<String, Result>();
+        if (expressions.size() > 1) {
+            List<Result> resolveResults = executeSteps(resolveOperation);
+            // the expressions that could not be resolved together are resolved one by one
+            for (int i = 0; resolveResults != null && i < expressions.size(); i++) {
+                resolvedExpressions.put(expressions.get(i), resolveResults.get(i));
+            }
         }
+
+        for (MetricRequest metricRequest : batch) {
+            Result res = readResults.get(steps.get(metricRequest.attribute));
+            results.put(metricRequest.req, processMetricValue(report, metricRequest, res, resolvedExpressions));
+        }
+        return results;
     }
 
     /**
@@ -203,95 +314,89 @@ public class BaseComponent<T extends ResourceComponent<?>> implements AS7Compone
      */
     protected ReadMetricResult getMetricValue(MeasurementReport report, MeasurementScheduleRequest req,
         Set<String> explicitExpressions) {
-        if (req.getName().startsWith(INTERNAL))
+        if (req.getName().startsWith(INTERNAL)) {
             processPluginStats(req, report);
-        else {
-            // Metrics from the application server
+            return ReadMetricResult.Success;
+        }
+        return getMetricValue(report, new MetricRequest(req, explicitExpressions), null);
+    }
 
-            String reqName = req.getName();
-            boolean resolveExpression = false;
-            if (reqName.startsWith(EXPRESSION)) {
-                resolveExpression = true;
-                reqName = reqName.substring(EXPRESSION_SIZE);
-            } else if (explicitExpressions != null && explicitExpressions.contains(reqName)) {
-                resolveExpression = true;
-            }
+    private ReadMetricResult getMetricValue(MeasurementReport report, MetricRequest metricRequest,
+        Map<String, Result> resolvedExpressions) {
+        // Metrics from the application server
+        Operation op = new ReadAttribute(address, metricRequest.attribute);
+        Result res = getASConnection().execute(op);
+        return processMetricValue(report, metricRequest, res, resolvedExpressions);
+    }
 
-            ComplexRequest complexRequest = null;
-            Operation op;
-            if (reqName.contains(":")) {
-                complexRequest = ComplexRequest.create(reqName);
-                op = new ReadAttribute(address, complexRequest.getProp());
-            } else {
-                op = new ReadAttribute(address, reqName);
-            }
+    private ReadMetricResult processMetricValue(MeasurementReport report, MetricRequest metricRequest, Result res,
+        Map<String, Result> resolvedExpressions) {
+        MeasurementScheduleRequest req = metricRequest.req;
+        ComplexRequest complexRequest = metricRequest.complexRequest;
+        boolean resolveExpression = metricRequest.resolveExpression;
 
-            Result res = getASConnection().execute(op);
-            if (!res.isSuccess()) {
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("Getting metric [" + req.getName() + "] at [ " + address + "] failed: "
-                        + res.getFailureDescription());
-                }
-                return ReadMetricResult.RequestFailed;
+        if (!res.isSuccess()) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Getting metric [" + req.getName() + "] at [ " + address + "] failed: "
+                    + res.getFailureDescription());
             }
+            return ReadMetricResult.RequestFailed;
+        }
 
-            Object val = res.getResult();
-            if (val == null) // One of the AS7 ways of telling "This is not implemented" See also AS7-1454
-                return ReadMetricResult.Null;
+        Object val = res.getResult();
+        if (val == null) // One of the AS7 ways of telling "This is not implemented" See also AS7-1454
+            return ReadMetricResult.Null;
 
-            if (req.getDataType() == DataType.MEASUREMENT) {
-                if (val instanceof String && ((String) val).startsWith("JBAS018003")) // AS7 way of saying "no value available"
-                    return ReadMetricResult.Null;
-                try {
-                    if (complexRequest != null) {
-                        @SuppressWarnings("unchecked")
-                        Map<String, Number> myValues = (Map<String, Number>) val;
-                        for (String key : myValues.keySet()) {
-                            String sub = complexRequest.getSub();
-                            if (key.equals(sub)) {
-                                addMetric2Report(report, req, myValues.get(key), resolveExpression);
-                            }
+        if (req.getDataType() == DataType.MEASUREMENT) {
+            if (val instanceof String && ((String) val).startsWith("JBAS018003")) // AS7 way of saying "no value available"
+                return ReadMetricResult.Null;
+            try {
+                if (complexRequest != null) {
+                    @SuppressWarnings("unchecked")
+                    Map<String, Number> myValues = (Map<String, Number>) val;
+                    for (String key : myValues.keySet()) {
+                        String sub = complexRequest.getSub();
+                        if (key.equals(sub)) {
+                            addMetric2Report(report, req, myValues.get(key), resolveExpression, resolvedExpressions);
                         }
-                    } else {
-                        addMetric2Report(report, req, val, resolveExpression);
                     }
-                } catch (NumberFormatException e) {
-                    if (LOG.isDebugEnabled()) {
-                        LOG.debug("Non numeric input for [" + req.getName() + "] : [" + val + "]");
-                    }
-                    return ReadMetricResult.ResolveFailed;
+                } else {
+                    addMetric2Report(report, req, val, resolveExpression, resolvedExpressions);
                 }
-            } else if (req.getDataType() == DataType.TRAIT) {
-
-                if (resolveExpression && val instanceof Map && ((Map) val).containsKey(EXPRESSION_VALUE_KEY)) {
-                    String expression = (String) ((Map) val).get(EXPRESSION_VALUE_KEY);
-                    ResolveExpression resolveExpressionOperation = new ResolveExpression(expression);
-                    Result result = getASConnection().execute(resolveExpressionOperation);
-                    if (!result.isSuccess()) {
-                        if (LOG.isDebugEnabled()) {
-                            LOG.debug("Skipping trait [" + req.getName()
-                                            + "] in measurement report. Could not resolve expression [" + expression
-                                            + "], failureDescription:" + result.getFailureDescription());
-                            return ReadMetricResult.ResolveFailed;
-                        }
-                    }
-                    val = result.getResult();
+            } catch (NumberFormatException e) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Non numeric input for [" + req.getName() + "] : [" + val + "]");
                 }
+                return ReadMetricResult.ResolveFailed;
+            }
+        } else if (req.getDataType() == DataType.TRAIT) {
 
-                MeasurementDataTrait data = new MeasurementDataTrait(req, getStringValue(val));
-                report.addData(data);
+            if (resolveExpression && val instanceof Map && ((Map) val).containsKey(EXPRESSION_VALUE_KEY)) {
+                String expression = (String) ((Map) val).get(EXPRESSION_VALUE_KEY);
+                Result result = resolveExpression(expression, resolvedExpressions);
+                if (!result.isSuccess()) {
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Skipping trait [" + req.getName()
+                                        + "] in measurement report. Could not resolve expression [" + expression
+                                        + "], failureDescription:" + result.getFailureDescription());
+                        return ReadMetricResult.ResolveFailed;
+                    }
+                }
+                val = result.getResult();
             }
+
+            MeasurementDataTrait data = new MeasurementDataTrait(req, getStringValue(val));
+            report.addData(data);
         }
         return ReadMetricResult.Success;
 
     }
 
     private void addMetric2Report(MeasurementReport report, MeasurementScheduleRequest req, Object val,
-        boolean resolveExpression) {
+        boolean resolveExpression, Map<String, Result> resolvedExpressions) {
         if (resolveExpression && val instanceof Map && ((Map) val).containsKey(EXPRESSION_VALUE_KEY)) {
             String expression = (String) ((Map) val).get(EXPRESSION_VALUE_KEY);
-            ResolveExpression resolveExpressionOperation = new ResolveExpression(expression);
-            Result result = getASConnection().execute(resolveExpressionOperation);
+            Result result = resolveExpression(expression, resolvedExpressions);
             if (!result.isSuccess()) {
                 if (LOG.isDebugEnabled()) {
                     LOG.debug("Skipping metric [" + req.getName() + "] in measurement report. Could not resolve expression ["
@@ -306,6 +411,61 @@ public class BaseComponent<T extends ResourceComponent<?>> implements AS7Compone
         report.addData(data);
     }
 
+    private Result resolveExpression(String expression, Map<String, Result> resolvedExpressions) {
+        Result result = (resolvedExpressions != null) ? resolvedExpressions.get(expression) : null;
+        if (result == null) {
+            result = getASConnection().execute(new ResolveExpression(expression));
+        }
+        return result;
+    }
+
+    /**
+     * @return the expression the value read for the request is represented by, if it is to be resolved
+     */
+    private static String getExpression(MetricRequest metricRequest, Result res) {
+        if (!metricRequest.resolveExpression || !res.isSuccess()) {
+            return null;
+        }
+        Object val = res.getResult();
+        if (metricRequest.complexRequest != null && metricRequest.req.getDataType() == DataType.MEASUREMENT
+            && val instanceof Map) {
+            val = ((Map) val).get(metricRequest.complexRequest.getSub());
+        }
+        if (val instanceof Map && ((Map) val).containsKey(EXPRESSION_VALUE_KEY)) {
+            return (String) ((Map) val).get(EXPRESSION_VALUE_KEY);
+        }
+        return null;
+    }
+
+    /**
+     * Executes a composite operation and splits its result into the results of its steps.
+     *
+     * @return the results of the steps, in the order of the steps, or null if the operation failed
+     */
+    private List<Result> executeSteps(CompositeOperation operation) {
+        Result res = getASConnection().execute(operation);
+        if (res == null || !res.isSuccess() || !(res.getResult() instanceof Map)) {
+            return null;
+        }
+        Map<?, ?> stepResults = (Map<?, ?>) res.getResult();
+        List<Result> results = new ArrayList<Result>(operation.numberOfSteps());
+        for (int i = 1; i <= operation.numberOfSteps(); i++) {
+            Object stepResult = stepResults.get("step-" + i);
+            if (!(stepResult instanceof Map)) {
+                return null;
+            }
+            Map<?, ?> stepResultMap = (Map<?, ?>) stepResult;
+            Result result = new Result();
+            result.setOutcome(String.valueOf(stepResultMap.get("outcome")));
+            result.setResult(stepResultMap.get("result"));
+            if (stepResultMap.get("failure-description") != null) {
+                result.setFailureDescription(stepResultMap.get("failure-description"));
+            }
+            results.add(result);
+        }
+        return results;
+    }
+
     protected String getStringValue(Object val) {
         String realVal;
         if (val instanceof String)
@@ -923,6 +1083,34 @@ public class BaseComponent<T extends ResourceComponent<?>> implements AS7Compone
         Success, RequestFailed, Null, ResolveFailed
     }
 
+    /**
+     * A metric request with the attribute to read for it
+     */
+    private static class MetricRequest {
+        private final MeasurementScheduleRequest req;
+        private final String attribute;
+        private final ComplexRequest complexRequest;
+        private final boolean resolveExpression;
+
+        private MetricRequest(MeasurementScheduleRequest req, Set<String> explicitExpressions) {
+            this.req = req;
+            String reqName = req.getName();
+            if (reqName.startsWith(EXPRESSION)) {
+                reqName = reqName.substring(EXPRESSION_SIZE);
+                this.resolveExpression = true;
+            } else {
+                this.resolveExpression = explicitExpressions != null && explicitExpressions.contains(reqName);
+            }
+            if (reqName.contains(":")) {
+                this.complexRequest = ComplexRequest.create(reqName);
+                this.attribute = this.complexRequest.getProp();
+            } else {
+                this.complexRequest = null;
+                this.attribute = reqName;
+            }
+        }
+    }
+
     private static class ComplexRequest {
         private String prop;
         private String sub;
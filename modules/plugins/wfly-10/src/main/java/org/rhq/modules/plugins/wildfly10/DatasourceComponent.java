@@ -25,6 +25,7 @@ import static org.rhq.core.domain.configuration.ConfigurationUpdateStatus.FAILUR
 import static org.rhq.core.domain.configuration.ConfigurationUpdateStatus.NOCHANGE;
 import static org.rhq.core.domain.configuration.ConfigurationUpdateStatus.SUCCESS;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
@@ -116,17 +117,21 @@ public class DatasourceComponent extends BaseComponent<DatasourcesComponent> {
     public void getValues(MeasurementReport report, Set<MeasurementScheduleRequest> requests) throws Exception {
 
         Set<MeasurementScheduleRequest> metrics = new HashSet<MeasurementScheduleRequest>(requests.size());
+        List<MeasurementScheduleRequest> poolSizeMetrics = new ArrayList<MeasurementScheduleRequest>(2);
         for (MeasurementScheduleRequest request : requests) {
             if (request.getName().equals("connectionAvailable")) {
                 report.addData(getConnectionAvailable(request));
             } else if (request.getName().equals(MAX_POOL_SIZE_ATTRIBUTE)) {
-                getRCAsMetric(report, request);
+                poolSizeMetrics.add(request);
             } else if (request.getName().equals(MIN_POOL_SIZE_ATTRIBUTE)) {
-                getRCAsMetric(report, request);
+                poolSizeMetrics.add(request);
             } else {
                 metrics.add(request);
             }
         }
+        if (!poolSizeMetrics.isEmpty()) {
+            getRCAsMetrics(report, poolSizeMetrics);
+        }
 
         /*
          * Remainder here are metrics that can be read from the resource.
@@ -286,18 +291,22 @@ public class DatasourceComponent extends BaseComponent<DatasourcesComponent> {
         }
     }
 
-    private void getRCAsMetric(MeasurementReport report, MeasurementScheduleRequest request) {
-        ReadMetricResult result = getMetricValue(report, request, EXPRESSION_METRICS);
-
-        if (result.equals(ReadMetricResult.Null)) { // server
-            Double val = Double.valueOf(-1);
-            if (request.getName().equals(MAX_POOL_SIZE_ATTRIBUTE))
-                val = Double.valueOf(20); // The default value
-            else if (request.getName().equals(MIN_POOL_SIZE_ATTRIBUTE))
-                val = Double.valueOf(0); // The default value
+    private void getRCAsMetrics(MeasurementReport report, List<MeasurementScheduleRequest> requests) {
+        // the pool sizes are read together, see BaseComponent#getMetricValues
+        Map<MeasurementScheduleRequest, ReadMetricResult> results = getMetricValues(report, requests,
+            EXPRESSION_METRICS);
 
-            MeasurementDataNumeric data = new MeasurementDataNumeric(request, val);
-            report.addData(data);
+        for (MeasurementScheduleRequest request : requests) {
+            if (results.get(request) == ReadMetricResult.Null) { // server
+                Double val = Double.valueOf(-1);
+                if (request.getName().equals(MAX_POOL_SIZE_ATTRIBUTE))
+                    val = Double.valueOf(20); // The default value
+                else if (request.getName().equals(MIN_POOL_SIZE_ATTRIBUTE))
+                    val = Double.valueOf(0); // The default value
+
+                MeasurementDataNumeric data = new MeasurementDataNumeric(request, val);
+                report.addData(data);
+            }
         }
     }
 
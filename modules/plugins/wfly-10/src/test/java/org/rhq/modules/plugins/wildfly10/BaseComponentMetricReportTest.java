@@ -19,7 +19,11 @@
 
 package org.rhq.modules.plugins.wildfly10;
 
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.argThat;
+import static org.mockito.Matchers.isA;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.rhq.core.domain.measurement.DataType.MEASUREMENT;
 import static org.rhq.core.domain.measurement.DataType.TRAIT;
@@ -37,6 +41,8 @@ import java.util.Set;
 import org.mockito.ArgumentMatcher;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
@@ -46,6 +52,8 @@ import org.rhq.core.domain.measurement.MeasurementDataTrait;
 import org.rhq.core.domain.measurement.MeasurementReport;
 import org.rhq.core.domain.measurement.MeasurementScheduleRequest;
 import org.rhq.modules.plugins.wildfly10.json.Address;
+import org.rhq.modules.plugins.wildfly10.json.CompositeOperation;
+import org.rhq.modules.plugins.wildfly10.json.Operation;
 import org.rhq.modules.plugins.wildfly10.json.ReadAttribute;
 import org.rhq.modules.plugins.wildfly10.json.ResolveExpression;
 import org.rhq.modules.plugins.wildfly10.json.Result;
@@ -170,6 +178,115 @@ public class BaseComponentMetricReportTest {
         assertEquals(trait.getValue(), traitValue);
     }
 
+    @Test
+    public void testMetricsReadInOneOperation() throws Exception {
+        final Map<String, Object> values = new HashMap<String, Object>();
+        values.put("pipo", 13d);
+        values.put("molo", 14d);
+        values.put("city", expression("${prop:paris}"));
+        values.put("${prop:paris}", "marseille");
+        values.put("country", expression("${prop:france}"));
+        values.put("${prop:france}", "france");
+        requests.add(newMeasurementRequest("pipo"));
+        requests.add(newMeasurementRequest("molo"));
+        requests.add(newTraitRequest(EXPRESSION + "city"));
+        requests.add(newTraitRequest(EXPRESSION + "country"));
+
+        when(asConnection.execute(isA(CompositeOperation.class))).thenAnswer(new Answer<Result>() {
+            @Override
+            public Result answer(InvocationOnMock invocation) throws Throwable {
+                CompositeOperation operation = (CompositeOperation) invocation.getArguments()[0];
+                Map<String, Object> stepResults = new HashMap<String, Object>();
+                for (int i = 0; i < operation.numberOfSteps(); i++) {
+                    Operation step = operation.step(i);
+                    Object key = (step instanceof ResolveExpression) ? step.getAdditionalProperties().get(
+                        "expression") : step.getName();
+                    Map<String, Object> stepResult = new HashMap<String, Object>();
+                    stepResult.put("outcome", SUCCESS);
+                    stepResult.put("result", values.get(key));
+                    stepResults.put("step-" + (i + 1), stepResult);
+                }
+                return result(stepResults);
+            }
+        });
+        sampleComponent.getValues(report, requests);
+
+        // one operation reads the attributes, another one resolves the expressions
+        verify(asConnection, times(2)).execute(any(Operation.class));
+        Map<String, Object> reported = new HashMap<String, Object>();
+        for (MeasurementDataNumeric numericMetric : report.getNumericData()) {
+            reported.put(numericMetric.getName(), numericMetric.getValue());
+        }
+        for (MeasurementDataTrait trait : report.getTraitData()) {
+            reported.put(trait.getName(), trait.getValue());
+        }
+        assertEquals(reported.size(), 4);
+        assertEquals(reported.get("pipo"), 13d);
+        assertEquals(reported.get("molo"), 14d);
+        assertEquals(reported.get(EXPRESSION + "city"), "marseille");
+        assertEquals(reported.get(EXPRESSION + "country"), "france");
+    }
+
+    @Test
+    public void testMetricsReadOneByOneWhenCompositeFails() throws Exception {
+        requests.add(newMeasurementRequest("pipo"));
+        requests.add(newMeasurementRequest("molo"));
+
+        Result failure = new Result();
+        failure.setOutcome("failed");
+        when(asConnection.execute(isA(CompositeOperation.class))).thenReturn(failure);
+        when(asConnection.execute(readAttribute(address, "pipo"))).thenReturn(result(13d));
+        when(asConnection.execute(readAttribute(address, "molo"))).thenReturn(failure);
+        sampleComponent.getValues(report, requests);
+
+        Set<MeasurementDataNumeric> numericMetrics = report.getNumericData();
+        assertEquals(numericMetrics.size(), 1);
+        assertEquals(numericMetrics.iterator().next().getValue(), 13d);
+
+        // the attribute that cannot be read is left out of the composite operation from then on
+        report = new MeasurementReport();
+        sampleComponent.getValues(report, requests);
+        verify(asConnection, times(1)).execute(isA(CompositeOperation.class));
+        verify(asConnection, times(2)).execute(readAttribute(address, "molo"));
+        verify(asConnection, times(2)).execute(readAttribute(address, "pipo"));
+    }
+
+    @Test
+    public void testNoAttributeLeftOutWhenAllFail() throws Exception {
+        requests.add(newMeasurementRequest("pipo"));
+        requests.add(newMeasurementRequest("molo"));
+
+        Result failure = new Result();
+        failure.setOutcome("failed");
+        when(asConnection.execute(any(Operation.class))).thenReturn(failure);
+        sampleComponent.getValues(report, requests);
+        assertEquals(report.getNumericData().size(), 0);
+
+        // no attribute is to blame for the failed composite operation, e.g. the server was not reachable
+        sampleComponent.getValues(new MeasurementReport(), requests);
+        verify(asConnection, times(2)).execute(isA(CompositeOperation.class));
+    }
+
+    @Test
+    public void testLeftOutAttributesRetriedInOneOperation() throws Exception {
+        requests.add(newMeasurementRequest("pipo"));
+        requests.add(newMeasurementRequest("molo"));
+
+        Result failure = new Result();
+        failure.setOutcome("failed");
+        when(asConnection.execute(isA(CompositeOperation.class))).thenReturn(failure);
+        when(asConnection.execute(readAttribute(address, "pipo"))).thenReturn(result(13d));
+        when(asConnection.execute(readAttribute(address, "molo"))).thenReturn(failure);
+        sampleComponent.getValues(report, requests);
+        sampleComponent.getValues(new MeasurementReport(), requests);
+        verify(asConnection, times(1)).execute(isA(CompositeOperation.class));
+
+        // e.g. the server has been upgraded by the time the left out attributes are retried
+        sampleComponent.unbatchedAttributesRetryTime = System.currentTimeMillis() - 1;
+        sampleComponent.getValues(new MeasurementReport(), requests);
+        verify(asConnection, times(2)).execute(isA(CompositeOperation.class));
+    }
+
     private class SampleComponent extends BaseComponent {
 
         private SampleComponent() {